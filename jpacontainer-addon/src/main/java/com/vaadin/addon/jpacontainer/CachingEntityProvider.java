@@ -16,6 +16,8 @@
 
 package com.vaadin.addon.jpacontainer;
 
+import java.util.concurrent.Executor;
+
 /**
  * Interface to be implemented by all <code>EntityProvider</code>s that perform
  * some kind of internal caching.
@@ -25,6 +27,34 @@ package com.vaadin.addon.jpacontainer;
  */
 public interface CachingEntityProvider<T> extends EntityProvider<T> {
 
+    /**
+     * The ways in which the entity cache can reference the cached entity
+     * instances.
+     * 
+     * @see CachingEntityProvider#setEntityCacheReferenceMode(ReferenceMode)
+     * @since 3.2
+     */
+    public enum ReferenceMode {
+        /**
+         * The cached entities are referenced strongly, which means that they
+         * are only removed from the cache when the cache is full.
+         */
+        STRONG,
+        /**
+         * The cached entities are referenced softly, which means that the
+         * garbage collector may reclaim them when the heap is running out of
+         * memory.
+         */
+        SOFT,
+        /**
+         * The cached entities are referenced weakly, which means that the
+         * garbage collector may reclaim them as soon as they are no longer
+         * used elsewhere. The most recently used entities are still referenced
+         * strongly, so that they are not lost between consecutive requests.
+         */
+        WEAK
+    }
+
     /**
      * Gets the maximum number of entity instances to store in the cache. The
      * default value is implementation specific.
@@ -47,6 +77,284 @@ public interface CachingEntityProvider<T> extends EntityProvider<T> {
     public void setEntityCacheMaxSize(int maxSize)
             throws UnsupportedOperationException;
 
+    /**
+     * Gets the maximum total weight of the entity instances stored in the
+     * cache, as estimated by the {@link #getEntityWeigher() entity weigher}.
+     * By default, the weight is not limited.
+     * 
+     * @return the max weight, or -1 for unlimited weight.
+     */
+    public long getEntityCacheMaxWeight();
+
+    /**
+     * Sets the maximum total weight of the entity instances stored in the
+     * cache. When the limit is exceeded, the least recently used entities are
+     * removed from the cache. The weight is only limited if an
+     * {@link #setEntityWeigher(EntityWeigher) entity weigher} has been set.
+     * This limit applies in addition to the
+     * {@link #setEntityCacheMaxSize(int) max size}. This feature is optional.
+     * 
+     * @param maxWeight
+     *            the new maximum weight, or -1 for unlimited weight.
+     * @throws UnsupportedOperationException
+     *             if this implementation does not support limiting the weight
+     *             of the cache.
+     */
+    public void setEntityCacheMaxWeight(long maxWeight)
+            throws UnsupportedOperationException;
+
+    /**
+     * Gets the weigher that is used to estimate the weight of the cached
+     * entity instances.
+     * 
+     * @return the entity weigher, or null if none has been set.
+     */
+    public EntityWeigher<? super T> getEntityWeigher();
+
+    /**
+     * Sets the weigher that is used to estimate the weight of the cached
+     * entity instances. Changing the weigher flushes the entity cache.
+     * 
+     * @param weigher
+     *            the entity weigher, or null to not weigh the entities.
+     * @throws UnsupportedOperationException
+     *             if this implementation does not support weighing entities.
+     */
+    public void setEntityWeigher(EntityWeigher<? super T> weigher)
+            throws UnsupportedOperationException;
+
+    /**
+     * Gets the current total weight of the entity instances in the cache, as
+     * estimated by the {@link #getEntityWeigher() entity weigher}.
+     * 
+     * @return the current weight, or 0 if no entity weigher has been set.
+     */
+    public long getEntityCacheWeight();
+
+    /**
+     * Gets the way the entity cache references the cached entity instances.
+     * By default, the entities should be referenced strongly.
+     * 
+     * @return the reference mode (never null).
+     */
+    public ReferenceMode getEntityCacheReferenceMode();
+
+    /**
+     * Sets the way the entity cache references the cached entity instances.
+     * With {@link ReferenceMode#SOFT} or {@link ReferenceMode#WEAK}, cached
+     * entities can be reclaimed by the garbage collector instead of filling up
+     * the heap, which is useful when there are many providers (e.g. one per
+     * session). The {@link #setEntityCacheMaxSize(int) max size} still
+     * applies. Changing the reference mode flushes the entity cache. This
+     * feature is optional.
+     * 
+     * @param referenceMode
+     *            the reference mode (must not be null).
+     * @throws UnsupportedOperationException
+     *             if this implementation does not support changing the
+     *             reference mode.
+     */
+    public void setEntityCacheReferenceMode(ReferenceMode referenceMode)
+            throws UnsupportedOperationException;
+
+    /**
+     * Gets the number of entity identifiers that are fetched at a time when
+     * the cached identifier lists need to be filled. The default value is
+     * implementation specific.
+     * 
+     * @return the chunk size.
+     */
+    public int getIdChunkSize();
+
+    /**
+     * Sets the number of entity identifiers that are fetched at a time when
+     * the cached identifier lists need to be filled. A larger chunk size
+     * results in fewer, but larger queries. If
+     * {@link #isAdaptiveIdChunkSize()} is true, this is the initial chunk
+     * size.
+     * 
+     * @param chunkSize
+     *            the chunk size (must be at least 1).
+     * @throws UnsupportedOperationException
+     *             if this implementation does not support configuring the
+     *             chunk size.
+     */
+    public void setIdChunkSize(int chunkSize)
+            throws UnsupportedOperationException;
+
+    /**
+     * Returns whether the chunk size adapts to the way the entities are
+     * accessed. If true, the chunk size grows when the entities are accessed
+     * sequentially (e.g. when scrolling through a table) and shrinks when
+     * they are accessed randomly. By default, the adaptive chunk size should
+     * be disabled.
+     * 
+     * @see #getIdChunkSize()
+     * @return true if the chunk size is adaptive, false if the configured
+     *         chunk size is always used.
+     */
+    public boolean isAdaptiveIdChunkSize();
+
+    /**
+     * Changes the value of the {@link #isAdaptiveIdChunkSize()} flag.
+     * 
+     * @param adaptive
+     *            true to let the chunk size adapt to the access pattern, false
+     *            to always use the configured chunk size.
+     * @throws UnsupportedOperationException
+     *             if this implementation does not support an adaptive chunk
+     *             size.
+     */
+    public void setAdaptiveIdChunkSize(boolean adaptive)
+            throws UnsupportedOperationException;
+
+    /**
+     * Gets the maximum number of different filters whose results are stored
+     * in the cache. The default value is implementation specific.
+     * 
+     * @return the max number of filters.
+     */
+    public int getFilterCacheMaxSize();
+
+    /**
+     * Sets the maximum number of different filters whose results are stored
+     * in the cache. Changing the value flushes the cached results.
+     * 
+     * @param maxSize
+     *            the max number of filters (must be at least 1).
+     * @throws UnsupportedOperationException
+     *             if this implementation does not support configuring the
+     *             size of the filter cache.
+     */
+    public void setFilterCacheMaxSize(int maxSize)
+            throws UnsupportedOperationException;
+
+    /**
+     * Gets the maximum number of differently sorted identifier lists that are
+     * stored in the cache for every filter. The default value is
+     * implementation specific.
+     * 
+     * @return the max number of sort orders per filter.
+     */
+    public int getSortByCacheMaxSize();
+
+    /**
+     * Sets the maximum number of differently sorted identifier lists that are
+     * stored in the cache for every filter. Changing the value flushes the
+     * cached results.
+     * 
+     * @param maxSize
+     *            the max number of sort orders per filter (must be at least
+     *            1).
+     * @throws UnsupportedOperationException
+     *             if this implementation does not support configuring the
+     *             size of the sort by cache.
+     */
+    public void setSortByCacheMaxSize(int maxSize)
+            throws UnsupportedOperationException;
+
+    /**
+     * Gets the time after which cached entity instances expire. By default,
+     * cached entities never expire.
+     * 
+     * @return the time to live in milliseconds, or -1 if the entities never
+     *         expire.
+     */
+    public long getEntityCacheTimeToLive();
+
+    /**
+     * Sets the time after which cached entity instances expire and are loaded
+     * again from the persistence storage. This bounds the staleness of the
+     * cached entities when the persistence storage is also modified by others
+     * (e.g. other nodes or batch jobs). Changing the value flushes the entity
+     * cache. This feature is optional.
+     * 
+     * @param timeToLive
+     *            the time to live in milliseconds, or -1 to never expire.
+     * @throws UnsupportedOperationException
+     *             if this implementation does not support expiring entities.
+     */
+    public void setEntityCacheTimeToLive(long timeToLive)
+            throws UnsupportedOperationException;
+
+    /**
+     * Gets the time after which cached identifier lists expire. By default,
+     * cached identifier lists never expire.
+     * 
+     * @return the time to live in milliseconds, or -1 if the lists never
+     *         expire.
+     */
+    public long getIdListTimeToLive();
+
+    /**
+     * Sets the time after which cached identifier lists expire and are loaded
+     * again from the persistence storage. This feature is optional.
+     * 
+     * @see #setEntityCacheTimeToLive(long)
+     * @param timeToLive
+     *            the time to live in milliseconds, or -1 to never expire.
+     * @throws UnsupportedOperationException
+     *             if this implementation does not support expiring identifier
+     *             lists.
+     */
+    public void setIdListTimeToLive(long timeToLive)
+            throws UnsupportedOperationException;
+
+    /**
+     * Gets the time after which cached entity counts expire. By default,
+     * cached counts never expire.
+     * 
+     * @return the time to live in milliseconds, or -1 if the counts never
+     *         expire.
+     */
+    public long getEntityCountTimeToLive();
+
+    /**
+     * Sets the time after which cached entity counts expire and are loaded
+     * again from the persistence storage. If a
+     * {@link #setRefreshAheadExecutor(Executor) refresh-ahead executor} has
+     * been set, expired counts are reloaded in the background. This feature is
+     * optional.
+     * 
+     * @see #setEntityCacheTimeToLive(long)
+     * @param timeToLive
+     *            the time to live in milliseconds, or -1 to never expire.
+     * @throws UnsupportedOperationException
+     *             if this implementation does not support expiring counts.
+     */
+    public void setEntityCountTimeToLive(long timeToLive)
+            throws UnsupportedOperationException;
+
+    /**
+     * Gets the executor that is used to reload expired entity counts in the
+     * background.
+     * 
+     * @return the executor, or null if expired counts are reloaded before they
+     *         are returned.
+     */
+    public Executor getRefreshAheadExecutor();
+
+    /**
+     * Sets the executor that is used to reload expired entity counts in the
+     * background. While an expired count is being reloaded, the expired count
+     * is still returned, so that no request has to wait for the count query.
+     * <p>
+     * Note, that the count queries are run in the threads of the executor.
+     * As entity managers are not thread safe, the entity provider should use
+     * an {@link EntityManagerProvider} that returns a separate entity manager
+     * for every thread (including the threads of the executor). This feature
+     * is optional.
+     * 
+     * @param executor
+     *            the executor, or null to reload expired counts before they
+     *            are returned.
+     * @throws UnsupportedOperationException
+     *             if this implementation does not support refreshing counts
+     *             in the background.
+     */
+    public void setRefreshAheadExecutor(Executor executor)
+            throws UnsupportedOperationException;
+
     /**
      * Flushes the cache, forcing all entities to be loaded from the persistence
      * storage upon next request. This feature should be implemented by all
@@ -28,8 +28,8 @@ import com.vaadin.data.Container.Filter;
  * provide entities to {@link EntityContainer}s. It basically contains a subset
  * of the methods found in the standard {@link com.vaadin.data.Container}
  * interface. Note, that most of the methods return entity IDs and not entity
- * instances - only {@link #getEntity(EntityContainer, Object)} actually returns
- * instances.
+ * instances - only {@link #getEntity(EntityContainer, Object)} and
+ * {@link #getEntities(EntityContainer, List)} actually return instances.
  * <p>
  * Entity providers should at least implement this interface according to the
  * contracts specified in the methods JavaDocs. Additional functionality may be
@@ -62,6 +62,22 @@ public interface EntityProvider<T> extends Serializable {
      */
     public T getEntity(EntityContainer<T> entityContainer, Object entityId);
 
+    /**
+     * Loads all the entities identified by <code>entityIds</code> from the
+     * persistence storage. Implementations should use as few queries as
+     * possible, preferably only one, instead of calling
+     * {@link #getEntity(EntityContainer, Object)} for every identifier.
+     *
+     * @param entityIds
+     *            the entity identifiers (must not be null and must not
+     *            contain null).
+     * @return a list of entities with the same size and order as
+     *         <code>entityIds</code>. Entities that were not found are
+     *         represented by null (never null).
+     */
+    public List<T> getEntities(EntityContainer<T> entityContainer,
+            List<Object> entityIds);
+
     /**
      * If this method returns true, all entities returned from this entity
      * provider are explicitly detached from the persistence context before
@@ -114,6 +130,29 @@ public interface EntityProvider<T> extends Serializable {
     public List<Object> getEntityIdentifierAt(EntityContainer<T> entityContainer,
             Filter filter, List<SortBy> sortBy, int index,int qty);
 
+    /**
+     * Loads the entities at positions <code>index</code> to
+     * <code>index + qty - 1</code> in the result set determined from
+     * <code>filter</code> and <code>sortBy</code>. Unlike
+     * {@link #getEntityIdentifierAt(EntityContainer, Filter, List, int, int)}
+     * followed by {@link #getEntities(EntityContainer, List)}, this should be
+     * done with a single query.
+     *
+     * @param filter
+     *            the filter that should be used to filter the entities (may be
+     *            null).
+     * @param sortBy
+     *            the properties to sort by, if any (may be null).
+     * @param index
+     *            the index of the first entity to fetch.
+     * @param qty
+     *            the maximum number of entities to fetch.
+     * @return the entities in the sort order, at most <code>qty</code> of them
+     *         (never null).
+     */
+    public List<T> getEntitiesAt(EntityContainer<T> entityContainer,
+            Filter filter, List<SortBy> sortBy, int index, int qty);
+
     /**
      * Gets the identifier of the first item in the list of entities determined
      * by <code>filter</code> and <code>sortBy</code>.
@@ -19,6 +19,8 @@ package com.vaadin.addon.jpacontainer;
 import java.io.Serializable;
 import java.util.Collection;
 
+import com.vaadin.data.Container.Filter;
+
 /**
  * Event indicating that the contents of a {@link EntityProvider} has been
  * changed (e.g. entities have been added or removed).
@@ -97,4 +99,20 @@ public interface EntityProviderChangeEvent<T> extends Serializable {
             EntityProviderChangeEvent<T> {
         // No additional methods
     }
+
+    /**
+     * Event indicating that the number of entities reported by the entity
+     * provider for a filter has changed without the entities themselves having
+     * been changed, e.g. because an asynchronous count has completed.
+     *
+     * @since 3.2
+     */
+    public interface EntityCountChangedEvent<T> extends
+            EntityProviderChangeEvent<T> {
+
+        /**
+         * @return the filter whose count has changed (may be null).
+         */
+        public Filter getFilter();
+    }
 }
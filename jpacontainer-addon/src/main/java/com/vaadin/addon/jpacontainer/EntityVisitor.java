@@ -0,0 +1,39 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer;
+
+/**
+ * An <code>EntityVisitor</code> is passed the entities of a container one at a
+ * time, e.g. to export them, by
+ * {@link StreamingEntityProvider#visitEntities(EntityContainer, com.vaadin.data.Container.Filter, java.util.List, EntityVisitor)}
+ * and {@link JPAContainer#visitEntities(EntityVisitor)}.
+ * 
+ * @since 3.2
+ */
+public interface EntityVisitor<T> {
+
+    /**
+     * Visits <code>entity</code>. The entity is detached, and should not be
+     * kept after this method has returned, as that would defeat the purpose of
+     * streaming the entities.
+     * 
+     * @param entity
+     *            the entity to visit (never null).
+     * @return true to continue with the next entity, false to stop.
+     */
+    public boolean visit(T entity);
+}
@@ -0,0 +1,45 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer;
+
+import java.io.Serializable;
+
+/**
+ * An <code>EntityWeigher</code> estimates how much memory a cached entity
+ * instance retains. It is used by {@link CachingEntityProvider}s to limit the
+ * total weight of the cached entities, which is more meaningful than limiting
+ * the number of cached entities when the entities vary greatly in size (e.g.
+ * because of large <code>@Lob</code> fields or eagerly fetched collections).
+ * 
+ * @see CachingEntityProvider#setEntityWeigher(EntityWeigher)
+ * @see CachingEntityProvider#setEntityCacheMaxWeight(long)
+ * @since 3.2
+ */
+public interface EntityWeigher<T> extends Serializable {
+
+    /**
+     * Estimates the weight of <code>entity</code>, typically its retained size
+     * in bytes. The entity must not be modified. This method is called once
+     * when the entity is put into the cache and may be called concurrently by
+     * several threads.
+     * 
+     * @param entity
+     *            the entity to weigh (never null).
+     * @return the weight of the entity (must not be negative).
+     */
+    public long weigh(T entity);
+}
@@ -135,6 +135,12 @@ public class JPAContainer<T> implements EntityContainer<T>,
      * entities) is performed.
      */
     private static final int CLEANUPRATE = 200;
+    /**
+     * The number of entities to load at a time in
+     * {@link #visitEntities(EntityVisitor)} if the entity provider is not a
+     * {@link StreamingEntityProvider}.
+     */
+    private static final int VISIT_CHUNK_SIZE = 500;
     private EntityProvider<T> entityProvider;
     private AdvancedFilterableSupport filterSupport;
     private LinkedList<ItemSetChangeListener> listeners;
@@ -147,6 +153,14 @@ public class JPAContainer<T> implements EntityContainer<T>,
 
     transient private HashMap<Object, LinkedList<WeakReference<JPAContainerItem<T>>>> itemRegistry;
 
+    /**
+     * Entities that were loaded in bulk for the item IDs most recently
+     * returned by {@link #getItemIds(int, int)}.
+     */
+    transient private HashMap<Object, T> prefetchedEntities;
+    private boolean prefetchEntities = true;
+    private boolean projectionEnabled = false;
+
     private QueryModifierDelegate queryModifierDelegate;
 
     /**
@@ -253,6 +267,7 @@ public class JPAContainer<T> implements EntityContainer<T>,
     @SuppressWarnings("unchecked")
     protected void fireContainerItemSetChange(final ItemSetChangeEvent event) {
         assert event != null : "event must not be null";
+        clearPrefetchedEntities();
         if (listeners == null || !fireContainerItemSetChangeEvents) {
             return;
         }
@@ -376,6 +391,7 @@ public class JPAContainer<T> implements EntityContainer<T>,
     }
 
     public void entityProviderChange(EntityProviderChangeEvent<T> event) {
+        clearPrefetchedEntities();
         if (isItemSetChangeEvent(event)
                 && isFireItemSetChangeOnProviderChange()) {
             fireContainerItemSetChange(new ProviderChangedEvent(event));
@@ -787,9 +803,8 @@ public class JPAContainer<T> implements EntityContainer<T>,
             return null;
         }
         if (isWriteThrough() || !bufferingDelegate.isModified()) {
-            T entity = doGetEntityProvider().getEntity(this, itemId);
-            return entity != null ? new JPAContainerItem<T>(this, entity)
-                    : null;
+            T entity = doGetEntity(itemId);
+            return entity != null ? createPersistentItem(entity) : null;
         } else {
             if (bufferingDelegate.isAdded(itemId)) {
                 JPAContainerItem<T> item = new JPAContainerItem<T>(this,
@@ -801,21 +816,187 @@ public class JPAContainer<T> implements EntityContainer<T>,
                 item.setDirty(true);
                 return item;
             } else if (bufferingDelegate.isDeleted(itemId)) {
-                T entity = doGetEntityProvider().getEntity(this, itemId);
+                T entity = doGetEntity(itemId);
                 if (entity != null) {
-                    JPAContainerItem<T> item = new JPAContainerItem<T>(this,
-                            entity);
+                    JPAContainerItem<T> item = createPersistentItem(entity);
                     item.setDeleted(true);
                     return item;
                 } else {
                     return null;
                 }
             } else {
-                T entity = doGetEntityProvider().getEntity(this, itemId);
-                return entity != null ? new JPAContainerItem<T>(this, entity)
-                        : null;
+                T entity = doGetEntity(itemId);
+                return entity != null ? createPersistentItem(entity) : null;
+            }
+        }
+    }
+
+    /**
+     * Gets the entity identified by <code>itemId</code>, either from the
+     * entities prefetched by {@link #getItemIds(int, int)} or from the entity
+     * provider.
+     * 
+     * @param itemId
+     *            the ID of the entity (must not be null).
+     * @return the entity, or null if not found.
+     */
+    private T doGetEntity(Object itemId) {
+        if (prefetchedEntities != null) {
+            T entity = prefetchedEntities.get(itemId);
+            if (entity != null) {
+                return entity;
             }
         }
+        return loadEntity(itemId);
+    }
+
+    /**
+     * Creates an item for the persistent <code>entity</code>, which is a
+     * projection if {@link #isProjectionEnabled()} is true.
+     */
+    private JPAContainerItem<T> createPersistentItem(T entity) {
+        JPAContainerItem<T> item = new JPAContainerItem<T>(this, entity);
+        item.setProjected(isProjecting());
+        return item;
+    }
+
+    /**
+     * Loads the entity identified by <code>itemId</code> from the entity
+     * provider, as a projection if {@link #isProjectionEnabled()} is true.
+     * 
+     * @param itemId
+     *            the ID of the entity (must not be null).
+     * @return the entity, or null if not found.
+     */
+    @SuppressWarnings("unchecked")
+    T loadEntity(Object itemId) {
+        if (isProjecting()) {
+            return ((ProjectingEntityProvider<T>) doGetEntityProvider())
+                    .getProjectedEntity(this, itemId, getContainerPropertyIds());
+        }
+        return doGetEntityProvider().getEntity(this, itemId);
+    }
+
+    /**
+     * Checks whether entities are currently loaded as projections.
+     */
+    private boolean isProjecting() {
+        return isProjectionEnabled()
+                && doGetEntityProvider() instanceof ProjectingEntityProvider;
+    }
+
+    /**
+     * Returns whether only the properties of this container are loaded from
+     * the database, instead of entire entities.
+     * 
+     * @see #setProjectionEnabled(boolean)
+     * @return true if projection is enabled, false otherwise (default).
+     * @since 3.2
+     */
+    public boolean isProjectionEnabled() {
+        return projectionEnabled;
+    }
+
+    /**
+     * Sets whether only the properties of this container, i.e.
+     * {@link #getContainerPropertyIds()} including any nested properties, are
+     * loaded from the database instead of entire entities. The properties are
+     * selected as a tuple, so neither the other columns nor the eagerly
+     * fetched associations of the entities are loaded, and the entities are
+     * not added to the persistence context. Properties that are not needed
+     * should be removed from the container using
+     * {@link #removeContainerProperty(Object)}.
+     * <p>
+     * The items of a projecting container are read only, and
+     * {@link EntityItem#getEntity()} returns a new, unmanaged instance of the
+     * entity class in which only the loaded properties have been set. This
+     * feature requires the entity provider to implement
+     * {@link ProjectingEntityProvider}; otherwise entire entities are loaded
+     * as usual.
+     * 
+     * @param projectionEnabled
+     *            true to load only the properties of the container, false to
+     *            load entire entities.
+     * @since 3.2
+     */
+    public void setProjectionEnabled(boolean projectionEnabled) {
+        this.projectionEnabled = projectionEnabled;
+        clearPrefetchedEntities();
+    }
+
+    /**
+     * Gets the IDs of the items at positions <code>startIndex</code> to
+     * <code>startIndex + numberOfItems - 1</code> in the entity provider. If
+     * {@link #isPrefetchEntities()} is true, the entities are loaded together
+     * with their IDs using
+     * {@link EntityProvider#getEntitiesAt(EntityContainer, Filter, List, int, int)}
+     * , so that the subsequent calls to {@link #getItem(Object)} for the same
+     * IDs do not result in any additional queries. Any previously prefetched
+     * entities are discarded.
+     */
+    @SuppressWarnings("unchecked")
+    private List<Object> doGetItemIds(int startIndex, int numberOfItems) {
+        clearPrefetchedEntities();
+        if (!isPrefetchEntities()) {
+            return doGetEntityProvider().getEntityIdentifierAt(this,
+                    getAppliedFiltersAsConjunction(), getSortByList(),
+                    startIndex, numberOfItems);
+        }
+        List<T> entities;
+        if (isProjecting()) {
+            entities = ((ProjectingEntityProvider<T>) doGetEntityProvider())
+                    .getProjectedEntitiesAt(this,
+                            getAppliedFiltersAsConjunction(), getSortByList(),
+                            startIndex, numberOfItems,
+                            getContainerPropertyIds());
+        } else {
+            entities = doGetEntityProvider().getEntitiesAt(this,
+                    getAppliedFiltersAsConjunction(), getSortByList(),
+                    startIndex, numberOfItems);
+        }
+        String idPropertyName = getEntityClassMetadata()
+                .getIdentifierProperty().getName();
+        List<Object> ids = new ArrayList<Object>(entities.size());
+        prefetchedEntities = new HashMap<Object, T>(entities.size() * 2);
+        for (T entity : entities) {
+            Object id = getEntityClassMetadata().getPropertyValue(entity,
+                    idPropertyName);
+            ids.add(id);
+            prefetchedEntities.put(id, entity);
+        }
+        return ids;
+    }
+
+    private void clearPrefetchedEntities() {
+        prefetchedEntities = null;
+    }
+
+    /**
+     * Returns whether {@link #getItemIds(int, int)} loads the entities of the
+     * returned item IDs in the same query as the IDs, so that rendering e.g. a
+     * page of a {@link com.vaadin.ui.Table} does not result in one query per
+     * row. The
+     * prefetched entities are discarded as soon as the item set changes or an
+     * item is modified.
+     * 
+     * @return true if entities are prefetched (default), false otherwise.
+     */
+    public boolean isPrefetchEntities() {
+        return prefetchEntities;
+    }
+
+    /**
+     * See {@link #isPrefetchEntities()}.
+     * 
+     * @param prefetchEntities
+     *            true to prefetch entities, false to load them one by one
+     *            when the items are requested.
+     */
+    public void setPrefetchEntities(boolean prefetchEntities) {
+        this.prefetchEntities = prefetchEntities;
+        if (!prefetchEntities) {
+            clearPrefetchedEntities();
+        }
     }
 
     /**
@@ -891,6 +1072,50 @@ public class JPAContainer<T> implements EntityContainer<T>,
         }
     }
 
+    /**
+     * Passes the entities of this container to <code>visitor</code> in the
+     * current sort order, applying the current filters. Unlike
+     * {@link #getItemIds()}, this does not load all the item IDs into memory,
+     * nor does it load the entities one by one. Use this method e.g. to
+     * export the contents of a large container.
+     * <p>
+     * If the entity provider implements {@link StreamingEntityProvider}, the
+     * entities are streamed by the provider. Otherwise they are loaded a
+     * chunk at a time using
+     * {@link EntityProvider#getEntitiesAt(EntityContainer, Filter, List, int, int)}
+     * . Only entities that have been stored by the entity provider are
+     * visited; the items added to or removed from the container in buffered
+     * mode but not committed yet are ignored.
+     * 
+     * @param visitor
+     *            the visitor to pass the entities to (must not be null).
+     * @return the number of entities visited.
+     * @since 3.2
+     */
+    public int visitEntities(EntityVisitor<? super T> visitor) {
+        assert visitor != null : "visitor must not be null";
+        Filter filter = getAppliedFiltersAsConjunction();
+        List<SortBy> sortBy = getSortByList();
+        if (doGetEntityProvider() instanceof StreamingEntityProvider) {
+            return ((StreamingEntityProvider<T>) doGetEntityProvider())
+                    .visitEntities(this, filter, sortBy, visitor);
+        }
+        int visited = 0;
+        while (true) {
+            List<T> chunk = doGetEntityProvider().getEntitiesAt(this, filter,
+                    sortBy, visited, VISIT_CHUNK_SIZE);
+            for (T entity : chunk) {
+                visited++;
+                if (!visitor.visit(entity)) {
+                    return visited;
+                }
+            }
+            if (chunk.size() < VISIT_CHUNK_SIZE) {
+                return visited;
+            }
+        }
+    }
+
     public EntityItem<T> createEntityItem(T entity) {
         return new JPAContainerItem<T>(this, entity, null, false);
     }
@@ -1216,6 +1441,7 @@ public class JPAContainer<T> implements EntityContainer<T>,
         if (item.getItemId() != null) {
 
             requireWritableContainer();
+            clearPrefetchedEntities();
 
             Object itemId = item.getItemId();
             if (isWriteThrough()) {
@@ -1255,6 +1481,7 @@ public class JPAContainer<T> implements EntityContainer<T>,
 
         if (item.getItemId() != null) {
             requireWritableContainer();
+            clearPrefetchedEntities();
 
             Object itemId = item.getItemId();
             if (isWriteThrough()) {
@@ -1680,6 +1907,7 @@ public class JPAContainer<T> implements EntityContainer<T>,
 
     @SuppressWarnings("unchecked")
     public void refreshItem(Object itemId) {
+        clearPrefetchedEntities();
         LinkedList<WeakReference<JPAContainerItem<T>>> linkedList = null;
         synchronized (getItemRegistry()) {
             LinkedList<WeakReference<JPAContainerItem<T>>> origList = getItemRegistry()
@@ -1705,6 +1933,7 @@ public class JPAContainer<T> implements EntityContainer<T>,
      * @see com.vaadin.addon.jpacontainer.EntityContainer#refresh()
      */
     public void refresh() {
+        clearPrefetchedEntities();
         doGetEntityProvider().refresh();
         bufferingDelegate.discard();
         synchronized (getItemRegistry()) {
@@ -1753,8 +1982,7 @@ public class JPAContainer<T> implements EntityContainer<T>,
     {
 	if (isWriteThrough())
 	{
-	    return doGetEntityProvider().getEntityIdentifierAt(this, getAppliedFiltersAsConjunction(), getSortByList(),
-		    startIndex, numberOfItems);
+	    return doGetItemIds(startIndex, numberOfItems);
 	}
 	int addedItems = bufferingDelegate.getAddedItemIds().size();
 	ArrayList<Object> ids = new ArrayList<Object>();
@@ -1768,8 +1996,7 @@ public class JPAContainer<T> implements EntityContainer<T>,
 	{
 	    startIndex -= addedItems;
 	    startIndex = bufferingDelegate.fixDbIndexWithDeletedItems(startIndex);
-	    ids.addAll(doGetEntityProvider().getEntityIdentifierAt(this, getAppliedFiltersAsConjunction(),
-		    getSortByList(), startIndex, numberOfItems));
+	    ids.addAll(doGetItemIds(startIndex, numberOfItems));
 
 	}
 	return ids;
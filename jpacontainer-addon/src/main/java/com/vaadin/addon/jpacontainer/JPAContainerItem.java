@@ -19,8 +19,10 @@ package com.vaadin.addon.jpacontainer;
 import java.io.IOException;
 import java.lang.reflect.Constructor;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.EventObject;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -186,7 +188,7 @@ public final class JPAContainerItem<T> implements EntityItem<T> {
         }
 
         public boolean isReadOnly() {
-            return !propertyList.isPropertyWritable(propertyId);
+            return projected || !propertyList.isPropertyWritable(propertyId);
         }
 
         /**
@@ -226,7 +228,7 @@ public final class JPAContainerItem<T> implements EntityItem<T> {
         private void ensurePropertyLoaded(String propertyId) {
             LazyLoadingDelegate lazyLoadingDelegate = getContainer()
                     .getEntityProvider().getLazyLoadingDelegate();
-            if (lazyLoadingDelegate == null
+            if (lazyLoadingDelegate == null || projected
                     || !propertyList.isPropertyLazyLoaded(propertyId)) {
                 // Don't need to do anything
                 return;
@@ -358,7 +360,12 @@ public final class JPAContainerItem<T> implements EntityItem<T> {
 
     private T entity;
     private JPAContainer<T> container;
+    /**
+     * The property list of the container, shared until nested properties are
+     * added to this item alone, which then gets a child list of its own.
+     */
     private PropertyList<T> propertyList;
+    private boolean ownPropertyList = false;
     private Map<Object, ItemProperty> propertyMap;
     private boolean modified = false;
     private boolean dirty = false;
@@ -366,6 +373,7 @@ public final class JPAContainerItem<T> implements EntityItem<T> {
     private boolean readThrough = true;
     private boolean writeThrough = true;
     private boolean deleted = false;
+    private boolean projected = false;
     private Object itemId;
 
     /**
@@ -408,7 +416,7 @@ public final class JPAContainerItem<T> implements EntityItem<T> {
         assert entity != null : "entity must not be null";
         this.entity = entity;
         this.container = container;
-        this.propertyList = new PropertyList<T>(container.getPropertyList());
+        this.propertyList = container.getPropertyList();
         this.itemId = itemId;
         if (itemId == null) {
             this.persistent = false;
@@ -430,6 +438,10 @@ public final class JPAContainerItem<T> implements EntityItem<T> {
 
     public void addNestedContainerProperty(String nestedProperty)
             throws UnsupportedOperationException {
+        if (!ownPropertyList) {
+            propertyList = new PropertyList<T>(propertyList);
+            ownPropertyList = true;
+        }
         propertyList.addNestedProperty(nestedProperty);
     }
 
@@ -437,7 +449,7 @@ public final class JPAContainerItem<T> implements EntityItem<T> {
         assert id != null : "id must not be null";
         ItemProperty p = propertyMap.get(id);
         if (p == null) {
-            if (!getItemPropertyIds().contains(id.toString())) {
+            if (!propertyList.isAvailableProperty(id.toString())) {
                 return null;
             }
             p = new ItemProperty(id.toString());
@@ -451,13 +463,19 @@ public final class JPAContainerItem<T> implements EntityItem<T> {
          * Although the container may only contain a few properties, all
          * properties are available for items.
          */
-        return propertyList.getAllAvailablePropertyNames();
+        if (ownPropertyList) {
+            return propertyList.getAllAvailablePropertyNames();
+        }
+        // Don't hand out a live view of the set of the container
+        return Collections.unmodifiableSet(new HashSet<String>(propertyList
+                .getAllAvailablePropertyNames()));
     }
 
     public boolean removeItemProperty(Object id)
             throws UnsupportedOperationException {
         assert id != null : "id must not be null";
-        if (id.toString().indexOf('.') > -1) {
+        if (ownPropertyList && id.toString().indexOf('.') > -1) {
+            // Only properties added to this item can be removed
             return propertyList.removeProperty(id.toString());
         } else {
             return false;
@@ -515,6 +533,30 @@ public final class JPAContainerItem<T> implements EntityItem<T> {
         this.deleted = true;
     }
 
+    /**
+     * Returns whether the entity of this item is a projection, in which only
+     * the properties of the container have been loaded. The properties of
+     * such an item are read only.
+     * 
+     * @see JPAContainer#setProjectionEnabled(boolean)
+     * @return true if the entity is a projection, false otherwise.
+     * @since 3.2
+     */
+    public boolean isProjected() {
+        return projected;
+    }
+
+    /**
+     * Changes the <code>projected</code> flag of this item.
+     * 
+     * @see #isProjected()
+     * @param projected
+     *            true to mark the entity as a projection, false otherwise.
+     */
+    void setProjected(boolean projected) {
+        this.projected = projected;
+    }
+
     public EntityContainer<T> getContainer() {
         return container;
     }
@@ -635,8 +677,8 @@ public final class JPAContainerItem<T> implements EntityItem<T> {
     @SuppressWarnings("serial")
     public void refresh() {
         if (isPersistent()) {
-            T refreshedEntity = getContainer().getEntityProvider()
-                    .refreshEntity(entity);
+            T refreshedEntity = projected ? container.loadEntity(itemId)
+                    : getContainer().getEntityProvider().refreshEntity(entity);
             if (refreshedEntity == null) {
                 /*
                  * Entity has been removed, fire item set change for the
@@ -0,0 +1,83 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer;
+
+import java.util.Collection;
+import java.util.List;
+
+import com.vaadin.data.Container.Filter;
+
+/**
+ * An extended version of {@link EntityProvider} that can load projections of
+ * entities: new, unmanaged instances of the entity class in which only the
+ * selected properties (and the identifier) have been set. The properties are
+ * selected as a tuple, so that neither the other columns of the entities nor
+ * their eagerly fetched associations are loaded, and the entities do not end
+ * up in the persistence context. This feature is used by {@link JPAContainer}
+ * when projection is enabled.
+ * <p>
+ * As the projections are incomplete copies of the entities, they must never
+ * be passed back to the entity provider to be updated or merged.
+ * 
+ * @see JPAContainer#setProjectionEnabled(boolean)
+ * @since 3.2
+ */
+public interface ProjectingEntityProvider<T> extends EntityProvider<T> {
+
+    /**
+     * Loads the projection of the entity identified by <code>entityId</code>.
+     * 
+     * @param entityContainer
+     *            the container that wants the entity (may be null).
+     * @param entityId
+     *            the identifier of the entity (must not be null).
+     * @param propertyIds
+     *            the properties to select. Nested properties may be used.
+     *            Properties that cannot be selected, such as collections and
+     *            transient properties, are left out.
+     * @return the projection, or null if the entity was not found.
+     */
+    public T getProjectedEntity(EntityContainer<T> entityContainer,
+            Object entityId, Collection<String> propertyIds);
+
+    /**
+     * Loads the projections of the entities at positions <code>index</code>
+     * to <code>index + qty - 1</code> in the result set determined from
+     * <code>filter</code> and <code>sortBy</code>, using a single query.
+     * 
+     * @param entityContainer
+     *            the container that wants the entities (may be null).
+     * @param filter
+     *            the filter that should be used to filter the entities (may be
+     *            null).
+     * @param sortBy
+     *            the properties to sort by, if any (may be null).
+     * @param index
+     *            the index of the first entity to fetch.
+     * @param qty
+     *            the maximum number of entities to fetch.
+     * @param propertyIds
+     *            the properties to select, see
+     *            {@link #getProjectedEntity(EntityContainer, Object, Collection)}
+     *            .
+     * @return the projections in the sort order, at most <code>qty</code> of
+     *         them (never null).
+     */
+    public List<T> getProjectedEntitiesAt(EntityContainer<T> entityContainer,
+            Filter filter, List<SortBy> sortBy, int index, int qty,
+            Collection<String> propertyIds);
+}
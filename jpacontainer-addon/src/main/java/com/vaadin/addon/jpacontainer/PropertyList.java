@@ -38,6 +38,7 @@ import com.vaadin.addon.jpacontainer.metadata.ClassMetadata;
 import com.vaadin.addon.jpacontainer.metadata.PersistentPropertyMetadata;
 import com.vaadin.addon.jpacontainer.metadata.PropertyKind;
 import com.vaadin.addon.jpacontainer.metadata.PropertyMetadata;
+import com.vaadin.addon.jpacontainer.metadata.PropertyPath;
 
 /**
  * Helper class to make it easier to work with nested properties. Intended to be
@@ -195,7 +196,7 @@ final class PropertyList<T> implements Serializable {
             throw new IllegalArgumentException(propertyName + " is not nested");
         }
 
-        if (getAllAvailablePropertyNames().contains(propertyName)) {
+        if (isAvailableProperty(propertyName)) {
             return; // Do nothing, the property already exists.
         }
 
@@ -209,7 +210,7 @@ final class PropertyList<T> implements Serializable {
                 for (PropertyMetadata pm : parentProperty.getTypeMetadata()
                         .getProperties()) {
                     String newName = parentPropertyName + "." + pm.getName();
-                    if (!getAllAvailablePropertyNames().contains(newName)) {
+                    if (!isAvailableProperty(newName)) {
                         if (pm instanceof PersistentPropertyMetadata) {
                             persistentPropertyNames.add(newName);
                             if (PropertyKind.SIMPLE
@@ -237,7 +238,7 @@ final class PropertyList<T> implements Serializable {
                                 + "."
                                 + Introspector.decapitalize(m.getName()
                                         .substring(3));
-                        if (!getAllAvailablePropertyNames().contains(newName)) {
+                        if (!isAvailableProperty(newName)) {
                             propertyNames.add(newName);
                             nestedPropertyNames.add(newName);
                             allPropertyNames.add(newName);
@@ -385,12 +386,12 @@ final class PropertyList<T> implements Serializable {
             return nestedPropertyMap.get(propertyName);
         } else {
             try {
-                if (isNestedProperty(propertyName)) {
+                PropertyPath path = PropertyPath.get(propertyName);
+                if (path.isNested()) {
                     // Try with the parent
-                    int offset = propertyName.lastIndexOf('.');
-                    String parentName = propertyName.substring(0, offset);
-                    String name = propertyName.substring(offset + 1);
-                    NestedProperty parentProperty = getNestedProperty(parentName);
+                    String name = path.getLastName();
+                    NestedProperty parentProperty = getNestedProperty(path
+                            .getParent().toString());
                     NestedProperty property;
                     if (parentProperty.getTypeMetadata() != null) {
                         PropertyMetadata pm = parentProperty.getTypeMetadata()
@@ -492,6 +493,21 @@ final class PropertyList<T> implements Serializable {
         return Collections.unmodifiableSet(doGetAllAvailablePropertyNames());
     }
 
+    /**
+     * Checks if <code>propertyName</code> is in the
+     * {@link #getAllAvailablePropertyNames() } set, without creating a copy of
+     * the set.
+     * 
+     * @param propertyName
+     *            the property name (must not be null).
+     * @return true if the property is available, false otherwise.
+     */
+    public boolean isAvailableProperty(String propertyName) {
+        return allPropertyNames.contains(propertyName)
+                || (parentList != null && parentList
+                        .isAvailableProperty(propertyName));
+    }
+
     private <E> Set<E> union(Set<E>... sets) {
         HashSet<E> newSet = new HashSet<E>();
         for (Set<E> s : sets) {
@@ -512,6 +528,9 @@ final class PropertyList<T> implements Serializable {
     protected Set<String> doGetAllAvailablePropertyNames() {
         if (parentList == null) {
             return allPropertyNames;
+        } else if (allPropertyNames.isEmpty()) {
+            // Nothing of our own, no need to copy the parent's
+            return parentList.doGetAllAvailablePropertyNames();
         } else {
             return union(allPropertyNames,
                     parentList.doGetAllAvailablePropertyNames());
@@ -534,6 +553,8 @@ final class PropertyList<T> implements Serializable {
     protected Set<String> doGetPropertyNames() {
         if (parentList == null) {
             return propertyNames;
+        } else if (propertyNames.isEmpty()) {
+            return parentList.doGetPropertyNames();
         } else {
             return union(propertyNames, parentList.doGetPropertyNames());
         }
@@ -553,6 +574,8 @@ final class PropertyList<T> implements Serializable {
     protected Set<String> doGetPersistentPropertyNames() {
         if (parentList == null) {
             return persistentPropertyNames;
+        } else if (persistentPropertyNames.isEmpty()) {
+            return parentList.doGetPersistentPropertyNames();
         } else {
             return union(persistentPropertyNames,
                     parentList.doGetPersistentPropertyNames());
@@ -575,6 +598,8 @@ final class PropertyList<T> implements Serializable {
     protected Map<String, String> doGetSortablePropertyMap() {
         if (parentList == null) {
             return sortablePropertyMap;
+        } else if (sortablePropertyMap.isEmpty()) {
+            return parentList.doGetSortablePropertyMap();
         } else {
             return union(sortablePropertyMap,
                     parentList.doGetSortablePropertyMap());
@@ -595,6 +620,8 @@ final class PropertyList<T> implements Serializable {
     protected Set<String> doGetNestedPropertyNames() {
         if (parentList == null) {
             return nestedPropertyNames;
+        } else if (nestedPropertyNames.isEmpty()) {
+            return parentList.doGetNestedPropertyNames();
         } else {
             return union(nestedPropertyNames,
                     parentList.doGetNestedPropertyNames());
@@ -615,7 +642,7 @@ final class PropertyList<T> implements Serializable {
     public Class<?> getPropertyType(String propertyName)
             throws IllegalArgumentException {
         assert propertyName != null : "propertyName must not be null";
-        if (!getAllAvailablePropertyNames().contains(propertyName)) {
+        if (!isAvailableProperty(propertyName)) {
             throw new IllegalArgumentException("Illegal property name: "
                     + propertyName);
         }
@@ -640,7 +667,7 @@ final class PropertyList<T> implements Serializable {
     public boolean isPropertyWritable(String propertyName)
             throws IllegalArgumentException {
         assert propertyName != null : "propertyName must not be null";
-        if (!getAllAvailablePropertyNames().contains(propertyName)) {
+        if (!isAvailableProperty(propertyName)) {
             throw new IllegalArgumentException("Illegal property name: "
                     + propertyName);
         }
@@ -672,11 +699,12 @@ final class PropertyList<T> implements Serializable {
             throws IllegalArgumentException {
         assert propertyName != null : "propertyName must not be null";
         assert object != null : "object must not be null";
-        if (!getAllAvailablePropertyNames().contains(propertyName)) {
+        if (!isAvailableProperty(propertyName)) {
             throw new IllegalArgumentException("Illegal property name: "
                     + propertyName);
         }
-        return metadata.getPropertyValue(object, propertyName);
+        return metadata.getPropertyValue(object,
+                PropertyPath.get(propertyName));
     }
 
     /**
@@ -701,16 +729,17 @@ final class PropertyList<T> implements Serializable {
             IllegalStateException {
         assert propertyName != null : "propertyName must not be null";
         assert object != null : "object must not be null";
-        if (!getAllAvailablePropertyNames().contains(propertyName)) {
+        if (!isAvailableProperty(propertyName)) {
             throw new IllegalArgumentException("Illegal property name: "
                     + propertyName);
         }
-        metadata.setPropertyValue(object, propertyName, propertyValue);
+        metadata.setPropertyValue(object, PropertyPath.get(propertyName),
+                propertyValue);
     }
 
     public PropertyKind getPropertyKind(String propertyName) {
         assert propertyName != null : "propertyName must not be null";
-        if (!getAllAvailablePropertyNames().contains(propertyName)) {
+        if (!isAvailableProperty(propertyName)) {
             throw new IllegalArgumentException("Illegal property name: "
                     + propertyName);
         }
@@ -731,15 +760,13 @@ final class PropertyList<T> implements Serializable {
      * @return true if the property is loaded lazily
      */
     public boolean isPropertyLazyLoaded(String propertyName) {
-        if (isNestedProperty(propertyName)) {
-            int dotIx = propertyName.indexOf('.');
-            if (isPropertyLazyLoaded(propertyName.substring(dotIx + 1))) {
+        PropertyPath path = PropertyPath.get(propertyName);
+        for (int i = 0; i < path.size(); ++i) {
+            if (getPropertyFetchType(path.getName(i)) == FetchType.LAZY) {
                 return true;
             }
-            return getPropertyFetchType(propertyName.substring(0, dotIx)) == FetchType.LAZY;
         }
-
-        return getPropertyFetchType(propertyName) == FetchType.LAZY;
+        return false;
     }
 
     /**
@@ -0,0 +1,54 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer;
+
+import java.util.List;
+
+import com.vaadin.data.Container.Filter;
+
+/**
+ * An extended version of {@link EntityProvider} that can pass a large number
+ * of entities to an {@link EntityVisitor} without holding them all in memory
+ * at once, e.g. to export the contents of a container. The entities are
+ * loaded in chunks, and each chunk is removed from the persistence context
+ * before the next one is loaded.
+ * 
+ * @see JPAContainer#visitEntities(EntityVisitor)
+ * @since 3.2
+ */
+public interface StreamingEntityProvider<T> extends EntityProvider<T> {
+
+    /**
+     * Passes the entities determined from <code>filter</code> and
+     * <code>sortBy</code> to <code>visitor</code> in the sort order, until
+     * all entities have been visited or the visitor returns false.
+     * 
+     * @param entityContainer
+     *            the container whose entities are visited (may be null).
+     * @param filter
+     *            the filter that should be used to filter the entities (may be
+     *            null).
+     * @param sortBy
+     *            the properties to sort by, if any (may be null).
+     * @param visitor
+     *            the visitor to pass the entities to (must not be null).
+     * @return the number of entities visited.
+     */
+    public int visitEntities(EntityContainer<T> entityContainer,
+            Filter filter, List<SortBy> sortBy,
+            EntityVisitor<? super T> visitor);
+}
@@ -27,6 +27,7 @@ import javax.persistence.criteria.From;
 import javax.persistence.criteria.Path;
 
 import com.vaadin.addon.jpacontainer.AdvancedFilterable;
+import com.vaadin.addon.jpacontainer.metadata.PropertyPath;
 import com.vaadin.data.Container.Filter;
 import com.vaadin.data.util.filter.AbstractJunctionFilter;
 import com.vaadin.data.util.filter.Between;
@@ -237,11 +238,27 @@ public class AdvancedFilterableSupport implements AdvancedFilterable,
 
     public static <X, Y> Path<X> getPropertyPathTyped(From<X, Y> root,
             Object propertyId) {
-        String pid = propertyId.toString();
-        String[] idStrings = pid.split("\\.");
-        Path<X> path = root.get(idStrings[0]);
-        for (int i = 1; i < idStrings.length; i++) {
-            path = path.get(idStrings[i]);
+        if (propertyId instanceof PropertyPath) {
+            return getPropertyPathTyped(root, (PropertyPath) propertyId);
+        }
+        return getPropertyPathTyped(root,
+                PropertyPath.get(propertyId.toString()));
+    }
+
+    /**
+     * Gets the criteria path of <code>propertyPath</code>, starting from
+     * <code>root</code>.
+     *
+     * @since 3.2
+     */
+    public static <X, Y> Path<X> getPropertyPathTyped(From<X, Y> root,
+            PropertyPath propertyPath) {
+        if (propertyPath.size() == 0) {
+            throw new IllegalArgumentException("Empty property path");
+        }
+        Path<X> path = root.get(propertyPath.getName(0));
+        for (int i = 1; i < propertyPath.size(); i++) {
+            path = path.get(propertyPath.getName(i));
         }
         return path;
     }
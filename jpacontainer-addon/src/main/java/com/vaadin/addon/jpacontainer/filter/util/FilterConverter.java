@@ -60,7 +60,16 @@ public class FilterConverter {
         public boolean canConvert(Filter filter);
 
         public <X, Y> Predicate toPredicate(Filter filter, CriteriaBuilder cb,
-                From<X, Y> root);
+                From<X, Y> root, ParameterBindings parameters);
+
+        /**
+         * Adds the structure of <code>filter</code> to <code>shape</code> and
+         * the values that {@link #toPredicate(Filter, CriteriaBuilder, From,
+         * ParameterBindings)} binds as parameters to <code>values</code>, in
+         * the order the parameters are created.
+         */
+        public void addShape(Filter filter, List<Object> shape,
+                List<Object> values);
     }
 
     /**
@@ -72,9 +81,14 @@ public class FilterConverter {
         }
 
         public <X, Y> Predicate toPredicate(Filter filter, CriteriaBuilder cb,
-                From<X, Y> root) {
+                From<X, Y> root, ParameterBindings parameters) {
             return cb.and(convertFiltersToArray(((And) filter).getFilters(),
-                    cb, root));
+                    cb, root, parameters));
+        }
+
+        public void addShape(Filter filter, List<Object> shape,
+                List<Object> values) {
+            addShapes(((And) filter).getFilters(), shape, values);
         }
     }
 
@@ -87,9 +101,14 @@ public class FilterConverter {
         }
 
         public <X, Y> Predicate toPredicate(Filter filter, CriteriaBuilder cb,
-                From<X, Y> root) {
+                From<X, Y> root, ParameterBindings parameters) {
             return cb.or(convertFiltersToArray(((Or) filter).getFilters(), cb,
-                    root));
+                    root, parameters));
+        }
+
+        public void addShape(Filter filter, List<Object> shape,
+                List<Object> values) {
+            addShapes(((Or) filter).getFilters(), shape, values);
         }
     }
 
@@ -103,7 +122,7 @@ public class FilterConverter {
 
         @SuppressWarnings({ "rawtypes", "unchecked" })
         public <X, Y> Predicate toPredicate(Filter filter, CriteriaBuilder cb,
-                From<X, Y> root) {
+                From<X, Y> root, ParameterBindings parameters) {
             Compare compare = (Compare) filter;
             Expression propertyExpr = AdvancedFilterableSupport
                     .getPropertyPath(root, compare.getPropertyId());
@@ -111,9 +130,10 @@ public class FilterConverter {
                     && compare.getValue() == null) {
                 // Make an IS NULL instead if "= null" is passed
                 return convertFilter(new IsNull(compare.getPropertyId()), cb,
-                        root);
+                        root, parameters);
             }
-            Expression valueExpr = cb.literal(compare.getValue());
+            Expression valueExpr = toExpression(compare.getValue(), cb,
+                    parameters, propertyExpr.getJavaType());
             switch (compare.getOperation()) {
             case EQUAL:
                 return cb.equal(propertyExpr, valueExpr);
@@ -129,6 +149,14 @@ public class FilterConverter {
                 return null;
             }
         }
+
+        public void addShape(Filter filter, List<Object> shape,
+                List<Object> values) {
+            Compare compare = (Compare) filter;
+            shape.add(compare.getOperation());
+            shape.add(compare.getPropertyId());
+            addValue(compare.getValue(), shape, values);
+        }
     }
 
     /**
@@ -140,10 +168,15 @@ public class FilterConverter {
         }
 
         public <X, Y> Predicate toPredicate(Filter filter, CriteriaBuilder cb,
-                From<X, Y> root) {
+                From<X, Y> root, ParameterBindings parameters) {
             return cb.isNull(AdvancedFilterableSupport.getPropertyPath(root,
                     ((IsNull) filter).getPropertyId()));
         }
+
+        public void addShape(Filter filter, List<Object> shape,
+                List<Object> values) {
+            shape.add(((IsNull) filter).getPropertyId());
+        }
     }
 
     /**
@@ -155,23 +188,35 @@ public class FilterConverter {
         }
 
         public <X, Y> Predicate toPredicate(Filter filter, CriteriaBuilder cb,
-                From<X, Y> root) {
+                From<X, Y> root, ParameterBindings parameters) {
             SimpleStringFilter stringFilter = (SimpleStringFilter) filter;
-            String filterString = stringFilter.getFilterString();
-            if (stringFilter.isOnlyMatchPrefix()) {
-                filterString = filterString + "%";
-            } else {
-                filterString = "%" + filterString + "%";
-            }
+            String filterString = getPattern(stringFilter);
             if (stringFilter.isIgnoreCase()) {
                 return cb.like(cb.upper(AdvancedFilterableSupport
                         .getPropertyPath(root, stringFilter.getPropertyId()
-                                .toString())), cb.upper(cb
-                        .literal(filterString)));
+                                .toString())), cb.upper(toExpression(
+                        filterString, cb, parameters, String.class)));
             } else {
                 return cb.like(AdvancedFilterableSupport.getPropertyPath(root,
-                        stringFilter.getPropertyId().toString()), cb
-                        .literal(filterString));
+                        stringFilter.getPropertyId().toString()),
+                        toExpression(filterString, cb, parameters,
+                                String.class));
+            }
+        }
+
+        public void addShape(Filter filter, List<Object> shape,
+                List<Object> values) {
+            SimpleStringFilter stringFilter = (SimpleStringFilter) filter;
+            shape.add(stringFilter.getPropertyId());
+            shape.add(stringFilter.isIgnoreCase());
+            addValue(getPattern(stringFilter), shape, values);
+        }
+
+        private static String getPattern(SimpleStringFilter stringFilter) {
+            if (stringFilter.isOnlyMatchPrefix()) {
+                return stringFilter.getFilterString() + "%";
+            } else {
+                return "%" + stringFilter.getFilterString() + "%";
             }
         }
     }
@@ -185,19 +230,28 @@ public class FilterConverter {
         }
 
         public <X, Y> Predicate toPredicate(Filter filter, CriteriaBuilder cb,
-                From<X, Y> root) {
+                From<X, Y> root, ParameterBindings parameters) {
             Like like = (Like) filter;
             if (like.isCaseSensitive()) {
                 return cb.like(AdvancedFilterableSupport.getPropertyPath(root,
-                        like.getPropertyId().toString()), cb.literal(like
-                        .getValue()));
+                        like.getPropertyId().toString()), toExpression(
+                        like.getValue(), cb, parameters, String.class));
             } else {
                 return cb.like(
                         cb.upper(AdvancedFilterableSupport.getPropertyPath(
                                 root, like.getPropertyId().toString())), cb
-                                .upper(cb.literal(like.getValue())));
+                                .upper(toExpression(like.getValue(), cb,
+                                        parameters, String.class)));
             }
         }
+
+        public void addShape(Filter filter, List<Object> shape,
+                List<Object> values) {
+            Like like = (Like) filter;
+            shape.add(like.getPropertyId());
+            shape.add(like.isCaseSensitive());
+            addValue(like.getValue(), shape, values);
+        }
     }
 
     private static class BetweenConverter implements Converter {
@@ -207,16 +261,26 @@ public class FilterConverter {
 
         @SuppressWarnings({ "unchecked", "rawtypes" })
         public <X, Y> Predicate toPredicate(Filter filter, CriteriaBuilder cb,
-                From<X, Y> root) {
+                From<X, Y> root, ParameterBindings parameters) {
             Between between = (Between) filter;
             Expression<? extends Comparable> field = AdvancedFilterableSupport
                     .getPropertyPath(root, between.getPropertyId());
-            Expression<? extends Comparable> from = cb.literal(between
-                    .getStartValue());
-            Expression<? extends Comparable> to = cb.literal(between
-                    .getEndValue());
+            Expression<? extends Comparable> from = toExpression(
+                    between.getStartValue(), cb, parameters,
+                    field.getJavaType());
+            Expression<? extends Comparable> to = toExpression(
+                    between.getEndValue(), cb, parameters,
+                    field.getJavaType());
             return cb.between(field, from, to);
         }
+
+        public void addShape(Filter filter, List<Object> shape,
+                List<Object> values) {
+            Between between = (Between) filter;
+            shape.add(between.getPropertyId());
+            addValue(between.getStartValue(), shape, values);
+            addValue(between.getEndValue(), shape, values);
+        }
     }
 
     private static class JoinFilterConverter implements Converter {
@@ -225,13 +289,19 @@ public class FilterConverter {
         }
 
         public <X, Y> Predicate toPredicate(Filter filter, CriteriaBuilder cb,
-                From<X, Y> root) {
+                From<X, Y> root, ParameterBindings parameters) {
             JoinFilter hibernateJoin = (JoinFilter) filter;
             From<X, Y> join = root.join(hibernateJoin.getJoinProperty());
             return cb.and(convertFiltersToArray(hibernateJoin.getFilters(), cb,
-                    join));
+                    join, parameters));
         }
 
+        public void addShape(Filter filter, List<Object> shape,
+                List<Object> values) {
+            JoinFilter joinFilter = (JoinFilter) filter;
+            shape.add(joinFilter.getJoinProperty());
+            addShapes(joinFilter.getFilters(), shape, values);
+        }
     }
 
     private static class NotFilterConverter implements Converter {
@@ -240,9 +310,14 @@ public class FilterConverter {
         }
 
         public <X, Y> Predicate toPredicate(Filter filter, CriteriaBuilder cb,
-                From<X, Y> root) {
+                From<X, Y> root, ParameterBindings parameters) {
             Not not = (Not) filter;
-            return cb.not(convertFilter(not.getFilter(), cb, root));
+            return cb.not(convertFilter(not.getFilter(), cb, root, parameters));
+        }
+
+        public void addShape(Filter filter, List<Object> shape,
+                List<Object> values) {
+            FilterConverter.addShape(((Not) filter).getFilter(), shape, values);
         }
     }
 
@@ -256,7 +331,87 @@ public class FilterConverter {
     }
 
     /**
-     * Convert a single {@link Filter} to a criteria {@link Predicate}.
+     * Returns an expression for <code>value</code>, which is compared to an
+     * expression of type <code>targetType</code>: a parameter recorded in
+     * <code>parameters</code>, or a literal if <code>parameters</code> or
+     * <code>value</code> is null.
+     * 
+     * @see ParameterBindings#bind(CriteriaBuilder, Object, Class)
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> Expression<T> toExpression(T value, CriteriaBuilder cb,
+            ParameterBindings parameters, Class<?> targetType) {
+        if (parameters == null || value == null) {
+            return cb.literal(value);
+        }
+        return (Expression<T>) parameters.bind(cb, value, targetType);
+    }
+
+    /**
+     * Adds the shape of a value to <code>shape</code>. Values that are bound
+     * as parameters are represented by their parameter type, and added to
+     * <code>values</code>.
+     */
+    private static void addValue(Object value, List<Object> shape,
+            List<Object> values) {
+        if (value == null) {
+            shape.add(null);
+        } else {
+            shape.add(ParameterBindings.getParameterType(value));
+            values.add(value);
+        }
+    }
+
+    private static void addShapes(Collection<Filter> filters,
+            List<Object> shape, List<Object> values) {
+        shape.add(filters.size());
+        for (Filter filter : filters) {
+            addShape(filter, shape, values);
+        }
+    }
+
+    private static void addShape(Filter filter, List<Object> shape,
+            List<Object> values) {
+        for (Converter c : converters) {
+            if (c.canConvert(filter)) {
+                shape.add(filter.getClass());
+                c.addShape(filter, shape, values);
+                return;
+            }
+        }
+
+        throw new IllegalStateException("Cannot find any converters for "
+                + filter.getClass().getSimpleName() + " filters!");
+    }
+
+    /**
+     * Returns the shape of <code>filter</code>: an object describing the
+     * structure of the predicate that
+     * {@link #convertFilter(Filter, CriteriaBuilder, From, ParameterBindings)}
+     * creates for the filter, without the parameter values. Filters with equal
+     * shapes are converted into predicates that only differ in their
+     * parameter values, which are added to <code>values</code> in the order
+     * the parameters are created.
+     * 
+     * @param filter
+     *            the {@link Filter} to describe (must not be null).
+     * @param values
+     *            the list to add the parameter values to (must not be null).
+     * @return the shape of the filter, suitable for use as a map key (never
+     *         null).
+     * @since 3.2
+     */
+    public static Object getShape(Filter filter, List<Object> values) {
+        assert filter != null : "filter must not be null";
+        assert values != null : "values must not be null";
+        List<Object> shape = new ArrayList<Object>();
+        addShape(filter, shape, values);
+        return shape;
+    }
+
+    /**
+     * Convert a single {@link Filter} to a criteria {@link Predicate}. The
+     * filter values are embedded in the predicate as literals.
      * 
      * @param filter
      *            the {@link Filter} to convert
@@ -268,14 +423,43 @@ public class FilterConverter {
      *            fields.
      * @return a {@link Predicate} representing the {@link Filter} or null if
      *         conversion failed.
+     * @see #convertFilter(Filter, CriteriaBuilder, From, ParameterBindings)
      */
     public static <X, Y> Predicate convertFilter(Filter filter,
             CriteriaBuilder criteriaBuilder, From<X, Y> root) {
+        return convertFilter(filter, criteriaBuilder, root, null);
+    }
+
+    /**
+     * Convert a single {@link Filter} to a criteria {@link Predicate}, using
+     * parameters instead of literals for the filter values. The values must
+     * be bound to the query with
+     * {@link ParameterBindings#applyTo(javax.persistence.Query)} before it is
+     * executed.
+     * 
+     * @param filter
+     *            the {@link Filter} to convert
+     * @param criteriaBuilder
+     *            the {@link CriteriaBuilder} to use when creating the
+     *            {@link Predicate}
+     * @param root
+     *            the {@link CriteriaQuery} {@link Root} to use for finding
+     *            fields.
+     * @param parameters
+     *            the bindings to record the parameter values in, or null to
+     *            embed the values as literals.
+     * @return a {@link Predicate} representing the {@link Filter} or null if
+     *         conversion failed.
+     * @since 3.2
+     */
+    public static <X, Y> Predicate convertFilter(Filter filter,
+            CriteriaBuilder criteriaBuilder, From<X, Y> root,
+            ParameterBindings parameters) {
         assert filter != null : "filter must not be null";
 
         for (Converter c : converters) {
             if (c.canConvert(filter)) {
-                return c.toPredicate(filter, criteriaBuilder, root);
+                return c.toPredicate(filter, criteriaBuilder, root, parameters);
             }
         }
 
@@ -293,17 +477,36 @@ public class FilterConverter {
     public static <X, Y> List<Predicate> convertFilters(
             Collection<Filter> filters, CriteriaBuilder criteriaBuilder,
             From<X, Y> root) {
+        return convertFilters(filters, criteriaBuilder, root, null);
+    }
+
+    /**
+     * Converts a collection of {@link Filter} into a list of {@link Predicate}
+     * , using parameters instead of literals for the filter values.
+     * 
+     * @param filters
+     *            Collection of {@link Filter}
+     * @param parameters
+     *            the bindings to record the parameter values in, or null to
+     *            embed the values as literals.
+     * @return List of {@link Predicate}
+     * @see #convertFilter(Filter, CriteriaBuilder, From, ParameterBindings)
+     * @since 3.2
+     */
+    public static <X, Y> List<Predicate> convertFilters(
+            Collection<Filter> filters, CriteriaBuilder criteriaBuilder,
+            From<X, Y> root, ParameterBindings parameters) {
         List<Predicate> result = new ArrayList<Predicate>();
         for (com.vaadin.data.Container.Filter filter : filters) {
-            result.add(convertFilter(filter, criteriaBuilder, root));
+            result.add(convertFilter(filter, criteriaBuilder, root, parameters));
         }
         return result;
     }
 
     private static <X, Y> Predicate[] convertFiltersToArray(
             Collection<Filter> filters, CriteriaBuilder criteriaBuilder,
-            From<X, Y> root) {
+            From<X, Y> root, ParameterBindings parameters) {
         return CollectionUtil.toArray(Predicate.class,
-                convertFilters(filters, criteriaBuilder, root));
+                convertFilters(filters, criteriaBuilder, root, parameters));
     }
 }
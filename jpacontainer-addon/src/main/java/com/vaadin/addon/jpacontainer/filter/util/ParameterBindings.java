@@ -0,0 +1,312 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.filter.util;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.persistence.Parameter;
+import javax.persistence.Query;
+import javax.persistence.TypedQuery;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Expression;
+import javax.persistence.criteria.ParameterExpression;
+
+/**
+ * Collects the values of the {@link ParameterExpression}s created while a
+ * {@link CriteriaQuery} is being built, so that they can be bound to the
+ * resulting {@link TypedQuery}. Queries that only differ in their parameter
+ * values are translated into the same JPQL and SQL, which lets the JPA
+ * provider and the JDBC driver reuse their query plans and prepared
+ * statements.
+ * <p>
+ * Parameters are declared with the type of the attribute they are compared
+ * to. Numeric values of another type are converted if that can be done
+ * without losing information, e.g. an Integer compared to a Long attribute.
+ * Values that cannot be converted are embedded as literals instead, like
+ * they were before parameters were used.
+ * <p>
+ * Instances are intended to be used for building a single query and are not
+ * thread safe.
+ *
+ * @see FilterConverter#convertFilter(com.vaadin.data.Container.Filter,
+ *      CriteriaBuilder, javax.persistence.criteria.From, ParameterBindings)
+ * @since 3.2
+ */
+public class ParameterBindings {
+
+    /**
+     * Returned by {@link #convert(Object, Class)} for values that cannot be
+     * converted.
+     */
+    private static final Object NOT_CONVERTIBLE = new Object();
+
+    private final Map<ParameterExpression<?>, Object> values = new LinkedHashMap<ParameterExpression<?>, Object>();
+    private boolean literals = false;
+
+    /**
+     * Creates a new parameter expression for <code>value</code> and records
+     * the value to be bound later. The parameter is declared with the type of
+     * the value.
+     *
+     * @param criteriaBuilder
+     *            the criteria builder to create the parameter with (must not
+     *            be null).
+     * @param value
+     *            the value of the parameter (must not be null).
+     * @return the parameter expression (never null).
+     */
+    @SuppressWarnings("unchecked")
+    public <T> ParameterExpression<T> bind(CriteriaBuilder criteriaBuilder,
+            T value) {
+        assert criteriaBuilder != null : "criteriaBuilder must not be null";
+        assert value != null : "value must not be null";
+        ParameterExpression<T> parameter = criteriaBuilder
+                .parameter((Class<T>) getParameterType(value));
+        values.put(parameter, value);
+        return parameter;
+    }
+
+    /**
+     * Creates an expression for <code>value</code>, which is to be compared
+     * to an expression of type <code>targetType</code>. If the value is of
+     * the target type, or can be converted to it, a parameter of the target
+     * type is created and the value recorded to be bound later. Otherwise,
+     * the value is embedded as a literal, and {@link #hasLiterals()} will
+     * return true.
+     *
+     * @param criteriaBuilder
+     *            the criteria builder to create the expression with (must not
+     *            be null).
+     * @param value
+     *            the value (must not be null).
+     * @param targetType
+     *            the Java type of the expression the value is compared to, or
+     *            null to use the type of the value.
+     * @return the parameter or literal expression (never null).
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public Expression<?> bind(CriteriaBuilder criteriaBuilder, Object value,
+            Class<?> targetType) {
+        assert criteriaBuilder != null : "criteriaBuilder must not be null";
+        assert value != null : "value must not be null";
+        Class<?> type = wrap(targetType);
+        if (type == null || type == Object.class) {
+            type = getParameterType(value);
+        } else if (convert(value, type) == NOT_CONVERTIBLE) {
+            literals = true;
+            return criteriaBuilder.literal(value);
+        }
+        ParameterExpression<?> parameter = criteriaBuilder
+                .parameter((Class) type);
+        values.put(parameter, value);
+        return parameter;
+    }
+
+    /**
+     * Returns the type to declare the parameter for <code>value</code> with.
+     * Enum constants with a body are instances of an anonymous subclass, so
+     * the declaring enum type is used for them.
+     */
+    static Class<?> getParameterType(Object value) {
+        if (value instanceof Enum<?>) {
+            return ((Enum<?>) value).getDeclaringClass();
+        }
+        return value.getClass();
+    }
+
+    private static Class<?> wrap(Class<?> type) {
+        if (type == null || !type.isPrimitive()) {
+            return type;
+        } else if (type == Integer.TYPE) {
+            return Integer.class;
+        } else if (type == Long.TYPE) {
+            return Long.class;
+        } else if (type == Boolean.TYPE) {
+            return Boolean.class;
+        } else if (type == Double.TYPE) {
+            return Double.class;
+        } else if (type == Float.TYPE) {
+            return Float.class;
+        } else if (type == Short.TYPE) {
+            return Short.class;
+        } else if (type == Byte.TYPE) {
+            return Byte.class;
+        } else if (type == Character.TYPE) {
+            return Character.class;
+        }
+        return type;
+    }
+
+    /**
+     * Converts <code>value</code> to <code>type</code>. Numbers are converted
+     * between the numeric types if no information is lost.
+     *
+     * @return the value, the converted value or {@link #NOT_CONVERTIBLE}.
+     */
+    static Object convert(Object value, Class<?> type) {
+        type = wrap(type);
+        if (value == null || type == null || type.isInstance(value)) {
+            return value;
+        }
+        if (!(value instanceof Number) || !Number.class.isAssignableFrom(type)) {
+            return NOT_CONVERTIBLE;
+        }
+        try {
+            BigDecimal number = new BigDecimal(value.toString());
+            if (type == Long.class) {
+                return number.longValueExact();
+            } else if (type == Integer.class) {
+                return number.intValueExact();
+            } else if (type == Short.class) {
+                return number.shortValueExact();
+            } else if (type == Byte.class) {
+                return number.byteValueExact();
+            } else if (type == BigInteger.class) {
+                return number.toBigIntegerExact();
+            } else if (type == BigDecimal.class) {
+                return number;
+            } else if (type == Double.class) {
+                Double d = number.doubleValue();
+                return new BigDecimal(d.toString()).compareTo(number) == 0 ? d
+                        : NOT_CONVERTIBLE;
+            } else if (type == Float.class) {
+                Float f = number.floatValue();
+                return new BigDecimal(f.toString()).compareTo(number) == 0 ? f
+                        : NOT_CONVERTIBLE;
+            }
+        } catch (ArithmeticException e) {
+            // Information would be lost
+        } catch (NumberFormatException e) {
+            // NaN or infinity
+        }
+        return NOT_CONVERTIBLE;
+    }
+
+    /**
+     * Returns an unmodifiable map of the parameters created so far and their
+     * values, in the order they were created. The values are not yet
+     * converted to the types of the parameters.
+     *
+     * @return the parameter values (never null).
+     */
+    public Map<ParameterExpression<?>, Object> getValues() {
+        return Collections.unmodifiableMap(values);
+    }
+
+    /**
+     * Checks if no parameters have been created.
+     *
+     * @return true if there are no parameters, false otherwise.
+     */
+    public boolean isEmpty() {
+        return values.isEmpty();
+    }
+
+    /**
+     * Checks if any value has been embedded as a literal by
+     * {@link #bind(CriteriaBuilder, Object, Class)}. Queries containing
+     * literals must not be reused with other values.
+     *
+     * @return true if there are literals, false otherwise.
+     */
+    public boolean hasLiterals() {
+        return literals;
+    }
+
+    /**
+     * Binds the recorded values to <code>query</code>.
+     *
+     * @param query
+     *            the query created from the criteria query the parameters
+     *            were created for (must not be null).
+     * @return <code>query</code>, for chaining.
+     * @throws IllegalArgumentException
+     *             if a value could not be bound.
+     * @see #bindValues(Query, List, List)
+     */
+    public <Q extends Query> Q applyTo(Q query)
+            throws IllegalArgumentException {
+        assert query != null : "query must not be null";
+        Set<Parameter<?>> queryParameters = query.getParameters();
+        for (Map.Entry<ParameterExpression<?>, Object> entry : values
+                .entrySet()) {
+            if (!bindValue(query, queryParameters, entry.getKey(),
+                    entry.getValue())) {
+                throw new IllegalArgumentException("The value "
+                        + entry.getValue() + " cannot be converted to "
+                        + entry.getKey().getParameterType().getName());
+            }
+        }
+        return query;
+    }
+
+    /**
+     * Binds <code>values</code> to <code>parameters</code> of
+     * <code>query</code> in order, converting them to the types of the
+     * parameters like {@link #applyTo(Query)} does. Parameters that are not
+     * part of the query are skipped; this happens if the predicate using the
+     * parameter has been removed from the query after it was created, e.g. by
+     * a {@link com.vaadin.addon.jpacontainer.QueryModifierDelegate}.
+     *
+     * @param query
+     *            the query (must not be null).
+     * @param parameters
+     *            the parameters (must not be null).
+     * @param values
+     *            the values, as many as there are parameters (must not be
+     *            null).
+     * @return true if the values were bound, false if a value could not be
+     *         converted to the type of its parameter.
+     * @throws IllegalArgumentException
+     *             if the JPA implementation refused a value.
+     */
+    public static boolean bindValues(Query query,
+            List<? extends Parameter<?>> parameters, List<?> values)
+            throws IllegalArgumentException {
+        assert query != null : "query must not be null";
+        assert parameters != null : "parameters must not be null";
+        assert values != null && values.size() == parameters.size() : "there must be as many values as parameters";
+        Set<Parameter<?>> queryParameters = query.getParameters();
+        for (int i = 0; i < values.size(); i++) {
+            if (!bindValue(query, queryParameters, parameters.get(i),
+                    values.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static boolean bindValue(Query query,
+            Set<Parameter<?>> queryParameters, Parameter<?> parameter,
+            Object value) {
+        Object converted = convert(value, parameter.getParameterType());
+        if (converted == NOT_CONVERTIBLE) {
+            return false;
+        }
+        if (queryParameters.contains(parameter)) {
+            query.setParameter((Parameter<Object>) parameter, converted);
+        }
+        return true;
+    }
+}
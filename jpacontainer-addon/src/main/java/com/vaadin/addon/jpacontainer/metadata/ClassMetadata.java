@@ -19,11 +19,14 @@ package com.vaadin.addon.jpacontainer.metadata;
 import java.io.Serializable;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.persistence.Embeddable;
 import javax.persistence.Entity;
@@ -43,6 +46,24 @@ public class ClassMetadata<T> implements Serializable {
     private final Class<T> mappedClass;
     private final Map<String, PropertyMetadata> allProperties = new LinkedHashMap<String, PropertyMetadata>();
     private final Map<String, PersistentPropertyMetadata> persistentProperties = new LinkedHashMap<String, PersistentPropertyMetadata>();
+    /**
+     * The getter and setter methods of nested properties of classes that
+     * have no metadata, so that they are only looked up once.
+     */
+    private transient volatile ConcurrentMap<List<Object>, Object> nestedAccessors;
+    /**
+     * Marks a nested accessor that does not exist in {@link #nestedAccessors}.
+     */
+    private static final Object NO_ACCESSOR = new Object();
+    /**
+     * The resolved steps of the property paths used with this class, see
+     * {@link #getPathSteps(PropertyPath)}.
+     */
+    private transient volatile ConcurrentMap<PropertyPath, PathStep[]> resolvedPaths;
+    /**
+     * The maximum number of paths to keep in {@link #resolvedPaths}.
+     */
+    private static final int MAX_RESOLVED_PATHS = 1000;
 
     /**
      * Constructs a new <code>ClassMetadata</code> instance. Properties can be
@@ -78,6 +99,7 @@ public class ClassMetadata<T> implements Serializable {
                 persistentProperties.remove(pm.getName());
             }
         }
+        resolvedPaths = null;
     }
 
     /**
@@ -159,13 +181,7 @@ public class ClassMetadata<T> implements Serializable {
         assert object != null : "object must not be null";
         assert property != null : "property must not be null";
         try {
-            if (property instanceof PersistentPropertyMetadata) {
-                PersistentPropertyMetadata ppmd = (PersistentPropertyMetadata) property;
-                if (ppmd.field != null) {
-                    return getPropertyValueFromField(object, ppmd);
-                }
-            }
-            return property.getter.invoke(object);
+            return property.getValue(object);
         } catch (IllegalAccessException e) {
             throw new IllegalArgumentException(
                     "Cannot access the property value", e);
@@ -175,36 +191,6 @@ public class ClassMetadata<T> implements Serializable {
         }
     }
 
-    private Object getPropertyValueFromField(T object,
-            PersistentPropertyMetadata ppmd) throws IllegalAccessException,
-            IllegalArgumentException, InvocationTargetException {
-        // First we try to find a getter for the field in order to
-        // make getter-based lazy loading work.
-        Class<?> clazz = ppmd.field.getDeclaringClass();
-        Method getter = null;
-        try {
-            getter = clazz.getMethod("get" + capitalize(ppmd.fieldName));
-        } catch (Exception e) {
-            try {
-                getter = clazz.getMethod("is" + capitalize(ppmd.fieldName));
-            } catch (Exception e1) {
-            }
-        }
-        if (getter == null) {
-            try {
-                ppmd.field.setAccessible(true);
-                return ppmd.field.get(object);
-            } finally {
-                ppmd.field.setAccessible(false);
-            }
-        }
-        return getter.invoke(object);
-    }
-
-    private String capitalize(String string) {
-        return string.substring(0, 1).toUpperCase() + string.substring(1);
-    }
-
     /**
      * Sets the value of <code>property</code> to <code>value</code> on
      * <code>object</code>.
@@ -225,22 +211,7 @@ public class ClassMetadata<T> implements Serializable {
         assert property != null : "property must not be null";
         if (property != null && property.isWritable()) {
             try {
-                if (property.setter == null
-                        && property instanceof PersistentPropertyMetadata) {
-                    // use direct field access of PersistentPropertyMetadata iff
-                    // the setter method does not exist
-                    PersistentPropertyMetadata ppmd = (PersistentPropertyMetadata) property;
-                    if (ppmd.field != null) {
-                        try {
-                            ppmd.field.setAccessible(true);
-                            ppmd.field.set(object, value);
-                            return;
-                        } finally {
-                            ppmd.field.setAccessible(false);
-                        }
-                    }
-                }
-                property.setter.invoke(object, value);
+                property.setValue(object, value);
             } catch (IllegalAccessException e) {
                 throw new IllegalArgumentException(
                         "Cannot set the property value", e);
@@ -309,6 +280,52 @@ public class ClassMetadata<T> implements Serializable {
         }
     }
 
+    /**
+     * Returns the getter method for <code>propertyName</code> from
+     * <code>parent</code>, looking it up with
+     * {@link #getGetterMethod(String, Class)} only the first time.
+     */
+    private Method getNestedGetter(String propertyName, Class<?> parent) {
+        List<Object> key = Arrays.<Object> asList(propertyName, parent);
+        Object getter = getNestedAccessors().get(key);
+        if (getter == null) {
+            getter = PropertyMetadata.makeAccessible(getGetterMethod(
+                    propertyName, parent));
+            getNestedAccessors().put(key,
+                    getter == null ? NO_ACCESSOR : getter);
+        }
+        return getter == NO_ACCESSOR ? null : (Method) getter;
+    }
+
+    /**
+     * Returns the setter method for <code>propertyName</code> from
+     * <code>parent</code>, looking it up with
+     * {@link #getSetterMethod(String, Class, Class)} only the first time.
+     */
+    private Method getNestedSetter(String propertyName, Class<?> parent,
+            Class<?> propertyType) {
+        List<Object> key = Arrays.<Object> asList(propertyName, parent,
+                propertyType);
+        Object setter = getNestedAccessors().get(key);
+        if (setter == null) {
+            setter = PropertyMetadata.makeAccessible(getSetterMethod(
+                    propertyName, parent, propertyType));
+            getNestedAccessors().put(key,
+                    setter == null ? NO_ACCESSOR : setter);
+        }
+        return setter == NO_ACCESSOR ? null : (Method) setter;
+    }
+
+    private ConcurrentMap<List<Object>, Object> getNestedAccessors() {
+        ConcurrentMap<List<Object>, Object> accessors = nestedAccessors;
+        if (accessors == null) {
+            // A race only results in some accessors being looked up twice
+            accessors = new ConcurrentHashMap<List<Object>, Object>();
+            nestedAccessors = accessors;
+        }
+        return accessors;
+    }
+
     /**
      * Gets the value of <code>object.propertyName</code>. The property name may
      * be nested.
@@ -323,54 +340,40 @@ public class ClassMetadata<T> implements Serializable {
      *             if the property value could not be fetched, e.g. due to
      *             <code>propertyName</code> being invalid.
      */
-    @SuppressWarnings("unchecked")
     public Object getPropertyValue(T object, String propertyName)
             throws IllegalArgumentException {
-        assert object != null : "object must not be null";
         assert propertyName != null : "propertyName must not be null";
+        return getPropertyValue(object, PropertyPath.get(propertyName));
+    }
+
+    /**
+     * Gets the value of <code>object.path</code>. If one of the nested
+     * properties in the chain is null, null is returned.
+     * 
+     * @param object
+     *            the entity object from which the property value should be
+     *            fetched (must not be null).
+     * @param path
+     *            the path of the property (must not be null).
+     * @return the property value.
+     * @throws IllegalArgumentException
+     *             if the property value could not be fetched, e.g. due to
+     *             <code>path</code> being invalid.
+     * @since 3.2
+     */
+    public Object getPropertyValue(T object, PropertyPath path)
+            throws IllegalArgumentException {
+        assert object != null : "object must not be null";
+        assert path != null : "path must not be null";
 
-        StringTokenizer st = new StringTokenizer(propertyName, ".");
-        ClassMetadata<Object> typeMetadata = (ClassMetadata<Object>) this;
-        Class<?> type = null;
         Object currentObject = object;
-        while (st.hasMoreTokens()) {
-            String propName = st.nextToken();
-            if (typeMetadata != null) {
-                PropertyMetadata pmd = typeMetadata.getProperty(propName);
-                if (pmd == null) {
-                    throw new IllegalArgumentException("Invalid property name");
-                }
-                currentObject = typeMetadata.getPropertyValue(currentObject,
-                        pmd);
-                if (currentObject == null) {
-                    return null;
-                }
-                if (pmd instanceof PersistentPropertyMetadata) {
-                    typeMetadata = (ClassMetadata<Object>) ((PersistentPropertyMetadata) pmd)
-                            .getTypeMetadata();
-                } else {
-                    typeMetadata = null;
-                }
-                if (typeMetadata == null) {
-                    type = pmd.getType();
-                } else {
-                    type = null;
-                }
-            } else if (type != null) {
-                Method getter = getGetterMethod(propName, type);
-                if (getter == null) {
-                    throw new IllegalArgumentException("Invalid property name");
-                }
-                try {
-                    currentObject = getter.invoke(currentObject);
-                    if (currentObject == null) {
-                        return null;
-                    }
-                    type = getter.getReturnType();
-                } catch (Exception e) {
-                    throw new IllegalArgumentException(
-                            "Could not access a nested property", e);
-                }
+        for (PathStep step : getPathSteps(path)) {
+            if (step == null) {
+                throw new IllegalArgumentException("Invalid property name");
+            }
+            currentObject = step.getValue(currentObject);
+            if (currentObject == null) {
+                return null;
             }
         }
         return currentObject;
@@ -394,79 +397,165 @@ public class ClassMetadata<T> implements Serializable {
      *             if a nested property name is used and one of the nested
      *             properties (other than the last one) is null.
      */
-    @SuppressWarnings("unchecked")
     public void setPropertyValue(T object, String propertyName, Object value)
             throws IllegalArgumentException, IllegalStateException {
-        assert object != null : "object must not be null";
         assert propertyName != null : "propertyName must not be null";
+        setPropertyValue(object, PropertyPath.get(propertyName), value);
+    }
+
+    /**
+     * Sets the value of <code>object.path</code> to <code>value</code>.
+     * 
+     * @param object
+     *            the object whose property should be set (must not be null).
+     * @param path
+     *            the path of the property to set (must not be null).
+     * @param value
+     *            the value to set.
+     * @throws IllegalArgumentException
+     *             if the value could not be set, e.g. due to <code>path</code>
+     *             being invalid or the property being read only.
+     * @throws IllegalStateException
+     *             if the path is nested and one of the nested properties
+     *             (other than the last one) is null.
+     * @since 3.2
+     */
+    public void setPropertyValue(T object, PropertyPath path, Object value)
+            throws IllegalArgumentException, IllegalStateException {
+        assert object != null : "object must not be null";
+        assert path != null : "path must not be null";
+
+        PathStep[] steps = getPathSteps(path);
+        Object currentObject = object;
+        for (int i = 0; i < steps.length; ++i) {
+            PathStep step = steps[i];
+            if (step == null) {
+                throw new IllegalArgumentException("Invalid property name");
+            }
+            if (i == steps.length - 1) {
+                // We have reached the end of the chain
+                step.setValue(currentObject, value);
+            } else {
+                currentObject = step.getValue(currentObject);
+                if (currentObject == null) {
+                    throw new IllegalStateException(
+                            "A null value was found in the chain of nested properties for property "
+                                    + path);
+                }
+            }
+        }
+    }
+
+    /**
+     * One property of a resolved {@link PropertyPath}: either a property with
+     * metadata, or a JavaBean property of a class without metadata.
+     */
+    private static final class PathStep {
+        final ClassMetadata<Object> owner;
+        final PropertyMetadata property;
+        final Method getter;
+        final Method setter;
+
+        PathStep(ClassMetadata<Object> owner, PropertyMetadata property) {
+            this.owner = owner;
+            this.property = property;
+            this.getter = null;
+            this.setter = null;
+        }
+
+        PathStep(Method getter, Method setter) {
+            this.owner = null;
+            this.property = null;
+            this.getter = getter;
+            this.setter = setter;
+        }
 
-        StringTokenizer st = new StringTokenizer(propertyName, ".");
+        Object getValue(Object object) {
+            if (owner != null) {
+                return owner.getPropertyValue(object, property);
+            }
+            try {
+                return getter.invoke(object);
+            } catch (Exception e) {
+                throw new IllegalArgumentException(
+                        "Could not access a nested property", e);
+            }
+        }
+
+        void setValue(Object object, Object value) {
+            if (owner != null) {
+                owner.setPropertyValue(object, property, value);
+                return;
+            }
+            if (setter == null) {
+                throw new IllegalArgumentException("Property is read only");
+            }
+            try {
+                setter.invoke(object, value);
+            } catch (Exception e) {
+                throw new IllegalArgumentException("Could not set the value");
+            }
+        }
+    }
+
+    /**
+     * Returns the steps of <code>path</code>, resolving them only the first
+     * time. The steps from the first invalid property name onwards are null,
+     * so that the error is only reported when a value actually has to be
+     * read through them.
+     */
+    private PathStep[] getPathSteps(PropertyPath path) {
+        ConcurrentMap<PropertyPath, PathStep[]> paths = resolvedPaths;
+        if (paths == null) {
+            // A race only results in some paths being resolved twice
+            paths = new ConcurrentHashMap<PropertyPath, PathStep[]>();
+            resolvedPaths = paths;
+        }
+        PathStep[] steps = paths.get(path);
+        if (steps == null) {
+            steps = resolvePath(path);
+            if (paths.size() < MAX_RESOLVED_PATHS) {
+                paths.put(path, steps);
+            }
+        }
+        return steps;
+    }
+
+    @SuppressWarnings("unchecked")
+    private PathStep[] resolvePath(PropertyPath path) {
+        PathStep[] steps = new PathStep[path.size()];
         ClassMetadata<Object> typeMetadata = (ClassMetadata<Object>) this;
         Class<?> type = null;
-        Object currentObject = object;
-        while (st.hasMoreTokens()) {
-            String propName = st.nextToken();
+        for (int i = 0; i < steps.length; ++i) {
+            String propName = path.getName(i);
             if (typeMetadata != null) {
                 PropertyMetadata pmd = typeMetadata.getProperty(propName);
                 if (pmd == null) {
-                    throw new IllegalArgumentException("Invalid property name");
+                    break;
                 }
-                if (!st.hasMoreTokens()) {
-                    // We have reached the end of the chain
-                    typeMetadata.setPropertyValue(currentObject, pmd, value);
+                steps[i] = new PathStep(typeMetadata, pmd);
+                if (pmd instanceof PersistentPropertyMetadata) {
+                    typeMetadata = (ClassMetadata<Object>) ((PersistentPropertyMetadata) pmd)
+                            .getTypeMetadata();
                 } else {
-                    currentObject = typeMetadata.getPropertyValue(
-                            currentObject, pmd);
-                    if (currentObject == null) {
-                        throw new IllegalStateException(
-                                "A null value was found in the chain of nested properties for property "+propertyName);
-                    }
-                    if (pmd instanceof PersistentPropertyMetadata) {
-                        typeMetadata = (ClassMetadata<Object>) ((PersistentPropertyMetadata) pmd)
-                                .getTypeMetadata();
-                    } else {
-                        typeMetadata = null;
-                    }
-                    if (typeMetadata == null) {
-                        type = pmd.getType();
-                    } else {
-                        type = null;
-                    }
+                    typeMetadata = null;
                 }
-            } else if (type != null) {
-                Method getter = getGetterMethod(propName, type);
+                type = typeMetadata == null ? pmd.getType() : null;
+            } else {
+                Method getter = getNestedGetter(propName, type);
                 if (getter == null) {
-                    throw new IllegalArgumentException("Invalid property name");
+                    break;
                 }
-                if (!st.hasMoreTokens()) {
-                    // We have reached the end of the chain
-                    Method setter = getSetterMethod(propName, type,
+                Method setter = null;
+                if (i == steps.length - 1) {
+                    setter = getNestedSetter(propName, type,
                             getter.getReturnType());
-                    if (setter == null) {
-                        throw new IllegalArgumentException(
-                                "Property is read only");
-                    }
-                    try {
-                        setter.invoke(currentObject, value);
-                    } catch (Exception e) {
-                        throw new IllegalArgumentException(
-                                "Could not set the value");
-                    }
-                } else {
-                    try {
-                        currentObject = getter.invoke(currentObject);
-                        if (currentObject == null) {
-                            throw new IllegalStateException(
-                                    "A null value was found in the chain of nested properties for property "+propertyName);
-                        }
-                        type = getter.getReturnType();
-                    } catch (Exception e) {
-                        throw new IllegalArgumentException(
-                                "Could not access a nested property", e);
-                    }
                 }
+                steps[i] = new PathStep(getter, setter);
+                type = getter.getReturnType();
             }
         }
+        return steps;
     }
 
     @Override
@@ -19,16 +19,23 @@ package com.vaadin.addon.jpacontainer.metadata;
 import java.beans.Introspector;
 import java.lang.reflect.AccessibleObject;
 import java.lang.reflect.Field;
+import java.lang.reflect.Member;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.persistence.ElementCollection;
 import javax.persistence.Embeddable;
 import javax.persistence.Embedded;
 import javax.persistence.EmbeddedId;
 import javax.persistence.Entity;
+import javax.persistence.EntityManagerFactory;
 import javax.persistence.Id;
 import javax.persistence.ManyToMany;
 import javax.persistence.ManyToOne;
@@ -37,20 +44,49 @@ import javax.persistence.OneToMany;
 import javax.persistence.OneToOne;
 import javax.persistence.Transient;
 import javax.persistence.Version;
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.EmbeddableType;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.ManagedType;
+import javax.persistence.metamodel.Metamodel;
+import javax.persistence.metamodel.SingularAttribute;
 
 import com.vaadin.addon.jpacontainer.metadata.PersistentPropertyMetadata.AccessType;
 
 /**
  * Factory for creating and populating {@link ClassMetadata} and
  * {@link EntityClassMetadata} instances.
+ * <p>
+ * The factory is thread safe. Metadata that has already been created is
+ * looked up without locking. Metadata is created while holding a lock, so that
+ * concurrent requests for the same classes introspect them only once, and is
+ * made visible to other threads only after it has been fully populated. Use
+ * {@link #warmUp(EntityManagerFactory)} to create the metadata of all entities
+ * of a persistence unit in advance.
+ * <p>
+ * By default, the metadata is extracted by scanning the annotations of the
+ * mapped classes. If a JPA {@link Metamodel} is given, the persistent
+ * properties are instead read from it, and annotations are only scanned for
+ * classes the metamodel does not know about.
  * 
  * @author Petter Holmström (Vaadin Ltd)
  * @since 1.0
  */
 public class MetadataFactory {
 
-    private static MetadataFactory INSTANCE;
-    private Map<Class<?>, ClassMetadata<?>> metadataMap = new HashMap<Class<?>, ClassMetadata<?>>();
+    private static final MetadataFactory INSTANCE = new MetadataFactory();
+    private final ConcurrentMap<Class<?>, ClassMetadata<?>> metadataMap = new ConcurrentHashMap<Class<?>, ClassMetadata<?>>();
+    /**
+     * Lock held while creating metadata. The metadata of referenced and
+     * embedded classes is created in the same go, as it may refer back to the
+     * metadata being created.
+     */
+    private final Object buildLock = new Object();
+    /**
+     * Metadata being created by the thread holding {@link #buildLock}, not yet
+     * visible in {@link #metadataMap}.
+     */
+    private final Map<Class<?>, ClassMetadata<?>> pendingMetadata = new HashMap<Class<?>, ClassMetadata<?>>();
 
     protected MetadataFactory() {
         // NOP
@@ -62,12 +98,44 @@ public class MetadataFactory {
      * @return the factory instance (never null).
      */
     public static MetadataFactory getInstance() {
-        if (INSTANCE == null) {
-            INSTANCE = new MetadataFactory();
-        }
         return INSTANCE;
     }
 
+    /**
+     * Creates the metadata of all entities of the persistence unit of
+     * <code>entityManagerFactory</code>, so that the first containers created
+     * for them do not have to pay for the introspection. This is intended to
+     * be called when the application is deployed. The metadata is read from
+     * the metamodel of the persistence unit, see
+     * {@link #getEntityClassMetadata(Class, Metamodel)}. Entity types whose
+     * metadata cannot be extracted are skipped.
+     * 
+     * @param entityManagerFactory
+     *            the entity manager factory of the persistence unit (must not
+     *            be null).
+     * @return an unmodifiable list of the metadata of the entities (never
+     *         null).
+     * @since 3.2
+     */
+    public List<EntityClassMetadata<?>> warmUp(
+            EntityManagerFactory entityManagerFactory) {
+        assert entityManagerFactory != null : "entityManagerFactory must not be null";
+        List<EntityClassMetadata<?>> result = new ArrayList<EntityClassMetadata<?>>();
+        Metamodel metamodel = entityManagerFactory.getMetamodel();
+        for (EntityType<?> entityType : metamodel.getEntities()) {
+            Class<?> javaType = entityType.getJavaType();
+            if (javaType == null) {
+                continue;
+            }
+            try {
+                result.add(getEntityClassMetadata(javaType, metamodel));
+            } catch (IllegalArgumentException e) {
+                // No metadata can be extracted, skip it
+            }
+        }
+        return Collections.unmodifiableList(result);
+    }
+
     /**
      * Extracts the entity class metadata from <code>mappedClass</code>. The
      * access type (field or method) will be determined from the location of the
@@ -81,9 +149,15 @@ public class MetadataFactory {
      * @throws IllegalArgumentException
      *             if no metadata could be extracted.
      */
+    @SuppressWarnings("unchecked")
     public <T> EntityClassMetadata<T> getEntityClassMetadata(
             Class<T> mappedClass) throws IllegalArgumentException {
         assert mappedClass != null : "mappedClass must not be null";
+        ClassMetadata<?> cached = metadataMap.get(mappedClass);
+        if (cached instanceof EntityClassMetadata) {
+            // Skip determining the access type of classes we already know
+            return (EntityClassMetadata<T>) cached;
+        }
         if (mappedClass.getAnnotation(Entity.class) == null) {
             throw new IllegalArgumentException("The class is not an entity");
         }
@@ -97,6 +171,46 @@ public class MetadataFactory {
         }
     }
 
+    /**
+     * Extracts the entity class metadata of <code>mappedClass</code> from
+     * <code>metamodel</code>. The persistent properties, their kinds and the
+     * identifier and version properties are taken from the metamodel, which
+     * the persistence provider has already built, and the access type of each
+     * property from its Java member. Annotations are only scanned for the
+     * transient properties and for classes that are not in the metamodel.
+     * <p>
+     * If the metadata of <code>mappedClass</code> has already been extracted,
+     * the cached instance is returned.
+     * 
+     * @param mappedClass
+     *            the mapped class (must not be null).
+     * @param metamodel
+     *            the metamodel of the persistence unit (must not be null).
+     * @return the class metadata.
+     * @throws IllegalArgumentException
+     *             if no metadata could be extracted.
+     * @since 3.2
+     */
+    @SuppressWarnings("unchecked")
+    public <T> EntityClassMetadata<T> getEntityClassMetadata(
+            Class<T> mappedClass, Metamodel metamodel)
+            throws IllegalArgumentException {
+        assert mappedClass != null : "mappedClass must not be null";
+        assert metamodel != null : "metamodel must not be null";
+        ClassMetadata<?> cached = metadataMap.get(mappedClass);
+        if (cached instanceof EntityClassMetadata) {
+            return (EntityClassMetadata<T>) cached;
+        }
+        EntityType<T> entityType = findManagedType(metamodel, mappedClass,
+                EntityType.class);
+        if (entityType == null) {
+            return getEntityClassMetadata(mappedClass);
+        }
+        // The access type is only used if we have to fall back to scanning
+        return (EntityClassMetadata<T>) getClassMetadata(mappedClass,
+                AccessType.FIELD, metamodel);
+    }
+
     /**
      * Extracts the class metadata from <code>mappedClass</code>. If
      * <code>mappedClass</code> is {@link Embeddable}, the result will be an
@@ -115,13 +229,22 @@ public class MetadataFactory {
      * @throws IllegalArgumentException
      *             if no metadata could be extracted.
      */
-    @SuppressWarnings("unchecked")
     public <T> ClassMetadata<T> getClassMetadata(Class<T> mappedClass,
             PersistentPropertyMetadata.AccessType accessType)
             throws IllegalArgumentException {
         assert mappedClass != null : "mappedClass must not be null";
         assert accessType != null : "accessType must not be null";
+        return getClassMetadata(mappedClass, accessType, null);
+    }
 
+    /**
+     * Gets the class metadata of <code>mappedClass</code> from the cache, or
+     * creates it from <code>metamodel</code> (if not null) or the annotations.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> ClassMetadata<T> getClassMetadata(Class<T> mappedClass,
+            PersistentPropertyMetadata.AccessType accessType,
+            Metamodel metamodel) {
         // Check if we already have the metadata in cache
         ClassMetadata<T> metadata = (ClassMetadata<T>) metadataMap
                 .get(mappedClass);
@@ -129,6 +252,77 @@ public class MetadataFactory {
             return metadata;
         }
 
+        synchronized (buildLock) {
+            // Another thread may have created it while we were waiting, or
+            // we may be creating it further up the call stack
+            metadata = (ClassMetadata<T>) metadataMap.get(mappedClass);
+            if (metadata == null) {
+                metadata = (ClassMetadata<T>) pendingMetadata.get(mappedClass);
+            }
+            if (metadata != null) {
+                return metadata;
+            }
+            boolean outermost = pendingMetadata.isEmpty();
+            try {
+                metadata = createClassMetadata(mappedClass, accessType,
+                        metamodel);
+                if (outermost) {
+                    // Publish the metadata only once it is complete
+                    metadataMap.putAll(pendingMetadata);
+                }
+            } finally {
+                if (outermost) {
+                    pendingMetadata.clear();
+                }
+            }
+            return metadata;
+        }
+    }
+
+    /**
+     * Creates and populates the metadata of <code>mappedClass</code>. Must be
+     * called while holding {@link #buildLock}.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> ClassMetadata<T> createClassMetadata(Class<T> mappedClass,
+            PersistentPropertyMetadata.AccessType accessType,
+            Metamodel metamodel) {
+        ClassMetadata<T> metadata;
+        ManagedType<T> managedType = metamodel == null ? null
+                : findManagedType(metamodel, mappedClass, ManagedType.class);
+        if (managedType instanceof EntityType) {
+            EntityType<T> entityType = (EntityType<T>) managedType;
+            EntityClassMetadata<T> entityMetadata = new EntityClassMetadata<T>(
+                    mappedClass, entityType.getName());
+            metadata = entityMetadata;
+            pendingMetadata.put(mappedClass, metadata);
+            loadPropertiesFromMetamodel(mappedClass, metadata, metamodel);
+            if (entityType.hasSingleIdAttribute()) {
+                for (SingularAttribute<? super T, ?> attribute : entityType
+                        .getSingularAttributes()) {
+                    if (!(metadata.getProperty(attribute.getName()) instanceof PersistentPropertyMetadata)) {
+                        continue;
+                    }
+                    if (attribute.isVersion()) {
+                        entityMetadata.setVersionPropertyName(attribute
+                                .getName());
+                    } else if (attribute.isId()) {
+                        entityMetadata.setIdentifierPropertyName(attribute
+                                .getName());
+                    }
+                }
+            } else {
+                // Composite identifiers, let the annotations decide
+                locateIdentifierAndVersion(entityMetadata);
+            }
+            return metadata;
+        } else if (managedType instanceof EmbeddableType) {
+            metadata = new ClassMetadata<T>(mappedClass);
+            pendingMetadata.put(mappedClass, metadata);
+            loadPropertiesFromMetamodel(mappedClass, metadata, metamodel);
+            return metadata;
+        }
+
         // Check if we are dealing with an entity class or an embeddable class
         Entity entity = mappedClass.getAnnotation(Entity.class);
         Embeddable embeddable = mappedClass.getAnnotation(Embeddable.class);
@@ -139,33 +333,15 @@ public class MetadataFactory {
             metadata = new EntityClassMetadata<T>(mappedClass, entityName);
             // Put the metadata instance in the cache in case it is referenced
             // from loadProperties()
-            metadataMap.put(mappedClass, metadata);
+            pendingMetadata.put(mappedClass, metadata);
             loadProperties(mappedClass, metadata, accessType);
-
-            // Locate the version and identifier properties
-            EntityClassMetadata<T> entityMetadata = (EntityClassMetadata<T>) metadata;
-            for (PersistentPropertyMetadata pm : entityMetadata
-                    .getPersistentProperties()) {
-
-                if (pm.getAnnotation(Version.class) != null) {
-                    entityMetadata.setVersionPropertyName(pm.getName());
-                } else if (pm.getAnnotation(Id.class) != null
-                        || pm.getAnnotation(EmbeddedId.class) != null) {
-                    entityMetadata.setIdentifierPropertyName(pm.getName());
-                }
-                if (entityMetadata.hasIdentifierProperty()
-                        && entityMetadata.hasVersionProperty()) {
-                    // No use continuing the loop if both the version
-                    // and the identifier property have already been found.
-                    break;
-                }
-            }
+            locateIdentifierAndVersion((EntityClassMetadata<T>) metadata);
         } else if (embeddable != null) {
             // We have an embeddable class
             metadata = new ClassMetadata<T>(mappedClass);
             // Put the metadata instance in the cache in case it is referenced
             // from loadProperties()
-            metadataMap.put(mappedClass, metadata);
+            pendingMetadata.put(mappedClass, metadata);
             loadProperties(mappedClass, metadata, accessType);
         } else {
             throw new IllegalArgumentException("The class "
@@ -176,6 +352,206 @@ public class MetadataFactory {
         return metadata;
     }
 
+    /**
+     * Locates the version and identifier properties of
+     * <code>entityMetadata</code> from their annotations.
+     */
+    private void locateIdentifierAndVersion(
+            EntityClassMetadata<?> entityMetadata) {
+        for (PersistentPropertyMetadata pm : entityMetadata
+                .getPersistentProperties()) {
+
+            if (pm.getAnnotation(Version.class) != null) {
+                entityMetadata.setVersionPropertyName(pm.getName());
+            } else if (pm.getAnnotation(Id.class) != null
+                    || pm.getAnnotation(EmbeddedId.class) != null) {
+                entityMetadata.setIdentifierPropertyName(pm.getName());
+            }
+            if (entityMetadata.hasIdentifierProperty()
+                    && entityMetadata.hasVersionProperty()) {
+                // No use continuing the loop if both the version
+                // and the identifier property have already been found.
+                break;
+            }
+        }
+    }
+
+    /**
+     * Gets the managed type of <code>type</code> from <code>metamodel</code>.
+     * 
+     * @return the managed type, or null if <code>type</code> is not managed
+     *         or not of the requested kind.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static <T, M extends ManagedType> M findManagedType(
+            Metamodel metamodel, Class<T> type, Class<M> kind) {
+        try {
+            ManagedType<T> managedType = metamodel.managedType(type);
+            return kind.isInstance(managedType) ? (M) managedType : null;
+        } catch (IllegalArgumentException e) {
+            // Not a managed type
+            return null;
+        }
+    }
+
+    /**
+     * Loads the properties of <code>type</code> and its managed superclasses
+     * into <code>metadata</code>, if <code>type</code> is managed. Persistent properties are created from the
+     * attributes <code>metamodel</code> has declared for each class, in the
+     * order the members are declared in. Other getters are added as transient
+     * properties.
+     */
+    private void loadPropertiesFromMetamodel(Class<?> type,
+            ClassMetadata<?> metadata, Metamodel metamodel) {
+        ManagedType<?> managedType = findManagedType(metamodel, type,
+                ManagedType.class);
+        if (managedType == null) {
+            // Unmapped superclasses are ignored, like when scanning
+            return;
+        }
+        Class<?> superclass = type.getSuperclass();
+        if (superclass != null) {
+            loadPropertiesFromMetamodel(superclass, metadata, metamodel);
+        }
+
+        Map<Member, Attribute<?, ?>> attributes = new HashMap<Member, Attribute<?, ?>>();
+        for (Attribute<?, ?> attribute : managedType.getDeclaredAttributes()) {
+            if (attribute.getJavaMember() != null) {
+                attributes.put(attribute.getJavaMember(), attribute);
+            }
+        }
+        for (Field f : type.getDeclaredFields()) {
+            Attribute<?, ?> attribute = attributes.remove(f);
+            if (attribute != null) {
+                addPersistentProperty(type, metadata, attribute, metamodel);
+            }
+        }
+        for (Method m : type.getDeclaredMethods()) {
+            Attribute<?, ?> attribute = attributes.remove(m);
+            if (attribute != null) {
+                addPersistentProperty(type, metadata, attribute, metamodel);
+            }
+        }
+        // Members the provider reports from somewhere else, if any
+        for (Attribute<?, ?> attribute : attributes.values()) {
+            addPersistentProperty(type, metadata, attribute, metamodel);
+        }
+        extractTransientProperties(type, metadata);
+    }
+
+    private void addPersistentProperty(Class<?> type,
+            ClassMetadata<?> metadata, Attribute<?, ?> attribute,
+            Metamodel metamodel) {
+        String name = attribute.getName();
+        Member member = attribute.getJavaMember();
+        PropertyKind kind = getPropertyKind(attribute);
+        if (kind == null) {
+            return;
+        }
+        if (member instanceof Field) {
+            Field f = (Field) member;
+            Method setterMethod = null;
+            try {
+                setterMethod = type.getMethod("set"
+                        + f.getName().substring(0, 1).toUpperCase()
+                        + f.getName().substring(1), f.getType());
+            } catch (Exception e) {
+                // Setter does not exist or is not accessible
+            }
+            if (kind == PropertyKind.EMBEDDED
+                    || kind == PropertyKind.MANY_TO_ONE
+                    || kind == PropertyKind.ONE_TO_ONE) {
+                ClassMetadata<?> cm = getClassMetadata(
+                        attribute.getJavaType(), AccessType.FIELD, metamodel);
+                metadata.addProperties(new PersistentPropertyMetadata(name,
+                        cm, kind, f, setterMethod));
+            } else if (kind == PropertyKind.SIMPLE) {
+                metadata.addProperties(new PersistentPropertyMetadata(name,
+                        convertPrimitiveType(f.getType()), kind, f,
+                        setterMethod));
+            } else {
+                metadata.addProperties(new PersistentPropertyMetadata(name, f
+                        .getType(), kind, f, setterMethod));
+            }
+        } else if (member instanceof Method) {
+            Method m = (Method) member;
+            Method setter = null;
+            try {
+                setter = m.getDeclaringClass().getDeclaredMethod(
+                        "set" + name.substring(0, 1).toUpperCase()
+                                + name.substring(1), m.getReturnType());
+            } catch (NoSuchMethodException ignoreit) {
+                // No setter <=> transient property
+            }
+            if (setter == null) {
+                metadata.addProperties(new PropertyMetadata(name, m
+                        .getReturnType(), m, null));
+            } else if (kind == PropertyKind.EMBEDDED
+                    || kind == PropertyKind.MANY_TO_ONE
+                    || kind == PropertyKind.ONE_TO_ONE) {
+                ClassMetadata<?> cm = getClassMetadata(
+                        attribute.getJavaType(), AccessType.METHOD, metamodel);
+                metadata.addProperties(new PersistentPropertyMetadata(name,
+                        cm, kind, m, setter));
+            } else {
+                metadata.addProperties(new PersistentPropertyMetadata(name, m
+                        .getReturnType(), kind, m, setter));
+            }
+        }
+    }
+
+    private static PropertyKind getPropertyKind(Attribute<?, ?> attribute) {
+        switch (attribute.getPersistentAttributeType()) {
+        case BASIC:
+            return PropertyKind.SIMPLE;
+        case EMBEDDED:
+            return PropertyKind.EMBEDDED;
+        case MANY_TO_ONE:
+            return PropertyKind.MANY_TO_ONE;
+        case ONE_TO_ONE:
+            return PropertyKind.ONE_TO_ONE;
+        case ONE_TO_MANY:
+            return PropertyKind.ONE_TO_MANY;
+        case MANY_TO_MANY:
+            return PropertyKind.MANY_TO_MANY;
+        case ELEMENT_COLLECTION:
+            return PropertyKind.ELEMENT_COLLECTION;
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * Adds the getters of <code>type</code> that do not belong to an already
+     * added property as transient properties.
+     */
+    private void extractTransientProperties(Class<?> type,
+            ClassMetadata<?> metadata) {
+        for (Method m : type.getDeclaredMethods()) {
+            int mod = m.getModifiers();
+            // Synthetic methods are excluded (#4590).
+            if (m.getName().startsWith("get") && m.getName().length() > 3
+                    && !Modifier.isStatic(mod) && !m.isSynthetic()
+                    && m.getReturnType() != Void.TYPE
+                    && m.getParameterTypes().length == 0) {
+                String name = Introspector.decapitalize(m.getName()
+                        .substring(3));
+                if (metadata.getProperty(name) != null) {
+                    continue;
+                }
+                Method setter = null;
+                try {
+                    // Check if we have a setter
+                    setter = type.getDeclaredMethod("set"
+                            + m.getName().substring(3), m.getReturnType());
+                } catch (NoSuchMethodException ignoreit) {
+                }
+                metadata.addProperties(new PropertyMetadata(name, m
+                        .getReturnType(), m, setter));
+            }
+        }
+    }
+
     protected void loadProperties(Class<?> type, ClassMetadata<?> metadata,
             PersistentPropertyMetadata.AccessType accessType) {
 
@@ -20,6 +20,7 @@ import java.io.InvalidObjectException;
 import java.io.ObjectStreamException;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 
 /**
@@ -54,6 +55,12 @@ public class PersistentPropertyMetadata extends PropertyMetadata {
     private final PropertyKind propertyKind;
     private final ClassMetadata<?> typeMetadata;
     transient final Field field;
+    /**
+     * The public getter of {@link #field}, if there is one. The getter is
+     * preferred over the field in order to make getter-based lazy loading
+     * work.
+     */
+    transient final Method fieldGetter;
     // Required for serialization
     protected final String fieldName;
     protected final Class<?> fieldDeclaringClass;
@@ -85,7 +92,8 @@ public class PersistentPropertyMetadata extends PropertyMetadata {
         assert field != null : "field must not be null";
         this.propertyKind = propertyKind;
         typeMetadata = null;
-        this.field = field;
+        this.field = makeAccessible(field);
+        fieldGetter = findFieldGetter(field);
         fieldName = field.getName();
         fieldDeclaringClass = field.getDeclaringClass();
     }
@@ -122,6 +130,7 @@ public class PersistentPropertyMetadata extends PropertyMetadata {
         this.propertyKind = propertyKind;
         typeMetadata = null;
         field = null;
+        fieldGetter = null;
         fieldName = null;
         fieldDeclaringClass = null;
     }
@@ -152,7 +161,8 @@ public class PersistentPropertyMetadata extends PropertyMetadata {
         assert field != null : "field must not be null";
         this.propertyKind = propertyKind;
         typeMetadata = type;
-        this.field = field;
+        this.field = makeAccessible(field);
+        fieldGetter = findFieldGetter(field);
         fieldName = field.getName();
         fieldDeclaringClass = field.getDeclaringClass();
     }
@@ -188,6 +198,7 @@ public class PersistentPropertyMetadata extends PropertyMetadata {
         this.propertyKind = propertyKind;
         typeMetadata = type;
         field = null;
+        fieldGetter = null;
         fieldName = null;
         fieldDeclaringClass = null;
     }
@@ -203,16 +214,36 @@ public class PersistentPropertyMetadata extends PropertyMetadata {
         super(name, type, getter, setter);
         this.propertyKind = propertyKind;
         this.typeMetadata = typeMetadata;
-        this.field = field;
+        this.field = makeAccessible(field);
         if (this.field == null) {
+            fieldGetter = null;
             fieldName = null;
             fieldDeclaringClass = null;
         } else {
+            fieldGetter = findFieldGetter(field);
             fieldName = field.getName();
             fieldDeclaringClass = field.getDeclaringClass();
         }
     }
 
+    /**
+     * Looks up the public getter method of <code>field</code>, if any.
+     */
+    private static Method findFieldGetter(Field field) {
+        String name = field.getName().substring(0, 1).toUpperCase()
+                + field.getName().substring(1);
+        Class<?> clazz = field.getDeclaringClass();
+        try {
+            return makeAccessible(clazz.getMethod("get" + name));
+        } catch (NoSuchMethodException e) {
+            try {
+                return makeAccessible(clazz.getMethod("is" + name));
+            } catch (NoSuchMethodException e1) {
+                return null;
+            }
+        }
+    }
+
     /**
      * The metadata of the property type, if it is embedded or a reference.
      * Otherwise, this method returns null.
@@ -239,6 +270,29 @@ public class PersistentPropertyMetadata extends PropertyMetadata {
         return field != null ? AccessType.FIELD : AccessType.METHOD;
     }
 
+    @Override
+    Object getValue(Object object) throws IllegalAccessException,
+            InvocationTargetException {
+        if (field == null) {
+            return super.getValue(object);
+        } else if (fieldGetter != null) {
+            return fieldGetter.invoke(object);
+        } else {
+            return field.get(object);
+        }
+    }
+
+    @Override
+    void setValue(Object object, Object value) throws IllegalAccessException,
+            InvocationTargetException {
+        if (setter == null && field != null) {
+            // Use direct field access iff the setter method does not exist
+            field.set(object, value);
+        } else {
+            super.setValue(object, value);
+        }
+    }
+
     @Override
     public <T extends Annotation> T getAnnotation(Class<T> annotationClass) {
         if (field != null) {
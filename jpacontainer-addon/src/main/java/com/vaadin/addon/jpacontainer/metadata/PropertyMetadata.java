@@ -20,6 +20,8 @@ import java.io.InvalidObjectException;
 import java.io.ObjectStreamException;
 import java.io.Serializable;
 import java.lang.annotation.Annotation;
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 
 /**
@@ -69,8 +71,8 @@ public class PropertyMetadata implements Serializable {
          */
         this.name = name;
         this.type = type;
-        this.getter = getter;
-        this.setter = setter;
+        this.getter = makeAccessible(getter);
+        this.setter = makeAccessible(setter);
         /*
          * The getter may also be null, e.g. if PersistentPropertyMetadata uses
          * a field instead of a getter to access the property.
@@ -91,6 +93,26 @@ public class PropertyMetadata implements Serializable {
         }
     }
 
+    /**
+     * Suppresses the access checks of <code>accessor</code>, so that they are
+     * not performed on every invocation. This is done once, when the metadata
+     * is created, instead of toggling the flag around each access.
+     * 
+     * @param accessor
+     *            the method or field (may be null).
+     * @return <code>accessor</code>.
+     */
+    static <A extends AccessibleObject> A makeAccessible(A accessor) {
+        if (accessor != null) {
+            try {
+                accessor.setAccessible(true);
+            } catch (SecurityException e) {
+                // Public members can still be accessed with the checks
+            }
+        }
+        return accessor;
+    }
+
     public Object readResolve() throws ObjectStreamException {
         try {
             Method getterM = null;
@@ -155,6 +177,24 @@ public class PropertyMetadata implements Serializable {
         return setter != null;
     }
     
+    /**
+     * Reads the value of this property from <code>object</code> using the
+     * accessor resolved when the metadata was created.
+     */
+    Object getValue(Object object) throws IllegalAccessException,
+            InvocationTargetException {
+        return getter.invoke(object);
+    }
+
+    /**
+     * Sets the value of this property on <code>object</code> using the
+     * accessor resolved when the metadata was created.
+     */
+    void setValue(Object object, Object value) throws IllegalAccessException,
+            InvocationTargetException {
+        setter.invoke(object, value);
+    }
+
     public PropertyKind getPropertyKind() {
         return PropertyKind.NONPERSISTENT;
     }
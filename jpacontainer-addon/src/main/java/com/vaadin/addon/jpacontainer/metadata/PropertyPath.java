@@ -0,0 +1,183 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer.metadata;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An immutable, pre-parsed property name, which may be nested (e.g.
+ * <code>address.street</code>). Paths are obtained with {@link #get(String)},
+ * which parses each distinct name only once and returns the same instance
+ * for it afterwards, so that code walking nested properties does not have to
+ * split the same strings over and over again.
+ * <p>
+ * Empty names are ignored when parsing, i.e. <code>a..b</code> and
+ * <code>a.b</code> consist of the same names.
+ *
+ * @see ClassMetadata#getPropertyValue(Object, PropertyPath)
+ * @since 3.2
+ */
+public final class PropertyPath implements Serializable {
+
+    private static final long serialVersionUID = -4150719787003837426L;
+
+    /**
+     * The maximum number of paths to intern. Further paths are still parsed,
+     * but not remembered, so that arbitrary strings cannot fill the memory.
+     */
+    private static final int MAX_INTERNED = 10000;
+
+    private static final ConcurrentMap<String, PropertyPath> interned = new ConcurrentHashMap<String, PropertyPath>();
+
+    private final String path;
+    private final String[] names;
+    private transient PropertyPath parent;
+
+    private PropertyPath(String path) {
+        this.path = path;
+        this.names = parse(path);
+    }
+
+    /**
+     * Gets the path of <code>propertyName</code>.
+     *
+     * @param propertyName
+     *            the property name, possibly nested (must not be null).
+     * @return the path (never null).
+     */
+    public static PropertyPath get(String propertyName) {
+        assert propertyName != null : "propertyName must not be null";
+        PropertyPath path = interned.get(propertyName);
+        if (path == null) {
+            path = new PropertyPath(propertyName);
+            if (interned.size() < MAX_INTERNED) {
+                PropertyPath existing = interned.putIfAbsent(propertyName,
+                        path);
+                if (existing != null) {
+                    path = existing;
+                }
+            }
+        }
+        return path;
+    }
+
+    private static String[] parse(String path) {
+        List<String> names = new ArrayList<String>();
+        int start = 0;
+        int length = path.length();
+        while (start <= length) {
+            int end = path.indexOf('.', start);
+            if (end == -1) {
+                end = length;
+            }
+            if (end > start) {
+                names.add(path.substring(start, end));
+            }
+            start = end + 1;
+        }
+        return names.toArray(new String[names.size()]);
+    }
+
+    /**
+     * Gets the number of property names in the path.
+     *
+     * @return the number of names (0 only for an empty path).
+     */
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * Gets the property name at <code>index</code>.
+     *
+     * @param index
+     *            the index of the name, starting from 0 for the property of
+     *            the root class.
+     * @return the property name (never null).
+     */
+    public String getName(int index) {
+        return names[index];
+    }
+
+    /**
+     * Gets the last property name of the path, i.e. the name of the property
+     * whose value the path refers to.
+     *
+     * @return the property name, or null for an empty path.
+     */
+    public String getLastName() {
+        return names.length == 0 ? null : names[names.length - 1];
+    }
+
+    /**
+     * Checks whether the path consists of more than one property name.
+     *
+     * @return true if the path is nested, false otherwise.
+     */
+    public boolean isNested() {
+        return names.length > 1;
+    }
+
+    /**
+     * Gets the path of the property that contains the property of this path,
+     * e.g. <code>address</code> for <code>address.street</code>.
+     *
+     * @return the parent path, or null if this path is not nested.
+     */
+    public PropertyPath getParent() {
+        if (!isNested()) {
+            return null;
+        }
+        PropertyPath p = parent;
+        if (p == null) {
+            StringBuilder sb = new StringBuilder(names[0]);
+            for (int i = 1; i < names.length - 1; ++i) {
+                sb.append('.').append(names[i]);
+            }
+            p = get(sb.toString());
+            parent = p;
+        }
+        return p;
+    }
+
+    /**
+     * Returns the property name that this path was parsed from.
+     */
+    @Override
+    public String toString() {
+        return path;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof PropertyPath
+                && path.equals(((PropertyPath) obj).path);
+    }
+
+    @Override
+    public int hashCode() {
+        return path.hashCode();
+    }
+
+    private Object readResolve() {
+        return get(path);
+    }
+}
@@ -0,0 +1,312 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.provider;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.vaadin.addon.jpacontainer.EntityContainer;
+import com.vaadin.addon.jpacontainer.EntityManagerProvider;
+import com.vaadin.addon.jpacontainer.provider.CachingSupport.CacheMap;
+import com.vaadin.data.Container.Filter;
+
+/**
+ * {@link CountStrategy} that counts the entities in the background. Until the
+ * count for a filter is known, a placeholder count is returned. When the
+ * count arrives, every container that has asked for the count of the filter
+ * in the meantime is notified and fires an ItemSetChangeEvent, after which the
+ * count is returned until the strategy is {@link #reset() reset}. After a
+ * reset, the last known count is returned while the entities are counted
+ * again.
+ * <p>
+ * The counts are run in the threads of an {@link Executor}. As entity
+ * managers are not thread safe, the entity provider should use an
+ * {@link EntityManagerProvider} that returns a separate entity manager for
+ * every thread (including the threads of the executor). The containers are
+ * notified through a separate notification executor, as they must not be
+ * modified without holding the lock of their session. In a Vaadin
+ * application, the notification executor would typically pass the task to
+ * <code>UI.access()</code>.
+ * <p>
+ * The executors are not serialized. Until new executors are set, entities
+ * are counted in the calling thread.
+ *
+ * @since 3.2
+ */
+public class AsynchronousCountStrategy implements CountStrategy {
+
+    private static final long serialVersionUID = 7713561402271339045L;
+
+    /**
+     * The maximum number of filters to remember the counts of.
+     */
+    private static final int MAX_COUNTS = 100;
+
+    /**
+     * Key for the count of all entities, as maps cannot contain null keys
+     * reliably.
+     */
+    private static final Object NULL_FILTER = new Object();
+
+    private final CountStrategy countStrategy;
+    private int placeholderCount = 0;
+    private transient volatile Executor executor;
+    private transient volatile Executor notificationExecutor;
+    private transient Map<Object, CountEntry> counts;
+
+    /**
+     * The last known count of a filter, whether it is being loaded, and the
+     * counters to notify when it has been loaded. The counters are keyed by
+     * container, so that every container is notified once.
+     */
+    private static class CountEntry {
+        Integer count;
+        boolean stale;
+        boolean loading;
+        final Map<Object, Counter> waiting = new IdentityHashMap<Object, Counter>();
+    }
+
+    /**
+     * Creates a new <code>AsynchronousCountStrategy</code> that counts all
+     * the entities.
+     *
+     * @param executor
+     *            the executor to run the counts with (must not be null).
+     * @param notificationExecutor
+     *            the executor to notify the containers with (must not be
+     *            null).
+     */
+    public AsynchronousCountStrategy(Executor executor,
+            Executor notificationExecutor) {
+        this(executor, notificationExecutor, null);
+    }
+
+    /**
+     * Creates a new <code>AsynchronousCountStrategy</code> that delegates the
+     * counting to <code>countStrategy</code>, e.g. a
+     * {@link CappedCountStrategy}.
+     *
+     * @param executor
+     *            the executor to run the counts with (must not be null).
+     * @param notificationExecutor
+     *            the executor to notify the containers with (must not be
+     *            null).
+     * @param countStrategy
+     *            the strategy to count the entities with in the background,
+     *            or null to count all the entities.
+     */
+    public AsynchronousCountStrategy(Executor executor,
+            Executor notificationExecutor, CountStrategy countStrategy) {
+        assert executor != null : "executor must not be null";
+        assert notificationExecutor != null : "notificationExecutor must not be null";
+        this.executor = executor;
+        this.notificationExecutor = notificationExecutor;
+        this.countStrategy = countStrategy;
+    }
+
+    /**
+     * Gets the executor that the counts are run with.
+     *
+     * @return the executor, or null if entities are counted in the calling
+     *         thread.
+     */
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Sets the executor that the counts are run with.
+     *
+     * @param executor
+     *            the executor, or null to count entities in the calling
+     *            thread.
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Gets the executor that the containers are notified with.
+     *
+     * @return the executor, or null if it has not been set since the strategy
+     *         was deserialized, in which case entities are counted in the
+     *         calling thread.
+     */
+    public Executor getNotificationExecutor() {
+        return notificationExecutor;
+    }
+
+    /**
+     * Sets the executor that the containers are notified with when a count
+     * has completed. The containers are never notified in the thread that ran
+     * the count.
+     *
+     * @param notificationExecutor
+     *            the executor (must not be null).
+     */
+    public void setNotificationExecutor(Executor notificationExecutor) {
+        assert notificationExecutor != null : "notificationExecutor must not be null";
+        this.notificationExecutor = notificationExecutor;
+    }
+
+    /**
+     * Gets the count that is returned for filters whose count is not yet
+     * known.
+     *
+     * @return the placeholder count.
+     */
+    public int getPlaceholderCount() {
+        return placeholderCount;
+    }
+
+    /**
+     * Sets the count that is returned for filters whose count is not yet
+     * known. The default is 0.
+     *
+     * @param placeholderCount
+     *            the placeholder count (must be &gt;= 0).
+     */
+    public void setPlaceholderCount(int placeholderCount) {
+        assert placeholderCount >= 0 : "placeholderCount must not be negative";
+        this.placeholderCount = placeholderCount;
+    }
+
+    public int getEntityCount(final EntityContainer<?> container,
+            final Filter filter, final Counter counter) {
+        Executor executor = getExecutor();
+        if (executor == null || getNotificationExecutor() == null) {
+            // Without a notification executor, the container could not be
+            // told about the count safely
+            return countNow(container, filter, counter);
+        }
+        final CountEntry entry = getCountEntry(filter);
+        synchronized (entry) {
+            if (entry.count != null && !entry.stale) {
+                return entry.count;
+            }
+            entry.waiting.put(container != null ? container : counter,
+                    counter);
+            if (!entry.loading) {
+                entry.loading = true;
+                entry.stale = false;
+                try {
+                    executor.execute(new Runnable() {
+                        public void run() {
+                            loadCount(entry, container, filter, counter);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    entry.loading = false;
+                    entry.stale = true;
+                    entry.waiting.clear();
+                }
+            }
+            if (entry.loading) {
+                return entry.count != null ? entry.count : placeholderCount;
+            }
+        }
+        // The executor rejected the count, so it is run in this thread
+        return countNow(container, filter, counter);
+    }
+
+    private int countNow(EntityContainer<?> container, Filter filter,
+            Counter counter) {
+        if (countStrategy == null) {
+            return counter.count();
+        } else {
+            return countStrategy.getEntityCount(container, filter, counter);
+        }
+    }
+
+    private void loadCount(CountEntry entry, EntityContainer<?> container,
+            Filter filter, Counter counter) {
+        int count;
+        try {
+            count = countNow(container, filter, counter);
+        } catch (RuntimeException e) {
+            synchronized (entry) {
+                entry.loading = false;
+                entry.stale = true;
+            }
+            Logger.getLogger(getClass().getName()).log(Level.WARNING,
+                    "Could not count the entities", e);
+            return;
+        }
+        List<Counter> waiting;
+        synchronized (entry) {
+            int previous = entry.count != null ? entry.count
+                    : placeholderCount;
+            // Every waiting container was given the previous count
+            waiting = previous != count ? new ArrayList<Counter>(
+                    entry.waiting.values()) : null;
+            entry.waiting.clear();
+            entry.count = count;
+            entry.loading = false;
+        }
+        Executor notificationExecutor = getNotificationExecutor();
+        if (waiting == null || notificationExecutor == null) {
+            return;
+        }
+        for (final Counter waitingCounter : waiting) {
+            notificationExecutor.execute(new Runnable() {
+                public void run() {
+                    waitingCounter.countChanged();
+                }
+            });
+        }
+    }
+
+    private synchronized CountEntry getCountEntry(Filter filter) {
+        if (counts == null) {
+            counts = new CacheMap<Object, CountEntry>(MAX_COUNTS);
+        }
+        Object key = filter == null ? NULL_FILTER : filter;
+        CountEntry entry = counts.get(key);
+        if (entry == null) {
+            entry = new CountEntry();
+            counts.put(key, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Marks all the known counts as stale. They are still returned until they
+     * have been counted again.
+     */
+    public void reset() {
+        if (countStrategy != null) {
+            countStrategy.reset();
+        }
+        List<CountEntry> entries;
+        synchronized (this) {
+            if (counts == null) {
+                return;
+            }
+            entries = new ArrayList<CountEntry>(counts.values());
+        }
+        for (CountEntry entry : entries) {
+            synchronized (entry) {
+                entry.stale = true;
+            }
+        }
+    }
+}
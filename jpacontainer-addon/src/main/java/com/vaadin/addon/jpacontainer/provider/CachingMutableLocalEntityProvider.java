@@ -17,11 +17,14 @@
 package com.vaadin.addon.jpacontainer.provider;
 
 import java.util.List;
+import java.util.concurrent.Executor;
 
 import javax.persistence.EntityManager;
 
 import com.vaadin.addon.jpacontainer.CachingEntityProvider;
+import com.vaadin.addon.jpacontainer.CachingEntityProvider.ReferenceMode;
 import com.vaadin.addon.jpacontainer.EntityContainer;
+import com.vaadin.addon.jpacontainer.EntityWeigher;
 import com.vaadin.addon.jpacontainer.SortBy;
 import com.vaadin.data.Container.Filter;
 
@@ -37,6 +40,11 @@ import com.vaadin.data.Container.Filter;
  * <p>
  * If you are going to edit the entities returned by the container, you should
  * check the {@link #setCloneCachedEntities(boolean) } before continuing.
+ * <p>
+ * The cache is thread safe, so one provider instance may be shared by several
+ * containers and sessions. In that case, use an
+ * {@link com.vaadin.addon.jpacontainer.EntityManagerProvider} that returns a
+ * separate entity manager for each thread.
  * 
  * @author Petter Holmström (Vaadin Ltd)
  * @since 1.0
@@ -95,6 +103,98 @@ public class CachingMutableLocalEntityProvider<T> extends
         cachingSupport.setMaxCacheSize(maxSize);
     }
 
+    public long getEntityCacheMaxWeight() {
+        return cachingSupport.getMaxCacheWeight();
+    }
+
+    public void setEntityCacheMaxWeight(long maxWeight) {
+        cachingSupport.setMaxCacheWeight(maxWeight);
+    }
+
+    public EntityWeigher<? super T> getEntityWeigher() {
+        return cachingSupport.getEntityWeigher();
+    }
+
+    public void setEntityWeigher(EntityWeigher<? super T> weigher) {
+        cachingSupport.setEntityWeigher(weigher);
+    }
+
+    public long getEntityCacheWeight() {
+        return cachingSupport.getCacheWeight();
+    }
+
+    public ReferenceMode getEntityCacheReferenceMode() {
+        return cachingSupport.getReferenceMode();
+    }
+
+    public void setEntityCacheReferenceMode(ReferenceMode referenceMode) {
+        cachingSupport.setReferenceMode(referenceMode);
+    }
+
+    public long getEntityCacheTimeToLive() {
+        return cachingSupport.getEntityTimeToLive();
+    }
+
+    public void setEntityCacheTimeToLive(long timeToLive) {
+        cachingSupport.setEntityTimeToLive(timeToLive);
+    }
+
+    public long getIdListTimeToLive() {
+        return cachingSupport.getIdListTimeToLive();
+    }
+
+    public void setIdListTimeToLive(long timeToLive) {
+        cachingSupport.setIdListTimeToLive(timeToLive);
+    }
+
+    public long getEntityCountTimeToLive() {
+        return cachingSupport.getCountTimeToLive();
+    }
+
+    public void setEntityCountTimeToLive(long timeToLive) {
+        cachingSupport.setCountTimeToLive(timeToLive);
+    }
+
+    public Executor getRefreshAheadExecutor() {
+        return cachingSupport.getRefreshAheadExecutor();
+    }
+
+    public void setRefreshAheadExecutor(Executor executor) {
+        cachingSupport.setRefreshAheadExecutor(executor);
+    }
+
+    public int getIdChunkSize() {
+        return cachingSupport.getChunkSize();
+    }
+
+    public void setIdChunkSize(int chunkSize) {
+        cachingSupport.setChunkSize(chunkSize);
+    }
+
+    public boolean isAdaptiveIdChunkSize() {
+        return cachingSupport.isAdaptiveChunkSize();
+    }
+
+    public void setAdaptiveIdChunkSize(boolean adaptive) {
+        cachingSupport.setAdaptiveChunkSize(adaptive);
+    }
+
+    public int getFilterCacheMaxSize() {
+        return cachingSupport.getMaxFilterCacheSize();
+    }
+
+    public void setFilterCacheMaxSize(int maxSize) {
+        cachingSupport.setMaxFilterCacheSize(maxSize);
+    }
+
+    public int getSortByCacheMaxSize() {
+        return cachingSupport.getMaxSortByCacheSize();
+    }
+
+    public void setSortByCacheMaxSize(int maxSize) {
+        cachingSupport.setMaxSortByCacheSize(maxSize);
+    }
+
     @Override
     public boolean containsEntity(EntityContainer<T> container, Object entityId, Filter filter) {
         return cachingSupport.containsEntity(container, entityId, filter);
@@ -107,10 +207,23 @@ public class CachingMutableLocalEntityProvider<T> extends
     }
 
     @Override
-    public synchronized T getEntity(EntityContainer<T> container, Object entityId) {
+    public T getEntity(EntityContainer<T> container, Object entityId) {
         return cachingSupport.getEntity(container, entityId);
     }
 
+    @Override
+    public List<T> getEntities(EntityContainer<T> container,
+            List<Object> entityIds) {
+        return cachingSupport.getEntities(container, entityIds);
+    }
+
+    @Override
+    public List<T> getEntitiesAt(EntityContainer<T> container, Filter filter,
+            List<SortBy> sortBy, int index, int qty) {
+        return cachingSupport.getEntitiesAt(container, filter, sortBy, index,
+                qty);
+    }
+
     @Override
     public boolean isEntitiesDetached() {
         return isCacheEnabled() || super.isEntitiesDetached();
@@ -136,6 +249,13 @@ public class CachingMutableLocalEntityProvider<T> extends
         return cachingSupport.getEntityIdentifierAt(container, filter, sortBy, index);
     }
 
+    @Override
+    public List<Object> getEntityIdentifierAt(EntityContainer<T> container,
+            Filter filter, List<SortBy> sortBy, int index, int qty) {
+        return cachingSupport.getEntityIdentifierAt(container, filter, sortBy,
+                index, qty);
+    }
+
     @Override
     public Object getFirstEntityIdentifier(EntityContainer<T> container, Filter filter, List<SortBy> sortBy) {
         return cachingSupport.getFirstEntityIdentifier(container, filter, sortBy);
@@ -174,12 +294,12 @@ public class CachingMutableLocalEntityProvider<T> extends
 
     @Override
     public T updateEntity(T entity) {
+        // The stored state tells which of the cached filters the entity
+        // matched before the update. It is read before merging, which loads
+        // the same instance anyway.
+        T oldState = isCacheEnabled() ? getStoredState(entity) : null;
         T result = super.updateEntity(entity);
-        cachingSupport.invalidate(
-                getEntityClassMetadata().getPropertyValue(
-                        entity,
-                        getEntityClassMetadata().getIdentifierProperty()
-                                .getName()), true);
+        cachingSupport.entityUpdated(result, oldState);
         return result;
     }
 
@@ -187,7 +307,7 @@ public class CachingMutableLocalEntityProvider<T> extends
     public void updateEntityProperty(Object entityId, String propertyName,
             Object propertyValue) throws IllegalArgumentException {
         super.updateEntityProperty(entityId, propertyName, propertyValue);
-        cachingSupport.invalidate(entityId, true);
+        cachingSupport.entityPropertyUpdated(entityId, propertyName);
     }
 
     /*
@@ -197,6 +317,7 @@ public class CachingMutableLocalEntityProvider<T> extends
      */
     @Override
     public void refresh() {
+        super.refresh();
         cachingSupport.clear();
     }
     
@@ -205,4 +326,19 @@ public class CachingMutableLocalEntityProvider<T> extends
         return super.refreshEntity(entity);
     };
 
+    @Override
+    public void setCountStrategy(CountStrategy countStrategy) {
+        super.setCountStrategy(countStrategy);
+        // The cached counts may have been determined by another strategy
+        cachingSupport.invalidateSize();
+    }
+
+    @Override
+    protected void fireEntityCountChanged(EntityContainer<T> container,
+            Filter filter) {
+        // The count cached before the change must not be returned
+        cachingSupport.invalidateSize(filter);
+        super.fireEntityCountChanged(container, filter);
+    }
+
 }
@@ -17,30 +17,63 @@
 package com.vaadin.addon.jpacontainer.provider;
 
 import java.io.Serializable;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Method;
+import java.util.AbstractSet;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.persistence.TypedQuery;
 
+import com.vaadin.addon.jpacontainer.CachingEntityProvider.ReferenceMode;
 import com.vaadin.addon.jpacontainer.EntityContainer;
 import com.vaadin.addon.jpacontainer.EntityProvider;
+import com.vaadin.addon.jpacontainer.EntityWeigher;
 import com.vaadin.addon.jpacontainer.QueryModifierDelegate;
 import com.vaadin.addon.jpacontainer.SortBy;
+import com.vaadin.addon.jpacontainer.metadata.ClassMetadata;
+import com.vaadin.addon.jpacontainer.metadata.PersistentPropertyMetadata;
+import com.vaadin.addon.jpacontainer.metadata.PropertyKind;
+import com.vaadin.addon.jpacontainer.metadata.PropertyMetadata;
 import com.vaadin.data.Container.Filter;
 import com.vaadin.data.Item;
+import com.vaadin.data.Property;
+import com.vaadin.data.util.ObjectProperty;
 
 /**
  * Delegate class that implements caching for {@link LocalEntityProvider}s and
  * their subclasses. This class is internal and should never be used outside of
  * JPAContainer.
+ * <p>
+ * The caches are thread safe and may be shared by several containers (and
+ * sessions). Locking is fine grained: the entity cache is split into
+ * separately locked segments, every filter has its own cache entry and every
+ * differently sorted ID list of a filter is locked separately. Database
+ * queries are never run while holding a lock that is shared by unrelated
+ * requests, and concurrent requests for the same missing entity are coalesced
+ * into one query. Note, that a shared entity provider should use an
+ * {@link com.vaadin.addon.jpacontainer.EntityManagerProvider} that returns a
+ * separate entity manager for each thread, as entity managers are not thread
+ * safe.
  * 
  * @author Petter Holmström (Vaadin Ltd)
  * @since 1.0
@@ -48,13 +81,34 @@ import com.vaadin.data.Item;
 class CachingSupport<T> implements Serializable {
 
     private final LocalEntityProvider<T> entityProvider;
-    private int maxCacheSize = 1000;
-    private boolean cacheEnabled = true;
-    private boolean cloneCachedEntities = false;
+    private volatile int maxCacheSize = 1000;
+    private volatile long maxCacheWeight = -1;
+    private volatile EntityWeigher<? super T> entityWeigher;
+    private volatile ReferenceMode referenceMode = ReferenceMode.STRONG;
+    private volatile long entityTimeToLive = -1;
+    private volatile long idListTimeToLive = -1;
+    private volatile long countTimeToLive = -1;
+    private transient volatile Executor refreshAheadExecutor;
+    private volatile boolean cacheEnabled = true;
+    private volatile boolean cloneCachedEntities = false;
+    private volatile int chunkSize = CHUNK_SIZE;
+    private volatile boolean adaptiveChunkSize = false;
+    private volatile int maxFilterCacheSize = MAX_FILTER_CACHE_SIZE;
+    private volatile int maxSortByCacheSize = MAX_SORTBY_CACHE_SIZE;
     /**
-     * The number of entity IDs to fetch every time a query is made.
+     * The default number of entity IDs to fetch every time a query is made.
      */
     protected static final int CHUNK_SIZE = 150;
+    /**
+     * When the adaptive chunk size is enabled, the chunk size of an ID list
+     * may grow up to this many times the configured chunk size.
+     */
+    protected static final int MAX_ADAPTIVE_CHUNK_FACTOR = 16;
+    /**
+     * When the adaptive chunk size is enabled, the chunk size of an ID list
+     * may shrink down to the configured chunk size divided by this number.
+     */
+    protected static final int MIN_ADAPTIVE_CHUNK_DIVISOR = 4;
     /**
      * A {@link Filter}-instance representing the null-filter (i.e. no filter
      * applied).
@@ -73,22 +127,19 @@ class CachingSupport<T> implements Serializable {
         }
     };
     /**
-     * The max size of the filter cache (i.e. how many different filters to
-     * cache).
+     * The default max size of the filter cache (i.e. how many different
+     * filters to cache).
      * 
      * @see #getFilterCache()
      */
     public static final int MAX_FILTER_CACHE_SIZE = 10;
     /**
-     * The max size of the sort by cache for each filter. Thus, the maximum
-     * number of cached filter-sortBy combinations is
+     * The default max size of the sort by cache for each filter. Thus, the
+     * maximum number of cached filter-sortBy combinations is
      * <code>MAX_FILTER_CACHE_SIZE * MAX_SORTBY_CACHE_SIZE</code>.
      */
     public static final int MAX_SORTBY_CACHE_SIZE = 10;
 
-    // TODO Make chunk size, filter cache size and sortBy cache size user
-    // configurable.
-
     /**
      * Creates a new <code>CachingSupport</code> for the specified entity
      * provider.
@@ -114,6 +165,20 @@ class CachingSupport<T> implements Serializable {
         public ArrayList<Object> idList;
         public int listOffset = 0;
         public boolean containsAll = false;
+        /**
+         * The current chunk size of this list when the adaptive chunk size is
+         * enabled, or 0 if no IDs have been fetched yet.
+         */
+        public int chunkSize = 0;
+        /**
+         * The number of consecutive fetches that have continued from the
+         * edge of this list.
+         */
+        public int sequentialFetches = 0;
+        /**
+         * The time when this list was created, used to expire the list.
+         */
+        public final long loadTime = System.currentTimeMillis();
     }
 
     /**
@@ -129,10 +194,46 @@ class CachingSupport<T> implements Serializable {
         // TODO Optimize the use of lists
         private static final long serialVersionUID = -2978864194978758736L;
         private Filter filter;
-        private Integer entityCount;
+        private volatile Integer entityCount;
+        private volatile long countLoadTime;
+        private final AtomicBoolean countRefreshing = new AtomicBoolean();
+        /**
+         * Incremented whenever the cached count is invalidated or adjusted,
+         * so that a count that was loaded concurrently is not stored. Guarded
+         * by {@link #countLock}.
+         */
+        private long countGeneration = 0;
+        /**
+         * Lock for storing and modifying the cached count. The monitor of the
+         * entry is held while the count is being loaded, so it cannot be used
+         * for this.
+         */
+        private final Object countLock = new Serializable() {
+            private static final long serialVersionUID = 4511829204893826130L;
+        };
+        private long idSetLoadTime = System.currentTimeMillis();
         public Map<List<SortBy>, IdListEntry> idListMap = new CacheMap<List<SortBy>, IdListEntry>(
-                MAX_SORTBY_CACHE_SIZE);
+                getMaxSortByCacheSize());
         public Set<Object> idSet = new CacheSet<Object>(getMaxCacheSize());
+        /**
+         * Incremented whenever ID lists are discarded, so that IDs loaded
+         * concurrently are not stored. Guarded by the lock of
+         * {@link #idListMap}.
+         */
+        private long idListGeneration = 0;
+        /**
+         * The IDs known not to match the filter. Guarded by the lock of
+         * {@link #idSet} and expired together with it.
+         */
+        public Set<Object> missingIdSet = new CacheSet<Object>(
+                getMaxCacheSize());
+        /**
+         * Incremented whenever {@link #idSet} or {@link #missingIdSet} is
+         * cleared or changed by a modification, so that the result of a
+         * concurrent query is not stored. Guarded by the lock of
+         * {@link #idSet}.
+         */
+        private long idSetGeneration = 0;
 
         /**
          * Creates a new <code>FilterCacheEntry</code>.
@@ -149,33 +250,199 @@ class CachingSupport<T> implements Serializable {
          * 
          * @return the number of entities.
          */
-        public synchronized int getEntityCount(EntityContainer<T> container) {
+        public int getEntityCount(EntityContainer<T> container) {
             if(!isCachingPossible(container)) {
                 return entityProvider.doGetEntityCount(container, getFilter());
             }
-            if (entityCount == null) {
-                entityCount = entityProvider.doGetEntityCount(container, getFilter());
+            Integer count = entityCount;
+            if (count != null) {
+                if (!isExpired(countLoadTime, getCountTimeToLive())) {
+                    return count;
+                }
+                // A plain entity manager must not be used by the executor
+                Executor executor = entityProvider
+                        .isEntityManagerProviderUsed() ? getRefreshAheadExecutor()
+                        : null;
+                if (executor != null && refreshEntityCount(container, executor)) {
+                    // Serve the stale count while the new one is loaded
+                    return count;
+                }
+            }
+            // The monitor of this entry is only used for the count, so
+            // concurrent callers wait for one query instead of each running
+            // their own
+            synchronized (this) {
+                count = entityCount;
+                if (count == null
+                        || isExpired(countLoadTime, getCountTimeToLive())) {
+                    count = loadEntityCount(container);
+                }
+                return count;
+            }
+        }
+
+        private int loadEntityCount(EntityContainer<T> container) {
+            long generation;
+            synchronized (countLock) {
+                generation = countGeneration;
+            }
+            long loadTime = System.currentTimeMillis();
+            int count = entityProvider.doGetEntityCount(container, getFilter());
+            synchronized (countLock) {
+                // If the count was invalidated or adjusted while the query was
+                // running, the loaded count may already be stale
+                if (generation == countGeneration) {
+                    countLoadTime = loadTime;
+                    entityCount = count;
+                }
+            }
+            return count;
+        }
+
+        /**
+         * Reloads the entity count using <code>executor</code>, unless it is
+         * already being reloaded.
+         * 
+         * @return true if the count is being reloaded, false if the executor
+         *         rejected the task.
+         */
+        private boolean refreshEntityCount(final EntityContainer<T> container,
+                Executor executor) {
+            if (!countRefreshing.compareAndSet(false, true)) {
+                return true;
+            }
+            try {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            synchronized (FilterCacheEntry.this) {
+                                loadEntityCount(container);
+                            }
+                        } finally {
+                            countRefreshing.set(false);
+                        }
+                    }
+                });
+                return true;
+            } catch (RejectedExecutionException e) {
+                countRefreshing.set(false);
+                return false;
+            }
+        }
+
+        /**
+         * Discards the cached entity count, forcing it to be fetched from the
+         * database when requested the next time.
+         */
+        public void invalidateCount() {
+            synchronized (countLock) {
+                countGeneration++;
+                entityCount = null;
+            }
+        }
+
+        /**
+         * Gets the ID list entry for <code>sortBy</code>, optionally creating
+         * it. The returned entry must be locked while it is being used.
+         * 
+         * @param sortBy
+         *            the ordering information (may not be null).
+         * @param create
+         *            true to create the entry if it does not exist.
+         * @return the entry, or null if it does not exist and
+         *         <code>create</code> is false.
+         */
+        private IdListEntry getIdListEntry(List<SortBy> sortBy, boolean create) {
+            synchronized (idListMap) {
+                IdListEntry entry = idListMap.get(sortBy);
+                if (entry != null
+                        && isExpired(entry.loadTime, getIdListTimeToLive())) {
+                    // Replace the entry instead of clearing it, as another
+                    // thread may still be using it
+                    idListMap.remove(sortBy);
+                    entry = null;
+                }
+                if (entry == null && create) {
+                    entry = new IdListEntry();
+                    entry.idList = new ArrayList<Object>(getChunkSize() * 2);
+                    entry.listOffset = -1;
+                    idListMap.put(sortBy, entry);
+                }
+                return entry;
             }
-            return entityCount;
         }
 
         /**
+         * Checks whether <code>entityId</code> matches the filter. The IDs
+         * that have already been checked, both matching and missing ones,
+         * are remembered, and the cached ID lists are consulted before
+         * querying the database.
+         * 
          * @see EntityProvider#containsEntity(java.lang.Object,
          *      com.vaadin.addons.jpacontainer.Filter)
          */
-        public synchronized boolean containsId(EntityContainer<T> container,
+        public boolean containsId(EntityContainer<T> container,
                 Object entityId) {
-            if (!idSet.contains(entityId)) {
-                if (entityProvider.doContainsEntity(container, entityId,
-                        getFilter())) {
-                    idSet.add(entityId);
+            long generation;
+            synchronized (idSet) {
+                if (isExpired(idSetLoadTime, getIdListTimeToLive())) {
+                    idSetGeneration++;
+                    idSet.clear();
+                    missingIdSet.clear();
+                    idSetLoadTime = System.currentTimeMillis();
+                }
+                if (idSet.contains(entityId)) {
                     return true;
-                } else {
+                }
+                if (missingIdSet.contains(entityId)) {
                     return false;
                 }
-            } else {
-                return true;
+                generation = idSetGeneration;
+            }
+            Boolean listed = isInIdLists(entityId);
+            boolean contains = listed != null ? listed : entityProvider
+                    .doContainsEntity(container, entityId, getFilter());
+            synchronized (idSet) {
+                // If an entity was added, removed or invalidated while the
+                // query was running, the result may already be stale
+                if (generation != idSetGeneration) {
+                    return contains;
+                }
+                if (contains) {
+                    idSet.add(entityId);
+                } else {
+                    missingIdSet.add(entityId);
+                }
+            }
+            return contains;
+        }
+
+        /**
+         * Looks for <code>entityId</code> in the cached ID lists.
+         * 
+         * @return true if the ID is in one of the lists, false if it is not in
+         *         a list that contains all the IDs matching the filter, null
+         *         if the lists cannot tell.
+         */
+        private Boolean isInIdLists(Object entityId) {
+            List<IdListEntry> entries;
+            synchronized (idListMap) {
+                entries = new ArrayList<IdListEntry>(idListMap.values());
+            }
+            Boolean result = null;
+            for (IdListEntry entry : entries) {
+                if (isExpired(entry.loadTime, getIdListTimeToLive())) {
+                    continue;
+                }
+                synchronized (entry) {
+                    if (entry.idList.contains(entityId)) {
+                        return Boolean.TRUE;
+                    } else if (entry.containsAll) {
+                        result = Boolean.FALSE;
+                    }
+                }
             }
+            return result;
         }
 
         /**
@@ -191,19 +458,22 @@ class CachingSupport<T> implements Serializable {
          * @see EntityProvider#getNextEntityIdentifier(java.lang.Object,
          *      com.vaadin.addons.jpacontainer.Filter, java.util.List)
          */
-        public synchronized Object getNextId(EntityContainer<T> container,
+        public Object getNextId(EntityContainer<T> container,
                 Object entityId, List<SortBy> sortBy) {
-            IdListEntry entry = idListMap.get(sortBy);
-            if (entry == null) {
-                entry = new IdListEntry();
-                entry.idList = new ArrayList<Object>();
-                entry.listOffset = -1;
-                idListMap.put(sortBy, entry);
+            IdListEntry entry = getIdListEntry(sortBy, true);
+            synchronized (entry) {
+                return getNextId(container, entityId, sortBy, entry);
             }
+        }
+
+        private Object getNextId(EntityContainer<T> container,
+                Object entityId, List<SortBy> sortBy, IdListEntry entry) {
             int index = entry.idList.indexOf(entityId);
             if (index == -1) {
+                int chunkSize = updateChunkSize(entry, false);
                 entry.idList = new ArrayList<Object>(getNextIds(container,
-                        getFilter(), sortBy, entityId, CHUNK_SIZE));
+                        getFilter(), sortBy, entityId, chunkSize));
+                entry.listOffset = -1;
                 if (entry.idList.isEmpty()) {
                     return null;
                 } else {
@@ -211,19 +481,24 @@ class CachingSupport<T> implements Serializable {
                 }
             } else {
                 if (index == entry.idList.size() - 1) {
+                    int chunkSize = updateChunkSize(entry, true);
                     if (getMaxCacheSize() > -1
-                            && entry.idList.size() + CHUNK_SIZE > getMaxCacheSize()) {
+                            && entry.idList.size() + chunkSize > getMaxCacheSize()) {
                         // Clean up the cache
-                        if (entry.idList.size() <= CHUNK_SIZE) {
+                        if (entry.idList.size() <= chunkSize) {
                             entry.idList.clear();
+                            entry.listOffset = -1;
                             index = -1;
                         } else {
-                            entry.idList.subList(0, CHUNK_SIZE).clear();
-                            index -= CHUNK_SIZE;
+                            entry.idList.subList(0, chunkSize).clear();
+                            if (entry.listOffset > -1) {
+                                entry.listOffset += chunkSize;
+                            }
+                            index -= chunkSize;
                         }
                     }
                     entry.idList.addAll(getNextIds(container, getFilter(),
-                            sortBy, entityId, CHUNK_SIZE));
+                            sortBy, entityId, chunkSize));
                 }
                 if (index + 1 == entry.idList.size()) {
                     return null;
@@ -237,24 +512,27 @@ class CachingSupport<T> implements Serializable {
          * @see EntityProvider#getPreviousEntityIdentifier(java.lang.Object,
          *      com.vaadin.addons.jpacontainer.Filter, java.util.List)
          */
-        public synchronized Object getPreviousId(EntityContainer<T> container,
+        public Object getPreviousId(EntityContainer<T> container,
                 Object entityId, List<SortBy> sortBy) {
-            IdListEntry entry = idListMap.get(sortBy);
-            if (entry == null) {
-                entry = new IdListEntry();
-                entry.idList = new ArrayList<Object>();
-                entry.listOffset = -1;
-                idListMap.put(sortBy, entry);
+            IdListEntry entry = getIdListEntry(sortBy, true);
+            synchronized (entry) {
+                return getPreviousId(container, entityId, sortBy, entry);
             }
+        }
+
+        private Object getPreviousId(EntityContainer<T> container,
+                Object entityId, List<SortBy> sortBy, IdListEntry entry) {
             int index = entry.idList.indexOf(entityId);
             if (index == -1) {
+                int chunkSize = updateChunkSize(entry, false);
                 List<Object> objects = getPreviousIds(container, getFilter(),
-                        sortBy, entityId, CHUNK_SIZE);
+                        sortBy, entityId, chunkSize);
                 // We have to reverse the list
                 entry.idList = new ArrayList<Object>(objects.size());
                 for (int i = objects.size() - 1; i >= 0; i--) {
                     entry.idList.add(objects.get(i));
                 }
+                entry.listOffset = -1;
                 if (entry.idList.isEmpty()) {
                     return null;
                 } else {
@@ -262,8 +540,9 @@ class CachingSupport<T> implements Serializable {
                 }
             } else {
                 if (index == 0) {
+                    int chunkSize = updateChunkSize(entry, true);
                     List<Object> objects = getPreviousIds(container,
-                            getFilter(), sortBy, entityId, CHUNK_SIZE);
+                            getFilter(), sortBy, entityId, chunkSize);
                     if (objects.isEmpty()) {
                         return null;
                     }
@@ -275,16 +554,22 @@ class CachingSupport<T> implements Serializable {
                         l.add(objects.get(i));
                     }
                     if (getMaxCacheSize() > -1
-                            && entry.idList.size() + CHUNK_SIZE > getMaxCacheSize()) {
+                            && entry.idList.size() + chunkSize > getMaxCacheSize()) {
                         // Clean up the cache
-                        if (entry.idList.size() > CHUNK_SIZE) {
+                        if (entry.idList.size() > chunkSize) {
                             l.addAll(entry.idList.subList(0,
-                                    entry.idList.size() - CHUNK_SIZE));
+                                    entry.idList.size() - chunkSize));
                         }
                     } else {
                         l.addAll(entry.idList);
                     }
                     entry.idList = l;
+                    if (entry.listOffset > -1) {
+                        entry.listOffset -= objects.size();
+                        if (entry.listOffset < 0) {
+                            entry.listOffset = -1;
+                        }
+                    }
                     return theId;
                 } else {
                     return entry.idList.get(index - 1);
@@ -310,28 +595,106 @@ class CachingSupport<T> implements Serializable {
          * @param entityId
          *            the entityId to invalidate.
          */
-        public synchronized void invalidate(Object entityId) {
+        public void invalidate(Object entityId) {
             // Clear the caches to force the data to be re-fetched from the
             // database
             // in case the ordering has changed
-            idListMap.clear();
-            // Removing the entity Id from the Id cache should be enough
-            idSet.remove(entityId);
+            invalidateIdLists(null);
+            // Removing the entity Id from the Id caches should be enough
+            synchronized (idSet) {
+                idSetGeneration++;
+                idSet.remove(entityId);
+                missingIdSet.remove(entityId);
+            }
+        }
+
+        /**
+         * Informs the cache that an entity matching the filter has been added,
+         * or that an updated entity now matches the filter. The cached count
+         * is incremented, and the ID lists are discarded, as the positions of
+         * the entities have changed.
+         * 
+         * @param entityId
+         *            the identifier of the entity.
+         */
+        public void entityAdded(Object entityId) {
+            invalidateIdLists(null);
+            adjustEntityCount(1);
+            synchronized (idSet) {
+                idSetGeneration++;
+                idSet.add(entityId);
+                missingIdSet.remove(entityId);
+            }
+        }
+
+        /**
+         * Informs the cache that an entity matching the filter has been
+         * removed, or that an updated entity no longer matches the filter. The
+         * cached count is decremented, and the ID lists are discarded, as the
+         * positions of the entities have changed.
+         * 
+         * @param entityId
+         *            the identifier of the entity.
+         */
+        public void entityRemoved(Object entityId) {
+            invalidateIdLists(null);
+            adjustEntityCount(-1);
+            synchronized (idSet) {
+                idSetGeneration++;
+                idSet.remove(entityId);
+                missingIdSet.add(entityId);
+            }
+        }
+
+        private void adjustEntityCount(int delta) {
+            synchronized (countLock) {
+                countGeneration++;
+                Integer count = entityCount;
+                if (count != null) {
+                    entityCount = count + delta;
+                }
+            }
+        }
+
+        /**
+         * Discards the ID lists that are sorted by any of
+         * <code>changedProperties</code>. Lists sorted by other properties are
+         * kept, as the order of their entities has not changed.
+         * 
+         * @param changedProperties
+         *            the names of the changed properties, or null to discard
+         *            all ID lists.
+         */
+        public void invalidateIdLists(Collection<String> changedProperties) {
+            synchronized (idListMap) {
+                idListGeneration++;
+                if (changedProperties == null) {
+                    idListMap.clear();
+                    return;
+                }
+                Iterator<List<SortBy>> it = idListMap.keySet().iterator();
+                while (it.hasNext()) {
+                    if (isSortedByAny(it.next(), changedProperties)) {
+                        it.remove();
+                    }
+                }
+            }
         }
 
         /**
          * @see EntityProvider#getEntityIdentifierAt(com.vaadin.addons.jpacontainer.Filter,
          *      java.util.List, int)
          */
-        public synchronized Object getIdAt(EntityContainer<T> container,
+        public Object getIdAt(EntityContainer<T> container,
                 List<SortBy> sortBy, int index) {
-            IdListEntry entry = idListMap.get(sortBy);
-            if (entry == null) {
-                entry = new IdListEntry();
-                entry.idList = new ArrayList<Object>(CHUNK_SIZE * 2);
-                idListMap.put(sortBy, entry);
+            IdListEntry entry = getIdListEntry(sortBy, true);
+            synchronized (entry) {
+                return getIdAt(container, sortBy, index, entry);
             }
+        }
 
+        private Object getIdAt(EntityContainer<T> container,
+                List<SortBy> sortBy, int index, IdListEntry entry) {
             // listOffset may be -1 if the list has been loaded by a call
             // to getNextId() or getPreviousId()
             if (!entry.containsAll
@@ -340,20 +703,21 @@ class CachingSupport<T> implements Serializable {
 
                 // Check if we can concatenate the index lists
                 if (entry.listOffset > -1 && index == entry.listOffset - 1) {
+                    int chunkSize = updateChunkSize(entry, true);
                     if (getMaxCacheSize() > -1
-                            && entry.idList.size() + CHUNK_SIZE > getMaxCacheSize()) {
+                            && entry.idList.size() + chunkSize > getMaxCacheSize()) {
                         // Clean up the cache
-                        if (entry.idList.size() <= CHUNK_SIZE) {
+                        if (entry.idList.size() <= chunkSize) {
                             entry.idList.clear();
                         } else {
                             entry.idList.subList(
-                                    entry.idList.size() - CHUNK_SIZE,
+                                    entry.idList.size() - chunkSize,
                                     entry.idList.size()).clear();
                         }
                     }
-                    ArrayList<Object> l = new ArrayList<Object>(CHUNK_SIZE
+                    ArrayList<Object> l = new ArrayList<Object>(chunkSize
                             + entry.idList.size());
-                    int startFrom = index - CHUNK_SIZE;
+                    int startFrom = index - chunkSize;
                     if (startFrom < 0) {
                         startFrom = 0;
                     }
@@ -364,26 +728,28 @@ class CachingSupport<T> implements Serializable {
                     entry.listOffset = startFrom;
                 } else if (entry.listOffset > -1
                         && index == entry.listOffset + entry.idList.size()) {
-                    // It is possible that maxCacheSize < CHUNK_SIZE => we have
+                    int chunkSize = updateChunkSize(entry, true);
+                    // It is possible that maxCacheSize < chunkSize => we have
                     // to make sure that the list is at least as big as
-                    // CHUNK_SIZE
+                    // chunkSize
                     if (getMaxCacheSize() > -1
-                            && entry.idList.size() + CHUNK_SIZE > getMaxCacheSize()) {
+                            && entry.idList.size() + chunkSize > getMaxCacheSize()) {
                         // Clean up the cache
-                        if (entry.idList.size() <= CHUNK_SIZE) {
+                        if (entry.idList.size() <= chunkSize) {
                             entry.listOffset += entry.idList.size();
                             entry.idList.clear();
                         } else {
-                            entry.idList.subList(0, CHUNK_SIZE).clear();
-                            entry.listOffset += CHUNK_SIZE;
+                            entry.idList.subList(0, chunkSize).clear();
+                            entry.listOffset += chunkSize;
                         }
                     }
                     entry.idList.addAll(getIds(container, getFilter(), sortBy, index,
-                            CHUNK_SIZE));
+                            chunkSize));
                 } else {
+                    int chunkSize = updateChunkSize(entry, false);
                     entry.idList.clear();
                     entry.idList.addAll(getIds(container, getFilter(), sortBy, index,
-                            CHUNK_SIZE));
+                            chunkSize));
                     entry.listOffset = index;
                 }
             }
@@ -395,22 +761,209 @@ class CachingSupport<T> implements Serializable {
         }
 
         /**
-         * @see EntityProvider#getAllEntityIdentifiers(com.vaadin.addons.jpacontainer.Filter,
-         *      java.util.List)
+         * Gets the identifiers at positions <code>index</code> to
+         * <code>index + qty - 1</code>. Only the part of the range that is not
+         * already in the cached ID list is fetched from the database, and the
+         * fetched identifiers are merged into the cached list.
+         * 
+         * @see EntityProvider#getEntityIdentifierAt(EntityContainer, Filter,
+         *      List, int, int)
+         */
+        public List<Object> getIdsAt(EntityContainer<T> container,
+                List<SortBy> sortBy, int index, int qty) {
+            IdListEntry entry = getIdListEntry(sortBy, true);
+            // Only requests for the same filter and sort order wait for the
+            // query below
+            synchronized (entry) {
+                return getIdsAt(container, sortBy, index, qty, entry);
+            }
+        }
+
+        private List<Object> getIdsAt(EntityContainer<T> container,
+                List<SortBy> sortBy, int index, int qty, IdListEntry entry) {
+            List<Object> ids = getCachedIdsAt(entry, index, qty);
+            if (ids != null) {
+                return ids;
+            }
+            int windowStart = entry.listOffset;
+            int windowEnd = windowStart + entry.idList.size();
+            int startFrom;
+            int fetchMax;
+            if (windowStart > -1 && windowEnd > windowStart
+                    && index >= windowStart && index <= windowEnd) {
+                // The beginning of the range is cached, fetch the rest
+                startFrom = windowEnd;
+                fetchMax = Math.max(index + qty - windowEnd,
+                        updateChunkSize(entry, true));
+            } else if (windowStart > -1 && windowEnd > windowStart
+                    && index < windowStart && index + qty >= windowStart
+                    && index + qty <= windowEnd) {
+                // The end of the range is cached, fetch the beginning
+                startFrom = Math.max(0, Math.min(index, windowStart
+                        - updateChunkSize(entry, true)));
+                fetchMax = windowStart - startFrom;
+            } else {
+                startFrom = index;
+                fetchMax = Math.max(qty, updateChunkSize(entry, false));
+            }
+            putIdsAt(entry, startFrom,
+                    getIds(container, getFilter(), sortBy, startFrom, fetchMax),
+                    index, qty);
+            int from = Math.min(index - entry.listOffset, entry.idList.size());
+            int to = Math.min(from + qty, entry.idList.size());
+            return new ArrayList<Object>(entry.idList.subList(from, to));
+        }
+
+        /**
+         * Gets the identifiers at positions <code>index</code> to
+         * <code>index + qty - 1</code> if they are all in the cache.
+         * 
+         * @return the identifiers, or null if the range is not entirely
+         *         cached.
          */
-        public synchronized List<Object> getAllIds(EntityContainer<T> container, List<SortBy> sortBy) {
-            IdListEntry entry = idListMap.get(sortBy);
+        public List<Object> getCachedIdsAt(List<SortBy> sortBy, int index,
+                int qty) {
+            IdListEntry entry = getIdListEntry(sortBy, false);
             if (entry == null) {
-                entry = new IdListEntry();
-                idListMap.put(sortBy, entry);
+                return null;
+            }
+            synchronized (entry) {
+                return getCachedIdsAt(entry, index, qty);
+            }
+        }
+
+        private List<Object> getCachedIdsAt(IdListEntry entry, int index,
+                int qty) {
+            if (entry.containsAll) {
+                int from = Math.min(index, entry.idList.size());
+                int to = Math.min(index + qty, entry.idList.size());
+                return new ArrayList<Object>(entry.idList.subList(from, to));
+            }
+            // listOffset may be -1 if the list has been loaded by a call
+            // to getNextId() or getPreviousId()
+            if (entry.listOffset < 0 || index < entry.listOffset
+                    || index + qty > entry.listOffset + entry.idList.size()) {
+                return null;
+            }
+            int from = index - entry.listOffset;
+            return new ArrayList<Object>(entry.idList.subList(from, from + qty));
+        }
+
+        /**
+         * Gets the current generation of the ID lists, which changes whenever
+         * ID lists are discarded.
+         * 
+         * @see #putIdsAt(List, long, int, List, int, int)
+         */
+        long getIdListGeneration() {
+            synchronized (idListMap) {
+                return idListGeneration;
+            }
+        }
+
+        /**
+         * Stores <code>ids</code>, which start at position <code>index</code>,
+         * in the cached ID list. If the identifiers overlap or are adjacent to
+         * the cached list, they are merged into it. Otherwise, they replace
+         * it. If the list grows larger than the max cache size, the
+         * identifiers farthest away from the range <code>keepIndex</code> to
+         * <code>keepIndex + keepQty - 1</code> are discarded.
+         * <p>
+         * The identifiers are not stored if ID lists have been discarded
+         * since <code>generation</code>, as they may then be stale.
+         * 
+         * @param generation
+         *            the generation of the ID lists when the identifiers were
+         *            loaded, as returned by {@link #getIdListGeneration()}.
+         */
+        void putIdsAt(List<SortBy> sortBy, long generation, int index,
+                List<Object> ids, int keepIndex, int keepQty) {
+            IdListEntry entry;
+            synchronized (idListMap) {
+                if (generation != idListGeneration) {
+                    return;
+                }
+                // If the entry is discarded after this, the IDs end up in
+                // the discarded entry only
+                entry = getIdListEntry(sortBy, true);
+            }
+            synchronized (entry) {
+                putIdsAt(entry, index, ids, keepIndex, keepQty);
+            }
+        }
+
+        private void putIdsAt(IdListEntry entry, int index, List<Object> ids,
+                int keepIndex, int keepQty) {
+            if (entry.containsAll) {
+                return;
             }
-            if (!entry.containsAll) {
-                entry.idList = new ArrayList<Object>(getIds(container, getFilter(),
-                        sortBy, 0, -1));
-                entry.listOffset = 0;
-                entry.containsAll = true;
+            int windowStart = entry.listOffset;
+            int windowEnd = entry.listOffset + entry.idList.size();
+            if (windowStart < 0 || entry.idList.isEmpty()
+                    || index > windowEnd || index + ids.size() < windowStart) {
+                entry.idList = new ArrayList<Object>(ids);
+                entry.listOffset = index;
+            } else {
+                int start = Math.min(index, windowStart);
+                int end = Math.max(index + ids.size(), windowEnd);
+                ArrayList<Object> l = new ArrayList<Object>(end - start);
+                for (int i = start; i < end; i++) {
+                    if (i >= index && i < index + ids.size()) {
+                        l.add(ids.get(i - index));
+                    } else {
+                        l.add(entry.idList.get(i - windowStart));
+                    }
+                }
+                entry.idList = l;
+                entry.listOffset = start;
+            }
+            trimIdList(entry, keepIndex, keepQty);
+        }
+
+        private void trimIdList(IdListEntry entry, int keepIndex, int keepQty) {
+            int excess = entry.idList.size() - getMaxCacheSize();
+            if (getMaxCacheSize() < 0 || excess <= 0) {
+                return;
+            }
+            int keepFrom = Math.max(keepIndex - entry.listOffset, 0);
+            int keepTo = Math.min(keepFrom + keepQty, entry.idList.size());
+            // Discard from the end that is farthest away from the range. The
+            // range itself is never discarded, even if that leaves the list
+            // larger than the max cache size.
+            int head = Math.min(keepFrom, entry.idList.size());
+            int tail = entry.idList.size() - keepTo;
+            int dropHead;
+            if (head >= tail) {
+                dropHead = Math.min(excess, head);
+            } else {
+                dropHead = Math.min(Math.max(0, excess - tail), head);
+            }
+            int dropTail = Math.max(0, Math.min(excess - dropHead, tail));
+            if (dropTail > 0) {
+                entry.idList.subList(entry.idList.size() - dropTail,
+                        entry.idList.size()).clear();
+            }
+            if (dropHead > 0) {
+                entry.idList.subList(0, dropHead).clear();
+                entry.listOffset += dropHead;
+            }
+        }
+
+        /**
+         * @see EntityProvider#getAllEntityIdentifiers(com.vaadin.addons.jpacontainer.Filter,
+         *      java.util.List)
+         */
+        public List<Object> getAllIds(EntityContainer<T> container, List<SortBy> sortBy) {
+            IdListEntry entry = getIdListEntry(sortBy, true);
+            synchronized (entry) {
+                if (!entry.containsAll) {
+                    entry.idList = new ArrayList<Object>(getIds(container,
+                            getFilter(), sortBy, 0, -1));
+                    entry.listOffset = 0;
+                    entry.containsAll = true;
+                }
+                return Collections.unmodifiableList(entry.idList);
             }
-            return Collections.unmodifiableList(entry.idList);
         }
 
         /**
@@ -424,35 +977,225 @@ class CachingSupport<T> implements Serializable {
     }
 
     /**
-     * TODO Document me!
+     * Informs the cache that <code>entity</code> has been updated, without
+     * knowing its old state.
+     * 
+     * @see #entityUpdated(Object, Object)
+     * @param entity
+     *            the updated entity (must not be null).
+     */
+    public void entityUpdated(T entity) {
+        entityUpdated(entity, null);
+    }
+
+    /**
+     * Informs the cache that <code>entity</code> has been updated. Every
+     * cached filter is evaluated against the old and the new state of the
+     * entity: if the entity has entered or left the filter, the cached count
+     * is adjusted and the ID lists of the filter are discarded. Otherwise,
+     * only the ID lists sorted by a changed property are discarded. Filters
+     * that cannot be evaluated in memory are discarded entirely.
+     * <p>
+     * If <code>oldState</code> is null, the old state is taken from the entity
+     * cache, but only if the cached entities are cloned. Otherwise, the old
+     * state is unknown, and the caches of all the filters are discarded.
+     * 
+     * @param entity
+     *            the updated entity (must not be null).
+     * @param oldState
+     *            a copy of the entity made before the update, or null if not
+     *            available.
+     */
+    public void entityUpdated(T entity, T oldState) {
+        Object entityId = entityProvider.getIdentifier(entity);
+        entityGeneration.incrementAndGet();
+        T oldEntity = getEntityCache().remove(entityId);
+        if (oldState != null) {
+            oldEntity = oldState;
+        } else if (oldEntity == entity || !isCloneCachedEntities()) {
+            // Unless the cached entities are cloned, the application may have
+            // modified the cached instance, so its state cannot be trusted
+            oldEntity = null;
+        }
+        Collection<String> changedProperties = oldEntity == null ? null
+                : getChangedProperties(oldEntity, entity);
+        for (FilterCacheEntry fce : getFilterCacheEntries()) {
+            Boolean passes = passesFilter(fce.filter, entityId, entity);
+            Boolean passed = passesFilter(fce.filter, entityId, oldEntity);
+            if (passes == null || passed == null) {
+                removeFilterCacheEntry(fce);
+            } else if (!passes.equals(passed)) {
+                if (passes) {
+                    fce.entityAdded(entityId);
+                } else {
+                    fce.entityRemoved(entityId);
+                }
+            } else if (passes) {
+                fce.invalidateIdLists(changedProperties);
+            }
+        }
+    }
+
+    /**
+     * Informs the cache that the property <code>propertyName</code> of the
+     * entity identified by <code>entityId</code> has been updated. Filters
+     * that may depend on the property are discarded, and of the remaining
+     * filters, only the ID lists sorted by the property are discarded.
      * 
      * @param entityId
-     * @param updated
+     *            the identifier of the updated entity (must not be null).
+     * @param propertyName
+     *            the name of the updated property (must not be null).
      */
-    public synchronized void invalidate(Object entityId, boolean updated) {
+    public void entityPropertyUpdated(Object entityId, String propertyName) {
+        entityGeneration.incrementAndGet();
         getEntityCache().remove(entityId);
-        if (updated) {
-            // TODO Do something smarter than flushing the entire cache!
-            getFilterCache().clear();
-        } else {
-            for (FilterCacheEntry fce : getFilterCache().values()) {
-                fce.invalidate(entityId);
+        Collection<String> changedProperties = Collections
+                .singleton(propertyName);
+        // A filter on e.g. "address.street" does not apply to "address", so
+        // only simple properties can be checked against the filters
+        boolean simple = isSimpleProperty(propertyName);
+        for (FilterCacheEntry fce : getFilterCacheEntries()) {
+            if (fce.filter == NULL_FILTER
+                    || (simple && !fce.filter.appliesToProperty(propertyName))) {
+                fce.invalidateIdLists(changedProperties);
+            } else {
+                removeFilterCacheEntry(fce);
             }
         }
     }
 
     /**
-     * TODO Document me!
+     * Informs the cache that <code>entity</code> has been added. The cached
+     * counts of the filters that match the entity are incremented and their
+     * ID lists are discarded. The caches of other filters are kept intact.
      * 
      * @param entity
+     *            the added entity (must not be null).
      */
-    public synchronized void entityAdded(T entity) {
-        // TODO Do something smarter than flushing the entire cache!
-        flush();
-        // This is currently obsolete, but when above todo is implemented,
-        // uncomment this or somehow increment relevat filter caches.
-        // invalidateSize();
+    public void entityAdded(T entity) {
+        Object entityId = entityProvider.getIdentifier(entity);
+        for (FilterCacheEntry fce : getFilterCacheEntries()) {
+            Boolean passes = passesFilter(fce.filter, entityId, entity);
+            if (passes == null) {
+                removeFilterCacheEntry(fce);
+            } else if (passes) {
+                fce.entityAdded(entityId);
+            }
+        }
+    }
+
+    /**
+     * Checks whether <code>entity</code> passes <code>filter</code>, using
+     * {@link Filter#passesFilter(Object, Item)}.
+     * 
+     * @param filter
+     *            the filter of a filter cache entry (must not be null).
+     * @param entityId
+     *            the identifier of the entity.
+     * @param entity
+     *            the entity, or null if the state of the entity is unknown.
+     * @return true or false, or null if the result could not be determined.
+     */
+    Boolean passesFilter(Filter filter, Object entityId, T entity) {
+        if (filter == NULL_FILTER) {
+            return Boolean.TRUE;
+        }
+        if (entity == null) {
+            return null;
+        }
+        try {
+            return filter.passesFilter(entityId, new FilterItem(entity));
+        } catch (RuntimeException e) {
+            // The filter does not support in-memory filtering or the entity
+            // could not be accessed (e.g. an uninitialized lazy association)
+            return null;
+        }
+    }
+
+    /**
+     * Gets the names of the persistent properties whose values differ
+     * between <code>oldEntity</code> and <code>newEntity</code>.
+     */
+    private Collection<String> getChangedProperties(T oldEntity, T newEntity) {
+        ClassMetadata<T> metadata = entityProvider.getEntityClassMetadata();
+        List<String> changed = new ArrayList<String>();
+        for (String propertyName : metadata.getPersistentPropertyNames()) {
+            try {
+                Object oldValue = metadata.getPropertyValue(oldEntity,
+                        propertyName);
+                Object newValue = metadata.getPropertyValue(newEntity,
+                        propertyName);
+                if (oldValue == null ? newValue != null : !oldValue
+                        .equals(newValue)) {
+                    changed.add(propertyName);
+                }
+            } catch (RuntimeException e) {
+                // E.g. an uninitialized lazy collection, assume it has changed
+                changed.add(propertyName);
+            }
+        }
+        return changed;
+    }
+
+    private boolean isSimpleProperty(String propertyName) {
+        PropertyMetadata pm = entityProvider.getEntityClassMetadata()
+                .getProperty(propertyName);
+        return pm instanceof PersistentPropertyMetadata
+                && ((PersistentPropertyMetadata) pm).getPropertyKind() == PropertyKind.SIMPLE;
+    }
 
+    /**
+     * Checks whether any of the properties in <code>sortBy</code> is, or is
+     * nested in, one of <code>properties</code>.
+     */
+    static boolean isSortedByAny(List<SortBy> sortBy,
+            Collection<String> properties) {
+        for (SortBy sb : sortBy) {
+            String sortProperty = sb.getPropertyId().toString();
+            for (String property : properties) {
+                if (sortProperty.equals(property)
+                        || sortProperty.startsWith(property + ".")
+                        || property.startsWith(sortProperty + ".")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A read only {@link Item} that exposes the properties of an entity, used
+     * to evaluate the cached filters against changed entities in memory.
+     */
+    private class FilterItem implements Item {
+
+        private static final long serialVersionUID = -4133429829447372932L;
+        private final T entity;
+
+        FilterItem(T entity) {
+            this.entity = entity;
+        }
+
+        public Property getItemProperty(Object id) {
+            Object value = entityProvider.getEntityClassMetadata()
+                    .getPropertyValue(entity, id.toString());
+            return new ObjectProperty<Object>(value, Object.class, true);
+        }
+
+        public Collection<?> getItemPropertyIds() {
+            return entityProvider.getEntityClassMetadata().getPropertyNames();
+        }
+
+        public boolean addItemProperty(Object id, Property property)
+                throws UnsupportedOperationException {
+            throw new UnsupportedOperationException();
+        }
+
+        public boolean removeItemProperty(Object id)
+                throws UnsupportedOperationException {
+            throw new UnsupportedOperationException();
+        }
     }
 
     /**
@@ -544,64 +1287,500 @@ class CachingSupport<T> implements Serializable {
         return query.getResultList();
     }
 
-    private Map<Object, T> entityCache;
-    private Map<Filter, FilterCacheEntry> filterCache;
+    private volatile EntityCache<T> entityCache;
+    private volatile Map<Filter, FilterCacheEntry> filterCache;
+    /**
+     * The entities that are currently being loaded from the database, used
+     * to coalesce concurrent requests for the same entity.
+     */
+    private transient ConcurrentMap<Object, FutureTask<T>> pendingLoads;
+    /**
+     * Incremented whenever entities are removed from the entity cache because
+     * they have changed, so that entities loaded concurrently are not cached.
+     */
+    private final AtomicLong entityGeneration = new AtomicLong();
+    /**
+     * Lock for creating and replacing the caches. The filter cache itself is
+     * also guarded by this lock.
+     */
+    private final Object cacheLock = new Serializable() {
+        private static final long serialVersionUID = -2386468466458916325L;
+    };
 
     /**
-     * A hash map that will remove the oldest items once its size reaches a
-     * specified max size.
+     * A hash map that will remove the least recently used items once its size
+     * exceeds a specified max size. Both reads and writes count as use.
      * 
      * @author Petter Holmström (Vaadin Ltd)
      * @since 1.0
      */
-    protected static class CacheMap<K, V> extends HashMap<K, V> {
+    protected static class CacheMap<K, V> extends LinkedHashMap<K, V> {
 
         private static final long serialVersionUID = 2900939583997256189L;
-        private LinkedList<K> addOrder = new LinkedList<K>();
-        private int maxSize;
+        private final int maxSize;
 
-        public CacheMap(int maxSize) {
-            super(maxSize);
-            this.maxSize = maxSize;
+        /**
+         * Creates a new <code>CacheMap</code>.
+         * 
+         * @param maxSize
+         *            the max number of items to keep, or -1 for unlimited
+         *            size.
+         */
+        public CacheMap(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
         }
 
         @Override
-        public synchronized V put(K key, V value) {
-            if (size() == maxSize) {
-                // remove oldest item
-                remove(addOrder.removeFirst());
-            }
-            addOrder.add(key);
-            return super.put(key, value);
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+            return maxSize > -1 && size() > maxSize;
         }
     }
 
     /**
-     * A hash set that will remove the oldest items once its size reaches a
-     * specified max size.
+     * A hash set that will remove the least recently used items once its size
+     * exceeds a specified max size. Both {@link #add(Object)} and
+     * {@link #contains(Object)} count as use.
      * 
      * @author Petter Holmström (Vaadin Ltd)
      * @since 1.0
      */
-    protected static class CacheSet<V> extends HashSet<V> {
+    protected static class CacheSet<V> extends AbstractSet<V> implements
+            Serializable {
 
         private static final long serialVersionUID = 2900939583997256189L;
-        private LinkedList<V> addOrder = new LinkedList<V>();
-        private int maxSize;
+        private final CacheMap<V, Boolean> map;
 
+        /**
+         * Creates a new <code>CacheSet</code>.
+         * 
+         * @param maxSize
+         *            the max number of items to keep, or -1 for unlimited
+         *            size.
+         */
         public CacheSet(int maxSize) {
-            super(maxSize);
-            this.maxSize = maxSize;
+            map = new CacheMap<V, Boolean>(maxSize);
         }
 
         @Override
-        public synchronized boolean add(V e) {
-            if (size() == maxSize) {
-                // remove oldest item
-                remove(addOrder.removeFirst());
+        public boolean add(V e) {
+            return map.put(e, Boolean.TRUE) == null;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            // get() moves the item to the end of the access order
+            return map.get(o) != null;
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            return map.remove(o) != null;
+        }
+
+        @Override
+        public void clear() {
+            map.clear();
+        }
+
+        @Override
+        public Iterator<V> iterator() {
+            return map.keySet().iterator();
+        }
+
+        @Override
+        public int size() {
+            return map.size();
+        }
+    }
+
+    /**
+     * A thread safe cache for entity instances that will remove the least
+     * recently used entities once its size exceeds a specified max size, or
+     * the total weight of the entities exceeds a specified max weight. The
+     * cache is split into segments that are locked separately, so that
+     * concurrent readers seldom block each other. Every segment has its own
+     * share of the max size and max weight, which means that the eviction
+     * order is only approximately LRU.
+     * <p>
+     * Depending on the {@link ReferenceMode}, the entities may be referenced
+     * softly or weakly, which lets the garbage collector reclaim them under
+     * memory pressure. In {@link ReferenceMode#WEAK} mode, the most recently
+     * used entities of every segment are also referenced strongly, so that
+     * they survive minor garbage collections.
+     * 
+     * @author Petter Holmström (Vaadin Ltd)
+     * @since 1.0
+     */
+    static class EntityCache<V> implements Serializable {
+
+        private static final long serialVersionUID = -6469745541183327893L;
+        /**
+         * The maximum number of segments.
+         */
+        static final int MAX_SEGMENTS = 16;
+        /**
+         * The minimum max size of a segment. Small caches use fewer segments
+         * to keep the eviction order close to LRU.
+         */
+        static final int MIN_SEGMENT_SIZE = 64;
+        /**
+         * The number of entities that are referenced strongly by every
+         * segment in {@link ReferenceMode#WEAK} mode.
+         */
+        static final int STRONG_FRONT_SIZE = 16;
+        private final Segment<V>[] segments;
+        private final EntityWeigher<? super V> weigher;
+        private final ReferenceMode referenceMode;
+        private final long timeToLive;
+
+        /**
+         * A separately locked part of an {@link EntityCache}.
+         */
+        private static class Segment<V> implements Serializable {
+
+            private static final long serialVersionUID = 4470391226720541412L;
+            // Eviction is handled by the segment, not by the map
+            final CacheMap<Object, CacheEntry<V>> map = new CacheMap<Object, CacheEntry<V>>(
+                    -1);
+            final int maxSize;
+            final long maxWeight;
+            long weight = 0;
+            /**
+             * The most recently used entities in WEAK mode, or null.
+             */
+            final CacheMap<Object, V> strongFront;
+            /**
+             * The queue of references whose entities have been reclaimed.
+             * The references are not serializable, so neither is the queue.
+             */
+            transient ReferenceQueue<V> queue;
+
+            Segment(int maxSize, long maxWeight, ReferenceMode referenceMode) {
+                this.maxSize = maxSize;
+                this.maxWeight = maxWeight;
+                if (referenceMode == ReferenceMode.WEAK) {
+                    strongFront = new CacheMap<Object, V>(
+                            maxSize > -1 ? Math.min(maxSize, STRONG_FRONT_SIZE)
+                                    : STRONG_FRONT_SIZE);
+                } else {
+                    strongFront = null;
+                }
+            }
+
+            boolean isFull() {
+                return (maxSize > -1 && map.size() > maxSize)
+                        || (maxWeight > -1 && weight > maxWeight && map.size() > 1);
+            }
+
+            ReferenceQueue<V> getQueue() {
+                if (queue == null) {
+                    queue = new ReferenceQueue<V>();
+                }
+                return queue;
+            }
+
+            void removeEntry(Object key) {
+                CacheEntry<V> entry = map.remove(key);
+                if (entry != null) {
+                    weight -= entry.weight;
+                }
+                if (strongFront != null) {
+                    strongFront.remove(key);
+                }
+            }
+
+            /**
+             * Removes the entries whose entities have been reclaimed by the
+             * garbage collector.
+             */
+            void expungeReclaimedEntries() {
+                if (queue == null) {
+                    return;
+                }
+                Reference<? extends V> ref;
+                while ((ref = queue.poll()) != null) {
+                    Object key = ((KeyedReference) ref).getKey();
+                    CacheEntry<V> entry = map.get(key);
+                    // The entry may have been replaced after the reference
+                    // was enqueued
+                    if (entry != null && entry.reference == ref) {
+                        removeEntry(key);
+                    }
+                }
+            }
+        }
+
+        /**
+         * A cached entity together with its weight. The entity is referenced
+         * either directly or through a soft or weak reference.
+         */
+        private static class CacheEntry<V> implements Serializable {
+
+            private static final long serialVersionUID = -1509315950519950226L;
+            final V value;
+            final transient Reference<V> reference;
+            final long weight;
+            final long loadTime = System.currentTimeMillis();
+
+            CacheEntry(V value, Reference<V> reference, long weight) {
+                this.value = value;
+                this.reference = reference;
+                this.weight = weight;
+            }
+
+            /**
+             * @return the entity, or null if it has been reclaimed.
+             */
+            V get() {
+                if (value != null) {
+                    return value;
+                }
+                // The reference is null after deserialization
+                return reference == null ? null : reference.get();
+            }
+        }
+
+        /**
+         * A reference that knows the cache key of its entity, so that the
+         * entry can be removed once the entity has been reclaimed.
+         */
+        private interface KeyedReference {
+            Object getKey();
+        }
+
+        private static class SoftEntityReference<V> extends SoftReference<V>
+                implements KeyedReference {
+
+            private final Object key;
+
+            SoftEntityReference(Object key, V value, ReferenceQueue<V> queue) {
+                super(value, queue);
+                this.key = key;
+            }
+
+            public Object getKey() {
+                return key;
+            }
+        }
+
+        private static class WeakEntityReference<V> extends WeakReference<V>
+                implements KeyedReference {
+
+            private final Object key;
+
+            WeakEntityReference(Object key, V value, ReferenceQueue<V> queue) {
+                super(value, queue);
+                this.key = key;
+            }
+
+            public Object getKey() {
+                return key;
+            }
+        }
+
+        /**
+         * Creates a new <code>EntityCache</code> that references the entities
+         * strongly and does not weigh them.
+         * 
+         * @param maxSize
+         *            the max number of entities to keep, or -1 for unlimited
+         *            size.
+         */
+        public EntityCache(int maxSize) {
+            this(maxSize, -1, null, ReferenceMode.STRONG, -1);
+        }
+
+        /**
+         * Creates a new <code>EntityCache</code>.
+         * 
+         * @param maxSize
+         *            the max number of entities to keep, or -1 for unlimited
+         *            size.
+         * @param maxWeight
+         *            the max total weight of the entities to keep, or -1 for
+         *            unlimited weight. Only used if <code>weigher</code> is not
+         *            null.
+         * @param weigher
+         *            the weigher to estimate the weight of the entities with
+         *            (may be null).
+         * @param referenceMode
+         *            the way the entities are referenced (must not be null).
+         * @param timeToLive
+         *            the time in milliseconds after which an entity expires, or
+         *            -1 to never expire.
+         */
+        @SuppressWarnings("unchecked")
+        public EntityCache(int maxSize, long maxWeight,
+                EntityWeigher<? super V> weigher, ReferenceMode referenceMode,
+                long timeToLive) {
+            assert referenceMode != null : "referenceMode should not be null";
+            this.weigher = weigher;
+            this.referenceMode = referenceMode;
+            this.timeToLive = timeToLive;
+            if (weigher == null) {
+                maxWeight = -1;
+            }
+            int count = maxSize < 0 ? MAX_SEGMENTS : Math.max(1,
+                    Math.min(MAX_SEGMENTS, maxSize / MIN_SEGMENT_SIZE));
+            segments = new Segment[count];
+            for (int i = 0; i < count; i++) {
+                // Distribute the remainders over the first segments
+                int segmentSize = -1;
+                if (maxSize > -1) {
+                    segmentSize = maxSize / count
+                            + (i < maxSize % count ? 1 : 0);
+                }
+                long segmentWeight = -1;
+                if (maxWeight > -1) {
+                    segmentWeight = maxWeight / count
+                            + (i < maxWeight % count ? 1 : 0);
+                }
+                segments[i] = new Segment<V>(segmentSize, segmentWeight,
+                        referenceMode);
             }
-            addOrder.add(e);
-            return super.add(e);
+        }
+
+        private Segment<V> segmentFor(Object key) {
+            int h = key.hashCode();
+            // Spread the bits, as e.g. sequential IDs only differ in the
+            // lowest bits
+            h ^= (h >>> 20) ^ (h >>> 12);
+            h ^= (h >>> 7) ^ (h >>> 4);
+            return segments[(h & 0x7fffffff) % segments.length];
+        }
+
+        public V get(Object key) {
+            Segment<V> segment = segmentFor(key);
+            synchronized (segment) {
+                segment.expungeReclaimedEntries();
+                CacheEntry<V> entry = segment.map.get(key);
+                if (entry == null) {
+                    return null;
+                }
+                V value = entry.get();
+                if (value == null || isExpired(entry.loadTime, timeToLive)) {
+                    segment.removeEntry(key);
+                    return null;
+                } else if (segment.strongFront != null) {
+                    segment.strongFront.put(key, value);
+                }
+                return value;
+            }
+        }
+
+        public void put(Object key, V value) {
+            // Weigh the entity before locking the segment
+            long weight = weigher == null ? 0 : weigher.weigh(value);
+            Segment<V> segment = segmentFor(key);
+            synchronized (segment) {
+                segment.expungeReclaimedEntries();
+                CacheEntry<V> entry;
+                switch (referenceMode) {
+                case SOFT:
+                    entry = new CacheEntry<V>(null,
+                            new SoftEntityReference<V>(key, value,
+                                    segment.getQueue()), weight);
+                    break;
+                case WEAK:
+                    entry = new CacheEntry<V>(null,
+                            new WeakEntityReference<V>(key, value,
+                                    segment.getQueue()), weight);
+                    segment.strongFront.put(key, value);
+                    break;
+                default:
+                    entry = new CacheEntry<V>(value, null, weight);
+                }
+                CacheEntry<V> old = segment.map.put(key, entry);
+                if (old != null) {
+                    segment.weight -= old.weight;
+                }
+                segment.weight += weight;
+                // The new entity is the most recently used one, so it is
+                // always kept even if it alone exceeds the max weight
+                Iterator<Map.Entry<Object, CacheEntry<V>>> it = segment.map
+                        .entrySet().iterator();
+                while (segment.isFull()) {
+                    Map.Entry<Object, CacheEntry<V>> eldest = it.next();
+                    segment.weight -= eldest.getValue().weight;
+                    it.remove();
+                    if (segment.strongFront != null) {
+                        segment.strongFront.remove(eldest.getKey());
+                    }
+                }
+            }
+        }
+
+        /**
+         * Gets the soft or weak reference to the entity cached under
+         * <code>key</code>. Used by tests to simulate the garbage collector
+         * reclaiming the entity.
+         * 
+         * @return the reference, or null if the entity is not cached or is
+         *         referenced strongly.
+         */
+        Reference<V> getReference(Object key) {
+            Segment<V> segment = segmentFor(key);
+            synchronized (segment) {
+                CacheEntry<V> entry = segment.map.get(key);
+                return entry == null ? null : entry.reference;
+            }
+        }
+
+        public V remove(Object key) {
+            Segment<V> segment = segmentFor(key);
+            synchronized (segment) {
+                CacheEntry<V> entry = segment.map.get(key);
+                segment.removeEntry(key);
+                return entry == null ? null : entry.get();
+            }
+        }
+
+        public void clear() {
+            for (Segment<V> segment : segments) {
+                synchronized (segment) {
+                    segment.map.clear();
+                    segment.weight = 0;
+                    if (segment.strongFront != null) {
+                        segment.strongFront.clear();
+                    }
+                    // Forget any references enqueued before the clear
+                    segment.queue = null;
+                }
+            }
+        }
+
+        /**
+         * Gets the number of entities in the cache. Entities that have been
+         * reclaimed by the garbage collector are not counted.
+         * 
+         * @return the number of entities.
+         */
+        public int size() {
+            int size = 0;
+            for (Segment<V> segment : segments) {
+                synchronized (segment) {
+                    segment.expungeReclaimedEntries();
+                    size += segment.map.size();
+                }
+            }
+            return size;
+        }
+
+        /**
+         * Gets the total weight of the entities in the cache.
+         * 
+         * @return the weight, or 0 if the cache has no weigher.
+         */
+        public long getWeight() {
+            long weight = 0;
+            for (Segment<V> segment : segments) {
+                synchronized (segment) {
+                    segment.expungeReclaimedEntries();
+                    weight += segment.weight;
+                }
+            }
+            return weight;
         }
     }
 
@@ -611,27 +1790,59 @@ class CachingSupport<T> implements Serializable {
      * 
      * @return the entity cache (never null).
      */
-    synchronized Map<Object, T> getEntityCache() {
-        if (entityCache == null) {
-            entityCache = new CacheMap<Object, T>(getMaxCacheSize());
+    EntityCache<T> getEntityCache() {
+        EntityCache<T> cache = entityCache;
+        if (cache == null) {
+            synchronized (cacheLock) {
+                if (entityCache == null) {
+                    entityCache = new EntityCache<T>(getMaxCacheSize(),
+                            getMaxCacheWeight(), getEntityWeigher(),
+                            getReferenceMode(), getEntityTimeToLive());
+                }
+                cache = entityCache;
+            }
         }
-        return entityCache;
+        return cache;
     }
 
     /**
      * Gets the cache for filter results. If no cache exists, it will be
-     * created.
+     * created. The returned map must only be accessed while holding the
+     * cache lock.
      * 
      * @return the filter cache (never null).
      */
-    synchronized Map<Filter, FilterCacheEntry> getFilterCache() {
+    private Map<Filter, FilterCacheEntry> getFilterCache() {
+        assert Thread.holdsLock(cacheLock) : "cacheLock must be held";
         if (filterCache == null) {
             filterCache = new CacheMap<Filter, FilterCacheEntry>(
-                    MAX_FILTER_CACHE_SIZE);
+                    getMaxFilterCacheSize());
         }
         return filterCache;
     }
 
+    /**
+     * Gets a snapshot of the entries currently in the filter cache.
+     * 
+     * @return a list of filter cache entries (never null).
+     */
+    List<FilterCacheEntry> getFilterCacheEntries() {
+        synchronized (cacheLock) {
+            if (filterCache == null) {
+                return Collections.emptyList();
+            }
+            return new ArrayList<FilterCacheEntry>(filterCache.values());
+        }
+    }
+
+    private void removeFilterCacheEntry(FilterCacheEntry fce) {
+        synchronized (cacheLock) {
+            if (filterCache != null && filterCache.get(fce.filter) == fce) {
+                filterCache.remove(fce.filter);
+            }
+        }
+    }
+
     /**
      * Gets the cache entry for the specified filter. If no cache entry exists,
      * it will be created.
@@ -640,24 +1851,29 @@ class CachingSupport<T> implements Serializable {
      *            the filter whose cache entry to fetch (may be null).
      * @return the filter cache entry (never null).
      */
-    synchronized FilterCacheEntry getFilterCacheEntry(Filter filter) {
+    FilterCacheEntry getFilterCacheEntry(Filter filter) {
         if (filter == null) {
             filter = NULL_FILTER;
         }
-        FilterCacheEntry e = getFilterCache().get(filter);
-        if (e == null) {
-            e = new FilterCacheEntry(filter);
-            getFilterCache().put(filter, e);
+        synchronized (cacheLock) {
+            FilterCacheEntry e = getFilterCache().get(filter);
+            if (e == null) {
+                e = new FilterCacheEntry(filter);
+                getFilterCache().put(filter, e);
+            }
+            return e;
         }
-        return e;
     }
 
-    public synchronized void flush() {
-        if (entityCache != null) {
-            entityCache.clear();
-        }
-        if (filterCache != null) {
-            filterCache.clear();
+    public void flush() {
+        entityGeneration.incrementAndGet();
+        synchronized (cacheLock) {
+            if (entityCache != null) {
+                entityCache.clear();
+            }
+            if (filterCache != null) {
+                filterCache.clear();
+            }
         }
     }
 
@@ -665,6 +1881,290 @@ class CachingSupport<T> implements Serializable {
         return maxCacheSize;
     }
 
+    public long getMaxCacheWeight() {
+        return maxCacheWeight;
+    }
+
+    /**
+     * Sets the maximum total weight of the entities to keep in the entity
+     * cache. This method will cause the entity cache to be flushed and
+     * re-created.
+     * 
+     * @param maxWeight
+     *            the maximum weight, or -1 for unlimited weight.
+     */
+    public void setMaxCacheWeight(long maxWeight) {
+        synchronized (cacheLock) {
+            this.maxCacheWeight = maxWeight;
+            entityCache = null;
+        }
+    }
+
+    public EntityWeigher<? super T> getEntityWeigher() {
+        return entityWeigher;
+    }
+
+    /**
+     * Sets the weigher used to estimate the weight of the cached entities.
+     * This method will cause the entity cache to be flushed and re-created.
+     * 
+     * @param weigher
+     *            the entity weigher (may be null).
+     */
+    public void setEntityWeigher(EntityWeigher<? super T> weigher) {
+        synchronized (cacheLock) {
+            this.entityWeigher = weigher;
+            entityCache = null;
+        }
+    }
+
+    public ReferenceMode getReferenceMode() {
+        return referenceMode;
+    }
+
+    /**
+     * Sets the way the entity cache references the cached entities. This
+     * method will cause the entity cache to be flushed and re-created.
+     * 
+     * @param referenceMode
+     *            the reference mode (must not be null).
+     */
+    public void setReferenceMode(ReferenceMode referenceMode) {
+        if (referenceMode == null) {
+            throw new IllegalArgumentException(
+                    "referenceMode must not be null");
+        }
+        synchronized (cacheLock) {
+            this.referenceMode = referenceMode;
+            entityCache = null;
+        }
+    }
+
+    public long getEntityTimeToLive() {
+        return entityTimeToLive;
+    }
+
+    /**
+     * Sets the time after which cached entities expire and are loaded again
+     * from the database. This method will cause the entity cache to be
+     * flushed and re-created.
+     * 
+     * @param timeToLive
+     *            the time to live in milliseconds, or -1 to never expire.
+     */
+    public void setEntityTimeToLive(long timeToLive) {
+        synchronized (cacheLock) {
+            this.entityTimeToLive = timeToLive;
+            entityCache = null;
+        }
+    }
+
+    public long getIdListTimeToLive() {
+        return idListTimeToLive;
+    }
+
+    /**
+     * Sets the time after which cached ID lists expire and are loaded again
+     * from the database.
+     * 
+     * @param timeToLive
+     *            the time to live in milliseconds, or -1 to never expire.
+     */
+    public void setIdListTimeToLive(long timeToLive) {
+        this.idListTimeToLive = timeToLive;
+    }
+
+    public long getCountTimeToLive() {
+        return countTimeToLive;
+    }
+
+    /**
+     * Sets the time after which cached entity counts expire and are loaded
+     * again from the database.
+     * 
+     * @param timeToLive
+     *            the time to live in milliseconds, or -1 to never expire.
+     */
+    public void setCountTimeToLive(long timeToLive) {
+        this.countTimeToLive = timeToLive;
+    }
+
+    public Executor getRefreshAheadExecutor() {
+        return refreshAheadExecutor;
+    }
+
+    /**
+     * Sets the executor used to reload expired entity counts in the
+     * background. While a count is being reloaded, the expired count is
+     * returned. If no executor is set, expired counts are reloaded before
+     * they are returned. The executor is not serialized.
+     * <p>
+     * The counts are loaded in the threads of the executor, so the entity
+     * provider must use an
+     * {@link com.vaadin.addon.jpacontainer.EntityManagerProvider} that returns
+     * a separate entity manager for each thread, as entity managers are not
+     * thread safe. If the entity provider uses a plain entity manager, the
+     * executor is ignored and expired counts are reloaded in the calling
+     * thread.
+     * 
+     * @param executor
+     *            the executor (may be null).
+     */
+    public void setRefreshAheadExecutor(Executor executor) {
+        this.refreshAheadExecutor = executor;
+    }
+
+    /**
+     * Checks whether something loaded at <code>loadTime</code> has expired.
+     * 
+     * @param loadTime
+     *            the time of loading, as returned by
+     *            {@link System#currentTimeMillis()}.
+     * @param timeToLive
+     *            the time to live in milliseconds, or -1 to never expire.
+     * @return true if the time to live has passed.
+     */
+    static boolean isExpired(long loadTime, long timeToLive) {
+        return timeToLive > -1
+                && System.currentTimeMillis() - loadTime > timeToLive;
+    }
+
+    /**
+     * Gets the current total weight of the entities in the entity cache.
+     * 
+     * @return the weight, or 0 if no entity weigher has been set.
+     */
+    public long getCacheWeight() {
+        EntityCache<T> cache = entityCache;
+        return cache == null ? 0 : cache.getWeight();
+    }
+
+    /**
+     * Gets the number of entity IDs to fetch every time a query is made. If
+     * the adaptive chunk size is enabled, this is the initial chunk size of
+     * every ID list.
+     * 
+     * @return the chunk size.
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Sets the number of entity IDs to fetch every time a query is made.
+     * 
+     * @param chunkSize
+     *            the chunk size to set (must be at least 1).
+     */
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException(
+                    "chunkSize must be at least 1");
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    public boolean isAdaptiveChunkSize() {
+        return adaptiveChunkSize;
+    }
+
+    /**
+     * Turns the adaptive chunk size on or off. When turned on, the chunk size
+     * of an ID list is doubled when consecutive queries continue from the
+     * edge of the list (sequential scrolling), up to
+     * {@link #MAX_ADAPTIVE_CHUNK_FACTOR} times the configured chunk size but
+     * never beyond half the max cache size. Queries for IDs outside the list
+     * (random access) halve the chunk size, down to the configured chunk size
+     * divided by {@link #MIN_ADAPTIVE_CHUNK_DIVISOR}.
+     * 
+     * @param adaptiveChunkSize
+     *            true to turn on the adaptive chunk size, false to always use
+     *            the configured chunk size.
+     */
+    public void setAdaptiveChunkSize(boolean adaptiveChunkSize) {
+        this.adaptiveChunkSize = adaptiveChunkSize;
+    }
+
+    public int getMaxFilterCacheSize() {
+        return maxFilterCacheSize;
+    }
+
+    /**
+     * Sets the maximum number of filters to keep in the filter cache. This
+     * method will cause the filter cache to be flushed and re-created.
+     * 
+     * @param maxSize
+     *            the maximum number of filters (must be at least 1).
+     */
+    public void setMaxFilterCacheSize(int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be at least 1");
+        }
+        synchronized (cacheLock) {
+            this.maxFilterCacheSize = maxSize;
+            filterCache = null;
+        }
+    }
+
+    public int getMaxSortByCacheSize() {
+        return maxSortByCacheSize;
+    }
+
+    /**
+     * Sets the maximum number of differently sorted ID lists to keep for each
+     * filter. This method will cause the filter cache to be flushed and
+     * re-created.
+     * 
+     * @param maxSize
+     *            the maximum number of ID lists per filter (must be at least
+     *            1).
+     */
+    public void setMaxSortByCacheSize(int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be at least 1");
+        }
+        synchronized (cacheLock) {
+            this.maxSortByCacheSize = maxSize;
+            filterCache = null;
+        }
+    }
+
+    /**
+     * Gets the number of IDs to fetch for <code>entry</code>, adjusting its
+     * chunk size first if the adaptive chunk size is enabled.
+     * 
+     * @param entry
+     *            the ID list to fetch IDs for (may be null).
+     * @param sequential
+     *            true if the fetch continues from the edge of the list, false
+     *            if the list is replaced.
+     * @return the number of IDs to fetch.
+     */
+    int updateChunkSize(IdListEntry entry, boolean sequential) {
+        if (entry == null || !isAdaptiveChunkSize()) {
+            return getChunkSize();
+        }
+        if (entry.chunkSize == 0) {
+            // The first fetch for this list
+            entry.chunkSize = getChunkSize();
+        } else if (sequential) {
+            entry.sequentialFetches++;
+            if (entry.sequentialFetches > 1) {
+                int max = getChunkSize() * MAX_ADAPTIVE_CHUNK_FACTOR;
+                if (getMaxCacheSize() > -1) {
+                    max = Math.max(Math.min(max, getMaxCacheSize() / 2),
+                            getChunkSize());
+                }
+                entry.chunkSize = Math.min(entry.chunkSize * 2, max);
+            }
+        } else {
+            entry.sequentialFetches = 0;
+            entry.chunkSize = Math.max(entry.chunkSize / 2,
+                    Math.max(getChunkSize() / MIN_ADAPTIVE_CHUNK_DIVISOR, 1));
+        }
+        return entry.chunkSize;
+    }
+
     /**
      * Check whether caching is possible or not. Caching is not possible if
      * there is a {@link QueryModifierDelegate}, that modifies the filters
@@ -727,9 +2227,11 @@ class CachingSupport<T> implements Serializable {
      *            the maximum cache size to set.
      */
     public void setMaxCacheSize(int maxSize) {
-        this.maxCacheSize = maxSize;
-        entityCache = null;
-        filterCache = null;
+        synchronized (cacheLock) {
+            this.maxCacheSize = maxSize;
+            entityCache = null;
+            filterCache = null;
+        }
     }
 
     public boolean containsEntity(EntityContainer<T> container,
@@ -754,17 +2256,14 @@ class CachingSupport<T> implements Serializable {
         }
     }
 
-    public synchronized T getEntity(EntityContainer<T> container,
-            Object entityId) {
+    public T getEntity(EntityContainer<T> container, Object entityId) {
         if (usesCache(container)) {
             T entity = getEntityCache().get(entityId);
             if (entity == null) {
-                // TODO Should we fetch several entities at once?
-                entity = entityProvider.doGetEntity(entityId);
+                entity = loadEntity(entityId);
                 if (entity == null) {
                     return null;
                 }
-                getEntityCache().put(entityId, entity);
             }
             return cloneEntityIfNeeded(entity);
         } else {
@@ -772,6 +2271,163 @@ class CachingSupport<T> implements Serializable {
         }
     }
 
+    /**
+     * Loads the entity identified by <code>entityId</code> from the database
+     * and stores it in the entity cache. If another thread is already loading
+     * the same entity, this method waits for it to finish instead of running
+     * another query.
+     * 
+     * @param entityId
+     *            the entity identifier (must not be null).
+     * @return the entity, or null if not found.
+     */
+    private T loadEntity(final Object entityId) {
+        ConcurrentMap<Object, FutureTask<T>> loads = getPendingLoads();
+        FutureTask<T> task = new FutureTask<T>(new Callable<T>() {
+            public T call() throws Exception {
+                long generation = entityGeneration.get();
+                T entity = entityProvider.doGetEntity(entityId);
+                if (entity != null) {
+                    cacheEntity(entityId, entity, generation);
+                }
+                return entity;
+            }
+        });
+        FutureTask<T> pending = loads.putIfAbsent(entityId, task);
+        if (pending != null) {
+            return waitFor(pending);
+        }
+        try {
+            // The query is run without holding any locks
+            task.run();
+            return waitFor(task);
+        } finally {
+            loads.remove(entityId, task);
+        }
+    }
+
+    /**
+     * Stores <code>entity</code> in the entity cache, unless entities have been
+     * invalidated since <code>generation</code>.
+     * 
+     * @param generation
+     *            the value of {@link #entityGeneration} before the entity was
+     *            loaded.
+     */
+    private void cacheEntity(Object entityId, T entity, long generation) {
+        EntityCache<T> cache = getEntityCache();
+        cache.put(entityId, entity);
+        // The invalidations change the generation before removing the entity,
+        // so checking it after storing the entity cannot miss one
+        if (entityGeneration.get() != generation) {
+            cache.remove(entityId);
+        }
+    }
+
+    private ConcurrentMap<Object, FutureTask<T>> getPendingLoads() {
+        ConcurrentMap<Object, FutureTask<T>> loads = pendingLoads;
+        if (loads == null) {
+            synchronized (cacheLock) {
+                if (pendingLoads == null) {
+                    pendingLoads = new ConcurrentHashMap<Object, FutureTask<T>>();
+                }
+                loads = pendingLoads;
+            }
+        }
+        return loads;
+    }
+
+    private T waitFor(FutureTask<T> task) {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(
+                    "Interrupted while waiting for entity to load", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    public List<T> getEntities(EntityContainer<T> container,
+            List<Object> entityIds) {
+        if (usesCache(container)) {
+            List<T> result = new ArrayList<T>(entityIds.size());
+            List<Object> missingIds = new ArrayList<Object>();
+            List<Integer> missingIndexes = new ArrayList<Integer>();
+            for (Object entityId : entityIds) {
+                T entity = getEntityCache().get(entityId);
+                if (entity == null) {
+                    missingIds.add(entityId);
+                    missingIndexes.add(result.size());
+                }
+                result.add(entity);
+            }
+            if (!missingIds.isEmpty()) {
+                // Fetch all the missing entities with one query
+                long generation = entityGeneration.get();
+                List<T> loaded = entityProvider.doGetEntities(container,
+                        missingIds);
+                for (int i = 0; i < missingIds.size(); i++) {
+                    T entity = loaded.get(i);
+                    if (entity != null) {
+                        cacheEntity(missingIds.get(i), entity, generation);
+                        result.set(missingIndexes.get(i), entity);
+                    }
+                }
+            }
+            for (int i = 0; i < result.size(); i++) {
+                if (result.get(i) != null) {
+                    result.set(i, cloneEntityIfNeeded(result.get(i)));
+                }
+            }
+            return result;
+        } else {
+            return entityProvider.doGetEntities(container, entityIds);
+        }
+    }
+
+    public List<T> getEntitiesAt(EntityContainer<T> container,
+            Filter filter, List<SortBy> sortBy, int index, int qty) {
+        if (sortBy == null) {
+            sortBy = Collections.emptyList();
+        }
+        if (usesCache(container)) {
+            FilterCacheEntry fce = getFilterCacheEntry(filter);
+            List<Object> ids = fce.getCachedIdsAt(sortBy, index, qty);
+            if (ids != null) {
+                return getEntities(container, ids);
+            }
+            // The generations are read before the query, so that anything
+            // invalidated while it runs is not cached
+            long idListGeneration = fce.getIdListGeneration();
+            long generation = entityGeneration.get();
+            List<T> entities = entityProvider.doGetEntitiesAt(container,
+                    filter, sortBy, index, qty);
+            // The entities are fresh from the database, so use them to update
+            // both the ID list and the entity cache
+            ids = new ArrayList<Object>(entities.size());
+            List<T> result = new ArrayList<T>(entities.size());
+            for (T entity : entities) {
+                Object entityId = entityProvider.getIdentifier(entity);
+                ids.add(entityId);
+                cacheEntity(entityId, entity, generation);
+                result.add(cloneEntityIfNeeded(entity));
+            }
+            fce.putIdsAt(sortBy, idListGeneration, index, ids, index, qty);
+            return result;
+        } else {
+            return entityProvider.doGetEntitiesAt(container, filter, sortBy,
+                    index, qty);
+        }
+    }
+
     /**
      * Returns a clone of <code>entity</code> if
      * {@link #isCloneCachedEntities() } is true.
@@ -842,6 +2498,20 @@ class CachingSupport<T> implements Serializable {
         }
     }
 
+    public List<Object> getEntityIdentifierAt(EntityContainer<T> container,
+            Filter filter, List<SortBy> sortBy, int index, int qty) {
+        if (sortBy == null) {
+            sortBy = Collections.emptyList();
+        }
+        if (usesCache(container)) {
+            return getFilterCacheEntry(filter).getIdsAt(container, sortBy,
+                    index, qty);
+        } else {
+            return entityProvider.doGetEntityIdentifierAt(container, filter,
+                    sortBy, index, qty);
+        }
+    }
+
     public Object getFirstEntityIdentifier(EntityContainer<T> container,
             Filter filter, List<SortBy> sortBy) {
         if (sortBy == null) {
@@ -897,33 +2567,66 @@ class CachingSupport<T> implements Serializable {
     }
 
     public void invalidateSize() {
-        // TODO review synchronization of this whole class
-        Object[] array = filterCache.keySet().toArray();
-        for (Object filter : array) {
-            FilterCacheEntry filterCacheEntry = filterCache.get(filter);
-            if (filterCacheEntry.entityCount != null) {
-                synchronized (filterCacheEntry.entityCount) {
-                    filterCacheEntry.entityCount = null;
-                }
-            }
+        for (FilterCacheEntry fce : getFilterCacheEntries()) {
+            fce.invalidateCount();
         }
+    }
 
+    /**
+     * Discards the cached entity count of <code>filter</code>, if there is
+     * one.
+     * 
+     * @param filter
+     *            the filter whose count to discard (may be null).
+     * @since 3.2
+     */
+    public void invalidateSize(Filter filter) {
+        if (filter == null) {
+            filter = NULL_FILTER;
+        }
+        FilterCacheEntry fce;
+        synchronized (cacheLock) {
+            if (filterCache == null) {
+                return;
+            }
+            fce = filterCache.get(filter);
+        }
+        if (fce != null) {
+            fce.invalidateCount();
+        }
     }
 
+    /**
+     * Informs the cache that the entity identified by <code>entityId</code>
+     * has been removed. If the state of the entity is known, the cached counts
+     * of the filters that matched the entity are decremented and their ID
+     * lists are discarded. Otherwise, the counts and ID lists of all filters
+     * are discarded.
+     * 
+     * @param entityId
+     *            the identifier of the removed entity (must not be null).
+     */
     public void entityRemoved(Object entityId) {
-        invalidate(entityId, false);
-        invalidateSize();
+        entityGeneration.incrementAndGet();
+        T oldEntity = getEntityCache().remove(entityId);
+        if (!isCloneCachedEntities()) {
+            oldEntity = null;
+        }
+        for (FilterCacheEntry fce : getFilterCacheEntries()) {
+            Boolean passed = passesFilter(fce.filter, entityId, oldEntity);
+            if (passed == null) {
+                fce.invalidate(entityId);
+                fce.invalidateCount();
+            } else if (passed) {
+                fce.entityRemoved(entityId);
+            }
+        }
     }
 
     /**
      * Clears the cache.
      */
     public void clear() {
-        if (entityCache != null) {
-            entityCache.clear();
-        }
-        if (filterCache != null) {
-            filterCache.clear();
-        }
+        flush();
     }
 }
@@ -0,0 +1,106 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.provider;
+
+import java.util.Map;
+
+import com.vaadin.addon.jpacontainer.EntityContainer;
+import com.vaadin.data.Container.Filter;
+
+/**
+ * {@link CountStrategy} that counts at most a fixed number of entities. If
+ * more entities match the filter, the maximum count is returned, meaning
+ * "at least this many". The database then only has to find the first
+ * <code>maxCount + 1</code> matching rows instead of all of them, at the cost
+ * of the container only giving access to the first <code>maxCount</code>
+ * entities. The extra row tells whether the count has been capped, see
+ * {@link #isCapped(Filter)}.
+ *
+ * @since 3.2
+ */
+public class CappedCountStrategy implements CountStrategy {
+
+    private static final long serialVersionUID = -2484957018467402151L;
+    /**
+     * The maximum number of filters whose capped state is remembered.
+     */
+    private static final int MAX_REMEMBERED_FILTERS = 100;
+    private final int maxCount;
+    /**
+     * Whether the last count of each filter was capped. Guarded by its own
+     * lock.
+     */
+    private final Map<Filter, Boolean> cappedFilters = new CachingSupport.CacheMap<Filter, Boolean>(
+            MAX_REMEMBERED_FILTERS);
+
+    /**
+     * Creates a new <code>CappedCountStrategy</code>.
+     *
+     * @param maxCount
+     *            the maximum count to return (must be &gt;= 0).
+     */
+    public CappedCountStrategy(int maxCount) {
+        assert maxCount >= 0 : "maxCount must not be negative";
+        this.maxCount = maxCount;
+    }
+
+    /**
+     * Gets the maximum count returned by this strategy.
+     *
+     * @return the maximum count.
+     */
+    public int getMaxCount() {
+        return maxCount;
+    }
+
+    /**
+     * Checks whether the count last returned by this strategy for
+     * <code>filter</code> has been capped, i.e. whether more than
+     * {@link #getMaxCount()} entities matched the filter.
+     *
+     * @param filter
+     *            the filter passed to
+     *            {@link #getEntityCount(EntityContainer, Filter, Counter)}
+     *            (may be null).
+     * @return true if there were more entities than the returned count, false
+     *         if there were exactly that many or if <code>filter</code> has
+     *         not been counted.
+     */
+    public boolean isCapped(Filter filter) {
+        synchronized (cappedFilters) {
+            return Boolean.TRUE.equals(cappedFilters.get(filter));
+        }
+    }
+
+    public int getEntityCount(EntityContainer<?> container, Filter filter,
+            Counter counter) {
+        if (maxCount == Integer.MAX_VALUE) {
+            return counter.count(maxCount);
+        }
+        // One more entity is counted to tell whether the count is capped
+        int count = counter.count(maxCount + 1);
+        boolean capped = count > maxCount;
+        synchronized (cappedFilters) {
+            cappedFilters.put(filter, capped);
+        }
+        return capped ? maxCount : count;
+    }
+
+    public void reset() {
+        // The capped states describe the counts already returned, so they
+        // stay valid until the filters are counted again
+    }
+}
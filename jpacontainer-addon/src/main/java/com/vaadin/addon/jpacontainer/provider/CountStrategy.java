@@ -0,0 +1,101 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.provider;
+
+import java.io.Serializable;
+
+import com.vaadin.addon.jpacontainer.EntityContainer;
+import com.vaadin.data.Container.Filter;
+
+/**
+ * Strategy used by {@link LocalEntityProvider} to determine the number of
+ * entities returned by
+ * {@link LocalEntityProvider#getEntityCount(EntityContainer, Filter)}. The
+ * container calls this method very often, and on large tables an exact count
+ * is often the most expensive query there is. A strategy may e.g. cap the
+ * count, or return a previously known count while the exact count is
+ * determined in the background.
+ *
+ * @see LocalEntityProvider#setCountStrategy(CountStrategy)
+ * @see CappedCountStrategy
+ * @see AsynchronousCountStrategy
+ * @since 3.2
+ */
+public interface CountStrategy extends Serializable {
+
+    /**
+     * Runs the count queries for a specific container and filter on behalf
+     * of a {@link CountStrategy}. The methods of this interface may be called
+     * from any thread, also after
+     * {@link CountStrategy#getEntityCount(EntityContainer, Filter, Counter)}
+     * has returned.
+     *
+     * @since 3.2
+     */
+    public interface Counter {
+
+        /**
+         * Counts all the entities that match the filter.
+         *
+         * @return the exact number of entities.
+         */
+        public int count();
+
+        /**
+         * Counts the entities that match the filter, but stops counting at
+         * <code>maxCount</code>. This only reads the identifiers of at most
+         * <code>maxCount</code> entities from the database, instead of
+         * counting all of them.
+         *
+         * @param maxCount
+         *            the maximum number to count to (must be &gt;= 0).
+         * @return the number of entities, or <code>maxCount</code> if there
+         *         are at least that many.
+         */
+        public int count(int maxCount);
+
+        /**
+         * Notifies the container that the count returned for the filter has
+         * changed, e.g. because an asynchronous count has completed. This
+         * causes the container to fire an ItemSetChangeEvent, which in turn
+         * makes its listeners fetch the new count.
+         */
+        public void countChanged();
+    }
+
+    /**
+     * Returns the number of entities in <code>container</code> that match
+     * <code>filter</code>.
+     *
+     * @param container
+     *            the container that wants to know the entity count (may be
+     *            null).
+     * @param filter
+     *            the filter that the entities should match (may be null).
+     * @param counter
+     *            the counter to run the count queries with (never null).
+     * @return the number of entities to report.
+     */
+    public int getEntityCount(EntityContainer<?> container, Filter filter,
+            Counter counter);
+
+    /**
+     * Tells the strategy that the counts it has returned so far may be out of
+     * date, e.g. because entities have been added or removed, or the entity
+     * provider has been refreshed.
+     */
+    public void reset();
+}
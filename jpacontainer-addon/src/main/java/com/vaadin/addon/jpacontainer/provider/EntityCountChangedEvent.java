@@ -0,0 +1,55 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer.provider;
+
+import java.util.Collection;
+import java.util.Collections;
+
+import com.vaadin.addon.jpacontainer.EntityProvider;
+import com.vaadin.addon.jpacontainer.EntityProviderChangeEvent;
+import com.vaadin.data.Container.Filter;
+
+/**
+ * Event indicating that the number of entities matching a filter has changed.
+ * 
+ * @since 3.2
+ */
+class EntityCountChangedEvent<T> implements
+        EntityProviderChangeEvent.EntityCountChangedEvent<T> {
+
+    private static final long serialVersionUID = 3297010357484786409L;
+    private final EntityProvider<T> entityProvider;
+    private final Filter filter;
+
+    public EntityCountChangedEvent(EntityProvider<T> entityProvider,
+            Filter filter) {
+        this.entityProvider = entityProvider;
+        this.filter = filter;
+    }
+
+    public EntityProvider<T> getEntityProvider() {
+        return entityProvider;
+    }
+
+    public Collection<T> getAffectedEntities() {
+        return Collections.emptyList();
+    }
+
+    public Filter getFilter() {
+        return filter;
+    }
+}
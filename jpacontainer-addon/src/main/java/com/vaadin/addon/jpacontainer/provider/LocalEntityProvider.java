@@ -18,37 +18,57 @@ package com.vaadin.addon.jpacontainer.provider;
 
 import java.io.ObjectStreamException;
 import java.io.Serializable;
+import java.lang.reflect.Constructor;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
+import javax.persistence.Basic;
+import javax.persistence.Column;
 import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
 import javax.persistence.EntityNotFoundException;
 import javax.persistence.TransactionRequiredException;
 import javax.persistence.TypedQuery;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.FetchParent;
+import javax.persistence.criteria.From;
 import javax.persistence.criteria.Join;
 import javax.persistence.criteria.JoinType;
 import javax.persistence.criteria.Order;
+import javax.persistence.criteria.ParameterExpression;
 import javax.persistence.criteria.Path;
 import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
+import javax.persistence.criteria.Selection;
 
 import com.vaadin.addon.jpacontainer.EntityContainer;
 import com.vaadin.addon.jpacontainer.EntityManagerProvider;
 import com.vaadin.addon.jpacontainer.EntityProvider;
+import com.vaadin.addon.jpacontainer.EntityProviderChangeListener;
+import com.vaadin.addon.jpacontainer.EntityVisitor;
 import com.vaadin.addon.jpacontainer.LazyLoadingDelegate;
+import com.vaadin.addon.jpacontainer.ProjectingEntityProvider;
 import com.vaadin.addon.jpacontainer.QueryModifierDelegate;
 import com.vaadin.addon.jpacontainer.SortBy;
+import com.vaadin.addon.jpacontainer.StreamingEntityProvider;
 import com.vaadin.addon.jpacontainer.filter.util.AdvancedFilterableSupport;
 import com.vaadin.addon.jpacontainer.filter.util.FilterConverter;
+import com.vaadin.addon.jpacontainer.filter.util.ParameterBindings;
+import com.vaadin.addon.jpacontainer.metadata.ClassMetadata;
 import com.vaadin.addon.jpacontainer.metadata.EntityClassMetadata;
 import com.vaadin.addon.jpacontainer.metadata.MetadataFactory;
+import com.vaadin.addon.jpacontainer.metadata.PersistentPropertyMetadata;
 import com.vaadin.addon.jpacontainer.metadata.PropertyKind;
+import com.vaadin.addon.jpacontainer.metadata.PropertyMetadata;
+import com.vaadin.addon.jpacontainer.metadata.PropertyPath;
 import com.vaadin.addon.jpacontainer.util.CollectionUtil;
 import com.vaadin.data.Container.Filter;
 import com.vaadin.data.util.filter.And;
@@ -83,12 +103,49 @@ import com.vaadin.data.util.filter.Or;
  * @author Petter Holmström (Vaadin Ltd)
  * @since 1.0
  */
-public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
+public class LocalEntityProvider<T> implements EntityProvider<T>,
+        ProjectingEntityProvider<T>, StreamingEntityProvider<T>, Serializable {
 
     private static final long serialVersionUID = 1601796410565144708L;
+    /**
+     * The maximum number of identifiers to put in the <code>IN</code>
+     * expression of a single query. Some databases refuse to execute queries
+     * with very long <code>IN</code> lists.
+     */
+    protected static final int MAX_IN_LIST_SIZE = 500;
+    /**
+     * The maximum number of query templates to keep, see
+     * {@link #getQueryTemplateKey(EntityContainer, Filter, List, Object...)}.
+     */
+    private static final int MAX_QUERY_TEMPLATES = 100;
+    /**
+     * The default number of entities to load at a time when visiting
+     * entities, see {@link #setStreamingChunkSize(int)}.
+     */
+    public static final int DEFAULT_STREAMING_CHUNK_SIZE = 500;
+    /**
+     * The maximum number of filter and sort order combinations to remember
+     * keyset boundaries for, see {@link #setKeysetPaginationEnabled(boolean)}
+     * .
+     */
+    private static final int MAX_KEYSET_LISTS = 16;
+    /**
+     * The maximum number of keyset boundaries to remember per filter and sort
+     * order combination.
+     */
+    private static final int MAX_KEYSET_BOUNDARIES = 32;
+    /**
+     * The maximum number of entities to remember the sort property values of
+     * for sibling lookups.
+     */
+    private static final int MAX_SIBLING_SORT_VALUES = 64;
     private transient EntityManager entityManager;
     private EntityClassMetadata<T> entityClassMetadata;
     private boolean entitiesDetached = true;
+    private boolean keysetPaginationEnabled = false;
+    private boolean fetchJoinsEnabled = true;
+    private int streamingChunkSize = DEFAULT_STREAMING_CHUNK_SIZE;
+    private CountStrategy countStrategy;
     private EntityManagerProvider entityManagerProvider = null;
 
     /**
@@ -137,6 +194,10 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
 
     private Serializable serializableEntityManager;
     private QueryModifierDelegate queryModifierDelegate;
+    private transient volatile Map<Object, QueryTemplate<?>> queryTemplates;
+    private transient volatile Map<Object, Map<Integer, Map<Object, Object>>> keysetBoundaries;
+    private transient volatile Map<Object, Map<Object, Object>> siblingSortValues;
+    private transient volatile SharedQueryCache sharedQueryCache;
 
     /**
      * The lazy loading delegate explicitly handles loading lazy collections
@@ -215,6 +276,18 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
         return entityManagerProvider.getEntityManager();
     }
 
+    /**
+     * Checks whether the entity manager is looked up from the entity manager
+     * provider, i.e. whether it may be used from other threads than the one
+     * that set it.
+     * 
+     * @return true if no entity manager has been set and the entity manager
+     *         provider is used instead.
+     */
+    boolean isEntityManagerProviderUsed() {
+        return entityManager == null && entityManagerProvider != null;
+    }
+
     /**
      * Gets the entity manager.
      * 
@@ -298,26 +371,8 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
      */
     protected Order translateSortBy(SortBy sortBy, boolean swapSortOrder,
             CriteriaBuilder cb, Root<T> root) {
-        String sortedPropId = sortBy.getPropertyId().toString();
-        // First split the id and build a Path.
-        String[] idStrings = sortedPropId.split("\\.");
-        Path<T> path = null;
-        if (idStrings.length > 1 && !isEmbedded(idStrings[0])) {
-            // This is a nested property, we need to LEFT JOIN
-            path = root.join(idStrings[0], JoinType.LEFT);
-            for (int i = 1; i < idStrings.length; i++) {
-                if (i < idStrings.length - 1) {
-                    path = ((Join<?, ?>) path)
-                            .join(idStrings[i], JoinType.LEFT);
-                } else {
-                    path = path.get(idStrings[i]);
-                }
-            }
-        } else {
-            // non-nested or embedded, we can select as usual
-            path = AdvancedFilterableSupport.getPropertyPathTyped(root,
-                    sortedPropId);
-        }
+        Path<?> path = getLeftJoinedPath(root, sortBy.getPropertyId()
+                .toString());
 
         // Make and return the Order instances.
         if (sortBy.isAscending() != swapSortOrder) {
@@ -327,6 +382,37 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
         }
     }
 
+    /**
+     * Builds the path of <code>propertyId</code>, which may be nested. If the
+     * property is nested inside referenced entities, they are joined using
+     * LEFT JOINs, so that entities whose references are null are not
+     * excluded from the result. Joins already made from <code>root</code> are
+     * reused.
+     */
+    private Path<?> getLeftJoinedPath(Root<T> root, String propertyId) {
+        PropertyPath path = PropertyPath.get(propertyId);
+        if (!path.isNested() || isEmbedded(path.getName(0))) {
+            // non-nested or embedded, we can select as usual
+            return AdvancedFilterableSupport.getPropertyPathTyped(root, path);
+        }
+        // This is a nested property, we need to LEFT JOIN
+        From<?, ?> from = root;
+        for (int i = 0; i < path.size() - 1; i++) {
+            from = getLeftJoin(from, path.getName(i));
+        }
+        return from.get(path.getLastName());
+    }
+
+    private static Join<?, ?> getLeftJoin(From<?, ?> from, String attribute) {
+        for (Join<?, ?> join : from.getJoins()) {
+            if (join.getJoinType() == JoinType.LEFT
+                    && join.getAttribute().getName().equals(attribute)) {
+                return join;
+            }
+        }
+        return from.join(attribute, JoinType.LEFT);
+    }
+
     /**
      * @param propertyId
      * @return
@@ -376,15 +462,162 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
         assert fieldsToSelect != null : "fieldsToSelect must not be null";
         assert sortBy == null || !sortBy.isEmpty() : "sortBy must be either null or non-empty";
 
+        List<Object> values = new ArrayList<Object>();
+        Object templateKey = getQueryTemplateKey(container, filter, values,
+                "select", new ArrayList<String>(fieldsToSelect),
+                copyOf(sortBy), swapSortOrder);
+        TypedQuery<Object> cached = createQueryFromTemplate(templateKey,
+                values);
+        if (cached != null) {
+            return cached;
+        }
+
         CriteriaBuilder cb = doGetEntityManager().getCriteriaBuilder();
         CriteriaQuery<Object> query = cb.createQuery();
         Root<T> root = query.from(entityClassMetadata.getMappedClass());
+        ParameterBindings parameters = new ParameterBindings();
+
+        addFiltersAndSorting(container, cb, query, root, filter, sortBy,
+                swapSortOrder, parameters);
+
+        if (fieldsToSelect.size() > 1
+                || getEntityClassMetadata().hasEmbeddedIdentifier()) {
+            List<Path<?>> paths = new ArrayList<Path<?>>();
+            for (String fieldPath : fieldsToSelect) {
+                paths.add(AdvancedFilterableSupport.getPropertyPathTyped(root,
+                        fieldPath));
+            }
+            query.multiselect(paths.toArray(new Path<?>[paths.size()]));
+        } else {
+            query.select(AdvancedFilterableSupport.getPropertyPathTyped(root,
+                    fieldsToSelect.get(0)));
+        }
+        tellDelegateQueryHasBeenBuilt(container, cb, query);
+        return createQuery(templateKey, query, parameters);
+    }
+
+    /**
+     * Creates a filtered, optionally sorted, query that selects entire
+     * entities instead of individual fields. The query is built exactly like
+     * the one created by
+     * {@link #createFilteredQuery(EntityContainer, List, Filter, List, boolean)}
+     * , including the calls to the {@link QueryModifierDelegate}.
+     * 
+     * @param filter
+     *            the filter to apply, or null if no filters should be applied.
+     * @param sortBy
+     *            the fields to sort by (must include at least one field), or
+     *            null if the result should not be sorted at all.
+     * @param swapSortOrder
+     *            true to swap the sort order, false to use the sort order
+     *            specified in <code>sortBy</code>. Only applies if
+     *            <code>sortBy</code> is not null.
+     * @return the query (never null).
+     */
+    protected TypedQuery<T> createFilteredEntityQuery(
+            EntityContainer<T> container, Filter filter, List<SortBy> sortBy,
+            boolean swapSortOrder) {
+        assert sortBy == null || !sortBy.isEmpty() : "sortBy must be either null or non-empty";
+
+        List<String> fetchPaths = getFetchPaths(container);
+        List<Object> values = new ArrayList<Object>();
+        Object templateKey = getQueryTemplateKey(container, filter, values,
+                "entity", copyOf(sortBy), swapSortOrder, fetchPaths);
+        TypedQuery<T> cached = createQueryFromTemplate(templateKey, values);
+        if (cached != null) {
+            return cached;
+        }
+
+        CriteriaBuilder cb = doGetEntityManager().getCriteriaBuilder();
+        CriteriaQuery<T> query = cb.createQuery(entityClassMetadata
+                .getMappedClass());
+        Root<T> root = query.from(entityClassMetadata.getMappedClass());
+        ParameterBindings parameters = new ParameterBindings();
+
+        addFiltersAndSorting(container, cb, query, root, filter, sortBy,
+                swapSortOrder, parameters);
+
+        query.select(root);
+        addFetchJoins(root, fetchPaths);
+        tellDelegateQueryHasBeenBuilt(container, cb, query);
+        return createQuery(templateKey, query, parameters);
+    }
+
+    /**
+     * Returns the references to other entities that have to be followed to
+     * read the nested properties of <code>container</code>, e.g.
+     * <code>department</code> for <code>department.name</code>, or
+     * <code>manager</code> and <code>manager.address</code> for
+     * <code>manager.address.street</code> if <code>address</code> is another
+     * entity. Only single-valued references are included, as fetching
+     * collections would multiply the rows and break the paging.
+     * 
+     * @return the paths to fetch in the order they must be joined (never
+     *         null).
+     */
+    private List<String> getFetchPaths(EntityContainer<T> container) {
+        Collection<?> propertyIds = container == null ? null : container
+                .getContainerPropertyIds();
+        if (!isFetchJoinsEnabled() || propertyIds == null) {
+            return Collections.emptyList();
+        }
+        Set<String> fetchPaths = new TreeSet<String>();
+        for (Object propertyId : propertyIds) {
+            PropertyPath propertyPath = PropertyPath.get(propertyId.toString());
+            ClassMetadata<?> metadata = getEntityClassMetadata();
+            StringBuilder path = new StringBuilder();
+            for (int i = 0; i < propertyPath.size() - 1; i++) {
+                PropertyMetadata property = metadata.getProperty(propertyPath
+                        .getName(i));
+                if (!(property instanceof PersistentPropertyMetadata)
+                        || (property.getPropertyKind() != PropertyKind.MANY_TO_ONE && property
+                                .getPropertyKind() != PropertyKind.ONE_TO_ONE)) {
+                    break;
+                }
+                if (path.length() > 0) {
+                    path.append('.');
+                }
+                path.append(propertyPath.getName(i));
+                fetchPaths.add(path.toString());
+                metadata = ((PersistentPropertyMetadata) property)
+                        .getTypeMetadata();
+            }
+        }
+        // The sorted set lists every path after its parent path
+        return new ArrayList<String>(fetchPaths);
+    }
+
+    /**
+     * Adds a LEFT JOIN FETCH from <code>root</code> for each of
+     * <code>fetchPaths</code>, so that the referenced entities are loaded by
+     * the same query as the entities themselves.
+     */
+    private static void addFetchJoins(Root<?> root, List<String> fetchPaths) {
+        Map<String, FetchParent<?, ?>> fetches = new HashMap<String, FetchParent<?, ?>>();
+        for (String fetchPath : fetchPaths) {
+            int dot = fetchPath.lastIndexOf('.');
+            FetchParent<?, ?> parent = dot == -1 ? root : fetches
+                    .get(fetchPath.substring(0, dot));
+            fetches.put(fetchPath, parent.fetch(
+                    fetchPath.substring(dot + 1), JoinType.LEFT));
+        }
+    }
 
+    /**
+     * Adds the where and order by clauses to <code>query</code>, notifying the
+     * {@link QueryModifierDelegate} along the way. The selection is left to
+     * the caller. The filter values are recorded in <code>parameters</code>.
+     */
+    private void addFiltersAndSorting(EntityContainer<T> container,
+            CriteriaBuilder cb, CriteriaQuery<?> query, Root<T> root,
+            Filter filter, List<SortBy> sortBy, boolean swapSortOrder,
+            ParameterBindings parameters) {
         tellDelegateQueryWillBeBuilt(container, cb, query,false);
 
         List<Predicate> predicates = new ArrayList<Predicate>();
         if (filter != null) {
-            predicates.add(FilterConverter.convertFilter(filter, cb, root));
+            predicates.add(FilterConverter.convertFilter(filter, cb, root,
+                    parameters));
         }
         tellDelegateFiltersWillBeAdded(container, cb, query, predicates);
         if (!predicates.isEmpty()) {
@@ -402,21 +635,130 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
         tellDelegateOrderByWillBeAdded(container, cb, query, orderBy);
         query.orderBy(orderBy);
         tellDelegateOrderByWereAdded(container, cb, query);
+    }
 
-        if (fieldsToSelect.size() > 1
-                || getEntityClassMetadata().hasEmbeddedIdentifier()) {
-            List<Path<?>> paths = new ArrayList<Path<?>>();
-            for (String fieldPath : fieldsToSelect) {
-                paths.add(AdvancedFilterableSupport.getPropertyPathTyped(root,
-                        fieldPath));
+    /**
+     * A criteria query that has been built before, together with the
+     * parameters whose values differ between the queries built from it. As
+     * the provider may be shared between threads, and JPA implementations do
+     * not promise that a criteria query may be used by several entity
+     * managers at the same time, queries are created from one template at a
+     * time.
+     */
+    private static class QueryTemplate<Q> {
+        private final EntityManagerFactory entityManagerFactory;
+        private final CriteriaQuery<Q> query;
+        private final List<ParameterExpression<?>> parameters;
+
+        public QueryTemplate(EntityManagerFactory entityManagerFactory,
+                CriteriaQuery<Q> query, ParameterBindings parameters) {
+            this.entityManagerFactory = entityManagerFactory;
+            this.query = query;
+            this.parameters = new ArrayList<ParameterExpression<?>>(parameters
+                    .getValues().keySet());
+        }
+
+        /**
+         * Creates a query using <code>entityManager</code>, binding
+         * <code>values</code> to the parameters in order. Returns null if the
+         * template cannot be used with the entity manager, or if a value
+         * cannot be converted to the type of its parameter.
+         */
+        public TypedQuery<Q> createQuery(EntityManager entityManager,
+                List<Object> values) {
+            if (values.size() != parameters.size()
+                    || entityManager.getEntityManagerFactory() != entityManagerFactory) {
+                return null;
             }
-            query.multiselect(paths.toArray(new Path<?>[paths.size()]));
-        } else {
-            query.select(AdvancedFilterableSupport.getPropertyPathTyped(root,
-                    fieldsToSelect.get(0)));
+            TypedQuery<Q> query;
+            synchronized (this) {
+                query = entityManager.createQuery(this.query);
+            }
+            if (!ParameterBindings.bindValues(query, parameters, values)) {
+                return null;
+            }
+            return query;
         }
-        tellDelegateQueryHasBeenBuilt(container, cb, query);
-        return doGetEntityManager().createQuery(query);
+    }
+
+    private Map<Object, QueryTemplate<?>> getQueryTemplates() {
+        Map<Object, QueryTemplate<?>> templates = queryTemplates;
+        if (templates == null) {
+            templates = Collections
+                    .synchronizedMap(new CachingSupport.CacheMap<Object, QueryTemplate<?>>(
+                            MAX_QUERY_TEMPLATES));
+            queryTemplates = templates;
+        }
+        return templates;
+    }
+
+    /**
+     * Returns the key under which the template of a query is cached. The key
+     * consists of <code>shape</code>, which describes what the query selects
+     * and how it is sorted, and the shape of <code>filter</code>. The values
+     * of the filter are added to <code>values</code>, to be bound to the
+     * parameters of the template.
+     * <p>
+     * Queries are not cached if a {@link QueryModifierDelegate} is in use, as
+     * the delegate may modify each query differently.
+     * 
+     * @return the key, or null if the query should not be cached.
+     */
+    private Object getQueryTemplateKey(EntityContainer<T> container,
+            Filter filter, List<Object> values, Object... shape) {
+        if (queryModifierDelegate != null
+                || (container != null && container.getQueryModifierDelegate() != null)) {
+            return null;
+        }
+        List<Object> key = new ArrayList<Object>(Arrays.asList(shape));
+        key.add(filter == null ? null : FilterConverter.getShape(filter,
+                values));
+        return key;
+    }
+
+    private static List<SortBy> copyOf(List<SortBy> sortBy) {
+        return sortBy == null ? null : new ArrayList<SortBy>(sortBy);
+    }
+
+    /**
+     * Creates a query from the template cached under <code>templateKey</code>
+     * , binding <code>values</code> to its parameters.
+     * 
+     * @return the query, or null if there is no usable template.
+     */
+    @SuppressWarnings("unchecked")
+    private <Q> TypedQuery<Q> createQueryFromTemplate(Object templateKey,
+            List<Object> values) {
+        if (templateKey == null) {
+            return null;
+        }
+        QueryTemplate<Q> template = (QueryTemplate<Q>) getQueryTemplates()
+                .get(templateKey);
+        if (template == null) {
+            return null;
+        }
+        return template.createQuery(doGetEntityManager(), values);
+    }
+
+    /**
+     * Creates a query from <code>query</code>, binding the values recorded in
+     * <code>parameters</code>. The criteria query is cached as a template
+     * unless <code>templateKey</code> is null or some values had to be
+     * embedded as literals. This is done only after the query has been
+     * created the first time, as some JPA implementations finish preparing
+     * the criteria query at that point.
+     */
+    private <Q> TypedQuery<Q> createQuery(Object templateKey,
+            CriteriaQuery<Q> query, ParameterBindings parameters) {
+        EntityManager em = doGetEntityManager();
+        TypedQuery<Q> tq = parameters.applyTo(em.createQuery(query));
+        if (templateKey != null && !parameters.hasLiterals()) {
+            getQueryTemplates().put(
+                    templateKey,
+                    new QueryTemplate<Q>(em.getEntityManagerFactory(), query,
+                            parameters));
+        }
+        return tq;
     }
 
     protected boolean doContainsEntity(EntityContainer<T> container,
@@ -425,17 +767,29 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
         String entityIdPropertyName = getEntityClassMetadata()
                 .getIdentifierProperty().getName();
 
+        List<Object> values = new ArrayList<Object>();
+        values.add(entityId);
+        Object templateKey = getQueryTemplateKey(container, filter, values,
+                "contains", entityId.getClass());
+        TypedQuery<Long> cached = createQueryFromTemplate(templateKey, values);
+        if (cached != null) {
+            return cached.getSingleResult() == 1;
+        }
+
         CriteriaBuilder cb = doGetEntityManager().getCriteriaBuilder();
         CriteriaQuery<Long> query = cb.createQuery(Long.class);
         Root<T> root = query.from(getEntityClassMetadata().getMappedClass());
+        ParameterBindings parameters = new ParameterBindings();
 
         tellDelegateQueryWillBeBuilt(container, cb, query,true);
 
         List<Predicate> predicates = new ArrayList<Predicate>();
-        predicates.add(cb.equal(root.get(entityIdPropertyName),
-                cb.literal(entityId)));
+        Path<Object> idPath = root.get(entityIdPropertyName);
+        predicates.add(cb.equal(idPath,
+                parameters.bind(cb, entityId, idPath.getJavaType())));
         if (filter != null) {
-            predicates.add(FilterConverter.convertFilter(filter, cb, root));
+            predicates.add(FilterConverter.convertFilter(filter, cb, root,
+                    parameters));
         }
         tellDelegateFiltersWillBeAdded(container, cb, query, predicates);
         if (!predicates.isEmpty()) {
@@ -464,7 +818,7 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
 	    }
         }
         tellDelegateQueryHasBeenBuilt(container, cb, query);
-        TypedQuery<Long> tq = doGetEntityManager().createQuery(query);
+        TypedQuery<Long> tq = createQuery(templateKey, query, parameters);
         return tq.getSingleResult() == 1;
     }
 
@@ -491,15 +845,103 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
     public T getEntity(EntityContainer<T> container, Object entityId) {
         return doGetEntity(entityId);
     }
-    
-    @Override
-    public List<Object> getEntityIdentifierAt(EntityContainer<T> entityContainer, Filter filter, List<SortBy> sortBy,
+
+    /**
+     * Loads the entities identified by <code>entityIds</code> using a single
+     * <code>WHERE id IN (...)</code> query per {@link #MAX_IN_LIST_SIZE}
+     * identifiers. Entities with embedded identifiers are loaded one by one,
+     * as composite keys cannot portably be used in an <code>IN</code>
+     * expression.
+     *
+     * @param container
+     *            the container whose nested properties determine the
+     *            referenced entities to fetch along (may be null).
+     * @param entityIds
+     *            the entity identifiers (must not be null).
+     * @return the entities in the same order as <code>entityIds</code>, with
+     *         null for the entities that were not found (never null).
+     */
+    protected List<T> doGetEntities(EntityContainer<T> container,
+            List<Object> entityIds) {
+        assert entityIds != null : "entityIds must not be null";
+        List<T> result = new ArrayList<T>(entityIds.size());
+        if (entityIds.isEmpty()) {
+            return result;
+        }
+        if (getEntityClassMetadata().hasEmbeddedIdentifier()) {
+            for (Object entityId : entityIds) {
+                result.add(doGetEntity(entityId));
+            }
+            return result;
+        }
+        String entityIdPropertyName = getEntityClassMetadata()
+                .getIdentifierProperty().getName();
+        List<String> fetchPaths = getFetchPaths(container);
+        Map<Object, T> entities = new HashMap<Object, T>();
+        for (int i = 0; i < entityIds.size(); i += MAX_IN_LIST_SIZE) {
+            List<Object> ids = entityIds.subList(i,
+                    Math.min(i + MAX_IN_LIST_SIZE, entityIds.size()));
+            CriteriaBuilder cb = doGetEntityManager().getCriteriaBuilder();
+            CriteriaQuery<T> query = cb.createQuery(getEntityClassMetadata()
+                    .getMappedClass());
+            Root<T> root = query.from(getEntityClassMetadata()
+                    .getMappedClass());
+            query.select(root);
+            addFetchJoins(root, fetchPaths);
+            query.where(root.get(entityIdPropertyName).in(ids));
+            for (T entity : doGetEntityManager().createQuery(query)
+                    .getResultList()) {
+                entities.put(getIdentifier(entity), entity);
+            }
+        }
+        for (T entity : entities.values()) {
+            detachEntity(entity);
+        }
+        for (Object entityId : entityIds) {
+            result.add(entities.get(entityId));
+        }
+        return result;
+    }
+
+    public List<T> getEntities(EntityContainer<T> container,
+            List<Object> entityIds) {
+        return doGetEntities(container, entityIds);
+    }
+
+    protected List<Object> doGetEntityIdentifierAt(EntityContainer<T> entityContainer, Filter filter, List<SortBy> sortBy,
 	    int index, int qty)
     {
 	if (sortBy == null)
 	{
 	    sortBy = Collections.emptyList();
 	}
+	SharedQueryCache cache = getSharedQueryCache(entityContainer);
+	if (cache != null) {
+	    Object key = getSharedQueryKey("ids", filter, copyOf(sortBy),
+		    index, qty);
+	    @SuppressWarnings("unchecked")
+	    List<Object> ids = (List<Object>) cache.get(key);
+	    if (ids == null) {
+		long generation = cache.getGeneration();
+		ids = Collections.unmodifiableList(new ArrayList<Object>(
+			queryEntityIdentifiers(entityContainer, filter,
+				sortBy, index, qty)));
+		cache.put(key, ids, getEntityClassMetadata().getMappedClass(),
+			filter, sortBy, generation);
+	    }
+	    return new ArrayList<Object>(ids);
+	}
+	return queryEntityIdentifiers(entityContainer, filter, sortBy, index,
+		qty);
+    }
+
+    private List<Object> queryEntityIdentifiers(
+	    EntityContainer<T> entityContainer, Filter filter,
+	    List<SortBy> sortBy, int index, int qty) {
+	if (canSeek(sortBy)) {
+	    return seekEntityIdentifiers(entityContainer, filter,
+		    addPrimaryKeyToSortList(sortBy), index, qty);
+	}
 	TypedQuery<Object> query = createFilteredQuery(entityContainer,
 		Arrays.asList(getEntityClassMetadata().getIdentifierProperty().getName()), filter,
 		addPrimaryKeyToSortList(sortBy), false);
@@ -507,11 +949,376 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
 	query.setFirstResult(index);
 	return query.getResultList();
     }
+
+    public List<Object> getEntityIdentifierAt(EntityContainer<T> entityContainer, Filter filter, List<SortBy> sortBy,
+	    int index, int qty)
+    {
+	return doGetEntityIdentifierAt(entityContainer, filter, sortBy, index, qty);
+    }
     
+    /**
+     * Loads the entities at positions <code>index</code> to
+     * <code>index + qty - 1</code> in the result set determined from
+     * <code>filter</code> and <code>sortBy</code> using a single query.
+     * 
+     * @see EntityProvider#getEntitiesAt(EntityContainer, Filter, List, int,
+     *      int)
+     */
+    protected List<T> doGetEntitiesAt(EntityContainer<T> container,
+            Filter filter, List<SortBy> sortBy, int index, int qty) {
+        if (sortBy == null) {
+            sortBy = Collections.emptyList();
+        }
+        if (canSeek(sortBy)) {
+            return seekEntities(container, filter,
+                    addPrimaryKeyToSortList(sortBy), index, qty);
+        }
+        TypedQuery<T> query = createFilteredEntityQuery(container, filter,
+                addPrimaryKeyToSortList(sortBy), false);
+        query.setMaxResults(qty);
+        query.setFirstResult(index);
+        List<T> result = new ArrayList<T>(query.getResultList());
+        for (T entity : result) {
+            detachEntity(entity);
+        }
+        return result;
+    }
+
+    public List<T> getEntitiesAt(EntityContainer<T> container,
+            Filter filter, List<SortBy> sortBy, int index, int qty) {
+        return doGetEntitiesAt(container, filter, sortBy, index, qty);
+    }
+
+    /**
+     * Loads the projection of the entity identified by <code>entityId</code>
+     * . Entities with embedded identifiers are loaded entirely.
+     * 
+     * @see ProjectingEntityProvider#getProjectedEntity(EntityContainer,
+     *      Object, Collection)
+     * @since 3.2
+     */
+    protected T doGetProjectedEntity(EntityContainer<T> container,
+            Object entityId, Collection<String> propertyIds) {
+        if (getEntityClassMetadata().hasEmbeddedIdentifier()) {
+            return doGetEntity(entityId);
+        }
+        List<T> result = doGetProjectedEntitiesAt(container, new Equal(
+                getEntityClassMetadata().getIdentifierProperty().getName(),
+                entityId), null, 0, 1, propertyIds);
+        return result.isEmpty() ? null : result.get(0);
+    }
+
+    public T getProjectedEntity(EntityContainer<T> container,
+            Object entityId, Collection<String> propertyIds) {
+        return doGetProjectedEntity(container, entityId, propertyIds);
+    }
+
+    /**
+     * Loads the projections of the entities at positions <code>index</code>
+     * to <code>index + qty - 1</code> using a single query that selects the
+     * identifier and the projectable properties of <code>propertyIds</code>.
+     * Referenced entities are joined with LEFT JOINs, so entities whose
+     * references are null are not excluded.
+     * 
+     * @see ProjectingEntityProvider#getProjectedEntitiesAt(EntityContainer,
+     *      Filter, List, int, int, Collection)
+     * @since 3.2
+     */
+    protected List<T> doGetProjectedEntitiesAt(EntityContainer<T> container,
+            Filter filter, List<SortBy> sortBy, int index, int qty,
+            Collection<String> propertyIds) {
+        if (sortBy == null) {
+            sortBy = Collections.emptyList();
+        }
+        List<String> fields = new ArrayList<String>();
+        fields.add(getEntityClassMetadata().getIdentifierProperty().getName());
+        for (String propertyId : propertyIds) {
+            if (!fields.contains(propertyId) && isProjectable(propertyId)) {
+                fields.add(propertyId);
+            }
+        }
+        sortBy = addPrimaryKeyToSortList(sortBy);
+
+        List<Object> values = new ArrayList<Object>();
+        Object templateKey = getQueryTemplateKey(container, filter, values,
+                "projection", fields, copyOf(sortBy));
+        TypedQuery<Object> query = createQueryFromTemplate(templateKey,
+                values);
+        if (query == null) {
+            CriteriaBuilder cb = doGetEntityManager().getCriteriaBuilder();
+            CriteriaQuery<Object> cq = cb.createQuery();
+            Root<T> root = cq.from(getEntityClassMetadata().getMappedClass());
+            ParameterBindings parameters = new ParameterBindings();
+
+            addFiltersAndSorting(container, cb, cq, root, filter, sortBy,
+                    false, parameters);
+            List<Selection<?>> selections = new ArrayList<Selection<?>>();
+            for (String field : fields) {
+                selections.add(getLeftJoinedPath(root, field));
+            }
+            cq.multiselect(selections);
+            tellDelegateQueryHasBeenBuilt(container, cb, cq);
+            query = createQuery(templateKey, cq, parameters);
+        }
+        query.setMaxResults(qty);
+        query.setFirstResult(index);
+
+        List<T> entities = new ArrayList<T>();
+        for (Object row : query.getResultList()) {
+            entities.add(createProjectedEntity(fields,
+                    row instanceof Object[] ? (Object[]) row
+                            : new Object[] { row }));
+        }
+        return entities;
+    }
+
+    public List<T> getProjectedEntitiesAt(EntityContainer<T> container,
+            Filter filter, List<SortBy> sortBy, int index, int qty,
+            Collection<String> propertyIds) {
+        return doGetProjectedEntitiesAt(container, filter, sortBy, index, qty,
+                propertyIds);
+    }
+
+    /**
+     * Passes the entities to <code>visitor</code>, loading at most
+     * {@link #getStreamingChunkSize()} of them with each query. If
+     * {@link #isEntitiesDetached()} is true, every chunk is detached from the
+     * entity manager before it is visited, like the entities returned by the
+     * other methods, together with the referenced entities fetched for the
+     * nested properties of <code>container</code>. This keeps the persistence
+     * context from growing with the number of visited entities. If
+     * {@link #isEntitiesDetached()} is false, nothing is detached, and the
+     * visited entities stay managed like the ones returned by the other
+     * methods. This should be used when the persistence context is shared
+     * with code that keeps managed entities of its own, as JPA does not tell
+     * whether an entity returned by a query was already managed before.
+     * <p>
+     * If none of the sorted properties can be null, each chunk is read
+     * starting after the last entity of the previous chunk, so that the cost
+     * of a query does not grow with the number of visited entities. A
+     * property cannot be null if it is the identifier, of a primitive type,
+     * or mapped with <code>@Column(nullable = false)</code> or
+     * <code>@Basic(optional = false)</code>. Otherwise, the chunks are read
+     * using offsets, as the position of null values in the sort order
+     * depends on the database.
+     * 
+     * @see StreamingEntityProvider#visitEntities(EntityContainer, Filter,
+     *      List, EntityVisitor)
+     * @since 3.2
+     */
+    protected int doVisitEntities(EntityContainer<T> container,
+            Filter filter, List<SortBy> sortBy,
+            EntityVisitor<? super T> visitor) {
+        assert visitor != null : "visitor must not be null";
+        if (sortBy == null) {
+            sortBy = Collections.emptyList();
+        }
+        sortBy = addPrimaryKeyToSortList(sortBy);
+        boolean seek = canSelectSortValues(sortBy) && isNonNullable(sortBy);
+        boolean detach = isEntitiesDetached();
+        int chunkSize = getStreamingChunkSize();
+        List<String> fetchPaths = getFetchPaths(container);
+        Filter chunkFilter = filter;
+        // The number of entities already read using chunkFilter
+        int offset = 0;
+        int visited = 0;
+        while (true) {
+            EntityManager em = doGetEntityManager();
+            TypedQuery<T> query = createFilteredEntityQuery(container,
+                    chunkFilter, sortBy, false);
+            query.setMaxResults(chunkSize);
+            query.setFirstResult(offset);
+            List<T> chunk = query.getResultList();
+            if (detach) {
+                for (T entity : chunk) {
+                    detachWithFetchedEntities(em, entity, fetchPaths);
+                }
+            }
+            for (T entity : chunk) {
+                visited++;
+                if (!visitor.visit(entity)) {
+                    return visited;
+                }
+            }
+            if (chunk.size() < chunkSize) {
+                return visited;
+            }
+            Map<Object, Object> sortValues = seek ? getSortValues(
+                    chunk.get(chunk.size() - 1), sortBy) : null;
+            if (sortValues != null && sortValues.containsValue(null)) {
+                // The database contains nulls despite the mapping, so the
+                // rest of the entities are read using offsets
+                seek = false;
+            }
+            if (seek) {
+                Filter limitingFilter = createKeysetFilter(sortBy, sortValues,
+                        false);
+                chunkFilter = filter == null ? limitingFilter : new And(
+                        filter, limitingFilter);
+                offset = 0;
+            } else {
+                offset += chunk.size();
+            }
+        }
+    }
+
+    /**
+     * Detaches <code>entity</code> and the entities referenced by it through
+     * <code>fetchPaths</code>, which have been loaded by the same query.
+     */
+    private void detachWithFetchedEntities(EntityManager em, T entity,
+            List<String> fetchPaths) {
+        for (String fetchPath : fetchPaths) {
+            Object fetched = getEntityClassMetadata().getPropertyValue(entity,
+                    fetchPath);
+            if (fetched != null && em.contains(fetched)) {
+                em.detach(fetched);
+            }
+        }
+        em.detach(entity);
+    }
+
+    public int visitEntities(EntityContainer<T> container, Filter filter,
+            List<SortBy> sortBy, EntityVisitor<? super T> visitor) {
+        return doVisitEntities(container, filter, sortBy, visitor);
+    }
+
+    /**
+     * Checks whether <code>propertyName</code> can be selected in a
+     * projection, i.e. whether it is a basic or embedded persistent property,
+     * possibly nested inside embedded or referenced entities.
+     */
+    private boolean isProjectable(String propertyName) {
+        PropertyPath path = PropertyPath.get(propertyName);
+        ClassMetadata<?> metadata = getEntityClassMetadata();
+        for (int i = 0; i < path.size(); i++) {
+            PropertyMetadata property = metadata == null ? null : metadata
+                    .getProperty(path.getName(i));
+            if (!(property instanceof PersistentPropertyMetadata)) {
+                return false;
+            }
+            PropertyKind kind = property.getPropertyKind();
+            if (i == path.size() - 1) {
+                return kind == PropertyKind.SIMPLE
+                        || kind == PropertyKind.EMBEDDED;
+            } else if (kind != PropertyKind.EMBEDDED
+                    && kind != PropertyKind.MANY_TO_ONE
+                    && kind != PropertyKind.ONE_TO_ONE) {
+                return false;
+            }
+            metadata = ((PersistentPropertyMetadata) property)
+                    .getTypeMetadata();
+        }
+        return false;
+    }
+
+    /**
+     * Creates a new, unmanaged instance of the entity class and sets the
+     * selected <code>values</code> of <code>fields</code> to it. Embedded and
+     * referenced objects are only created if they hold a non-null value.
+     */
+    @SuppressWarnings("unchecked")
+    private T createProjectedEntity(List<String> fields, Object[] values) {
+        T entity = newInstance(getEntityClassMetadata().getMappedClass());
+        for (int i = 0; i < fields.size(); i++) {
+            if (values[i] == null) {
+                continue;
+            }
+            PropertyPath path = PropertyPath.get(fields.get(i));
+            ClassMetadata<Object> metadata = (ClassMetadata<Object>) getEntityClassMetadata();
+            Object object = entity;
+            for (int j = 0; j < path.size() - 1; j++) {
+                String name = path.getName(j);
+                ClassMetadata<Object> typeMetadata = (ClassMetadata<Object>) ((PersistentPropertyMetadata) metadata
+                        .getProperty(name)).getTypeMetadata();
+                Object nested = metadata.getPropertyValue(object, name);
+                if (nested == null) {
+                    nested = newInstance(typeMetadata.getMappedClass());
+                    metadata.setPropertyValue(object, name, nested);
+                }
+                object = nested;
+                metadata = typeMetadata;
+            }
+            metadata.setPropertyValue(object, path.getLastName(), values[i]);
+        }
+        return entity;
+    }
+
+    /**
+     * Copies the state of <code>entity</code> that is stored in the
+     * persistence context or the database, e.g. to compare it to
+     * <code>entity</code> before <code>entity</code> is merged. The values of
+     * the persistent properties are copied into a new instance, and the
+     * properties of embedded objects into new embedded objects. Referenced
+     * entities are shared with the stored state, and collections are left
+     * out.
+     * 
+     * @param entity
+     *            the entity whose stored state to copy (must not be null).
+     * @return the copy, or null if the stored state cannot be copied, e.g.
+     *         because <code>entity</code> itself is managed or has not been
+     *         stored.
+     */
+    T getStoredState(T entity) {
+        assert entity != null : "entity must not be null";
+        Object entityId = getIdentifier(entity);
+        EntityManager em = doGetEntityManager();
+        if (entityId == null || em.contains(entity)) {
+            return null;
+        }
+        T stored = em.find(getEntityClassMetadata().getMappedClass(), entityId);
+        if (stored == null
+                || stored.getClass() != getEntityClassMetadata()
+                        .getMappedClass()) {
+            // The fields of a subclass or a lazy loading proxy cannot be
+            // copied using the metadata of the mapped class
+            return null;
+        }
+        List<String> fields = new ArrayList<String>();
+        addStatePaths(getEntityClassMetadata(), "", fields);
+        Object[] values = new Object[fields.size()];
+        for (int i = 0; i < fields.size(); i++) {
+            values[i] = getEntityClassMetadata().getPropertyValue(stored,
+                    fields.get(i));
+        }
+        return createProjectedEntity(fields, values);
+    }
+
+    /**
+     * Adds the paths of the properties copied by {@link #getStoredState(Object)}
+     * to <code>paths</code>, prefixing them with <code>prefix</code>.
+     */
+    private static void addStatePaths(ClassMetadata<?> metadata,
+            String prefix, List<String> paths) {
+        for (PersistentPropertyMetadata property : metadata
+                .getPersistentProperties()) {
+            PropertyKind kind = property.getPropertyKind();
+            if (kind == PropertyKind.EMBEDDED) {
+                addStatePaths(property.getTypeMetadata(),
+                        prefix + property.getName() + ".", paths);
+            } else if (kind == PropertyKind.SIMPLE
+                    || kind == PropertyKind.MANY_TO_ONE
+                    || kind == PropertyKind.ONE_TO_ONE) {
+                paths.add(prefix + property.getName());
+            }
+        }
+    }
+
+    private static <C> C newInstance(Class<C> type) {
+        try {
+            Constructor<C> constructor = type.getDeclaredConstructor();
+            constructor.setAccessible(true);
+            return constructor.newInstance();
+        } catch (Exception e) {
+            throw new IllegalStateException("Could not create an instance of "
+                    + type.getName(), e);
+        }
+    }
+
     protected Object doGetEntityIdentifierAt(EntityContainer<T> container,
             Filter filter, List<SortBy> sortBy, int index) {
        
-        List<?> result = getEntityIdentifierAt(container,filter,sortBy,index,1);
+        List<?> result = doGetEntityIdentifierAt(container,filter,sortBy,index,1);
         if (result.isEmpty()) {
             return null;
         } else {
@@ -524,19 +1331,79 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
         return doGetEntityIdentifierAt(container, filter, sortBy, index);
     }
 
-    protected int doGetEntityCount(EntityContainer<T> container, Filter filter) {
+    protected int doGetEntityCount(final EntityContainer<T> container,
+            final Filter filter) {
+        CountStrategy strategy = getCountStrategy();
+        if (strategy == null) {
+            return countEntities(container, filter);
+        }
+        return strategy.getEntityCount(container, filter,
+                new CountStrategy.Counter() {
+                    public int count() {
+                        return countEntities(container, filter);
+                    }
+
+                    public int count(int maxCount) {
+                        return countEntities(container, filter, maxCount);
+                    }
+
+                    public void countChanged() {
+                        fireEntityCountChanged(container, filter);
+                    }
+                });
+    }
+
+    /**
+     * Counts the entities in <code>container</code> that match
+     * <code>filter</code>, ignoring the {@link #getCountStrategy() count
+     * strategy}.
+     * 
+     * @param container
+     *            the container (may be null).
+     * @param filter
+     *            the filter (may be null).
+     * @return the exact number of entities.
+     * @since 3.2
+     */
+    protected int countEntities(EntityContainer<T> container, Filter filter) {
+        SharedQueryCache cache = getSharedQueryCache(container);
+        if (cache == null) {
+            return queryEntityCount(container, filter);
+        }
+        Object key = getSharedQueryKey("count", filter);
+        Integer count = (Integer) cache.get(key);
+        if (count == null) {
+            long generation = cache.getGeneration();
+            count = queryEntityCount(container, filter);
+            cache.put(key, count, getEntityClassMetadata().getMappedClass(),
+                    filter, null, generation);
+        }
+        return count;
+    }
+
+    private int queryEntityCount(EntityContainer<T> container, Filter filter) {
         String entityIdPropertyName = getEntityClassMetadata()
                 .getIdentifierProperty().getName();
 
+        List<Object> values = new ArrayList<Object>();
+        Object templateKey = getQueryTemplateKey(container, filter, values,
+                "count");
+        TypedQuery<Long> cached = createQueryFromTemplate(templateKey, values);
+        if (cached != null) {
+            return cached.getSingleResult().intValue();
+        }
+
         CriteriaBuilder cb = doGetEntityManager().getCriteriaBuilder();
         CriteriaQuery<Long> query = cb.createQuery(Long.class);
         Root<T> root = query.from(getEntityClassMetadata().getMappedClass());
+        ParameterBindings parameters = new ParameterBindings();
 
         tellDelegateQueryWillBeBuilt(container, cb, query,true);
 
         List<Predicate> predicates = new ArrayList<Predicate>();
         if (filter != null) {
-            predicates.add(FilterConverter.convertFilter(filter, cb, root));
+            predicates.add(FilterConverter.convertFilter(filter, cb, root,
+                    parameters));
         }
         tellDelegateFiltersWillBeAdded(container, cb, query, predicates);
         if (!predicates.isEmpty()) {
@@ -565,7 +1432,7 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
 	    }
         }
         tellDelegateQueryHasBeenBuilt(container, cb, query);
-        TypedQuery<Long> tq = doGetEntityManager().createQuery(query);
+        TypedQuery<Long> tq = createQuery(templateKey, query, parameters);
         return tq.getSingleResult().intValue();
     }
 
@@ -573,6 +1440,60 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
         return doGetEntityCount(container, filter);
     }
 
+    /**
+     * Counts the entities in <code>container</code> that match
+     * <code>filter</code>, but stops at <code>maxCount</code>. Only the
+     * identifiers of at most <code>maxCount</code> entities are read from the
+     * database, so the database does not have to find all the matching rows.
+     * 
+     * @param container
+     *            the container (may be null).
+     * @param filter
+     *            the filter (may be null).
+     * @param maxCount
+     *            the maximum number to count to (must be &gt;= 0).
+     * @return the number of entities, or <code>maxCount</code> if there are at
+     *         least that many.
+     * @since 3.2
+     */
+    protected int countEntities(EntityContainer<T> container, Filter filter,
+            int maxCount) {
+        assert maxCount >= 0 : "maxCount must not be negative";
+        if (maxCount == 0) {
+            return 0;
+        }
+        // Without an ORDER BY clause, the database can stop at maxCount rows
+        TypedQuery<Object> query = createFilteredQuery(container,
+                Arrays.asList(getEntityClassMetadata().getIdentifierProperty()
+                        .getName()), filter, null, false);
+        query.setMaxResults(maxCount);
+        return query.getResultList().size();
+    }
+
+    /**
+     * Notifies <code>container</code> that the number of entities matching
+     * <code>filter</code> has changed, by passing it an
+     * {@link com.vaadin.addon.jpacontainer.EntityProviderChangeEvent.EntityCountChangedEvent}
+     * if it is an {@link EntityProviderChangeListener}. This is called by the
+     * {@link #getCountStrategy() count strategy}, e.g. when a count running
+     * in the background has completed.
+     * 
+     * @param container
+     *            the container to notify (may be null).
+     * @param filter
+     *            the filter whose count has changed (may be null).
+     * @since 3.2
+     */
+    @SuppressWarnings("unchecked")
+    protected void fireEntityCountChanged(EntityContainer<T> container,
+            Filter filter) {
+        if (container instanceof EntityProviderChangeListener) {
+            ((EntityProviderChangeListener<T>) container)
+                    .entityProviderChange(new EntityCountChangedEvent<T>(this,
+                            filter));
+        }
+    }
+
     protected Object doGetFirstEntityIdentifier(EntityContainer<T> container,
             Filter filter, List<SortBy> sortBy) {
         if (sortBy == null) {
@@ -653,6 +1574,11 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
      */
     protected Object getSibling(EntityContainer<T> container, Object entityId,
             Filter filter, List<SortBy> sortBy, boolean backwards) {
+        List<SortBy> fullSortBy = addPrimaryKeyToSortList(sortBy);
+        if (fullSortBy.size() > 1 && canSelectSortValues(fullSortBy)) {
+            return getSiblingWithSortValues(container, entityId, filter,
+                    fullSortBy, backwards);
+        }
         TypedQuery<Object> query = createSiblingQuery(container, entityId,
                 filter, sortBy, backwards);
         query.setMaxResults(1);
@@ -664,6 +1590,113 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
         }
     }
 
+    /**
+     * Fetches the identifier of the sibling together with the values of its
+     * sorted properties. The values are remembered, so that looking up the
+     * sibling of the sibling does not require the entity to be loaded
+     * first.
+     */
+    private Object getSiblingWithSortValues(EntityContainer<T> container,
+            Object entityId, Filter filter, List<SortBy> sortBy,
+            boolean backwards) {
+        List<String> fields = new ArrayList<String>();
+        for (SortBy sb : sortBy) {
+            fields.add(sb.getPropertyId().toString());
+        }
+        TypedQuery<Object> query = createSiblingQuery(container, entityId,
+                filter, sortBy, backwards, fields);
+        query.setMaxResults(1);
+        List<?> result = query.getResultList();
+        if (result.size() != 1) {
+            return null;
+        }
+        Object[] row = (Object[]) result.get(0);
+        Map<Object, Object> sortValues = new HashMap<Object, Object>();
+        for (int i = 0; i < fields.size(); i++) {
+            sortValues.put(sortBy.get(i).getPropertyId(), row[i]);
+        }
+        Object siblingId = row[fields.indexOf(getEntityClassMetadata()
+                .getIdentifierProperty().getName())];
+        putSiblingSortValues(siblingId, sortBy, sortValues);
+        return siblingId;
+    }
+
+    /**
+     * Checks whether none of the properties in <code>sortBy</code> can be
+     * null, i.e. whether each of them is the identifier, of a primitive type
+     * or mapped as non-nullable.
+     */
+    private boolean isNonNullable(List<SortBy> sortBy) {
+        String identifierName = getEntityClassMetadata()
+                .getIdentifierProperty().getName();
+        for (SortBy sb : sortBy) {
+            String propertyName = sb.getPropertyId().toString();
+            if (propertyName.equals(identifierName)) {
+                continue;
+            }
+            PropertyMetadata property = PropertyPath.get(propertyName)
+                    .isNested() ? null : getEntityClassMetadata().getProperty(
+                    propertyName);
+            if (property == null) {
+                return false;
+            }
+            if (property.getType().isPrimitive()) {
+                continue;
+            }
+            Column column = property.getAnnotation(Column.class);
+            Basic basic = property.getAnnotation(Basic.class);
+            if ((column == null || column.nullable())
+                    && (basic == null || basic.optional())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks if the values of the properties in <code>sortBy</code> can be
+     * selected along with the identifier without changing the rows returned
+     * by the query.
+     */
+    private boolean canSelectSortValues(List<SortBy> sortBy) {
+        if (getEntityClassMetadata().hasEmbeddedIdentifier()) {
+            return false;
+        }
+        for (SortBy sb : sortBy) {
+            PropertyPath path = PropertyPath.get(sb.getPropertyId().toString());
+            if (path.isNested() && !isEmbedded(path.getName(0))) {
+                // Sorting by a nested property requires a LEFT JOIN
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Map<Object, Object> getSiblingSortValues(Object entityId,
+            List<SortBy> sortBy) {
+        Map<Object, Map<Object, Object>> values = siblingSortValues;
+        if (values == null) {
+            return null;
+        }
+        synchronized (values) {
+            return values.get(Arrays.asList(sortBy, entityId));
+        }
+    }
+
+    private void putSiblingSortValues(Object entityId, List<SortBy> sortBy,
+            Map<Object, Object> sortValues) {
+        Map<Object, Map<Object, Object>> values = siblingSortValues;
+        if (values == null) {
+            values = new CachingSupport.CacheMap<Object, Map<Object, Object>>(
+                    MAX_SIBLING_SORT_VALUES);
+            siblingSortValues = values;
+        }
+        synchronized (values) {
+            values.put(Arrays.asList(new ArrayList<SortBy>(sortBy), entityId),
+                    sortValues);
+        }
+    }
+
     /**
      * This method creates a query that can be used to fetch the siblings of a
      * specific entity. If <code>backwards</code> is false, the query will begin
@@ -688,6 +1721,19 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
     protected TypedQuery<Object> createSiblingQuery(
             EntityContainer<T> container, Object entityId, Filter filter,
             List<SortBy> sortBy, boolean backwards) {
+        return createSiblingQuery(container, entityId, filter, sortBy,
+                backwards, Arrays.asList(getEntityClassMetadata()
+                        .getIdentifierProperty().getName()));
+    }
+
+    /**
+     * Creates a query like
+     * {@link #createSiblingQuery(EntityContainer, Object, Filter, List, boolean)}
+     * , but selects <code>fieldsToSelect</code> instead of the identifier.
+     */
+    private TypedQuery<Object> createSiblingQuery(
+            EntityContainer<T> container, Object entityId, Filter filter,
+            List<SortBy> sortBy, boolean backwards, List<String> fieldsToSelect) {
         assert entityId != null : "entityId must not be null";
         assert sortBy != null : "sortBy must not be null";
         Filter limitingFilter;
@@ -702,46 +1748,21 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
                         .getIdentifierProperty().getName(), entityId);
             }
         } else {
-            // We have to fetch the values of the sorted fields
-            T currentEntity = getEntity(container, entityId);
-            if (currentEntity == null) {
-                throw new EntityNotFoundException(
-                        "No entity found with the ID " + entityId);
-            }
-            // Collect the values into a map for easy access
-            Map<Object, Object> filterValues = new HashMap<Object, Object>();
-            for (SortBy sb : sortBy) {
-                filterValues.put(
-                        sb.getPropertyId(),
-                        getEntityClassMetadata().getPropertyValue(
-                                currentEntity, sb.getPropertyId().toString()));
+            // We have to fetch the values of the sorted fields, unless they
+            // were selected along with entityId by a previous sibling lookup
+            Map<Object, Object> sortValues = getSiblingSortValues(entityId,
+                    sortBy);
+            if (sortValues == null) {
+                T currentEntity = getEntity(container, entityId);
+                if (currentEntity == null) {
+                    throw new EntityNotFoundException(
+                            "No entity found with the ID " + entityId);
+                }
+                sortValues = getSortValues(currentEntity, sortBy);
             }
             // Now we can build a filter that limits the query to the entities
             // below entityId
-            List<Filter> orFilters = new ArrayList<Filter>();
-            for (int i = sortBy.size() - 1; i >= 0; i--) {
-                // TODO Document this code snippet once it works
-                // TODO What happens with null values?
-                List<Filter> caseFilters = new ArrayList<Filter>();
-                SortBy sb;
-                for (int j = 0; j < i; j++) {
-                    sb = sortBy.get(j);
-                    caseFilters.add(new Equal(sb.getPropertyId(), filterValues
-                            .get(sb.getPropertyId())));
-                }
-                sb = sortBy.get(i);
-                if (sb.isAscending() ^ backwards) {
-                    caseFilters.add(new Greater(sb.getPropertyId(),
-                            filterValues.get(sb.getPropertyId())));
-                } else {
-                    caseFilters.add(new Less(sb.getPropertyId(), filterValues
-                            .get(sb.getPropertyId())));
-                }
-                orFilters.add(new And(CollectionUtil.toArray(Filter.class,
-                        caseFilters)));
-            }
-            limitingFilter = new Or(CollectionUtil.toArray(Filter.class,
-                    orFilters));
+            limitingFilter = createKeysetFilter(sortBy, sortValues, backwards);
         }
         // Now, we can create the query
         Filter queryFilter;
@@ -751,11 +1772,440 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
             queryFilter = new And(filter, limitingFilter);
         }
         TypedQuery<Object> query = createFilteredQuery(container,
-                Arrays.asList(getEntityClassMetadata().getIdentifierProperty()
-                        .getName()), queryFilter, sortBy, backwards);
+                fieldsToSelect, queryFilter, sortBy, backwards);
         return query;
     }
 
+    /**
+     * Collects the values of the properties in <code>sortBy</code> into a map
+     * for easy access.
+     */
+    private Map<Object, Object> getSortValues(T entity, List<SortBy> sortBy) {
+        Map<Object, Object> sortValues = new HashMap<Object, Object>();
+        for (SortBy sb : sortBy) {
+            sortValues.put(
+                    sb.getPropertyId(),
+                    getEntityClassMetadata().getPropertyValue(entity,
+                            sb.getPropertyId().toString()));
+        }
+        return sortValues;
+    }
+
+    /**
+     * Creates a filter that limits a query sorted by <code>sortBy</code> to
+     * the entities after (or before, if <code>backwards</code> is true) the
+     * entity whose sorted properties have the values in
+     * <code>sortValues</code>.
+     * <p>
+     * An entity comes after the key if its first sorted property is past the
+     * value of the key, or if it is equal and the second one is past it, and
+     * so on. The primary key, which is always the last sorted property, makes
+     * the order total.
+     * <p>
+     * The comparisons follow the SQL semantics of null: a null value is
+     * neither equal to, less than nor greater than anything. Entities with
+     * null values in the sorted properties are thus never matched, and
+     * neither is anything if <code>sortValues</code> contains a null value.
+     * Keyset pagination and streaming only use this filter when the sorted
+     * properties cannot be null, see {@link #isNonNullable(List)}. Sibling
+     * lookups by nullable properties skip the entities with null values.
+     */
+    private Filter createKeysetFilter(List<SortBy> sortBy,
+            Map<Object, Object> sortValues, boolean backwards) {
+        List<Filter> orFilters = new ArrayList<Filter>();
+        for (int i = sortBy.size() - 1; i >= 0; i--) {
+            // The properties before the i:th one are equal to the key, and
+            // the i:th one is past it
+            List<Filter> caseFilters = new ArrayList<Filter>();
+            SortBy sb;
+            for (int j = 0; j < i; j++) {
+                sb = sortBy.get(j);
+                caseFilters.add(new Equal(sb.getPropertyId(), sortValues
+                        .get(sb.getPropertyId())));
+            }
+            sb = sortBy.get(i);
+            if (sb.isAscending() ^ backwards) {
+                caseFilters.add(new Greater(sb.getPropertyId(), sortValues
+                        .get(sb.getPropertyId())));
+            } else {
+                caseFilters.add(new Less(sb.getPropertyId(), sortValues
+                        .get(sb.getPropertyId())));
+            }
+            orFilters.add(new And(CollectionUtil.toArray(Filter.class,
+                    caseFilters)));
+        }
+        return new Or(CollectionUtil.toArray(Filter.class, orFilters));
+    }
+
+    /**
+     * Sets whether keyset pagination should be used when fetching ranges of
+     * entities or entity identifiers. When enabled, the provider remembers
+     * the sort property values of the last row of recently fetched ranges,
+     * and seeks from the nearest preceding one with a
+     * "rows after this key" predicate instead of making the database skip
+     * all the rows before the requested index. This makes the cost of
+     * fetching a range independent of its offset when scrolling through a
+     * large result set.
+     * <p>
+     * Keyset pagination requires the sorted properties to be non-null, as
+     * rows with null values cannot be compared to the remembered keys. It is
+     * only used when each sorted property is the identifier, of a primitive
+     * type, or mapped with <code>@Column(nullable = false)</code> or
+     * <code>@Basic(optional = false)</code>; ranges sorted by other
+     * properties are fetched using offsets. It is also not used for entities
+     * with embedded identifiers, nor when sorting by properties of referenced
+     * entities. The remembered positions are
+     * discarded when the provider is refreshed, but changes made to the
+     * database behind the provider's back may shift them until then.
+     * <p>
+     * Keyset pagination is disabled by default.
+     * 
+     * @param enabled
+     *            true to enable keyset pagination, false to disable it.
+     * @since 3.2
+     */
+    public void setKeysetPaginationEnabled(boolean enabled) {
+        this.keysetPaginationEnabled = enabled;
+        clearKeysetBoundaries();
+    }
+
+    /**
+     * Checks whether keyset pagination is used.
+     * 
+     * @see #setKeysetPaginationEnabled(boolean)
+     * @return true if keyset pagination is enabled, false otherwise.
+     * @since 3.2
+     */
+    public boolean isKeysetPaginationEnabled() {
+        return keysetPaginationEnabled;
+    }
+
+    /**
+     * Specifies whether the entities referenced by the nested properties of
+     * the container are fetched together with the entities, when loading a
+     * range of entities with
+     * {@link #getEntitiesAt(EntityContainer, Filter, List, int, int)} or a
+     * list of entities with {@link #getEntities(EntityContainer, List)}. If a
+     * container has e.g. the nested property <code>department.name</code>,
+     * the departments are then loaded using a LEFT JOIN FETCH instead of one
+     * query per entity when the nested property is read.
+     * <p>
+     * Only references to single entities (many-to-one and one-to-one) are
+     * fetched. Nested properties of collections are still loaded lazily.
+     * <p>
+     * Fetch joins are enabled by default.
+     * 
+     * @param enabled
+     *            true to enable fetch joins, false to disable them.
+     * @since 3.2
+     */
+    public void setFetchJoinsEnabled(boolean enabled) {
+        this.fetchJoinsEnabled = enabled;
+    }
+
+    /**
+     * Checks whether the entities referenced by nested container properties
+     * are fetched together with the entities.
+     * 
+     * @see #setFetchJoinsEnabled(boolean)
+     * @return true if fetch joins are enabled, false otherwise.
+     * @since 3.2
+     */
+    public boolean isFetchJoinsEnabled() {
+        return fetchJoinsEnabled;
+    }
+
+    /**
+     * Sets the number of entities to load with each query when visiting
+     * entities with
+     * {@link #visitEntities(EntityContainer, Filter, List, EntityVisitor)}.
+     * Larger chunks mean fewer queries, but more entities in memory at once.
+     * The default is {@link #DEFAULT_STREAMING_CHUNK_SIZE}.
+     * 
+     * @param chunkSize
+     *            the number of entities per query (must be &gt; 0).
+     * @since 3.2
+     */
+    public void setStreamingChunkSize(int chunkSize) {
+        assert chunkSize > 0 : "chunkSize must be greater than 0";
+        this.streamingChunkSize = chunkSize;
+    }
+
+    /**
+     * Gets the number of entities loaded with each query when visiting
+     * entities.
+     * 
+     * @see #setStreamingChunkSize(int)
+     * @return the chunk size.
+     * @since 3.2
+     */
+    public int getStreamingChunkSize() {
+        return streamingChunkSize;
+    }
+
+    /**
+     * Sets the cache that entity counts and ranges of entity identifiers are
+     * shared through with other entity providers, e.g. the providers of
+     * read-only containers in other sessions showing the same data. The
+     * shared results are discarded whenever a
+     * {@link MutableLocalEntityProvider} in the same JVM changes entities of
+     * this provider's entity class, or when this provider is refreshed.
+     * <p>
+     * Results are not shared while a {@link QueryModifierDelegate} is in use,
+     * as the delegate may modify the queries. The shared query cache is not
+     * serialized, and has to be set again after the provider has been
+     * deserialized.
+     * 
+     * @param sharedQueryCache
+     *            the cache to share results through, or null to not share
+     *            results.
+     * @since 3.2
+     */
+    public void setSharedQueryCache(SharedQueryCache sharedQueryCache) {
+        this.sharedQueryCache = sharedQueryCache;
+    }
+
+    /**
+     * Gets the cache that query results are shared through.
+     * 
+     * @see #setSharedQueryCache(SharedQueryCache)
+     * @return the shared query cache, or null if results are not shared.
+     * @since 3.2
+     */
+    public SharedQueryCache getSharedQueryCache() {
+        return sharedQueryCache;
+    }
+
+    /**
+     * Returns the shared query cache to use for the queries of
+     * <code>container</code>, or null if their results should not be shared.
+     */
+    private SharedQueryCache getSharedQueryCache(EntityContainer<T> container) {
+        SharedQueryCache cache = sharedQueryCache;
+        if (cache == null
+                || queryModifierDelegate != null
+                || (container != null && container.getQueryModifierDelegate() != null)) {
+            return null;
+        }
+        return cache;
+    }
+
+    /**
+     * Returns the key that the result of a query is shared under. Results
+     * are only shared between providers of the same entity class and
+     * persistence unit.
+     */
+    private Object getSharedQueryKey(Object... query) {
+        List<Object> key = new ArrayList<Object>(query.length + 2);
+        key.add(doGetEntityManager().getEntityManagerFactory());
+        key.add(getEntityClassMetadata().getMappedClass());
+        key.addAll(Arrays.asList(query));
+        return key;
+    }
+
+    /**
+     * Sets the strategy used to determine the number of entities returned by
+     * {@link #getEntityCount(EntityContainer, Filter)}. By default, the
+     * entities are always counted exactly, which may be expensive for large
+     * tables. A {@link CappedCountStrategy} only counts up to a maximum, and
+     * an {@link AsynchronousCountStrategy} counts in the background and
+     * returns a placeholder or the last known count until the count is done.
+     * 
+     * @param countStrategy
+     *            the count strategy, or null to always count exactly.
+     * @since 3.2
+     */
+    public void setCountStrategy(CountStrategy countStrategy) {
+        this.countStrategy = countStrategy;
+    }
+
+    /**
+     * Gets the strategy used to determine the number of entities.
+     * 
+     * @see #setCountStrategy(CountStrategy)
+     * @return the count strategy, or null if the entities are always counted
+     *         exactly.
+     * @since 3.2
+     */
+    public CountStrategy getCountStrategy() {
+        return countStrategy;
+    }
+
+    /**
+     * Tells the {@link #getCountStrategy() count strategy}, if any, that the
+     * counts it has returned may be out of date. This should be called
+     * whenever entities are added or removed.
+     * 
+     * @since 3.2
+     */
+    protected void resetCountStrategy() {
+        CountStrategy strategy = getCountStrategy();
+        if (strategy != null) {
+            strategy.reset();
+        }
+    }
+
+    /**
+     * Forgets the positions remembered for keyset pagination, and the sort
+     * property values remembered for sibling lookups. This should be called
+     * whenever entities are added, removed or updated, as their positions may
+     * change.
+     * 
+     * @see #setKeysetPaginationEnabled(boolean)
+     * @since 3.2
+     */
+    protected void clearKeysetBoundaries() {
+        keysetBoundaries = null;
+        siblingSortValues = null;
+    }
+
+    /**
+     * Checks if ranges sorted by <code>sortBy</code> can be fetched using
+     * keyset pagination. The sorted properties must not be nullable, as the
+     * filter created by {@link #createKeysetFilter(List, Map, boolean)} would
+     * skip the rows with null values.
+     */
+    private boolean canSeek(List<SortBy> sortBy) {
+        return isKeysetPaginationEnabled() && canSelectSortValues(sortBy)
+                && isNonNullable(sortBy);
+    }
+
+    /**
+     * Returns the nearest remembered boundary before <code>index</code> in
+     * the list identified by <code>key</code>, or null if there is none.
+     */
+    private Map.Entry<Integer, Map<Object, Object>> getKeysetBoundary(
+            Object key, int index) {
+        Map<Object, Map<Integer, Map<Object, Object>>> lists = keysetBoundaries;
+        if (lists == null) {
+            return null;
+        }
+        synchronized (lists) {
+            Map<Integer, Map<Object, Object>> boundaries = lists.get(key);
+            if (boundaries == null) {
+                return null;
+            }
+            Map.Entry<Integer, Map<Object, Object>> nearest = null;
+            for (Map.Entry<Integer, Map<Object, Object>> boundary : boundaries
+                    .entrySet()) {
+                if (boundary.getKey() < index
+                        && (nearest == null || boundary.getKey() > nearest
+                                .getKey())) {
+                    nearest = boundary;
+                }
+            }
+            return nearest;
+        }
+    }
+
+    /**
+     * Remembers <code>sortValues</code> as the boundary at <code>index</code>
+     * in the list identified by <code>key</code>. Boundaries with null values
+     * are ignored.
+     */
+    private void putKeysetBoundary(Object key, int index,
+            Map<Object, Object> sortValues) {
+        if (sortValues.containsValue(null)) {
+            return;
+        }
+        Map<Object, Map<Integer, Map<Object, Object>>> lists = keysetBoundaries;
+        if (lists == null) {
+            lists = new CachingSupport.CacheMap<Object, Map<Integer, Map<Object, Object>>>(
+                    MAX_KEYSET_LISTS);
+            keysetBoundaries = lists;
+        }
+        synchronized (lists) {
+            Map<Integer, Map<Object, Object>> boundaries = lists.get(key);
+            if (boundaries == null) {
+                boundaries = new CachingSupport.CacheMap<Integer, Map<Object, Object>>(
+                        MAX_KEYSET_BOUNDARIES);
+                lists.put(key, boundaries);
+            }
+            boundaries.put(index, sortValues);
+        }
+    }
+
+    /**
+     * Returns <code>filter</code> limited to the entities after
+     * <code>boundary</code>, or <code>filter</code> itself if
+     * <code>boundary</code> is null.
+     */
+    private Filter createSeekFilter(Filter filter, List<SortBy> sortBy,
+            Map.Entry<Integer, Map<Object, Object>> boundary) {
+        if (boundary == null) {
+            return filter;
+        }
+        Filter limitingFilter = createKeysetFilter(sortBy,
+                boundary.getValue(), false);
+        return filter == null ? limitingFilter : new And(filter,
+                limitingFilter);
+    }
+
+    /**
+     * Fetches the identifiers at positions <code>index</code> to
+     * <code>index + qty - 1</code> using keyset pagination. The values of the
+     * sorted properties are selected along with the identifiers, so that the
+     * last row can be remembered as a boundary.
+     */
+    private List<Object> seekEntityIdentifiers(EntityContainer<T> container,
+            Filter filter, List<SortBy> sortBy, int index, int qty) {
+        Object key = Arrays.asList(filter, new ArrayList<SortBy>(sortBy));
+        Map.Entry<Integer, Map<Object, Object>> boundary = getKeysetBoundary(
+                key, index);
+        List<String> fields = new ArrayList<String>();
+        for (SortBy sb : sortBy) {
+            fields.add(sb.getPropertyId().toString());
+        }
+        // The identifier is always among the sorted properties
+        int idIndex = fields.indexOf(getEntityClassMetadata()
+                .getIdentifierProperty().getName());
+        TypedQuery<Object> query = createFilteredQuery(container, fields,
+                createSeekFilter(filter, sortBy, boundary), sortBy, false);
+        query.setMaxResults(qty);
+        query.setFirstResult(boundary == null ? index : index
+                - boundary.getKey() - 1);
+        List<Object> result = new ArrayList<Object>();
+        Object[] lastRow = null;
+        for (Object row : query.getResultList()) {
+            lastRow = fields.size() == 1 ? new Object[] { row }
+                    : (Object[]) row;
+            result.add(lastRow[idIndex]);
+        }
+        if (lastRow != null) {
+            Map<Object, Object> sortValues = new HashMap<Object, Object>();
+            for (int i = 0; i < fields.size(); i++) {
+                sortValues.put(sortBy.get(i).getPropertyId(), lastRow[i]);
+            }
+            putKeysetBoundary(key, index + result.size() - 1, sortValues);
+        }
+        return result;
+    }
+
+    /**
+     * Fetches the entities at positions <code>index</code> to
+     * <code>index + qty - 1</code> using keyset pagination.
+     */
+    private List<T> seekEntities(EntityContainer<T> container, Filter filter,
+            List<SortBy> sortBy, int index, int qty) {
+        Object key = Arrays.asList(filter, new ArrayList<SortBy>(sortBy));
+        Map.Entry<Integer, Map<Object, Object>> boundary = getKeysetBoundary(
+                key, index);
+        TypedQuery<T> query = createFilteredEntityQuery(container,
+                createSeekFilter(filter, sortBy, boundary), sortBy, false);
+        query.setMaxResults(qty);
+        query.setFirstResult(boundary == null ? index : index
+                - boundary.getKey() - 1);
+        List<T> result = new ArrayList<T>(query.getResultList());
+        if (!result.isEmpty()) {
+            putKeysetBoundary(key, index + result.size() - 1,
+                    getSortValues(result.get(result.size() - 1), sortBy));
+        }
+        for (T entity : result) {
+            detachEntity(entity);
+        }
+        return result;
+    }
+
     protected Object doGetNextEntityIdentifier(EntityContainer<T> container,
             Object entityId, Filter filter, List<SortBy> sortBy) {
         if (sortBy == null) {
@@ -984,8 +2434,15 @@ public class LocalEntityProvider<T> implements EntityProvider<T>, Serializable {
      * @see com.vaadin.addon.jpacontainer.EntityProvider#refresh()
      */
     public void refresh() {
-        // Nothing to do in this implementation, since we don't keep any
-        // items/entities cached.
+        // No items/entities are cached in this implementation, only the
+        // positions used for keyset pagination, the counts remembered by
+        // the count strategy and the results shared with other providers.
+        clearKeysetBoundaries();
+        resetCountStrategy();
+        SharedQueryCache cache = sharedQueryCache;
+        if (cache != null) {
+            cache.invalidate(getEntityClassMetadata().getMappedClass());
+        }
     }
 
  
@@ -275,7 +275,10 @@ public class MutableLocalEntityProvider<T> extends LocalEntityProvider<T>
 
     /**
      * Sends <code>event</code> to all registered listeners if
-     * {@link #isFireEntityProviderChangeEvent() } is true.
+     * {@link #isFireEntityProviderChangeEvent() } is true. The positions
+     * remembered for keyset pagination are discarded, the count strategy is
+     * reset and the results cached in {@link SharedQueryCache}s for the
+     * entity class are discarded in any case.
      * 
      * @param event
      *            the event to send (must not be null).
@@ -283,6 +286,10 @@ public class MutableLocalEntityProvider<T> extends LocalEntityProvider<T>
     @SuppressWarnings("unchecked")
     protected void fireEntityProviderChangeEvent(
             final EntityProviderChangeEvent<T> event) {
+        clearKeysetBoundaries();
+        resetCountStrategy();
+        SharedQueryCache.entitiesChanged(getEntityClassMetadata()
+                .getMappedClass());
         LinkedList<WeakReference<EntityProviderChangeListener<T>>> list;
         synchronized (getListeners()) {
             assert event != null : "event must not be null";
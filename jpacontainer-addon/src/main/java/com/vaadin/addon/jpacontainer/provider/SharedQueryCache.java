@@ -0,0 +1,303 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.provider;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import com.vaadin.addon.jpacontainer.SortBy;
+import com.vaadin.addon.jpacontainer.filter.JoinFilter;
+import com.vaadin.addon.jpacontainer.filter.util.FilterConverter;
+import com.vaadin.addon.jpacontainer.provider.CachingSupport.CacheMap;
+import com.vaadin.data.Container.Filter;
+
+/**
+ * A thread safe cache for query results that is shared by several
+ * {@link LocalEntityProvider}s, typically the read-only providers of many
+ * containers in different sessions showing the same data. The entity counts
+ * and the ranges of entity identifiers are cached, keyed by entity class,
+ * filter, sort order and range. Entities are not shared, as they are not
+ * immutable; each provider still loads them itself (and caches them, if it is
+ * a caching provider).
+ * <p>
+ * When a {@link MutableLocalEntityProvider} in the same JVM changes entities
+ * of a class, the cached results of that class (including its super- and
+ * subclasses) are discarded from all shared query caches. So are the results
+ * whose filter or sort order refers to properties of other entities, as
+ * these may depend on the changed entities. Changes made behind the back of
+ * the mutable entity providers, e.g. by other applications, are only noticed
+ * when the cached results expire (see {@link #getTimeToLive()}).
+ *
+ * @see LocalEntityProvider#setSharedQueryCache(SharedQueryCache)
+ * @since 3.2
+ */
+public class SharedQueryCache {
+
+    /**
+     * The default maximum number of results to keep in a cache.
+     */
+    public static final int DEFAULT_MAX_SIZE = 1000;
+
+    /**
+     * All the caches in the JVM, for the invalidation triggered by
+     * {@link #entitiesChanged(Class)}.
+     */
+    private static final Set<SharedQueryCache> instances = Collections
+            .newSetFromMap(new WeakHashMap<SharedQueryCache, Boolean>());
+    private static SharedQueryCache defaultInstance;
+
+    private final int maxSize;
+    private final long timeToLive;
+    private final Map<Object, CachedResult> results;
+    private long generation = 0;
+
+    /**
+     * A cached query result, and what it depends on.
+     */
+    private static class CachedResult {
+        final Object value;
+        final Class<?> entityClass;
+        final boolean dependsOnOtherEntities;
+        final long loadTime;
+
+        CachedResult(Object value, Class<?> entityClass,
+                boolean dependsOnOtherEntities, long loadTime) {
+            this.value = value;
+            this.entityClass = entityClass;
+            this.dependsOnOtherEntities = dependsOnOtherEntities;
+            this.loadTime = loadTime;
+        }
+    }
+
+    /**
+     * Creates a new <code>SharedQueryCache</code> that keeps at most
+     * {@link #DEFAULT_MAX_SIZE} results, which never expire.
+     */
+    public SharedQueryCache() {
+        this(DEFAULT_MAX_SIZE, -1);
+    }
+
+    /**
+     * Creates a new <code>SharedQueryCache</code>.
+     *
+     * @param maxSize
+     *            the maximum number of results to keep, or -1 for unlimited
+     *            size.
+     * @param timeToLive
+     *            the time in milliseconds after which cached results expire,
+     *            or -1 to never expire.
+     */
+    public SharedQueryCache(int maxSize, long timeToLive) {
+        this.maxSize = maxSize;
+        this.timeToLive = timeToLive;
+        this.results = new CacheMap<Object, CachedResult>(maxSize);
+        synchronized (instances) {
+            instances.add(this);
+        }
+    }
+
+    /**
+     * Gets the default cache of the JVM, creating it if necessary. The
+     * default cache keeps at most {@link #DEFAULT_MAX_SIZE} results, which
+     * never expire.
+     *
+     * @return the default cache (never null).
+     */
+    public static synchronized SharedQueryCache getDefault() {
+        if (defaultInstance == null) {
+            defaultInstance = new SharedQueryCache();
+        }
+        return defaultInstance;
+    }
+
+    /**
+     * Discards the cached results that may depend on entities of
+     * <code>entityClass</code> from all the caches in the JVM. This is called
+     * by {@link MutableLocalEntityProvider} whenever it changes entities.
+     *
+     * @param entityClass
+     *            the class of the changed entities (must not be null).
+     */
+    public static void entitiesChanged(Class<?> entityClass) {
+        assert entityClass != null : "entityClass must not be null";
+        List<SharedQueryCache> caches;
+        synchronized (instances) {
+            if (instances.isEmpty()) {
+                return;
+            }
+            caches = new ArrayList<SharedQueryCache>(instances);
+        }
+        for (SharedQueryCache cache : caches) {
+            cache.invalidate(entityClass);
+        }
+    }
+
+    /**
+     * Gets the maximum number of results kept in this cache.
+     *
+     * @return the maximum size, or -1 for unlimited size.
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Gets the time after which cached results expire.
+     *
+     * @return the time to live in milliseconds, or -1 if the results never
+     *         expire.
+     */
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    /**
+     * Gets the number of results currently in the cache, including expired
+     * results that have not been discarded yet.
+     *
+     * @return the number of cached results.
+     */
+    public synchronized int size() {
+        return results.size();
+    }
+
+    /**
+     * Discards the cached results that may depend on entities of
+     * <code>entityClass</code>.
+     *
+     * @param entityClass
+     *            the class of the changed entities (must not be null).
+     */
+    public synchronized void invalidate(Class<?> entityClass) {
+        assert entityClass != null : "entityClass must not be null";
+        generation++;
+        for (Iterator<CachedResult> it = results.values().iterator(); it
+                .hasNext();) {
+            CachedResult result = it.next();
+            if (result.dependsOnOtherEntities
+                    || result.entityClass.isAssignableFrom(entityClass)
+                    || entityClass.isAssignableFrom(result.entityClass)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Discards all the cached results.
+     */
+    public synchronized void clear() {
+        generation++;
+        results.clear();
+    }
+
+    /**
+     * Gets the current generation of the cache, which changes whenever
+     * results are invalidated. A result must only be
+     * {@link #put(Object, Object, Class, Filter, List, long) put} into the
+     * cache if it was loaded within the same generation, as it may otherwise
+     * be out of date already.
+     */
+    synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Gets the result cached under <code>key</code>.
+     *
+     * @return the result, or null if there is no result or it has expired.
+     */
+    synchronized Object get(Object key) {
+        CachedResult result = results.get(key);
+        if (result == null) {
+            return null;
+        }
+        if (CachingSupport.isExpired(result.loadTime, timeToLive)) {
+            results.remove(key);
+            return null;
+        }
+        return result.value;
+    }
+
+    /**
+     * Caches <code>value</code> under <code>key</code>, unless the cache has
+     * been invalidated since <code>generation</code>.
+     *
+     * @param key
+     *            the key, consisting of the entity class, the filter, the
+     *            sort order and the range (must not be null).
+     * @param value
+     *            the immutable result to cache (must not be null).
+     * @param entityClass
+     *            the class of the queried entities (must not be null).
+     * @param filter
+     *            the filter of the query (may be null).
+     * @param sortBy
+     *            the sort order of the query (may be null).
+     * @param generation
+     *            the generation of the cache when the result was loaded.
+     */
+    synchronized void put(Object key, Object value, Class<?> entityClass,
+            Filter filter, List<SortBy> sortBy, long generation) {
+        if (generation != this.generation) {
+            return;
+        }
+        results.put(key, new CachedResult(value, entityClass,
+                dependsOnOtherEntities(filter, sortBy), System
+                        .currentTimeMillis()));
+    }
+
+    /**
+     * Checks whether the result of a query with <code>filter</code> and
+     * <code>sortBy</code> may depend on other entities than those of the
+     * queried class, i.e. whether they refer to nested properties or use
+     * {@link JoinFilter}s.
+     */
+    static boolean dependsOnOtherEntities(Filter filter, List<SortBy> sortBy) {
+        if (sortBy != null) {
+            for (SortBy sb : sortBy) {
+                if (sb.getPropertyId().toString().indexOf('.') != -1) {
+                    return true;
+                }
+            }
+        }
+        if (filter == null) {
+            return false;
+        }
+        return refersToOtherEntities(FilterConverter.getShape(filter,
+                new ArrayList<Object>()));
+    }
+
+    private static boolean refersToOtherEntities(Object shape) {
+        if (shape == JoinFilter.class) {
+            return true;
+        } else if (shape instanceof String) {
+            return ((String) shape).indexOf('.') != -1;
+        } else if (shape instanceof Collection<?>) {
+            for (Object o : (Collection<?>) shape) {
+                if (refersToOtherEntities(o)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -247,6 +247,60 @@ public class JPAContainerItemTest {
         assertNull(item.getItemProperty("address.postalCode"));
     }
 
+    @Test
+    public void testContainerNestedPropertyAddedLater() {
+        Collection<String> propertyIds = item.getItemPropertyIds();
+        assertNull(item.getItemProperty("manager.firstName"));
+
+        container.addNestedContainerProperty("manager.firstName");
+
+        assertNotNull(item.getItemProperty("manager.firstName"));
+        assertTrue(item.getItemPropertyIds().contains("manager.firstName"));
+        // Previously returned IDs are not a live view of the container
+        assertFalse(propertyIds.contains("manager.firstName"));
+
+        // Also seen by items that have nested properties of their own
+        item.addNestedContainerProperty("address.postalCode");
+        container.addNestedContainerProperty("manager.lastName");
+        assertNotNull(item.getItemProperty("manager.lastName"));
+        assertTrue(item.getItemPropertyIds().contains("manager.lastName"));
+    }
+
+    @Test
+    public void testItemNestedPropertyIsNotShared() {
+        Person otherEntity = new Person();
+        otherEntity.setId(125l);
+        otherEntity.setAddress(new Address());
+        JPAContainerItem<Person> otherItem = new JPAContainerItem<Person>(
+                container, otherEntity);
+
+        item.addNestedContainerProperty("address.postalCode");
+
+        assertNotNull(item.getItemProperty("address.postalCode"));
+        assertTrue(item.getItemPropertyIds().contains("address.postalCode"));
+        assertNull(otherItem.getItemProperty("address.postalCode"));
+        assertFalse(otherItem.getItemPropertyIds().contains(
+                "address.postalCode"));
+        assertFalse(container.getContainerPropertyIds().contains(
+                "address.postalCode"));
+        assertFalse(container.getPropertyList().isAvailableProperty(
+                "address.postalCode"));
+        assertNull(new JPAContainerItem<Person>(container, otherEntity)
+                .getItemProperty("address.postalCode"));
+    }
+
+    @Test
+    public void testRemoveContainerNestedProperty() {
+        assertFalse(item.removeItemProperty("address.street"));
+        assertNotNull(item.getItemProperty("address.street"));
+
+        item.addNestedContainerProperty("address.postalCode");
+        assertFalse(item.removeItemProperty("address.street"));
+        assertNotNull(item.getItemProperty("address.street"));
+        assertTrue(container.getContainerPropertyIds().contains(
+                "address.street"));
+    }
+
     @Test
     public void testPropertyValue_Unbuffered() {
         final Property prop = item.getItemProperty("firstName");
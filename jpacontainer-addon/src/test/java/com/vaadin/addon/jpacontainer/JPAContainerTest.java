@@ -36,6 +36,7 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
@@ -590,6 +591,126 @@ public class JPAContainerTest {
         verify(batchableEntityProviderMock);
     }
 
+    @Test
+    public void testGetItemIdsRange_PrefetchesEntities() {
+        Person p1 = new Person();
+        p1.setId(1l);
+        p1.setFirstName("Joe");
+        Person p2 = new Person();
+        p2.setId(2l);
+        p2.setFirstName("Jane");
+        List<Object> idList = Arrays.asList(new Object[] { 1l, 2l });
+
+        expect(
+                entityProviderMock.getEntitiesAt(container, null,
+                        new LinkedList<SortBy>(), 0, 2)).andReturn(
+                Arrays.asList(p1, p2));
+        expect(entityProviderMock.getEntity(container, 3l)).andReturn(null);
+        replay(entityProviderMock);
+
+        container.setEntityProvider(entityProviderMock);
+        container.setWriteThrough(true);
+
+        assertEquals(idList, container.getItemIds(0, 2));
+        // The items should be served from the prefetched entities
+        assertSame(p1, container.getItem(1l).getEntity());
+        assertSame(p2, container.getItem(2l).getEntity());
+        assertEquals("Jane", container.getContainerProperty(2l, "firstName")
+                .getValue());
+        assertNull(container.getItem(3l));
+
+        verify(entityProviderMock);
+    }
+
+    @Test
+    public void testGetItemIdsRange_NoPrefetch() {
+        List<Object> idList = Arrays.asList(new Object[] { 1l, 2l });
+
+        expect(
+                entityProviderMock.getEntityIdentifierAt(container, null,
+                        new LinkedList<SortBy>(), 0, 2)).andReturn(idList);
+        replay(entityProviderMock);
+
+        container.setEntityProvider(entityProviderMock);
+        container.setWriteThrough(true);
+        container.setPrefetchEntities(false);
+
+        assertEquals(idList, container.getItemIds(0, 2));
+
+        verify(entityProviderMock);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testGetItemIdsRange_Projection() {
+        ProjectingEntityProvider<Person> projectingEntityProviderMock = createMock(ProjectingEntityProvider.class);
+        expect(projectingEntityProviderMock.getLazyLoadingDelegate())
+                .andStubReturn(null);
+        Person p1 = new Person();
+        p1.setId(1l);
+        p1.setFirstName("Joe");
+        Person p2 = new Person();
+        p2.setId(2l);
+
+        container.setEntityProvider(projectingEntityProviderMock);
+        container.setWriteThrough(true);
+        container.setProjectionEnabled(true);
+        expect(
+                projectingEntityProviderMock.getProjectedEntitiesAt(container,
+                        null, new LinkedList<SortBy>(), 0, 1,
+                        container.getContainerPropertyIds())).andReturn(
+                Arrays.asList(p1));
+        expect(
+                projectingEntityProviderMock.getProjectedEntity(container, 2l,
+                        container.getContainerPropertyIds())).andReturn(p2);
+        replay(projectingEntityProviderMock);
+
+        assertEquals(Arrays.asList(new Object[] { 1l }),
+                container.getItemIds(0, 1));
+        EntityItem<Person> item = container.getItem(1l);
+        assertSame(p1, item.getEntity());
+        assertEquals("Joe", item.getItemProperty("firstName").getValue());
+        // Projections are read only
+        assertTrue(item.getItemProperty("firstName").isReadOnly());
+        assertTrue(container.getItem(2l).getItemProperty("lastName")
+                .isReadOnly());
+
+        verify(projectingEntityProviderMock);
+    }
+
+    @Test
+    public void testVisitEntities() {
+        Person p1 = new Person();
+        p1.setId(1l);
+        Person p2 = new Person();
+        p2.setId(2l);
+
+        container.setEntityProvider(entityProviderMock);
+        expect(
+                entityProviderMock.getEntitiesAt(container, null,
+                        new LinkedList<SortBy>(), 0, 500)).andReturn(
+                Arrays.asList(p1, p2)).times(2);
+        replay(entityProviderMock);
+
+        final List<Person> visited = new ArrayList<Person>();
+        assertEquals(2, container.visitEntities(new EntityVisitor<Person>() {
+            public boolean visit(Person entity) {
+                visited.add(entity);
+                return true;
+            }
+        }));
+        assertEquals(Arrays.asList(p1, p2), visited);
+
+        // The visitor can stop the iteration
+        assertEquals(1, container.visitEntities(new EntityVisitor<Person>() {
+            public boolean visit(Person entity) {
+                return false;
+            }
+        }));
+
+        verify(entityProviderMock);
+    }
+
     @Test
     public void testGetItem_Null() {
         assertNull(container.getItem(null));
@@ -0,0 +1,81 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vaadin.addon.jpacontainer.filter.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.vaadin.data.util.filter.And;
+import com.vaadin.data.util.filter.Between;
+import com.vaadin.data.util.filter.Compare.Equal;
+import com.vaadin.data.util.filter.Compare.Greater;
+import com.vaadin.data.util.filter.Not;
+import com.vaadin.data.util.filter.SimpleStringFilter;
+
+/**
+ * Test case for {@link FilterConverter}.
+ *
+ * @since 3.2
+ */
+public class FilterConverterTest {
+
+    @Test
+    public void testGetShape_SameStructure() {
+        List<Object> values1 = new ArrayList<Object>();
+        List<Object> values2 = new ArrayList<Object>();
+        Object shape1 = FilterConverter.getShape(new And(new Equal("firstName",
+                "Joe"), new Not(new Between("age", 10, 20)),
+                new SimpleStringFilter("lastName", "sm", true, true)), values1);
+        Object shape2 = FilterConverter.getShape(new And(new Equal("firstName",
+                "Maxwell"), new Not(new Between("age", 30, 40)),
+                new SimpleStringFilter("lastName", "jo", true, true)), values2);
+        assertEquals(shape1, shape2);
+        assertEquals(shape1.hashCode(), shape2.hashCode());
+        // The values are listed in the order the parameters are created
+        assertEquals(Arrays.<Object> asList("Joe", 10, 20, "sm%"), values1);
+        assertEquals(Arrays.<Object> asList("Maxwell", 30, 40, "jo%"), values2);
+    }
+
+    @Test
+    public void testGetShape_DifferentStructure() {
+        List<Object> values = new ArrayList<Object>();
+        Object shape = FilterConverter.getShape(new Equal("firstName", "Joe"),
+                values);
+        assertFalse(shape.equals(FilterConverter.getShape(new Greater(
+                "firstName", "Joe"), values)));
+        assertFalse(shape.equals(FilterConverter.getShape(new Equal(
+                "lastName", "Joe"), values)));
+        // The type of the parameter depends on the value
+        assertFalse(shape.equals(FilterConverter.getShape(new Equal(
+                "firstName", 1), values)));
+        // "= null" is converted into IS NULL
+        assertFalse(shape.equals(FilterConverter.getShape(new Equal(
+                "firstName", null), values)));
+        assertFalse(shape.equals(FilterConverter.getShape(new And(new Equal(
+                "firstName", "Joe")), values)));
+        assertFalse(FilterConverter.getShape(
+                new SimpleStringFilter("lastName", "sm", true, true), values)
+                .equals(FilterConverter.getShape(new SimpleStringFilter(
+                        "lastName", "sm", false, true), values)));
+    }
+}
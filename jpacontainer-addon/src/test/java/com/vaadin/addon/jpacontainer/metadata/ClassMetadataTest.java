@@ -299,6 +299,137 @@ public class ClassMetadataTest {
 		assertEquals("Hello", person.getAddress().getStreet());
 	}
 
+	/**
+	 * Creates metadata for {@link Person_F} where the parent has the same
+	 * metadata and the transient address has none.
+	 */
+	private ClassMetadata<Person_F> createNestedMetadata() throws Exception {
+		ClassMetadata<Person_F> metadata = new ClassMetadata<Person_F>(
+				Person_F.class);
+		metadata.addProperties(new PersistentPropertyMetadata("firstName",
+				String.class, PropertyKind.SIMPLE, Person_F.class
+						.getDeclaredField("firstName"), null),
+				new PersistentPropertyMetadata("parent", metadata,
+						PropertyKind.MANY_TO_ONE, Person_F.class
+								.getDeclaredField("parent"), null),
+				new PropertyMetadata("transientAddress", Address_M.class,
+						Person_F.class.getDeclaredMethod("getTransientAddress"),
+						Person_F.class.getDeclaredMethod("setTransientAddress",
+								Address_M.class)));
+		return metadata;
+	}
+
+	@Test
+	public void testNestedPropertyValueThroughMixedClasses() throws Exception {
+		ClassMetadata<Person_F> metadata = createNestedMetadata();
+
+		Person_F person = new Person_F();
+		person.parent = new Person_F();
+		person.parent.setTransientAddress(new Address_M());
+
+		// With metadata, with metadata, without metadata
+		metadata.setPropertyValue(person, "parent.transientAddress.street",
+				"Street");
+		assertEquals("Street", person.parent.getTransientAddress().getStreet());
+		assertEquals("Street", metadata.getPropertyValue(person,
+				"parent.transientAddress.street"));
+
+		metadata.setPropertyValue(person, "parent.firstName", "Hello");
+		assertEquals("Hello", person.parent.firstName);
+		assertEquals("Hello", metadata.getPropertyValue(person,
+				"parent.firstName"));
+
+		// The resolved path is reused for other objects
+		Person_F other = new Person_F();
+		assertNull(metadata.getPropertyValue(other,
+				"parent.transientAddress.street"));
+		other.parent = person.parent;
+		assertEquals("Street", metadata.getPropertyValue(other,
+				"parent.transientAddress.street"));
+	}
+
+	@Test
+	public void testInvalidNestedPropertyNameIsReportedOnAccess()
+			throws Exception {
+		ClassMetadata<Person_F> metadata = createNestedMetadata();
+		Person_F person = new Person_F();
+
+		// The invalid name is never reached
+		assertNull(metadata.getPropertyValue(person,
+				"transientAddress.nonexistent"));
+		assertNull(metadata.getPropertyValue(person, "parent.nonexistent"));
+
+		person.setTransientAddress(new Address_M());
+		person.parent = new Person_F();
+		try {
+			metadata.getPropertyValue(person, "transientAddress.nonexistent");
+			fail("No exception thrown");
+		} catch (IllegalArgumentException e) {
+			// OK
+		}
+		try {
+			metadata.getPropertyValue(person, "parent.nonexistent");
+			fail("No exception thrown");
+		} catch (IllegalArgumentException e) {
+			// OK
+		}
+		try {
+			metadata.setPropertyValue(person, "transientAddress.nonexistent",
+					"Hello");
+			fail("No exception thrown");
+		} catch (IllegalArgumentException e) {
+			// OK
+		}
+	}
+
+	@Test
+	public void testSetNestedPropertyValueWithNullInChain() throws Exception {
+		ClassMetadata<Person_F> metadata = createNestedMetadata();
+		Person_F person = new Person_F();
+
+		try {
+			metadata.setPropertyValue(person, "transientAddress.street",
+					"Street");
+			fail("No exception thrown");
+		} catch (IllegalStateException e) {
+			// OK
+		}
+		try {
+			metadata.setPropertyValue(person, "parent.firstName", "Hello");
+			fail("No exception thrown");
+		} catch (IllegalStateException e) {
+			// OK
+		}
+		person.parent = new Person_F();
+		try {
+			metadata.setPropertyValue(person,
+					"parent.transientAddress.street", "Street");
+			fail("No exception thrown");
+		} catch (IllegalStateException e) {
+			// OK
+		}
+	}
+
+	@Test
+	public void testResolvedPathsAreResetWhenPropertiesAreAdded()
+			throws Exception {
+		ClassMetadata<Person_F> metadata = new ClassMetadata<Person_F>(
+				Person_F.class);
+		Person_F person = new Person_F();
+		person.firstName = "Hello";
+		try {
+			metadata.getPropertyValue(person, "firstName");
+			fail("No exception thrown");
+		} catch (IllegalArgumentException e) {
+			// OK
+		}
+
+		metadata.addProperties(new PersistentPropertyMetadata("firstName",
+				String.class, PropertyKind.SIMPLE, Person_F.class
+						.getDeclaredField("firstName"), null));
+		assertEquals("Hello", metadata.getPropertyValue(person, "firstName"));
+	}
+
 	// TODO Add test for equals() and hashCode()
 	@Test
 	public void testEqualsAndHashCode() throws Exception {
@@ -16,30 +16,74 @@
 
 package com.vaadin.addon.jpacontainer.metadata;
 
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.getCurrentArguments;
+import static org.easymock.EasyMock.replay;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.beans.Introspector;
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
+import javax.persistence.ElementCollection;
+import javax.persistence.Embeddable;
+import javax.persistence.Embedded;
+import javax.persistence.EmbeddedId;
+import javax.persistence.Entity;
+import javax.persistence.EntityManagerFactory;
 import javax.persistence.Id;
+import javax.persistence.ManyToMany;
+import javax.persistence.ManyToOne;
+import javax.persistence.OneToMany;
+import javax.persistence.OneToOne;
+import javax.persistence.Transient;
 import javax.persistence.Version;
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.Attribute.PersistentAttributeType;
+import javax.persistence.metamodel.EmbeddableType;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.ManagedType;
+import javax.persistence.metamodel.MappedSuperclassType;
+import javax.persistence.metamodel.Metamodel;
+import javax.persistence.metamodel.PluralAttribute;
+import javax.persistence.metamodel.SingularAttribute;
 
+import org.easymock.IAnswer;
 import org.junit.Before;
 import org.junit.Test;
 
 import com.vaadin.addon.jpacontainer.metadata.TestClasses.Address_F;
 import com.vaadin.addon.jpacontainer.metadata.TestClasses.Address_M;
+import com.vaadin.addon.jpacontainer.metadata.TestClasses.BaseEntity_F;
+import com.vaadin.addon.jpacontainer.metadata.TestClasses.BaseEntity_M;
+import com.vaadin.addon.jpacontainer.metadata.TestClasses.BaseEntity_TransientId_M;
+import com.vaadin.addon.jpacontainer.metadata.TestClasses.BrokenReference_F;
 import com.vaadin.addon.jpacontainer.metadata.TestClasses.Data_D;
 import com.vaadin.addon.jpacontainer.metadata.TestClasses.EmbeddedIdEntity_F;
 import com.vaadin.addon.jpacontainer.metadata.TestClasses.EmbeddedIdEntity_M;
 import com.vaadin.addon.jpacontainer.metadata.TestClasses.Integer_ConcreteId_M;
+import com.vaadin.addon.jpacontainer.metadata.TestClasses.Member_F;
 import com.vaadin.addon.jpacontainer.metadata.TestClasses.Person_F;
 import com.vaadin.addon.jpacontainer.metadata.TestClasses.Person_M;
+import com.vaadin.addon.jpacontainer.metadata.TestClasses.Team_F;
 import com.vaadin.addon.jpacontainer.testdata.Data;
 
 /**
@@ -362,4 +406,378 @@ public class MetadataFactoryTest {
         Class<?> type = metadata.getProperty("manyToMany").getType();
         assertEquals(Set.class, type);
     }
+
+    @Test
+    public void testGetMetadataFromMetamodel_Fields() {
+        EntityClassMetadata<Person_F> metadata = assertMetamodelMatchesScan(
+                Person_F.class, PersistentPropertyMetadata.AccessType.FIELD,
+                BaseEntity_F.class, Person_F.class, Address_F.class);
+
+        assertEquals("Person_F", metadata.getEntityName());
+        assertEquals("id", metadata.getIdentifierProperty().getName());
+        assertEquals("version", metadata.getVersionProperty().getName());
+        assertEquals(PropertyKind.SIMPLE,
+                getPersistentProperty(metadata, "firstName").getPropertyKind());
+        assertEquals(PropertyKind.EMBEDDED,
+                getPersistentProperty(metadata, "address").getPropertyKind());
+        assertEquals(PropertyKind.ONE_TO_MANY,
+                getPersistentProperty(metadata, "children").getPropertyKind());
+        assertEquals(PropertyKind.MANY_TO_ONE,
+                getPersistentProperty(metadata, "parent").getPropertyKind());
+        assertSame(metadata, getPersistentProperty(metadata, "parent")
+                .getTypeMetadata());
+
+        // Getters are transient, also in the mapped superclass
+        assertTransient(metadata, "transientBaseField");
+        assertTransient(metadata, "transientField3");
+        assertTransient(metadata, "transientField4");
+        assertTransient(metadata, "transientAddress");
+        assertNull(metadata.getProperty("transientField"));
+        assertNull(metadata.getProperty("transientField2"));
+
+        // Fields and getters are added in the same order as when scanning
+        assertEquals(
+                new ArrayList<String>(new MetadataFactory()
+                        .getEntityClassMetadata(Person_F.class)
+                        .getPropertyNames()),
+                new ArrayList<String>(metadata.getPropertyNames()));
+    }
+
+    @Test
+    public void testGetMetadataFromMetamodel_Methods() {
+        EntityClassMetadata<Person_M> metadata = assertMetamodelMatchesScan(
+                Person_M.class, PersistentPropertyMetadata.AccessType.METHOD,
+                BaseEntity_M.class, Person_M.class, Address_M.class);
+
+        assertEquals("Person_M", metadata.getEntityName());
+        assertEquals("id", metadata.getIdentifierProperty().getName());
+        assertEquals("version", metadata.getVersionProperty().getName());
+        assertEquals(PropertyKind.SIMPLE,
+                getPersistentProperty(metadata, "lastName").getPropertyKind());
+        assertEquals(PropertyKind.EMBEDDED,
+                getPersistentProperty(metadata, "address").getPropertyKind());
+        assertEquals(PropertyKind.ONE_TO_MANY,
+                getPersistentProperty(metadata, "children").getPropertyKind());
+        assertEquals(PropertyKind.MANY_TO_ONE,
+                getPersistentProperty(metadata, "parent").getPropertyKind());
+        assertEquals(PersistentPropertyMetadata.AccessType.METHOD,
+                getPersistentProperty(metadata, "firstName").getAccessType());
+
+        assertTransient(metadata, "transientBaseField");
+        assertTransient(metadata, "transientField");
+        assertTransient(metadata, "transientField2");
+        assertTrue(metadata.getProperty("transientField2").isWritable());
+    }
+
+    @Test
+    public void testGetEmbeddedIdFromMetamodel_Fields() {
+        EntityClassMetadata<EmbeddedIdEntity_F> metadata = assertMetamodelMatchesScan(
+                EmbeddedIdEntity_F.class,
+                PersistentPropertyMetadata.AccessType.FIELD,
+                EmbeddedIdEntity_F.class, Address_F.class);
+        assertTrue(metadata.hasEmbeddedIdentifier());
+        assertFalse(metadata.hasVersionProperty());
+        assertEquals(Address_F.class, metadata.getIdentifierProperty()
+                .getTypeMetadata().getMappedClass());
+    }
+
+    @Test
+    public void testGetEmbeddedIdFromMetamodel_Methods() {
+        EntityClassMetadata<EmbeddedIdEntity_M> metadata = assertMetamodelMatchesScan(
+                EmbeddedIdEntity_M.class,
+                PersistentPropertyMetadata.AccessType.METHOD,
+                EmbeddedIdEntity_M.class, Address_M.class);
+        assertTrue(metadata.hasEmbeddedIdentifier());
+        assertFalse(metadata.hasVersionProperty());
+        assertEquals(Address_M.class, metadata.getIdentifierProperty()
+                .getTypeMetadata().getMappedClass());
+    }
+
+    @Test
+    public void testGetMetadataFromMetamodel_SubclassOverridesSuperclass() {
+        EntityClassMetadata<Integer_ConcreteId_M> metadata = assertMetamodelMatchesScan(
+                Integer_ConcreteId_M.class,
+                PersistentPropertyMetadata.AccessType.METHOD,
+                BaseEntity_TransientId_M.class, Integer_ConcreteId_M.class);
+        assertEquals(1, metadata.getProperties().size());
+        assertEquals(Integer.class, metadata.getIdentifierProperty().getType());
+    }
+
+    @Test
+    public void testGetMetadataOfReferenceCycle() {
+        MetadataFactory factory = new MetadataFactory();
+        assertReferenceCycle(factory, factory.getEntityClassMetadata(
+                Team_F.class));
+    }
+
+    @Test
+    public void testGetMetadataOfReferenceCycleFromMetamodel() {
+        MetadataFactory factory = new MetadataFactory();
+        assertReferenceCycle(factory, factory.getEntityClassMetadata(
+                Team_F.class, createMetamodel(
+                        PersistentPropertyMetadata.AccessType.FIELD,
+                        Team_F.class, Member_F.class)));
+    }
+
+    private static void assertReferenceCycle(MetadataFactory factory,
+            EntityClassMetadata<Team_F> team) {
+        ClassMetadata<?> member = getPersistentProperty(team, "leader")
+                .getTypeMetadata();
+        assertEquals(Member_F.class, member.getMappedClass());
+        assertSame(team, getPersistentProperty(member, "team")
+                .getTypeMetadata());
+
+        // Both ends are published, and only once they are complete
+        assertSame(team, factory.getEntityClassMetadata(Team_F.class));
+        assertSame(member, factory.getEntityClassMetadata(Member_F.class));
+        assertEquals("id", factory.getEntityClassMetadata(Member_F.class)
+                .getIdentifierProperty().getName());
+    }
+
+    @Test
+    public void testFailedMetadataIsNotPublished() {
+        MetadataFactory factory = new MetadataFactory();
+        try {
+            factory.getEntityClassMetadata(BrokenReference_F.class);
+            fail("No exception thrown");
+        } catch (IllegalArgumentException e) {
+            // OK
+        }
+        // Nothing was cached, so the failure is repeated
+        try {
+            factory.getEntityClassMetadata(BrokenReference_F.class);
+            fail("No exception thrown");
+        } catch (IllegalArgumentException e) {
+            // OK
+        }
+        // The metadata of the cycle is built anew
+        assertReferenceCycle(factory,
+                factory.getEntityClassMetadata(Team_F.class));
+    }
+
+    @Test
+    public void testWarmUp() {
+        Metamodel metamodel = createMetamodel(
+                PersistentPropertyMetadata.AccessType.FIELD,
+                BaseEntity_F.class, Person_F.class, Address_F.class,
+                Team_F.class, Member_F.class, BrokenReference_F.class);
+        EntityManagerFactory entityManagerFactory = createNiceMock(EntityManagerFactory.class);
+        expect(entityManagerFactory.getMetamodel()).andStubReturn(metamodel);
+        replay(entityManagerFactory);
+
+        MetadataFactory factory = new MetadataFactory();
+        List<EntityClassMetadata<?>> metadata = factory
+                .warmUp(entityManagerFactory);
+
+        // The broken entity is skipped
+        Set<Class<?>> mappedClasses = new HashSet<Class<?>>();
+        for (EntityClassMetadata<?> ecm : metadata) {
+            mappedClasses.add(ecm.getMappedClass());
+            assertSame(ecm,
+                    factory.getEntityClassMetadata(ecm.getMappedClass()));
+        }
+        assertEquals(new HashSet<Class<?>>(Arrays.<Class<?>> asList(
+                Person_F.class, Team_F.class, Member_F.class)), mappedClasses);
+        assertEquals(
+                new MetadataFactory().getEntityClassMetadata(Person_F.class),
+                factory.getEntityClassMetadata(Person_F.class));
+    }
+
+    /**
+     * Asserts that the metadata of <code>entityClass</code> read from a
+     * metamodel of <code>managedClasses</code> is the same as the metadata
+     * scanned from the annotations, and returns the former.
+     */
+    private static <T> EntityClassMetadata<T> assertMetamodelMatchesScan(
+            Class<T> entityClass,
+            PersistentPropertyMetadata.AccessType accessType,
+            Class<?>... managedClasses) {
+        // Use new factories, the metadata of the instance is cached
+        EntityClassMetadata<T> scanned = new MetadataFactory()
+                .getEntityClassMetadata(entityClass);
+        EntityClassMetadata<T> metadata = new MetadataFactory()
+                .getEntityClassMetadata(entityClass,
+                        createMetamodel(accessType, managedClasses));
+        assertEquals(scanned, metadata);
+
+        // equals() checks neither the order nor the embedded metadata
+        assertEquals(
+                new ArrayList<String>(scanned.getPersistentPropertyNames()),
+                new ArrayList<String>(metadata.getPersistentPropertyNames()));
+        for (PersistentPropertyMetadata pm : scanned.getPersistentProperties()) {
+            if (pm.getPropertyKind() == PropertyKind.EMBEDDED) {
+                assertEquals(pm.getTypeMetadata(),
+                        getPersistentProperty(metadata, pm.getName())
+                                .getTypeMetadata());
+            }
+        }
+        return metadata;
+    }
+
+    private static PersistentPropertyMetadata getPersistentProperty(
+            ClassMetadata<?> metadata, String propertyName) {
+        return (PersistentPropertyMetadata) metadata
+                .getProperty(propertyName);
+    }
+
+    private static void assertTransient(ClassMetadata<?> metadata,
+            String propertyName) {
+        assertNotNull(metadata.getProperty(propertyName));
+        assertFalse(metadata.getProperty(propertyName)
+                instanceof PersistentPropertyMetadata);
+    }
+
+    /**
+     * Creates a mock {@link Metamodel} of <code>managedClasses</code>, with the
+     * attributes a persistence provider would find from their annotations.
+     * The attributes are the fields or the getters of the classes depending on
+     * <code>accessType</code>.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    static Metamodel createMetamodel(
+            PersistentPropertyMetadata.AccessType accessType,
+            Class<?>... managedClasses) {
+        final Map<Class<?>, ManagedType<?>> managedTypes = new HashMap<Class<?>, ManagedType<?>>();
+        Set entityTypes = new HashSet();
+        for (Class<?> type : managedClasses) {
+            ManagedType<?> managedType = createManagedType(type, accessType);
+            managedTypes.put(type, managedType);
+            if (managedType instanceof EntityType) {
+                entityTypes.add(managedType);
+            }
+        }
+        Metamodel metamodel = createNiceMock(Metamodel.class);
+        expect(metamodel.managedType((Class) anyObject())).andStubAnswer(
+                new IAnswer() {
+                    public Object answer() throws Throwable {
+                        ManagedType<?> managedType = managedTypes
+                                .get(getCurrentArguments()[0]);
+                        if (managedType == null) {
+                            throw new IllegalArgumentException(
+                                    "Not a managed type");
+                        }
+                        return managedType;
+                    }
+                });
+        expect(metamodel.getEntities()).andStubReturn(entityTypes);
+        replay(metamodel);
+        return metamodel;
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static ManagedType<?> createManagedType(Class<?> type,
+            PersistentPropertyMetadata.AccessType accessType) {
+        ManagedType managedType;
+        if (type.getAnnotation(Entity.class) != null) {
+            EntityType entityType = createNiceMock(EntityType.class);
+            expect(entityType.getName()).andStubReturn(type.getSimpleName());
+            expect(entityType.hasSingleIdAttribute()).andStubReturn(true);
+            Set singularAttributes = new HashSet();
+            for (Class<?> c = type; c != Object.class; c = c.getSuperclass()) {
+                for (Attribute<?, ?> attribute : createAttributes(c,
+                        accessType)) {
+                    if (attribute instanceof SingularAttribute) {
+                        singularAttributes.add(attribute);
+                    }
+                }
+            }
+            expect(entityType.getSingularAttributes()).andStubReturn(
+                    singularAttributes);
+            managedType = entityType;
+        } else if (type.getAnnotation(Embeddable.class) != null) {
+            managedType = createNiceMock(EmbeddableType.class);
+        } else {
+            managedType = createNiceMock(MappedSuperclassType.class);
+        }
+        expect(managedType.getJavaType()).andStubReturn(type);
+        expect(managedType.getDeclaredAttributes()).andStubReturn(
+                createAttributes(type, accessType));
+        replay(managedType);
+        return managedType;
+    }
+
+    private static Set<Attribute<?, ?>> createAttributes(Class<?> type,
+            PersistentPropertyMetadata.AccessType accessType) {
+        Set<Attribute<?, ?>> attributes = new HashSet<Attribute<?, ?>>();
+        if (accessType == PersistentPropertyMetadata.AccessType.FIELD) {
+            for (Field f : type.getDeclaredFields()) {
+                int mod = f.getModifiers();
+                if (!Modifier.isStatic(mod) && !Modifier.isTransient(mod)
+                        && !f.isSynthetic()
+                        && f.getAnnotation(Transient.class) == null) {
+                    attributes.add(createAttribute(f.getName(), f,
+                            f.getType()));
+                }
+            }
+        } else {
+            for (Method m : type.getDeclaredMethods()) {
+                if (m.getName().startsWith("get") && !m.isSynthetic()
+                        && !Modifier.isStatic(m.getModifiers())
+                        && m.getParameterTypes().length == 0
+                        && m.getAnnotation(Transient.class) == null
+                        && hasSetter(type, m)) {
+                    attributes.add(createAttribute(Introspector
+                            .decapitalize(m.getName().substring(3)), m, m
+                            .getReturnType()));
+                }
+            }
+        }
+        return attributes;
+    }
+
+    private static boolean hasSetter(Class<?> type, Method getter) {
+        try {
+            type.getDeclaredMethod("set" + getter.getName().substring(3),
+                    getter.getReturnType());
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static Attribute<?, ?> createAttribute(String name,
+            AccessibleObject member, Class<?> javaType) {
+        PersistentAttributeType attributeType = PersistentAttributeType.BASIC;
+        if (member.getAnnotation(Embedded.class) != null
+                || member.getAnnotation(EmbeddedId.class) != null) {
+            attributeType = PersistentAttributeType.EMBEDDED;
+        } else if (member.getAnnotation(ManyToOne.class) != null) {
+            attributeType = PersistentAttributeType.MANY_TO_ONE;
+            if (member.getAnnotation(ManyToOne.class).targetEntity() != void.class) {
+                javaType = member.getAnnotation(ManyToOne.class)
+                        .targetEntity();
+            }
+        } else if (member.getAnnotation(OneToOne.class) != null) {
+            attributeType = PersistentAttributeType.ONE_TO_ONE;
+        } else if (member.getAnnotation(OneToMany.class) != null) {
+            attributeType = PersistentAttributeType.ONE_TO_MANY;
+        } else if (member.getAnnotation(ManyToMany.class) != null) {
+            attributeType = PersistentAttributeType.MANY_TO_MANY;
+        } else if (member.getAnnotation(ElementCollection.class) != null) {
+            attributeType = PersistentAttributeType.ELEMENT_COLLECTION;
+        }
+
+        Attribute attribute;
+        if (attributeType == PersistentAttributeType.ONE_TO_MANY
+                || attributeType == PersistentAttributeType.MANY_TO_MANY
+                || attributeType == PersistentAttributeType.ELEMENT_COLLECTION) {
+            attribute = createNiceMock(PluralAttribute.class);
+        } else {
+            SingularAttribute singularAttribute = createNiceMock(SingularAttribute.class);
+            expect(singularAttribute.isId()).andStubReturn(
+                    member.getAnnotation(Id.class) != null
+                            || member.getAnnotation(EmbeddedId.class) != null);
+            expect(singularAttribute.isVersion()).andStubReturn(
+                    member.getAnnotation(Version.class) != null);
+            attribute = singularAttribute;
+        }
+        expect(attribute.getName()).andStubReturn(name);
+        expect(attribute.getJavaMember()).andStubReturn(member);
+        expect(attribute.getPersistentAttributeType()).andStubReturn(
+                attributeType);
+        expect(attribute.getJavaType()).andStubReturn(javaType);
+        replay(attribute);
+        return attribute;
+    }
 }
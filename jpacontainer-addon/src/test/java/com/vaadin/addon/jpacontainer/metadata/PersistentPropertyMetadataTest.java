@@ -33,6 +33,8 @@ public class PersistentPropertyMetadataTest {
 	@Version
 	public int dummyField;
 
+	private String fieldWithoutAccessors;
+
 	@Version
 	public Integer getDummyField() {
 		return dummyField;
@@ -63,6 +65,26 @@ public class PersistentPropertyMetadataTest {
 		assertNotNull(prop.getAnnotation(Version.class));
 	}
 
+	@Test
+	public void testFieldPropertyAccessors() throws Exception {
+		PersistentPropertyMetadata prop = new PersistentPropertyMetadata(
+				"dummy", Integer.class, PropertyKind.SIMPLE, getClass()
+						.getDeclaredField("dummyField"), null);
+		// The getter of the field is resolved once and preferred
+		assertEquals(getClass().getDeclaredMethod("getDummyField"),
+				prop.fieldGetter);
+		dummyField = 123;
+		assertEquals(123, prop.getValue(this));
+
+		prop = new PersistentPropertyMetadata("hidden", String.class,
+				PropertyKind.SIMPLE, getClass().getDeclaredField(
+						"fieldWithoutAccessors"), null);
+		assertNull(prop.fieldGetter);
+		prop.setValue(this, "Hello");
+		assertEquals("Hello", fieldWithoutAccessors);
+		assertEquals("Hello", prop.getValue(this));
+	}
+
 	@Test
 	public void testMethodProperty() throws Exception {
 		Method getter = getClass().getDeclaredMethod("getDummyField");
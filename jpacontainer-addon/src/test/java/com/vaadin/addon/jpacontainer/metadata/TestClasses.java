@@ -282,6 +282,38 @@ abstract class TestClasses {
         }
     }
 
+    /*
+     * Test classes for entities that reference each other
+     */
+    @Entity
+    static class Team_F implements Serializable {
+
+        @Id
+        Integer id;
+        @ManyToOne
+        Member_F leader;
+    }
+
+    @Entity
+    static class Member_F implements Serializable {
+
+        @Id
+        Integer id;
+        @ManyToOne
+        Team_F team;
+    }
+
+    @Entity
+    static class BrokenReference_F implements Serializable {
+
+        @Id
+        Integer id;
+        @ManyToOne
+        Team_F team;
+        @ManyToOne
+        EconomicObject_D unmapped;
+    }
+
     interface EconomicObject_D {
         public void foo();
     }
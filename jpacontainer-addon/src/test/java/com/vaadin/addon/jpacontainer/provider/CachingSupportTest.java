@@ -0,0 +1,593 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.provider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.ref.Reference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.persistence.EntityManager;
+
+import org.junit.Test;
+
+import com.vaadin.addon.jpacontainer.CachingEntityProvider.ReferenceMode;
+import com.vaadin.addon.jpacontainer.EntityContainer;
+import com.vaadin.addon.jpacontainer.EntityManagerProvider;
+import com.vaadin.addon.jpacontainer.EntityWeigher;
+import com.vaadin.addon.jpacontainer.SortBy;
+import com.vaadin.addon.jpacontainer.provider.CachingSupport.CacheMap;
+import com.vaadin.addon.jpacontainer.provider.CachingSupport.CacheSet;
+import com.vaadin.addon.jpacontainer.provider.CachingSupport.EntityCache;
+import com.vaadin.addon.jpacontainer.testdata.Person;
+import com.vaadin.data.Container.Filter;
+import com.vaadin.data.util.filter.Compare.Equal;
+
+public class CachingSupportTest {
+
+    /**
+     * A time to live that does not expire while a test is running.
+     */
+    private static final long LONG_TIME_TO_LIVE = 60 * 60 * 1000;
+
+    /**
+     * A provider that records the number of count queries, and returns the
+     * number of the query as the count unless {@link #getCount(int)} is
+     * overridden.
+     */
+    private static class CountingProvider extends LocalEntityProvider<Person> {
+
+        private static final long serialVersionUID = 1L;
+        final AtomicInteger queries = new AtomicInteger();
+
+        /**
+         * @param entityManagerProvider
+         *            true to set an {@link EntityManagerProvider} that
+         *            returns null, as counts are only refreshed ahead when
+         *            one is used.
+         */
+        CountingProvider(boolean entityManagerProvider) {
+            super(Person.class);
+            if (entityManagerProvider) {
+                setEntityManagerProvider(new EntityManagerProvider() {
+                    public EntityManager getEntityManager() {
+                        return null;
+                    }
+                });
+            }
+        }
+
+        @Override
+        protected int doGetEntityCount(EntityContainer<Person> container,
+                Filter filter) {
+            return getCount(queries.incrementAndGet());
+        }
+
+        protected int getCount(int query) {
+            return query;
+        }
+    }
+
+    /**
+     * Returns an executor that adds its tasks to <code>tasks</code> instead
+     * of running them.
+     */
+    private static Executor collectingExecutor(final List<Runnable> tasks) {
+        return new Executor() {
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        };
+    }
+
+    /**
+     * Waits until everything loaded so far has expired with a time to live
+     * of 0.
+     */
+    private static void waitForExpiry() throws InterruptedException {
+        Thread.sleep(10);
+    }
+
+    @Test
+    public void testCacheMapEvictsLeastRecentlyUsed() {
+        CacheMap<String, Integer> map = new CacheMap<String, Integer>(3);
+        map.put("a", 1);
+        map.put("b", 2);
+        map.put("c", 3);
+        // Reading "a" makes "b" the least recently used item
+        assertEquals(Integer.valueOf(1), map.get("a"));
+        map.put("d", 4);
+        assertEquals(3, map.size());
+        assertTrue(map.containsKey("a"));
+        assertFalse(map.containsKey("b"));
+        assertTrue(map.containsKey("c"));
+        assertTrue(map.containsKey("d"));
+    }
+
+    @Test
+    public void testCacheMapPutExistingKey() {
+        CacheMap<String, Integer> map = new CacheMap<String, Integer>(2);
+        map.put("a", 1);
+        map.put("a", 2);
+        map.put("a", 3);
+        map.put("b", 4);
+        // Re-putting "a" must not cause it to be evicted prematurely
+        assertEquals(2, map.size());
+        assertEquals(Integer.valueOf(3), map.get("a"));
+        map.remove("b");
+        map.put("c", 5);
+        map.put("d", 6);
+        assertEquals(2, map.size());
+        assertTrue(map.containsKey("c"));
+        assertTrue(map.containsKey("d"));
+    }
+
+    @Test
+    public void testCacheMapUnlimited() {
+        CacheMap<Integer, Integer> map = new CacheMap<Integer, Integer>(-1);
+        for (int i = 0; i < 1000; i++) {
+            map.put(i, i);
+        }
+        assertEquals(1000, map.size());
+    }
+
+    @Test
+    public void testCacheSetEvictsLeastRecentlyUsed() {
+        CacheSet<String> set = new CacheSet<String>(2);
+        assertTrue(set.add("a"));
+        assertTrue(set.add("b"));
+        assertFalse(set.add("a"));
+        assertTrue(set.contains("b"));
+        set.add("c");
+        assertEquals(2, set.size());
+        assertFalse(set.contains("a"));
+        assertTrue(set.contains("b"));
+        assertTrue(set.contains("c"));
+        assertTrue(set.remove("b"));
+        assertEquals(1, set.size());
+    }
+
+    @Test
+    public void testIsSortedByAny() {
+        List<SortBy> sortBy = Arrays.asList(new SortBy("lastName", true),
+                new SortBy("address.street", false));
+        assertTrue(CachingSupport.isSortedByAny(sortBy,
+                Arrays.asList("lastName")));
+        assertTrue(CachingSupport.isSortedByAny(sortBy,
+                Arrays.asList("address")));
+        assertFalse(CachingSupport.isSortedByAny(sortBy,
+                Arrays.asList("firstName", "addressType")));
+        assertFalse(CachingSupport.isSortedByAny(
+                Collections.<SortBy> emptyList(), Arrays.asList("lastName")));
+    }
+
+    @Test
+    public void testEntityCacheMaxSize() {
+        EntityCache<Integer> small = new EntityCache<Integer>(10);
+        for (int i = 0; i < 100; i++) {
+            small.put(i, i);
+        }
+        assertEquals(10, small.size());
+        // The most recently added entity is always kept
+        assertEquals(Integer.valueOf(99), small.get(99));
+
+        EntityCache<Integer> large = new EntityCache<Integer>(1000);
+        for (int i = 0; i < 10000; i++) {
+            large.put(i, i);
+        }
+        assertEquals(1000, large.size());
+        assertEquals(Integer.valueOf(9999), large.remove(9999));
+        assertEquals(999, large.size());
+        large.clear();
+        assertEquals(0, large.size());
+    }
+
+    @Test
+    @SuppressWarnings("serial")
+    public void testEntityCacheMaxWeight() {
+        EntityCache<String> cache = new EntityCache<String>(10, 10,
+                new EntityWeigher<String>() {
+                    public long weigh(String entity) {
+                        return entity.length();
+                    }
+                }, ReferenceMode.STRONG, -1);
+        cache.put("a", "aaaa");
+        cache.put("b", "bbbb");
+        assertEquals(8, cache.getWeight());
+        cache.put("c", "cccc");
+        // "a" is evicted to stay within the max weight
+        assertEquals(8, cache.getWeight());
+        assertEquals(null, cache.get("a"));
+        cache.put("b", "bb");
+        assertEquals(6, cache.getWeight());
+        // An entity heavier than the max weight is still cached alone
+        cache.put("d", "ddddddddddd");
+        assertEquals(1, cache.size());
+        assertEquals(11, cache.getWeight());
+        assertEquals("ddddddddddd", cache.remove("d"));
+        assertEquals(0, cache.getWeight());
+    }
+
+    @Test
+    public void testEntityCacheSoftReferences() {
+        EntityCache<Object> cache = new EntityCache<Object>(100, -1, null,
+                ReferenceMode.SOFT, -1);
+        Object value = new Object();
+        cache.put(1, value);
+        assertSame(value, cache.get(1));
+        assertSame(value, cache.remove(1));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testEntityCacheWeakReferences() {
+        EntityCache<String> cache = new EntityCache<String>(100, 100,
+                new EntityWeigher<String>() {
+                    public long weigh(String entity) {
+                        return entity.length();
+                    }
+                }, ReferenceMode.WEAK, -1);
+        cache.put("a", "a");
+        cache.put("b", "bb");
+        assertEquals(2, cache.size());
+        assertEquals(3, cache.getWeight());
+        // The garbage collector reclaims an entity
+        Reference<String> reference = cache.getReference("a");
+        reference.clear();
+        reference.enqueue();
+        assertEquals(1, cache.size());
+        assertEquals(2, cache.getWeight());
+        assertEquals(null, cache.get("a"));
+        // A reference enqueued after its entry was replaced is ignored
+        reference = cache.getReference("b");
+        cache.put("b", "bbb");
+        reference.clear();
+        reference.enqueue();
+        assertEquals(1, cache.size());
+        assertEquals(3, cache.getWeight());
+        assertEquals("bbb", cache.get("b"));
+    }
+
+    @Test
+    public void testEntityCacheTimeToLive() throws Exception {
+        EntityCache<String> cache = new EntityCache<String>(100, -1, null,
+                ReferenceMode.STRONG, LONG_TIME_TO_LIVE);
+        cache.put("a", "a");
+        assertEquals("a", cache.get("a"));
+        cache = new EntityCache<String>(100, -1, null, ReferenceMode.STRONG, 0);
+        cache.put("a", "a");
+        waitForExpiry();
+        assertEquals(null, cache.get("a"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testEntityCountTimeToLive() throws Exception {
+        // The counts are only refreshed ahead when the entity manager is
+        // looked up for each thread
+        CountingProvider provider = new CountingProvider(true);
+        CachingSupport<Person> cachingSupport = new CachingSupport<Person>(
+                provider);
+        cachingSupport.setCountTimeToLive(LONG_TIME_TO_LIVE);
+        assertEquals(1, cachingSupport.getEntityCount(null, null));
+        assertEquals(1, cachingSupport.getEntityCount(null, null));
+        cachingSupport.setCountTimeToLive(0);
+        waitForExpiry();
+        // The expired count is reloaded before it is returned
+        assertEquals(2, cachingSupport.getEntityCount(null, null));
+
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        cachingSupport.setRefreshAheadExecutor(collectingExecutor(tasks));
+        waitForExpiry();
+        // The expired count is served while it is reloaded in the background
+        assertEquals(2, cachingSupport.getEntityCount(null, null));
+        assertEquals(2, cachingSupport.getEntityCount(null, null));
+        assertEquals(1, tasks.size());
+        tasks.get(0).run();
+        cachingSupport.setCountTimeToLive(LONG_TIME_TO_LIVE);
+        assertEquals(3, cachingSupport.getEntityCount(null, null));
+        assertEquals(3, provider.queries.get());
+    }
+
+    @Test
+    public void testRefreshedEntityCountIsDiscardedIfInvalidated()
+            throws Exception {
+        final List<CachingSupport<Person>> holder =
+                new ArrayList<CachingSupport<Person>>();
+        CountingProvider provider = new CountingProvider(true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected int getCount(int query) {
+                if (query == 2) {
+                    // The count is invalidated while it is being refreshed
+                    holder.get(0).invalidateSize();
+                }
+                return query * 10;
+            }
+        };
+        CachingSupport<Person> cachingSupport = new CachingSupport<Person>(
+                provider);
+        holder.add(cachingSupport);
+        cachingSupport.setCountTimeToLive(LONG_TIME_TO_LIVE);
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        cachingSupport.setRefreshAheadExecutor(collectingExecutor(tasks));
+        assertEquals(10, cachingSupport.getEntityCount(null, null));
+        cachingSupport.setCountTimeToLive(0);
+        waitForExpiry();
+        assertEquals(10, cachingSupport.getEntityCount(null, null));
+        assertEquals(1, tasks.size());
+        tasks.get(0).run();
+        assertEquals(2, provider.queries.get());
+        // The refreshed count may be stale, so it was not stored
+        cachingSupport.setCountTimeToLive(LONG_TIME_TO_LIVE);
+        assertEquals(30, cachingSupport.getEntityCount(null, null));
+        assertEquals(3, provider.queries.get());
+    }
+
+    @Test
+    public void testRefreshAheadRequiresEntityManagerProvider()
+            throws Exception {
+        CountingProvider provider = new CountingProvider(false);
+        CachingSupport<Person> cachingSupport = new CachingSupport<Person>(
+                provider);
+        cachingSupport.setCountTimeToLive(0);
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        cachingSupport.setRefreshAheadExecutor(collectingExecutor(tasks));
+        assertEquals(1, cachingSupport.getEntityCount(null, null));
+        waitForExpiry();
+        // Without an entity manager provider, the count is reloaded in the
+        // calling thread
+        assertEquals(2, cachingSupport.getEntityCount(null, null));
+        assertTrue(tasks.isEmpty());
+    }
+
+    @Test
+    public void testConcurrentEntityLoadsAreCoalesced() throws Exception {
+        final Person person = new Person();
+        person.setId(1L);
+        final AtomicInteger queries = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        LocalEntityProvider<Person> provider = new LocalEntityProvider<Person>(
+                Person.class) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected Person doGetEntity(Object entityId) {
+                queries.incrementAndGet();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return person;
+            }
+        };
+        final CachingSupport<Person> cachingSupport = new CachingSupport<Person>(
+                provider);
+        final List<Object> results = new ArrayList<Object>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 8; i++) {
+            Thread t = new Thread() {
+                @Override
+                public void run() {
+                    Person p = cachingSupport.getEntity(null, 1L);
+                    synchronized (results) {
+                        results.add(p);
+                    }
+                }
+            };
+            threads.add(t);
+            t.start();
+        }
+        while (queries.get() == 0) {
+            Thread.sleep(10);
+        }
+        // Give the other threads time to find the pending load
+        Thread.sleep(200);
+        release.countDown();
+        for (Thread t : threads) {
+            t.join(5000);
+        }
+        assertEquals(1, queries.get());
+        assertEquals(8, results.size());
+        for (Object p : results) {
+            assertSame(person, p);
+        }
+        // Now the entity is served from the cache
+        assertSame(person, cachingSupport.getEntity(null, 1L));
+        assertEquals(1, queries.get());
+    }
+
+    @Test
+    public void testContainsIdUsesIdListsAndMissingIds() {
+        final AtomicInteger queries = new AtomicInteger();
+        LocalEntityProvider<Person> provider = new LocalEntityProvider<Person>(
+                Person.class) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean doContainsEntity(
+                    EntityContainer<Person> container, Object entityId,
+                    Filter filter) {
+                queries.incrementAndGet();
+                return false;
+            }
+        };
+        CachingSupport<Person> cachingSupport = new CachingSupport<Person>(
+                provider) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected List<Object> getIds(EntityContainer<Person> container,
+                    Filter filter, List<SortBy> sortBy, int startFrom,
+                    int fetchMax) {
+                return Arrays.<Object> asList(1L, 2L, 3L);
+            }
+        };
+        // Missing IDs are remembered
+        assertFalse(cachingSupport.containsEntity(null, 42L, null));
+        assertFalse(cachingSupport.containsEntity(null, 42L, null));
+        assertEquals(1, queries.get());
+        // ...until the entity is added
+        Person person = new Person();
+        person.setId(42L);
+        cachingSupport.entityAdded(person);
+        assertTrue(cachingSupport.containsEntity(null, 42L, null));
+        assertEquals(1, queries.get());
+
+        // The cached ID lists are consulted before querying the database
+        cachingSupport.flush();
+        cachingSupport.getAllEntityIdentifiers(null, null,
+                Collections.<SortBy> emptyList());
+        assertTrue(cachingSupport.containsEntity(null, 2L, null));
+        // The list contains all the IDs, so others cannot match the filter
+        assertFalse(cachingSupport.containsEntity(null, 7L, null));
+        assertEquals(1, queries.get());
+    }
+
+    @Test
+    public void testContainsIdRemovedDuringQueryIsNotCached() {
+        final AtomicInteger queries = new AtomicInteger();
+        final List<CachingSupport<Person>> holder =
+                new ArrayList<CachingSupport<Person>>();
+        LocalEntityProvider<Person> provider = new LocalEntityProvider<Person>(
+                Person.class) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean doContainsEntity(
+                    EntityContainer<Person> container, Object entityId,
+                    Filter filter) {
+                if (queries.incrementAndGet() == 1) {
+                    // The entity is removed while the query is running
+                    holder.get(0).entityRemoved(entityId);
+                }
+                return true;
+            }
+        };
+        CachingSupport<Person> cachingSupport = new CachingSupport<Person>(
+                provider);
+        holder.add(cachingSupport);
+
+        assertTrue(cachingSupport.containsEntity(null, 42L, null));
+        // The stale result did not overwrite the removal
+        assertFalse(cachingSupport.containsEntity(null, 42L, null));
+        assertEquals(1, queries.get());
+    }
+
+    @Test
+    public void testEntitiesInvalidatedDuringLoadAreNotCached() {
+        final Person person = new Person();
+        person.setId(1L);
+        final AtomicInteger queries = new AtomicInteger();
+        final List<CachingSupport<Person>> holder =
+                new ArrayList<CachingSupport<Person>>();
+        LocalEntityProvider<Person> provider = new LocalEntityProvider<Person>(
+                Person.class) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected Person doGetEntity(Object entityId) {
+                if (queries.incrementAndGet() == 1) {
+                    // The entity is removed while the query is running
+                    holder.get(0).entityRemoved(entityId);
+                }
+                return person;
+            }
+
+            @Override
+            protected List<Person> doGetEntitiesAt(
+                    EntityContainer<Person> container, Filter filter,
+                    List<SortBy> sortBy, int index, int qty) {
+                if (queries.incrementAndGet() == 3) {
+                    holder.get(0).entityRemoved(person.getId());
+                }
+                return Collections.singletonList(person);
+            }
+        };
+        CachingSupport<Person> cachingSupport = new CachingSupport<Person>(
+                provider);
+        holder.add(cachingSupport);
+
+        assertSame(person, cachingSupport.getEntity(null, 1L));
+        assertSame(person, cachingSupport.getEntity(null, 1L));
+        assertEquals(2, queries.get());
+        // Now that nothing was invalidated, the entity is cached
+        assertSame(person, cachingSupport.getEntity(null, 1L));
+        assertEquals(2, queries.get());
+
+        List<SortBy> sortBy = Collections.emptyList();
+        cachingSupport.getEntitiesAt(null, null, sortBy, 0, 1);
+        // Neither the IDs nor the entity loaded by the query were cached
+        assertEquals(null, cachingSupport.getFilterCacheEntry(null)
+                .getCachedIdsAt(sortBy, 0, 1));
+        cachingSupport.getEntity(null, 1L);
+        assertEquals(4, queries.get());
+        // The second query was not interrupted, so its IDs were cached
+        cachingSupport.flush();
+        cachingSupport.getEntitiesAt(null, null, sortBy, 0, 1);
+        assertEquals(Collections.<Object> singletonList(1L), cachingSupport
+                .getFilterCacheEntry(null).getCachedIdsAt(sortBy, 0, 1));
+        assertEquals(5, queries.get());
+    }
+
+    @Test
+    public void testEntityUpdatedWithOldState() {
+        CountingProvider provider = new CountingProvider(false) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected int getCount(int query) {
+                return 10;
+            }
+        };
+        CachingSupport<Person> cachingSupport = new CachingSupport<Person>(
+                provider);
+        Filter smiths = new Equal("lastName", "Smith");
+        Filter does = new Equal("lastName", "Doe");
+        assertEquals(10, cachingSupport.getEntityCount(null, smiths));
+        assertEquals(10, cachingSupport.getEntityCount(null, does));
+        assertEquals(2, provider.queries.get());
+
+        Person oldState = new Person();
+        oldState.setId(1L);
+        oldState.setLastName("Smith");
+        Person person = new Person();
+        person.setId(1L);
+        person.setLastName("Doe");
+        // The cached entities are not cloned, so without the old state the
+        // entities have to be counted again
+        cachingSupport.entityUpdated(person);
+        assertEquals(10, cachingSupport.getEntityCount(null, smiths));
+        assertEquals(10, cachingSupport.getEntityCount(null, does));
+        assertEquals(4, provider.queries.get());
+
+        cachingSupport.entityUpdated(person, oldState);
+        assertEquals(9, cachingSupport.getEntityCount(null, smiths));
+        assertEquals(11, cachingSupport.getEntityCount(null, does));
+        assertEquals(4, provider.queries.get());
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * Copyright 2009-2013 Oy Vaadin Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vaadin.addon.jpacontainer.provider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import com.vaadin.addon.jpacontainer.SortBy;
+import com.vaadin.addon.jpacontainer.filter.JoinFilter;
+import com.vaadin.addon.jpacontainer.testdata.Person;
+import com.vaadin.data.util.filter.And;
+import com.vaadin.data.util.filter.Compare.Equal;
+
+public class SharedQueryCacheTest {
+
+    @Test
+    public void testDependsOnOtherEntities() {
+        assertFalse(SharedQueryCache.dependsOnOtherEntities(null, null));
+        assertFalse(SharedQueryCache.dependsOnOtherEntities(new And(
+                new Equal("firstName", "Joe"), new Equal("lastName", "Cool")),
+                Arrays.asList(new SortBy("lastName", true))));
+        assertTrue(SharedQueryCache.dependsOnOtherEntities(null,
+                Arrays.asList(new SortBy("address.street", true))));
+        assertTrue(SharedQueryCache.dependsOnOtherEntities(new And(
+                new Equal("firstName", "Joe"), new Equal("address.street",
+                        "Street")), null));
+        assertTrue(SharedQueryCache.dependsOnOtherEntities(new JoinFilter(
+                "skills", new Equal("level", 1)), Collections
+                .<SortBy> emptyList()));
+    }
+
+    @Test
+    public void testInvalidate() {
+        SharedQueryCache cache = new SharedQueryCache();
+        cache.put("persons", 1, Person.class, null, null,
+                cache.getGeneration());
+        cache.put("strings", 2, String.class, null, null,
+                cache.getGeneration());
+        cache.put("joined", 3, String.class, null,
+                Arrays.asList(new SortBy("address.street", true)),
+                cache.getGeneration());
+        assertEquals(3, cache.size());
+
+        SharedQueryCache.entitiesChanged(Person.class);
+        assertEquals(1, cache.size());
+        assertEquals(2, cache.get("strings"));
+
+        // Results loaded before an invalidation are not cached
+        long generation = cache.getGeneration();
+        cache.invalidate(Person.class);
+        cache.put("persons", 1, Person.class, null, null, generation);
+        assertEquals(null, cache.get("persons"));
+    }
+}
@@ -16,8 +16,21 @@
 
 package com.vaadin.addon.jpacontainer.provider.emtests;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.vaadin.addon.jpacontainer.CachingEntityProvider;
+import com.vaadin.addon.jpacontainer.CachingEntityProvider.ReferenceMode;
 import com.vaadin.addon.jpacontainer.EntityProvider;
+import com.vaadin.addon.jpacontainer.EntityWeigher;
 import com.vaadin.addon.jpacontainer.provider.CachingLocalEntityProvider;
+import com.vaadin.addon.jpacontainer.testdata.DataGenerator;
 import com.vaadin.addon.jpacontainer.testdata.EmbeddedIdPerson;
 import com.vaadin.addon.jpacontainer.testdata.Person;
 
@@ -49,5 +62,122 @@ public abstract class AbstractCachingLocalEntityProviderEMTest extends
 		return provider;
 	}
 
-	// TODO Add some test cases that try out the caching features as well
+	@Test
+	public void testCacheConfiguration() {
+		System.out.println("testCacheConfiguration");
+		CachingEntityProvider<Person> provider = (CachingEntityProvider<Person>) entityProvider;
+		assertEquals(150, provider.getIdChunkSize());
+		assertFalse(provider.isAdaptiveIdChunkSize());
+		assertEquals(10, provider.getFilterCacheMaxSize());
+		assertEquals(10, provider.getSortByCacheMaxSize());
+		assertEquals(-1, provider.getEntityCacheTimeToLive());
+		assertEquals(-1, provider.getIdListTimeToLive());
+		assertEquals(-1, provider.getEntityCountTimeToLive());
+
+		provider.setIdChunkSize(20);
+		provider.setAdaptiveIdChunkSize(true);
+		provider.setFilterCacheMaxSize(2);
+		provider.setSortByCacheMaxSize(1);
+		assertEquals(20, provider.getIdChunkSize());
+		assertTrue(provider.isAdaptiveIdChunkSize());
+		assertEquals(2, provider.getFilterCacheMaxSize());
+		assertEquals(1, provider.getSortByCacheMaxSize());
+
+		provider.setEntityCacheTimeToLive(60000);
+		provider.setIdListTimeToLive(30000);
+		provider.setEntityCountTimeToLive(10000);
+		assertEquals(60000, provider.getEntityCacheTimeToLive());
+		assertEquals(30000, provider.getIdListTimeToLive());
+		assertEquals(10000, provider.getEntityCountTimeToLive());
+		doTestGetEntityIdentifierAt_Range(
+				DataGenerator.getTestDataSortedByName(), null,
+				DataGenerator.getSortByName());
+	}
+
+	@Test
+	public void testGetEntityIdentifierAt_RangeLargerThanCache() {
+		System.out.println("testGetEntityIdentifierAt_RangeLargerThanCache");
+		CachingEntityProvider<Person> provider = (CachingEntityProvider<Person>) entityProvider;
+		provider.setEntityCacheMaxSize(100);
+		List<Object> ids = new ArrayList<Object>();
+		for (Person p : DataGenerator.getTestDataSortedByName()) {
+			ids.add(p.getId());
+		}
+		// Each range is larger than the cache, and the second one overlaps
+		// the beginning of the first one
+		int[][] ranges = { { 200, 150 }, { 100, 150 }, { 150, 150 },
+				{ 0, 150 } };
+		for (int[] range : ranges) {
+			int from = Math.min(range[0], ids.size());
+			int to = Math.min(range[0] + range[1], ids.size());
+			assertEquals(ids.subList(from, to), provider.getEntityIdentifierAt(
+					container, null, DataGenerator.getSortByName(), range[0],
+					range[1]));
+		}
+	}
+
+	@Test
+	public void testEntityCacheReferenceMode() {
+		System.out.println("testEntityCacheReferenceMode");
+		CachingEntityProvider<Person> provider = (CachingEntityProvider<Person>) entityProvider;
+		assertEquals(ReferenceMode.STRONG,
+				provider.getEntityCacheReferenceMode());
+		provider.setEntityCacheReferenceMode(ReferenceMode.WEAK);
+		assertEquals(ReferenceMode.WEAK, provider.getEntityCacheReferenceMode());
+		doTestGetEntity(DataGenerator.getTestDataSortedByName().subList(0, 100));
+		provider.setEntityCacheReferenceMode(ReferenceMode.SOFT);
+		assertEquals(ReferenceMode.SOFT, provider.getEntityCacheReferenceMode());
+		// Hibernate cannot clone an entity that is loaded again after being
+		// detached, so use different entities
+		doTestGetEntity(DataGenerator.getTestDataSortedByName().subList(100, 200));
+	}
+
+	@Test
+	public void testAdaptiveIdChunkSize() {
+		System.out.println("testAdaptiveIdChunkSize");
+		CachingEntityProvider<Person> provider = (CachingEntityProvider<Person>) entityProvider;
+		provider.setIdChunkSize(8);
+		provider.setAdaptiveIdChunkSize(true);
+		provider.setSortByCacheMaxSize(1);
+		// Sequential access in both directions
+		doTestGetEntityIdentifierAt(DataGenerator.getTestDataSortedByName(),
+				null, DataGenerator.getSortByName());
+		doTestGetEntityIdentifierAtBackwards(
+				DataGenerator.getTestDataSortedByName(), null,
+				DataGenerator.getSortByName());
+		doTestGetNextEntity(DataGenerator.getTestDataSortedByName(), null,
+				DataGenerator.getSortByName());
+		doTestGetPreviousEntity(DataGenerator.getTestDataSortedByName(),
+				null, DataGenerator.getSortByName());
+		// Random access
+		doTestGetEntityIdentifierAt_Range(
+				DataGenerator.getTestDataSortedByName(), null,
+				DataGenerator.getSortByName());
+		// Only one sort order is cached at a time
+		doTestGetEntityIdentifierAt(
+				DataGenerator.getTestDataSortedByLastNameAndStreet(), null,
+				DataGenerator.getSortByLastNameAndStreet());
+	}
+
+	@Test
+	@SuppressWarnings("serial")
+	public void testEntityCacheMaxWeight() {
+		System.out.println("testEntityCacheMaxWeight");
+		CachingEntityProvider<Person> provider = (CachingEntityProvider<Person>) entityProvider;
+		assertEquals(-1, provider.getEntityCacheMaxWeight());
+		assertEquals(0, provider.getEntityCacheWeight());
+		provider.setEntityWeigher(new EntityWeigher<Person>() {
+			public long weigh(Person entity) {
+				return 10;
+			}
+		});
+		provider.setEntityCacheMaxWeight(500);
+		assertEquals(500, provider.getEntityCacheMaxWeight());
+		for (Person p : DataGenerator.getTestDataSortedByName().subList(0, 100)) {
+			assertEquals(p.getLastName(), provider.getEntity(container, p.getId())
+					.getLastName());
+			assertTrue(provider.getEntityCacheWeight() <= 500);
+		}
+		assertTrue(provider.getEntityCacheWeight() > 0);
+	}
 }
@@ -16,10 +16,19 @@
 
 package com.vaadin.addon.jpacontainer.provider.emtests;
 
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
 import com.vaadin.addon.jpacontainer.EntityProvider;
+import com.vaadin.addon.jpacontainer.MutableEntityProvider;
 import com.vaadin.addon.jpacontainer.provider.CachingMutableLocalEntityProvider;
+import com.vaadin.addon.jpacontainer.provider.LocalEntityProvider;
+import com.vaadin.addon.jpacontainer.testdata.DataGenerator;
 import com.vaadin.addon.jpacontainer.testdata.EmbeddedIdPerson;
 import com.vaadin.addon.jpacontainer.testdata.Person;
+import com.vaadin.data.Container.Filter;
+import com.vaadin.data.util.filter.Compare.Equal;
 
 /**
  * Base class for the {@link CachingMutableLocalEntityProvider} Entity Manager tests.
@@ -51,5 +60,86 @@ public abstract class AbstractCachingMutableLocalEntityProviderEMTest extends
 		return provider;
 	}
 
-	// TODO Add some test cases that try out the caching features as well
+	/**
+	 * Checks that the cached counts and ID lists of <code>filter</code> agree
+	 * with the database.
+	 */
+	private void assertCacheConsistent(LocalEntityProvider<Person> uncached,
+			Filter filter) {
+		assertEquals(uncached.getEntityCount(container, filter),
+				entityProvider.getEntityCount(container, filter));
+		assertEquals(uncached.getAllEntityIdentifiers(container, filter,
+				DataGenerator.getSortByName()),
+				entityProvider.getAllEntityIdentifiers(container, filter,
+						DataGenerator.getSortByName()));
+		assertEquals(uncached.getAllEntityIdentifiers(container, filter,
+				DataGenerator.getSortByLastNameAndStreet()),
+				entityProvider.getAllEntityIdentifiers(container, filter,
+						DataGenerator.getSortByLastNameAndStreet()));
+	}
+
+	@Test
+	public void testSelectiveInvalidation() throws Exception {
+		System.out.println("testSelectiveInvalidation");
+		doTestSelectiveInvalidation();
+	}
+
+	@Test
+	public void testSelectiveInvalidation_NotCloned() throws Exception {
+		System.out.println("testSelectiveInvalidation_NotCloned");
+		// The old state of an updated entity is then read before merging it
+		((CachingMutableLocalEntityProvider<Person>) entityProvider)
+				.setCloneCachedEntities(false);
+		doTestSelectiveInvalidation();
+	}
+
+	private void doTestSelectiveInvalidation() throws Exception {
+		MutableEntityProvider<Person> provider = (MutableEntityProvider<Person>) entityProvider;
+		LocalEntityProvider<Person> uncached = new LocalEntityProvider<Person>(
+				Person.class, getEntityManager());
+		Person p = DataGenerator.getTestDataSortedByName().get(0);
+		Person other = DataGenerator.getTestDataSortedByName().get(1);
+		Filter sameLastName = new Equal("lastName", p.getLastName());
+		Filter otherLastName = new Equal("lastName", other.getLastName());
+		Filter[] filters = { null, sameLastName, otherLastName };
+		for (Filter f : filters) {
+			assertCacheConsistent(uncached, f);
+		}
+
+		// Changes the order of the entities, but not the filter results
+		p = entityProvider.getEntity(container, p.getId());
+		p.setFirstName("Zyx");
+		provider.updateEntity(p);
+		for (Filter f : filters) {
+			assertCacheConsistent(uncached, f);
+		}
+
+		// Moves the entity from one filter to another
+		p = entityProvider.getEntity(container, p.getId());
+		p.setLastName(other.getLastName());
+		p.setFirstName("Abc");
+		provider.updateEntity(p);
+		for (Filter f : filters) {
+			assertCacheConsistent(uncached, f);
+		}
+
+		provider.updateEntityProperty(p.getId(), "firstName", "Bcd");
+		for (Filter f : filters) {
+			assertCacheConsistent(uncached, f);
+		}
+
+		Person added = new Person();
+		added.setFirstName("Cde");
+		added.setLastName(other.getLastName());
+		added = provider.addEntity(added);
+		for (Filter f : filters) {
+			assertCacheConsistent(uncached, f);
+		}
+
+		provider.removeEntity(added.getId());
+		provider.removeEntity(other.getId());
+		for (Filter f : filters) {
+			assertCacheConsistent(uncached, f);
+		}
+	}
 }
@@ -23,6 +23,8 @@ import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -30,8 +32,10 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Executor;
 
 import javax.persistence.EntityManager;
+import javax.persistence.Persistence;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
 import javax.persistence.criteria.Join;
@@ -46,8 +50,14 @@ import org.junit.Test;
 
 import com.vaadin.addon.jpacontainer.EntityContainer;
 import com.vaadin.addon.jpacontainer.EntityProvider;
+import com.vaadin.addon.jpacontainer.EntityVisitor;
+import com.vaadin.addon.jpacontainer.ProjectingEntityProvider;
 import com.vaadin.addon.jpacontainer.SortBy;
+import com.vaadin.addon.jpacontainer.StreamingEntityProvider;
 import com.vaadin.addon.jpacontainer.filter.JoinFilter;
+import com.vaadin.addon.jpacontainer.provider.AsynchronousCountStrategy;
+import com.vaadin.addon.jpacontainer.provider.CappedCountStrategy;
+import com.vaadin.addon.jpacontainer.provider.LocalEntityProvider;
 import com.vaadin.addon.jpacontainer.testdata.DataGenerator;
 import com.vaadin.addon.jpacontainer.testdata.EmbeddedIdPerson;
 import com.vaadin.addon.jpacontainer.testdata.Person;
@@ -158,6 +168,36 @@ public abstract class AbstractEntityProviderEMTest {
         }
     }
 
+    protected void doTestGetEntities(final List<Person> testData) {
+        List<Object> ids = new ArrayList<Object>();
+        for (Person p : testData) {
+            ids.add(p.getId());
+        }
+        ids.add(-1l);
+        List<Person> returned = entityProvider.getEntities(container, ids);
+        assertEquals(ids.size(), returned.size());
+        for (int i = 0; i < testData.size(); i++) {
+            assertEquals(testData.get(i), returned.get(i));
+        }
+        assertNull(returned.get(testData.size()));
+        // Make sure the entities are detached
+        returned.get(0).setFirstName("Different firstname");
+        assertFalse(returned.get(0).getFirstName().equals(
+                entityProvider.getEntity(container, testData.get(0).getId())
+                        .getFirstName()));
+    }
+
+    protected void doTestGetEntities_EmbeddedId(
+            final List<EmbeddedIdPerson> testData) {
+        List<Object> ids = new ArrayList<Object>();
+        for (EmbeddedIdPerson p : testData) {
+            ids.add(p.getName());
+        }
+        List<EmbeddedIdPerson> returned = entityProvider_EmbeddedId
+                .getEntities(container, ids);
+        assertEquals(testData, returned);
+    }
+
     protected void doTestGetEntityCount(final List<Person> testData,
             final Filter filter) {
         assertEquals(testData.size(), entityProvider.getEntityCount(container, filter));
@@ -278,6 +318,42 @@ public abstract class AbstractEntityProviderEMTest {
                 testData.size()));
     }
 
+    protected void doTestGetEntityIdentifierAt_Range(
+            final List<Person> testData, final Filter filter,
+            final List<SortBy> sortBy) {
+        List<Object> ids = new ArrayList<Object>();
+        for (Person p : testData) {
+            ids.add(p.getId());
+        }
+        // Scroll forwards, backwards and jump around with overlapping ranges
+        int[][] ranges = { { 0, 40 }, { 40, 40 }, { 60, 100 }, { 300, 50 },
+                { 280, 40 }, { 250, 30 }, { 0, 10 }, { 450, 100 },
+                { 120, 200 }, { 10, 480 } };
+        for (int[] range : ranges) {
+            int from = Math.min(range[0], ids.size());
+            int to = Math.min(range[0] + range[1], ids.size());
+            assertEquals(ids.subList(from, to),
+                    entityProvider.getEntityIdentifierAt(container, filter,
+                            sortBy, range[0], range[1]));
+        }
+        assertTrue(entityProvider.getEntityIdentifierAt(container, filter,
+                sortBy, ids.size(), 10).isEmpty());
+    }
+
+    protected void doTestGetEntitiesAt(final List<Person> testData,
+            final Filter filter, final List<SortBy> sortBy) {
+        final int pageSize = 37;
+        for (int i = 0; i < testData.size(); i += pageSize) {
+            List<Person> page = entityProvider.getEntitiesAt(container, filter,
+                    sortBy, i, pageSize);
+            assertEquals(
+                    testData.subList(i, Math.min(i + pageSize, testData.size())),
+                    page);
+        }
+        assertTrue(entityProvider.getEntitiesAt(container, filter, sortBy,
+                testData.size(), pageSize).isEmpty());
+    }
+
     protected void doTestGetEntityIdentifierAtBackwards(
             final List<Person> testData, final Filter filter,
             final List<SortBy> sortBy) {
@@ -330,6 +406,21 @@ public abstract class AbstractEntityProviderEMTest {
                 .getTestDataEmbeddedIdSortedByName());
     }
 
+    @Test
+    public void testGetEntities() {
+        System.out.println("testGetEntities");
+        // Stay within the entity cache size of the caching providers
+        doTestGetEntities(DataGenerator.getTestDataSortedByName()
+                .subList(0, 100));
+    }
+
+    @Test
+    public void testGetEntities_EmbeddedId() {
+        System.out.println("testGetEntities_EmbeddedId");
+        doTestGetEntities_EmbeddedId(DataGenerator
+                .getTestDataEmbeddedIdSortedByName());
+    }
+
     @Test
     public void testGetEntityCount() {
         System.out.println("testGetEntityCount");
@@ -419,6 +510,100 @@ public abstract class AbstractEntityProviderEMTest {
                 null, DataGenerator.getSortByName());
     }
 
+    @Test
+    public void testGetEntityIdentifierAt_Range() {
+        System.out.println("testGetEntityIdentifierAt_Range");
+        doTestGetEntityIdentifierAt_Range(
+                DataGenerator.getTestDataSortedByName(), null,
+                DataGenerator.getSortByName());
+    }
+
+    @Test
+    public void testGetEntityIdentifierAt_RangeFiltered() {
+        System.out.println("testGetEntityIdentifierAt_RangeFiltered");
+        doTestGetEntityIdentifierAt_Range(
+                DataGenerator.getFilteredTestDataSortedByName(),
+                DataGenerator.getTestFilter(), DataGenerator.getSortByName());
+    }
+
+    @Test
+    public void testGetEntitiesAt() {
+        System.out.println("testGetEntitiesAt");
+        doTestGetEntitiesAt(DataGenerator.getTestDataSortedByName(), null,
+                DataGenerator.getSortByName());
+    }
+
+    @Test
+    public void testGetEntitiesAt_Filtered() {
+        System.out.println("testGetEntitiesAt_Filtered");
+        doTestGetEntitiesAt(DataGenerator.getFilteredTestDataSortedByName(),
+                DataGenerator.getTestFilter(), DataGenerator.getSortByName());
+    }
+
+    @Test
+    public void testKeysetPagination() {
+        System.out.println("testKeysetPagination");
+        ((LocalEntityProvider<Person>) entityProvider)
+                .setKeysetPaginationEnabled(true);
+        doTestGetEntityIdentifierAt_Range(
+                DataGenerator.getTestDataSortedByName(), null,
+                DataGenerator.getSortByName());
+        doTestGetEntityIdentifierAt_Range(
+                DataGenerator.getFilteredTestDataSortedByName(),
+                DataGenerator.getTestFilter(), DataGenerator.getSortByName());
+        doTestGetEntityIdentifierAt_Range(
+                DataGenerator.getTestDataSortedByLastNameAndStreet(), null,
+                DataGenerator.getSortByLastNameAndStreet());
+        doTestGetEntitiesAt(DataGenerator.getTestDataSortedByName(), null,
+                DataGenerator.getSortByName());
+        doTestGetEntityIdentifierAt(
+                DataGenerator.getTestDataSortedByPrimaryKey(), null, null);
+        doTestGetEntityIdentifierAtBackwards(
+                DataGenerator.getFilteredTestDataSortedByName(),
+                DataGenerator.getTestFilter(), DataGenerator.getSortByName());
+    }
+
+    @Test
+    public void testKeysetPagination_NullableSortProperty() {
+        System.out.println("testKeysetPagination_NullableSortProperty");
+        LocalEntityProvider<Person> provider = (LocalEntityProvider<Person>) entityProvider;
+        List<Person> testData = DataGenerator.getTestDataSortedByPrimaryKey();
+        clearSomeDatesOfBirth(testData);
+        List<SortBy> sortBy = Arrays.asList(new SortBy("dateOfBirth", true));
+        List<Object> expectedIds = new ArrayList<Object>(
+                provider.getAllEntityIdentifiers(container, null, sortBy));
+        assertEquals(testData.size(), expectedIds.size());
+
+        // No entities with null values may be skipped, no matter where the
+        // database sorts them
+        provider.setKeysetPaginationEnabled(true);
+        List<Object> ids = new ArrayList<Object>();
+        List<Object> entityIds = new ArrayList<Object>();
+        for (int i = 0; i < testData.size(); i += 7) {
+            ids.addAll(provider.getEntityIdentifierAt(container, null,
+                    sortBy, i, 7));
+            for (Person person : provider.getEntitiesAt(container, null,
+                    sortBy, i, 7)) {
+                entityIds.add(person.getId());
+            }
+        }
+        assertEquals(expectedIds, ids);
+        assertEquals(expectedIds, entityIds);
+    }
+
+    /**
+     * Sets the date of birth of every third person to null.
+     */
+    private void clearSomeDatesOfBirth(List<Person> testData) {
+        EntityManager em = getEntityManager();
+        em.getTransaction().begin();
+        for (int i = 0; i < testData.size(); i += 3) {
+            em.find(Person.class, testData.get(i).getId())
+                    .setDateOfBirth(null);
+        }
+        em.getTransaction().commit();
+    }
+
     @Test
     public void testGetEntityIdentifierAtBackwards() {
         System.out.println("testGetEntityIdentifierAtBackwards");
@@ -744,5 +929,353 @@ public abstract class AbstractEntityProviderEMTest {
         entityProvider.setQueryModifierDelegate(null);
     }
 
+    @Test
+    public void testQueryModifierDelegateRemovesFilterPredicates() {
+        System.out.println("testQueryModifierDelegateRemovesFilterPredicates");
+        Filter filter = DataGenerator.getTestFilter();
+        assertEquals(DataGenerator.getFilteredTestDataSortedByName().size(),
+                entityProvider.getEntityCount(container, filter));
+        // The parameters of the removed predicates must not be bound, and
+        // queries built before the delegate was set must not be reused
+        entityProvider
+                .setQueryModifierDelegate(new DefaultQueryModifierDelegate() {
+                    @Override
+                    public void filtersWillBeAdded(
+                            CriteriaBuilder criteriaBuilder,
+                            CriteriaQuery<?> query, List<Predicate> predicates) {
+                        predicates.clear();
+                    }
+                });
+        assertEquals(DataGenerator.getTestDataSortedByPrimaryKey().size(),
+                entityProvider.getEntityCount(container, filter));
+        assertEquals(DataGenerator.getTestDataSortedByPrimaryKey().get(0)
+                .getId(), entityProvider.getEntityIdentifierAt(container,
+                filter, null, 0));
+        entityProvider.setQueryModifierDelegate(null);
+    }
+
+    @Test
+    public void testFilterValuesOfOtherTypeThanAttribute() {
+        System.out.println("testFilterValuesOfOtherTypeThanAttribute");
+        List<Person> testData = DataGenerator.getTestDataSortedByPrimaryKey();
+        long id1 = testData.get(3).getId();
+        long id2 = testData.get(7).getId();
+        // Integers are converted to the Long type of the attribute, both when
+        // the query is built and when its template is reused
+        assertEquals(1, entityProvider.getEntityCount(container, new Equal(
+                "id", (int) id1)));
+        assertEquals(1, entityProvider.getEntityCount(container, new Equal(
+                "id", (int) id2)));
+        // A Double that is a whole number is converted, but the template of
+        // the same shape cannot be reused for one that is not
+        assertEquals(1, entityProvider.getEntityCount(container, new Equal(
+                "id", (double) id1)));
+        assertEquals(0, entityProvider.getEntityCount(container, new Equal(
+                "id", id2 + 0.5)));
+        assertEquals(1, entityProvider.getEntityCount(container, new Equal(
+                "id", (double) id2)));
+    }
+
+    @Test
+    public void testCountStrategies() {
+        System.out.println("testCountStrategies");
+        LocalEntityProvider<Person> provider = (LocalEntityProvider<Person>) entityProvider;
+        Filter filter = DataGenerator.getTestFilter();
+        int count = DataGenerator.getFilteredTestDataSortedByName().size();
+        CappedCountStrategy capped = new CappedCountStrategy(count - 1);
+        provider.setCountStrategy(capped);
+        assertEquals(count - 1, provider.getEntityCount(container, filter));
+        assertTrue(capped.isCapped(filter));
+        // Exactly maxCount entities is not a capped count
+        capped = new CappedCountStrategy(count);
+        provider.setCountStrategy(capped);
+        assertEquals(count, provider.getEntityCount(container, filter));
+        assertFalse(capped.isCapped(filter));
+        capped = new CappedCountStrategy(count + 1);
+        provider.setCountStrategy(capped);
+        assertEquals(count, provider.getEntityCount(container, filter));
+        assertFalse(capped.isCapped(filter));
+
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        final List<Runnable> notifications = new ArrayList<Runnable>();
+        AsynchronousCountStrategy strategy = new AsynchronousCountStrategy(
+                new Executor() {
+                    public void execute(Runnable command) {
+                        tasks.add(command);
+                    }
+                }, new Executor() {
+                    public void execute(Runnable command) {
+                        notifications.add(command);
+                        command.run();
+                    }
+                });
+        strategy.setPlaceholderCount(1);
+        provider.setCountStrategy(strategy);
+        EntityContainer otherContainer = EasyMock
+                .createNiceMock(EntityContainer.class);
+        // The placeholder is returned until the entities have been counted
+        assertEquals(1, provider.getEntityCount(container, filter));
+        assertEquals(1, provider.getEntityCount(container, filter));
+        assertEquals(1, provider.getEntityCount(otherContainer, filter));
+        assertEquals(1, tasks.size());
+        tasks.remove(0).run();
+        // Every container that got the placeholder is notified once
+        assertEquals(2, notifications.size());
+        assertEquals(count, provider.getEntityCount(container, filter));
+        assertTrue(tasks.isEmpty());
+        // The last known count is returned while counting again
+        provider.refresh();
+        assertEquals(count, provider.getEntityCount(container, filter));
+        assertEquals(1, tasks.size());
+        tasks.remove(0).run();
+        // The count did not change, so there is nothing to notify
+        assertEquals(2, notifications.size());
+        provider.setCountStrategy(null);
+    }
+
+    @Test
+    public void testGetProjectedEntities() throws Exception {
+        System.out.println("testGetProjectedEntities");
+        ProjectingEntityProvider<Person> provider = (ProjectingEntityProvider<Person>) entityProvider;
+        List<Person> testData = DataGenerator.getTestDataSortedByName();
+        List<String> propertyIds = Arrays.asList("firstName",
+                "address.street", "manager.firstName", "skills", "tempData");
+        List<Person> projections = provider.getProjectedEntitiesAt(container,
+                null, DataGenerator.getSortByName(), 0, testData.size(),
+                propertyIds);
+        // Persons without a manager must not be excluded
+        assertEquals(testData.size(), projections.size());
+        for (int i = 0; i < testData.size(); i++) {
+            Person expected = testData.get(i);
+            Person projection = projections.get(i);
+            assertEquals(expected.getId(), projection.getId());
+            assertEquals(expected.getFirstName(), projection.getFirstName());
+            assertNull(projection.getLastName());
+            assertEquals(expected.getAddress().getStreet(), projection
+                    .getAddress().getStreet());
+            assertNull(projection.getAddress().getPostOffice());
+            if (expected.getManager() == null) {
+                assertNull(projection.getManager());
+            } else {
+                assertEquals(expected.getManager().getFirstName(), projection
+                        .getManager().getFirstName());
+            }
+            assertFalse(getEntityManager().contains(projection));
+        }
+
+        Person projection = provider.getProjectedEntity(container, testData
+                .get(1).getId(), propertyIds);
+        assertEquals(testData.get(1).getFirstName(), projection.getFirstName());
+        assertNull(projection.getLastName());
+    }
+
+    /**
+     * Makes the first person in <code>testData</code> the manager of every
+     * other person, returning the identifiers of the managed persons.
+     */
+    protected List<Object> assignManager(List<Person> testData)
+            throws Exception {
+        EntityManager em = getEntityManager();
+        em.getTransaction().begin();
+        Person manager = em.find(Person.class, testData.get(0).getId());
+        List<Object> managedIds = new ArrayList<Object>();
+        for (int i = 1; i < testData.size(); i += 2) {
+            em.find(Person.class, testData.get(i).getId()).setManager(manager);
+            managedIds.add(testData.get(i).getId());
+        }
+        em.getTransaction().commit();
+        return managedIds;
+    }
+
+    protected EntityContainer createNestedPropertyContainer() {
+        EntityContainer nestedContainer = EasyMock
+                .createNiceMock(EntityContainer.class);
+        EasyMock.expect(nestedContainer.getContainerPropertyIds())
+                .andStubReturn(
+                        (Collection) Arrays.asList("firstName",
+                                "manager.firstName", "address.street",
+                                "skills.skill"));
+        EasyMock.replay(nestedContainer);
+        return nestedContainer;
+    }
+
+    @Test
+    public void testGetEntitiesAt_FetchNestedProperties() throws Exception {
+        System.out.println("testGetEntitiesAt_FetchNestedProperties");
+        List<Person> testData = DataGenerator.getTestDataSortedByName();
+        List<Object> managedIds = assignManager(testData);
+        List<Person> page = entityProvider.getEntitiesAt(
+                createNestedPropertyContainer(), null,
+                DataGenerator.getSortByName(), 0, testData.size());
+        // Persons without a manager must not be excluded
+        assertEquals(testData.size(), page.size());
+        for (int i = 0; i < page.size(); i++) {
+            Person person = page.get(i);
+            assertEquals(testData.get(i).getId(), person.getId());
+            if (managedIds.contains(person.getId())) {
+                assertTrue(Persistence.getPersistenceUtil().isLoaded(
+                        person.getManager()));
+                assertEquals(testData.get(0).getFirstName(), person
+                        .getManager().getFirstName());
+            } else {
+                assertNull(person.getManager());
+            }
+        }
+    }
+
+    @Test
+    public void testGetEntities_FetchNestedProperties() throws Exception {
+        System.out.println("testGetEntities_FetchNestedProperties");
+        List<Person> testData = DataGenerator.getTestDataSortedByName();
+        List<Object> managedIds = assignManager(testData);
+        List<Person> entities = entityProvider.getEntities(
+                createNestedPropertyContainer(), managedIds);
+        assertEquals(managedIds.size(), entities.size());
+        for (int i = 0; i < entities.size(); i++) {
+            Person person = entities.get(i);
+            assertEquals(managedIds.get(i), person.getId());
+            assertTrue(Persistence.getPersistenceUtil().isLoaded(
+                    person.getManager()));
+            assertEquals(testData.get(0).getFirstName(), person.getManager()
+                    .getFirstName());
+        }
+    }
+
+    protected void doTestVisitEntities() throws Exception {
+        StreamingEntityProvider<Person> provider = (StreamingEntityProvider<Person>) entityProvider;
+        List<Person> testData = DataGenerator.getFilteredTestDataSortedByName();
+        final List<Person> visited = new ArrayList<Person>();
+        final EntityManager em = getEntityManager();
+        assertEquals(testData.size(), provider.visitEntities(container,
+                DataGenerator.getTestFilter(), DataGenerator.getSortByName(),
+                new EntityVisitor<Person>() {
+                    public boolean visit(Person entity) {
+                        // The visited entities are detached
+                        assertFalse(em.contains(entity));
+                        visited.add(entity);
+                        return true;
+                    }
+                }));
+        assertEquals(testData.size(), visited.size());
+        for (int i = 0; i < testData.size(); i++) {
+            assertEquals(testData.get(i).getId(), visited.get(i).getId());
+        }
+
+        // The visitor can stop the iteration
+        assertEquals(3, provider.visitEntities(container, null,
+                DataGenerator.getSortByName(), new EntityVisitor<Person>() {
+                    int count = 0;
+
+                    public boolean visit(Person entity) {
+                        return ++count < 3;
+                    }
+                }));
+    }
+
+    @Test
+    public void testVisitEntities() throws Exception {
+        System.out.println("testVisitEntities");
+        ((LocalEntityProvider<Person>) entityProvider)
+                .setStreamingChunkSize(7);
+        doTestVisitEntities();
+    }
+
+    @Test
+    public void testVisitEntities_Keyset() throws Exception {
+        System.out.println("testVisitEntities_Keyset");
+        ((LocalEntityProvider<Person>) entityProvider)
+                .setStreamingChunkSize(7);
+        ((LocalEntityProvider<Person>) entityProvider)
+                .setKeysetPaginationEnabled(true);
+        doTestVisitEntities();
+    }
+
+    @Test
+    public void testVisitEntities_NullableSortProperty() throws Exception {
+        System.out.println("testVisitEntities_NullableSortProperty");
+        LocalEntityProvider<Person> provider = (LocalEntityProvider<Person>) entityProvider;
+        provider.setStreamingChunkSize(7);
+        List<Person> testData = DataGenerator.getTestDataSortedByPrimaryKey();
+        clearSomeDatesOfBirth(testData);
+
+        // Every entity is visited once, no matter where the database sorts
+        // the null values
+        final Set<Object> visitedIds = new HashSet<Object>();
+        assertEquals(testData.size(), provider.visitEntities(container, null,
+                Arrays.asList(new SortBy("dateOfBirth", true)),
+                new EntityVisitor<Person>() {
+                    public boolean visit(Person entity) {
+                        assertTrue(visitedIds.add(entity.getId()));
+                        return true;
+                    }
+                }));
+        assertEquals(testData.size(), visitedIds.size());
+
+        // The identifier cannot be null, so the chunks are sought by it
+        final List<Object> visitedInOrder = new ArrayList<Object>();
+        assertEquals(testData.size(), provider.visitEntities(container, null,
+                null, new EntityVisitor<Person>() {
+                    public boolean visit(Person entity) {
+                        visitedInOrder.add(entity.getId());
+                        return true;
+                    }
+                }));
+        for (int i = 0; i < testData.size(); i++) {
+            assertEquals(testData.get(i).getId(), visitedInOrder.get(i));
+        }
+    }
+
+    @Test
+    public void testVisitEntities_DetachesFetchedEntities() throws Exception {
+        System.out.println("testVisitEntities_DetachesFetchedEntities");
+        LocalEntityProvider<Person> provider = (LocalEntityProvider<Person>) entityProvider;
+        provider.setStreamingChunkSize(7);
+        List<Person> testData = DataGenerator.getTestDataSortedByName();
+        List<Object> managedIds = assignManager(testData);
+        final EntityManager em = getEntityManager();
+        final List<Object> visitedManagedIds = new ArrayList<Object>();
+        assertEquals(testData.size(), provider.visitEntities(
+                createNestedPropertyContainer(), null,
+                DataGenerator.getSortByName(), new EntityVisitor<Person>() {
+                    public boolean visit(Person entity) {
+                        if (entity.getManager() != null) {
+                            // The manager was fetched by the same query
+                            assertFalse(em.contains(entity.getManager()));
+                            visitedManagedIds.add(entity.getId());
+                        }
+                        return true;
+                    }
+                }));
+        assertEquals(managedIds, visitedManagedIds);
+    }
+
+    @Test
+    public void testVisitEntities_NotDetached() throws Exception {
+        System.out.println("testVisitEntities_NotDetached");
+        LocalEntityProvider<Person> provider = (LocalEntityProvider<Person>) entityProvider;
+        provider.setStreamingChunkSize(7);
+        provider.setEntitiesDetached(false);
+        List<Person> testData = DataGenerator.getTestDataSortedByName();
+        assignManager(testData);
+        final EntityManager em = getEntityManager();
+        // An entity the application has modified but not flushed
+        Person modified = em.find(Person.class, testData.get(0).getId());
+        modified.setFirstName("Modified");
+
+        assertEquals(testData.size(), provider.visitEntities(
+                createNestedPropertyContainer(), null,
+                DataGenerator.getSortByName(), new EntityVisitor<Person>() {
+                    public boolean visit(Person entity) {
+                        assertTrue(em.contains(entity));
+                        if (entity.getManager() != null) {
+                            assertTrue(em.contains(entity.getManager()));
+                        }
+                        return true;
+                    }
+                }));
+        assertTrue(em.contains(modified));
+        assertEquals("Modified", modified.getFirstName());
+    }
+
     // TODO Add test for getAllEntityIdentifiers
 }
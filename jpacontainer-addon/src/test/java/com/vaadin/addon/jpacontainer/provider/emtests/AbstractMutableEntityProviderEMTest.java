@@ -18,13 +18,18 @@ package com.vaadin.addon.jpacontainer.provider.emtests;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.util.List;
+
 import org.easymock.EasyMock;
 import org.junit.Test;
 
 import com.vaadin.addon.jpacontainer.EntityContainer;
 import com.vaadin.addon.jpacontainer.MutableEntityProvider;
+import com.vaadin.addon.jpacontainer.provider.LocalEntityProvider;
+import com.vaadin.addon.jpacontainer.provider.SharedQueryCache;
 import com.vaadin.addon.jpacontainer.testdata.Address;
 import com.vaadin.addon.jpacontainer.testdata.DataGenerator;
 import com.vaadin.addon.jpacontainer.testdata.Person;
@@ -126,4 +131,67 @@ public abstract class AbstractMutableEntityProviderEMTest extends
 		Person returned = entityProvider.getEntity(container, p.getId());
 		assertEquals("A changed first name again", returned.getFirstName());
 	}
+
+	@Test
+	public void testGetSiblingsAfterUpdate() {
+		Object first = DataGenerator.getTestDataSortedByName().get(0).getId();
+		Object second = DataGenerator.getTestDataSortedByName().get(1).getId();
+		assertEquals(second, entityProvider.getNextEntityIdentifier(container,
+				first, null, DataGenerator.getSortByName()));
+
+		// Move the second entity to the top of the list
+		((MutableEntityProvider<Person>) entityProvider).updateEntityProperty(
+				second, "lastName", "AAAAA");
+
+		assertNull(entityProvider.getPreviousEntityIdentifier(container,
+				second, null, DataGenerator.getSortByName()));
+		assertEquals(first, entityProvider.getNextEntityIdentifier(container,
+				second, null, DataGenerator.getSortByName()));
+	}
+
+	@Test
+	public void testSharedQueryCache() throws Exception {
+		SharedQueryCache cache = new SharedQueryCache();
+		LocalEntityProvider<Person> readOnly1 = new LocalEntityProvider<Person>(
+				Person.class, getEntityManager());
+		LocalEntityProvider<Person> readOnly2 = new LocalEntityProvider<Person>(
+				Person.class, getEntityManager());
+		readOnly1.setSharedQueryCache(cache);
+		readOnly2.setSharedQueryCache(cache);
+
+		int entityCount = readOnly1.getEntityCount(container, null);
+		List<Object> ids = readOnly1.getEntityIdentifierAt(container, null,
+				DataGenerator.getSortByName(), 0, 10);
+		assertEquals(2, cache.size());
+
+		// Add a person behind the back of the providers, so that the shared
+		// results are out of date
+		getEntityManager().getTransaction().begin();
+		getEntityManager().persist(createPerson("Aaron", "Aaronson"));
+		getEntityManager().getTransaction().commit();
+
+		assertEquals(entityCount, readOnly2.getEntityCount(container, null));
+		assertEquals(ids, readOnly2.getEntityIdentifierAt(container, null,
+				DataGenerator.getSortByName(), 0, 10));
+
+		// Changes made through a mutable provider invalidate the results
+		((MutableEntityProvider<Person>) entityProvider)
+				.addEntity(createPerson("Hello", "World"));
+		assertEquals(0, cache.size());
+		assertEquals(entityCount + 2, readOnly2.getEntityCount(container, null));
+		assertFalse(ids.equals(readOnly2.getEntityIdentifierAt(container, null,
+				DataGenerator.getSortByName(), 0, 10)));
+	}
+
+	private Person createPerson(String firstName, String lastName) {
+		Person p = new Person();
+		p.setFirstName(firstName);
+		p.setLastName(lastName);
+		p.setDateOfBirth(java.sql.Date.valueOf("2000-06-02"));
+		p.setAddress(new Address());
+		p.getAddress().setStreet("Street");
+		p.getAddress().setPostalCode("Postal Code");
+		p.getAddress().setPostOffice("Post Office");
+		return p;
+	}
 }